@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.version.Version;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.helpers.NOPLogger;
+
+import com.bloomreach.forge.versionhistory.core.DocumentHistoryCleanerTask;
+
+/**
+ * Benchmarks {@link DocumentHistoryCleanerTask} for a document with a version history of each size,
+ * by each retention policy combination.
+ * <P>
+ * As the task removes versions, a fresh document is created before each invocation, outside the measurement.
+ * Every tenth version and the latest version are labeled, so they are kept.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DocumentHistoryCleanerBenchmark {
+
+    private static final String DOCUMENT_PATH = "/content/documents/benchmark/cleaner";
+
+    private static final int LABEL_INTERVAL = 10;
+
+    /**
+     * Retention policy combinations.
+     */
+    public enum Policy {
+
+        /**
+         * Every unlabeled version is older than zero days, so all of them are removed.
+         */
+        MAX_DAYS(0L, -1L, false),
+
+        /**
+         * Only the latest five unlabeled versions are kept.
+         */
+        MAX_REVISIONS(-1L, 5L, false),
+
+        /**
+         * Both rules are evaluated as of the created time of the middle version, so the <code>maxDays</code> rule
+         * removes about the older half of the unlabeled versions, and the <code>maxRevisions</code> rule keeps only
+         * the latest five of the newer half.
+         */
+        BOTH(0L, 5L, true);
+
+        private final long maxDays;
+        private final long maxRevisions;
+        private final boolean halfExpired;
+
+        Policy(final long maxDays, final long maxRevisions, final boolean halfExpired) {
+            this.maxDays = maxDays;
+            this.maxRevisions = maxRevisions;
+            this.halfExpired = halfExpired;
+        }
+    }
+
+    @Param({ "10", "100", "1000", "10000" })
+    private int versionCount;
+
+    @Param
+    private Policy policy;
+
+    private InMemoryRepository repository;
+    private Session session;
+    private Node documentNode;
+    private long nowMillis;
+
+    @Setup(Level.Trial)
+    public void setUpRepository() throws Exception {
+        repository = new InMemoryRepository();
+        session = repository.login();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownRepository() throws IOException {
+        session.logout();
+        repository.shutdown();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpDocument() throws RepositoryException {
+        documentNode = InMemoryRepository.createDocument(session, DOCUMENT_PATH, versionCount, LABEL_INTERVAL);
+        nowMillis = policy.halfExpired ? getMiddleVersionCreatedMillis() : -1L;
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownDocument() throws RepositoryException {
+        session.refresh(false);
+        InMemoryRepository.removeNode(session, DOCUMENT_PATH);
+    }
+
+    @Benchmark
+    public long cleanUp() throws RepositoryException {
+        final DocumentHistoryCleanerTask task = new DocumentHistoryCleanerTask(session, documentNode);
+        task.setLogger(NOPLogger.NOP_LOGGER);
+        task.setMaxDays(policy.maxDays);
+        task.setMaxRevisions(policy.maxRevisions);
+        task.setNowMillis(nowMillis);
+        task.execute();
+        session.save();
+        return task.getRemovedVersionCount();
+    }
+
+    private long getMiddleVersionCreatedMillis() throws RepositoryException {
+        Version version = session.getWorkspace().getVersionManager().getVersionHistory(DOCUMENT_PATH)
+                .getRootVersion();
+
+        for (int i = 0; i <= versionCount / 2; i++) {
+            version = version.getLinearSuccessor();
+        }
+
+        return version.getCreated().getTimeInMillis();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.helpers.NOPLogger;
+
+import com.bloomreach.forge.versionhistory.core.DocumentHistoryTruncaterTask;
+
+/**
+ * Benchmarks {@link DocumentHistoryTruncaterTask} for a deleted document in the attic with a version history
+ * of each size, including the removal of the attic handle as done on document deletion.
+ * <P>
+ * As the task removes the document and its versions, a fresh document is created before each invocation,
+ * outside the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DocumentHistoryTruncaterBenchmark {
+
+    private static final String HANDLE_PATH = "/content/attic/benchmark/truncater";
+
+    private static final String DOCUMENT_PATH = HANDLE_PATH + "/truncater";
+
+    private static final int LABEL_INTERVAL = 10;
+
+    @Param({ "10", "100", "1000", "10000" })
+    private int versionCount;
+
+    private InMemoryRepository repository;
+    private Session session;
+    private Node documentNode;
+
+    @Setup(Level.Trial)
+    public void setUpRepository() throws Exception {
+        repository = new InMemoryRepository();
+        session = repository.login();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownRepository() throws IOException {
+        session.logout();
+        repository.shutdown();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpDocument() throws RepositoryException {
+        documentNode = InMemoryRepository.createDocument(session, DOCUMENT_PATH, versionCount, LABEL_INTERVAL);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownDocument() throws RepositoryException {
+        session.refresh(false);
+        InMemoryRepository.removeNode(session, HANDLE_PATH);
+    }
+
+    @Benchmark
+    public long truncate() throws RepositoryException {
+        final DocumentHistoryTruncaterTask task = new DocumentHistoryTruncaterTask(session, documentNode);
+        task.setLogger(NOPLogger.NOP_LOGGER);
+        task.execute();
+        session.save();
+        return task.getRemovedVersionCount();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.version.VersionHistory;
+import javax.jcr.version.VersionManager;
+
+import org.apache.jackrabbit.commons.cnd.CndImporter;
+import org.apache.jackrabbit.commons.cnd.ParseException;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+
+/**
+ * Local in-memory Jackrabbit repository for the benchmarks, with helpers to create synthetic documents
+ * having version histories.
+ */
+public class InMemoryRepository {
+
+    private static final String REPOSITORY_CONFIG_RESOURCE = "/benchmark-repository.xml";
+
+    private static final String NODE_TYPES_RESOURCE = "/benchmark-nodetypes.cnd";
+
+    /**
+     * Label of the latest version of a synthetic document, so that the base version is never removed.
+     */
+    public static final String LATEST_VERSION_LABEL = "latest";
+
+    private final Path homeDir;
+    private final RepositoryImpl repository;
+
+    public InMemoryRepository() throws IOException, RepositoryException {
+        homeDir = Files.createTempDirectory("version-history-cleaner-benchmarks");
+
+        try (InputStream input = InMemoryRepository.class.getResourceAsStream(REPOSITORY_CONFIG_RESOURCE)) {
+            repository = RepositoryImpl.create(RepositoryConfig.create(input, homeDir.toString()));
+        }
+    }
+
+    public Session login() throws RepositoryException {
+        return repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+    }
+
+    /**
+     * Registers the minimal subset of the Hippo node types used by the version history cleaner.
+     * @param session session
+     * @throws IOException if the node type definitions cannot be read
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static void registerNodeTypes(final Session session) throws IOException, RepositoryException {
+        try (Reader reader = new InputStreamReader(InMemoryRepository.class.getResourceAsStream(NODE_TYPES_RESOURCE),
+                StandardCharsets.UTF_8)) {
+            CndImporter.registerNodeTypes(reader, session);
+        } catch (ParseException e) {
+            throw new RepositoryException("Invalid node type definitions.", e);
+        }
+    }
+
+    public void shutdown() throws IOException {
+        repository.shutdown();
+
+        try (Stream<Path> paths = Files.walk(homeDir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Creates a versionable document node at the path with the given number of versions, creating the ancestor
+     * nodes as needed. Every <code>labelInterval</code>-th version and the latest version are labeled.
+     * @param session session
+     * @param documentPath document node path
+     * @param versionCount the number of versions to create
+     * @param labelInterval interval of the labeled versions, or zero to label only the latest version
+     * @return the document node
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static Node createDocument(final Session session, final String documentPath, final int versionCount,
+            final int labelInterval) throws RepositoryException {
+        Node node = session.getRootNode();
+
+        for (String name : documentPath.substring(1).split("/")) {
+            node = node.hasNode(name) ? node.getNode(name) : node.addNode(name, "nt:unstructured");
+        }
+
+        node.addMixin("mix:versionable");
+        session.save();
+
+        final String path = node.getPath();
+        final VersionManager versionManager = session.getWorkspace().getVersionManager();
+
+        for (int i = 1; i <= versionCount; i++) {
+            node.setProperty("title", "Revision " + i);
+            session.save();
+            final String versionName = versionManager.checkin(path).getName();
+            versionManager.checkout(path);
+
+            if (labelInterval > 0 && i % labelInterval == 0) {
+                versionManager.getVersionHistory(path).addVersionLabel(versionName, "label-" + i, false);
+            }
+        }
+
+        final VersionHistory versionHistory = versionManager.getVersionHistory(path);
+        versionHistory.addVersionLabel(versionManager.getBaseVersion(path).getName(), LATEST_VERSION_LABEL, true);
+
+        return node;
+    }
+
+    /**
+     * Removes the node at the path if exists, and saves the session.
+     * @param session session
+     * @param path node path
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static void removeNode(final Session session, final String path) throws RepositoryException {
+        if (session.nodeExists(path)) {
+            session.getNode(path).remove();
+            session.save();
+        }
+    }
+}
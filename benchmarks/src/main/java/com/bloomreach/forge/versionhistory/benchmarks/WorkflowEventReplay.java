@@ -0,0 +1,302 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.version.VersionManager;
+
+import org.apache.jackrabbit.core.NodeImpl;
+import org.hippoecm.repository.HippoStdNodeType;
+import org.hippoecm.repository.api.HippoNodeType;
+
+import com.bloomreach.forge.versionhistory.core.repository.DocumentHistoryCleanerConfiguration;
+import com.bloomreach.forge.versionhistory.core.repository.DocumentHistoryCleanerListener;
+import com.bloomreach.forge.versionhistory.core.repository.DocumentHistoryCleanerPolicies;
+import com.bloomreach.forge.versionhistory.core.repository.DocumentHistoryCleanupRequest;
+import com.bloomreach.forge.versionhistory.core.repository.DocumentHistoryEventRecorder;
+import com.bloomreach.forge.versionhistory.core.repository.DocumentHistoryEventRecorder.RecordedEvent;
+import com.bloomreach.forge.versionhistory.core.repository.LatencyHistogram;
+
+/**
+ * Replays a workflow event recording, made by {@link DocumentHistoryEventRecorder}, to
+ * {@link DocumentHistoryCleanerListener} against a local in-memory repository, and reports the throughput,
+ * the latency distribution, the number of leaked sessions and the heap growth.
+ * <P>
+ * A synthetic document is created for each subject in the recording with the same identifier before replaying.
+ * Before each event is sent to the listener, the effect of the workflow action is simulated: a new version is
+ * created on publication, and the document is moved to the attic on deletion.
+ * <P>
+ * Usage:
+ * <PRE>
+ * java -cp benchmarks.jar com.bloomreach.forge.versionhistory.benchmarks.WorkflowEventReplay &lt;recording-file&gt;
+ *     [--speed &lt;multiplier&gt;] [--initial-versions &lt;count&gt;] [--max-days &lt;days&gt;]
+ *     [--max-revisions &lt;count&gt;] [--truncate-on-delete]
+ * </PRE>
+ * The speed multiplier divides the recorded intervals between events. Zero replays as fast as possible.
+ */
+public class WorkflowEventReplay {
+
+    private static final String DOCUMENTS_PATH = "/content/documents/replay";
+
+    private static final String ATTIC_PATH = "/content/attic/replay";
+
+    private double speed = 1.0;
+    private int initialVersions = 10;
+    private final DocumentHistoryCleanerConfiguration config = new DocumentHistoryCleanerConfiguration();
+
+    private final AtomicLong openedSessionCount = new AtomicLong();
+    private final AtomicLong closedSessionCount = new AtomicLong();
+
+    /**
+     * Handle node paths keyed by subject identifier.
+     */
+    private final Map<String, String> handlePaths = new HashMap<>();
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: WorkflowEventReplay <recording-file> [--speed <multiplier>] "
+                    + "[--initial-versions <count>] [--max-days <days>] [--max-revisions <count>] "
+                    + "[--truncate-on-delete]");
+            System.exit(1);
+        }
+
+        final WorkflowEventReplay replay = new WorkflowEventReplay();
+
+        for (int i = 1; i < args.length; i++) {
+            if ("--speed".equals(args[i])) {
+                replay.speed = Double.parseDouble(args[++i]);
+            } else if ("--initial-versions".equals(args[i])) {
+                replay.initialVersions = Integer.parseInt(args[++i]);
+            } else if ("--max-days".equals(args[i])) {
+                replay.config.setMaxDays(Long.parseLong(args[++i]));
+            } else if ("--max-revisions".equals(args[i])) {
+                replay.config.setMaxRevisions(Long.parseLong(args[++i]));
+            } else if ("--truncate-on-delete".equals(args[i])) {
+                replay.config.setTruncateOnDelete(true);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        replay.run(Paths.get(args[0]));
+    }
+
+    public void run(final Path recordingFile) throws Exception {
+        final List<RecordedEvent> events = DocumentHistoryEventRecorder.read(recordingFile);
+
+        if (events.isEmpty()) {
+            System.out.println("No event in the recording: " + recordingFile);
+            return;
+        }
+
+        final InMemoryRepository repository = new InMemoryRepository();
+        final Session session = repository.login();
+
+        try {
+            InMemoryRepository.registerNodeTypes(session);
+            createDocuments(session, events);
+
+            final DocumentHistoryCleanerPolicies policies = new DocumentHistoryCleanerPolicies(config, null);
+            final DocumentHistoryCleanerListener listener = new DocumentHistoryCleanerListener(
+                    countingSession(session), () -> policies);
+            final LatencyHistogram latency = new LatencyHistogram();
+            final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+
+            System.gc();
+            final long heapBefore = memoryBean.getHeapMemoryUsage().getUsed();
+            final long firstTimestamp = events.get(0).getTimestamp();
+            final long startNanos = System.nanoTime();
+
+            for (RecordedEvent event : events) {
+                waitUntil(startNanos, event.getTimestamp() - firstTimestamp);
+                simulateWorkflowAction(session, event);
+
+                final long eventStartNanos = System.nanoTime();
+                listener.handleEvent(event.toWorkflowEvent());
+                latency.record(System.nanoTime() - eventStartNanos);
+            }
+
+            final long elapsedNanos = System.nanoTime() - startNanos;
+
+            System.gc();
+            final long heapAfter = memoryBean.getHeapMemoryUsage().getUsed();
+
+            report(events.size(), elapsedNanos, latency.getSnapshot(), heapBefore, heapAfter);
+        } finally {
+            session.logout();
+            repository.shutdown();
+        }
+    }
+
+    private void createDocuments(final Session session, final List<RecordedEvent> events)
+            throws RepositoryException {
+        final Node documents = getOrCreateFolder(session, DOCUMENTS_PATH);
+
+        for (RecordedEvent event : events) {
+            final String subjectId = event.getSubjectId();
+
+            if (subjectId == null || handlePaths.containsKey(subjectId) || "folder".equals(event.getWorkflowName())) {
+                continue;
+            }
+
+            final String name = "doc-" + handlePaths.size();
+            final Node handle = ((NodeImpl) documents).addNodeWithUuid(name, HippoNodeType.NT_HANDLE, subjectId);
+            final Node variant = handle.addNode(name, "replay:document");
+            variant.addMixin(HippoStdNodeType.NT_PUBLISHABLE);
+            variant.addMixin("mix:versionable");
+            variant.setProperty(HippoStdNodeType.HIPPOSTD_STATE, HippoStdNodeType.UNPUBLISHED);
+            session.save();
+
+            for (int i = 0; i < initialVersions; i++) {
+                createVersion(session, variant);
+            }
+
+            handlePaths.put(subjectId, handle.getPath());
+        }
+
+        System.out.println("Created " + handlePaths.size() + " documents with " + initialVersions + " versions.");
+    }
+
+    private void simulateWorkflowAction(final Session session, final RecordedEvent event)
+            throws RepositoryException {
+        final String handlePath = handlePaths.get(event.getSubjectId());
+
+        if (handlePath == null || !session.nodeExists(handlePath)) {
+            return;
+        }
+
+        final Node handle = session.getNode(handlePath);
+        final Node variant = handle.getNode(handle.getName());
+
+        if (DocumentHistoryCleanupRequest.ACTION_PUBLISH.equals(event.getAction())) {
+            if (!variant.isNodeType(HippoNodeType.NT_DELETED)) {
+                createVersion(session, variant);
+            }
+        } else if (DocumentHistoryCleanupRequest.ACTION_DELETE.equals(event.getAction())) {
+            final String atticHandlePath = getOrCreateFolder(session, ATTIC_PATH).getPath() + "/" + handle.getName();
+            session.move(handlePath, atticHandlePath);
+            variant.removeMixin(HippoStdNodeType.NT_PUBLISHABLE);
+            variant.setPrimaryType(HippoNodeType.NT_DELETED);
+            session.save();
+            handlePaths.put(event.getSubjectId(), atticHandlePath);
+        }
+    }
+
+    private void waitUntil(final long startNanos, final long recordedOffsetMillis) throws InterruptedException {
+        if (speed <= 0.0) {
+            return;
+        }
+
+        final long dueNanos = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(recordedOffsetMillis) / speed);
+        final long waitNanos = dueNanos - System.nanoTime();
+
+        if (waitNanos > 0L) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private void report(final int eventCount, final long elapsedNanos, final LatencyHistogram.Snapshot latency,
+            final long heapBefore, final long heapAfter) {
+        final double elapsedSeconds = elapsedNanos / 1.0e9;
+
+        System.out.println("Events:           " + eventCount);
+        System.out.printf("Elapsed:          %.3f s%n", elapsedSeconds);
+        System.out.printf("Throughput:       %.1f events/s%n", (elapsedSeconds > 0.0) ? eventCount / elapsedSeconds
+                : (double) eventCount);
+        System.out.println("Latency (us):     mean=" + latency.getMeanMicros() + ", p50=" + latency.getP50Micros()
+                + ", p90=" + latency.getP90Micros() + ", p99=" + latency.getP99Micros() + ", max="
+                + latency.getMaxMicros());
+        System.out.println("Sessions:         opened=" + openedSessionCount.get() + ", logged out="
+                + closedSessionCount.get() + ", leaked=" + (openedSessionCount.get() - closedSessionCount.get()));
+        System.out.println("Heap (bytes):     before=" + heapBefore + ", after=" + heapAfter + ", growth="
+                + (heapAfter - heapBefore));
+    }
+
+    /**
+     * Wraps the daemon session to count the sessions impersonated from it and the sessions logged out.
+     */
+    private Session countingSession(final Session daemonSession) {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    final Object result = invoke(daemonSession, method, args);
+
+                    if ("impersonate".equals(method.getName())) {
+                        openedSessionCount.incrementAndGet();
+                        return loggingOutSession((Session) result);
+                    }
+
+                    return result;
+                });
+    }
+
+    private Session loggingOutSession(final Session session) {
+        final InvocationHandler handler = (proxy, method, args) -> {
+            if ("logout".equals(method.getName()) && session.isLive()) {
+                closedSessionCount.incrementAndGet();
+            }
+
+            return invoke(session, method, args);
+        };
+
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class },
+                handler);
+    }
+
+    private static Object invoke(final Object target, final Method method, final Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Node getOrCreateFolder(final Session session, final String path) throws RepositoryException {
+        Node node = session.getRootNode();
+
+        for (String name : path.substring(1).split("/")) {
+            node = node.hasNode(name) ? node.getNode(name) : node.addNode(name, "nt:unstructured");
+        }
+
+        session.save();
+        return node;
+    }
+
+    private static void createVersion(final Session session, final Node variant) throws RepositoryException {
+        final VersionManager versionManager = session.getWorkspace().getVersionManager();
+        final String path = variant.getPath();
+        variant.setProperty("replay:revision", System.nanoTime());
+        session.save();
+        versionManager.checkin(path);
+        versionManager.checkout(path);
+    }
+}
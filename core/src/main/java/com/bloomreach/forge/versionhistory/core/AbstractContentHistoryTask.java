@@ -17,7 +17,11 @@ package com.bloomreach.forge.versionhistory.core;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
+import javax.jcr.version.VersionIterator;
 
+import org.apache.commons.lang3.time.DateFormatUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,6 +49,46 @@ public abstract class AbstractContentHistoryTask {
      */
     private Logger logger;
 
+    /**
+     * Whether or not to compute the versions to remove without removing them.
+     */
+    private boolean dryRun;
+
+    /**
+     * Optional report to which the footprints of the removed, or to be removed in dry-run mode, versions are added.
+     */
+    private RetentionReport report;
+
+    /**
+     * Optional throttle to limit the rate of version removals by the repository write latency.
+     */
+    private AdaptiveRemovalThrottle throttle;
+
+    /**
+     * Optional audit sink to which the versions removed, or to be removed in dry-run mode, are recorded.
+     */
+    private VersionAuditSink auditSink;
+
+    /**
+     * Optional tracker of the removed versions. Not applied in dry-run mode.
+     */
+    private RemovedVersionTracker removedVersionTracker;
+
+    /**
+     * The number of versions removed by the last execution.
+     */
+    private long removedVersionCount;
+
+    /**
+     * The time spent in enumerating the versions by the last execution, in nanoseconds.
+     */
+    private long enumerateNanos;
+
+    /**
+     * The time spent in removing the versions by the last execution, in nanoseconds.
+     */
+    private long removeNanos;
+
     public AbstractContentHistoryTask(final Session session) {
         if (session == null) {
             throw new IllegalArgumentException("session must be not null.");
@@ -69,7 +113,226 @@ public abstract class AbstractContentHistoryTask {
         return session;
     }
 
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * Sets whether or not to compute the versions to remove without removing them or saving the session.
+     * @param dryRun whether or not to compute the versions to remove without removing them
+     */
+    public void setDryRun(final boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public RetentionReport getReport() {
+        return report;
+    }
+
+    /**
+     * Sets the report to which the footprints of the removed, or to be removed in dry-run mode, versions are added.
+     * <P>
+     * <EM>Note:</EM> Measuring the footprint of a version reads its whole frozen node subtree.
+     * @param report report
+     */
+    public void setReport(final RetentionReport report) {
+        this.report = report;
+    }
+
+    public AdaptiveRemovalThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Sets the throttle to limit the rate of version removals by the repository write latency.
+     * The throttle is not applied in dry-run mode.
+     * @param throttle throttle
+     */
+    public void setThrottle(final AdaptiveRemovalThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    public VersionAuditSink getAuditSink() {
+        return auditSink;
+    }
+
+    /**
+     * Sets the audit sink to which the versions removed, or to be removed in dry-run mode, are recorded.
+     * <P>
+     * Each removed version is logged at INFO level if no audit sink is set, or at DEBUG level only otherwise.
+     * @param auditSink audit sink
+     */
+    public void setAuditSink(final VersionAuditSink auditSink) {
+        this.auditSink = auditSink;
+    }
+
+    public RemovedVersionTracker getRemovedVersionTracker() {
+        return removedVersionTracker;
+    }
+
+    /**
+     * Sets the tracker of the removed versions, e.g, to estimate the binary bytes to be reclaimed by the DataStore
+     * garbage collection. The tracker is not applied in dry-run mode.
+     * @param removedVersionTracker removed version tracker
+     */
+    public void setRemovedVersionTracker(final RemovedVersionTracker removedVersionTracker) {
+        this.removedVersionTracker = removedVersionTracker;
+    }
+
+    /**
+     * Returns the number of versions removed, or to be removed in dry-run mode, by the last execution.
+     * @return the number of versions removed, or to be removed in dry-run mode, by the last execution
+     */
+    public long getRemovedVersionCount() {
+        return removedVersionCount;
+    }
+
+    protected void incrementRemovedVersionCount() {
+        ++removedVersionCount;
+    }
+
+    protected void addRemovedVersionCount(final long count) {
+        removedVersionCount += count;
+    }
+
+    /**
+     * Removes the version from the version history unless in dry-run mode, adding its footprint to the report if any.
+     * @param documentPath the versionable document node path
+     * @param documentType the versionable document node type name
+     * @param versionHistory version history
+     * @param versionName version name
+     * @throws RepositoryException if repository exception occurs
+     */
+    protected void removeVersion(final String documentPath, final String documentType,
+            final VersionHistory versionHistory, final String versionName) throws RepositoryException {
+        if (report != null) {
+            report.add(documentPath, documentType, versionHistory.getVersion(versionName));
+        }
+
+        if (!dryRun) {
+            // the footprint can only be measured before the removal, but the removal is counted only once done.
+            final long binaryBytes = (removedVersionTracker != null)
+                    ? removedVersionTracker.measure(versionHistory, versionName) : -1L;
+
+            if (throttle != null) {
+                try {
+                    throttle.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RepositoryException("Interrupted while waiting for the removal throttle.", e);
+                }
+
+                final long startNanos = System.nanoTime();
+                versionHistory.removeVersion(versionName);
+                throttle.recordLatency(System.nanoTime() - startNanos);
+            } else {
+                versionHistory.removeVersion(versionName);
+            }
+
+            if (removedVersionTracker != null) {
+                removedVersionTracker.recordRemoval(binaryBytes);
+            }
+        }
+
+        incrementRemovedVersionCount();
+    }
+
+    /**
+     * Removes the version from the version history unless in dry-run mode, recording it to the audit sink if any,
+     * or logging it at INFO level otherwise, before removing it.
+     * @param documentPath the versionable document node path, or the version history path if the versionable node
+     *        doesn't exist any more
+     * @param documentType the versionable document node type name
+     * @param versionHistory version history
+     * @param versionName version name
+     * @param createdMillis created time of the version in milliseconds
+     * @param action removal action, such as {@link VersionAuditSink#ACTION_OLD}
+     * @throws RepositoryException if repository exception occurs
+     */
+    protected void removeVersion(final String documentPath, final String documentType,
+            final VersionHistory versionHistory, final String versionName, final long createdMillis,
+            final String action) throws RepositoryException {
+        final Logger logger = getLogger();
+
+        // the log is the only audit trail of the removals unless an audit sink is set.
+        if (auditSink == null ? logger.isInfoEnabled() : logger.isDebugEnabled()) {
+            final String message = "{} {} version, '{}' created on {}, of document node at {}";
+            final Object[] args = { dryRun ? "[Dry run] Removing" : "Removing", action, versionName,
+                    DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(createdMillis), documentPath };
+
+            if (auditSink == null) {
+                logger.info(message, args);
+            } else {
+                logger.debug(message, args);
+            }
+        }
+
+        if (auditSink != null) {
+            auditSink.record(documentPath, versionName, createdMillis, action, dryRun);
+        }
+
+        removeVersion(documentPath, documentType, versionHistory, versionName);
+    }
+
+    /**
+     * Removes all the versions except for the root version from the version history unless in dry-run mode.
+     * @param documentPath the versionable document node path, or the version history path if the versionable node
+     *        doesn't exist any more
+     * @param documentType the versionable document node type name
+     * @param versionHistory version history
+     * @throws RepositoryException if repository exception occurs
+     */
+    protected void truncateVersions(final String documentPath, final String documentType,
+            final VersionHistory versionHistory) throws RepositoryException {
+        final long enumerateStartNanos = System.nanoTime();
+        final VersionIterator versionIt = versionHistory.getAllVersions();
+        final long removeStartNanos = System.nanoTime();
+        addEnumerateNanos(removeStartNanos - enumerateStartNanos);
+
+        while (versionIt.hasNext()) {
+            final Version version = versionIt.nextVersion();
+
+            if (version == null) {
+                continue;
+            }
+
+            if (!version.getName().equals("jcr:rootVersion")) {
+                removeVersion(documentPath, documentType, versionHistory, version.getName(),
+                        version.getCreated().getTimeInMillis(), VersionAuditSink.ACTION_TRUNCATED);
+            }
+        }
+
+        addRemoveNanos(System.nanoTime() - removeStartNanos);
+    }
+
+    /**
+     * Returns the time spent in enumerating the versions by the last execution, in nanoseconds.
+     * @return the time spent in enumerating the versions by the last execution, in nanoseconds
+     */
+    public long getEnumerateNanos() {
+        return enumerateNanos;
+    }
+
+    protected void addEnumerateNanos(final long nanos) {
+        enumerateNanos += nanos;
+    }
+
+    /**
+     * Returns the time spent in removing the versions by the last execution, in nanoseconds.
+     * @return the time spent in removing the versions by the last execution, in nanoseconds
+     */
+    public long getRemoveNanos() {
+        return removeNanos;
+    }
+
+    protected void addRemoveNanos(final long nanos) {
+        removeNanos += nanos;
+    }
+
     public final void execute() throws RepositoryException {
+        removedVersionCount = 0L;
+        enumerateNanos = 0L;
+        removeNanos = 0L;
         doBeforeExecute();
         doExecute();
         doAfterExecute();
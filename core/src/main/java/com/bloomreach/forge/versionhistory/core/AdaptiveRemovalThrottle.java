@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive rate limiter of version removals, which is a token bucket of which the rate is adjusted by the measured
+ * repository write latency.
+ * <P>
+ * The rate starts at the max rate. When the moving average of the measured latency goes over the target latency,
+ * the rate is halved, down to the min rate. When the average latency recovers below 80% of the target latency,
+ * the rate is increased by a tenth of the max rate, up to the max rate. The rate is adjusted at most once per
+ * adjustment interval, and every back-off and full recovery is logged.
+ * <P>
+ * This is thread-safe, so a throttle can be shared by the tasks executed in multiple threads.
+ */
+public class AdaptiveRemovalThrottle {
+
+    private static Logger log = LoggerFactory.getLogger(AdaptiveRemovalThrottle.class);
+
+    private static final long DEFAULT_ADJUST_INTERVAL_MILLIS = 1000L;
+
+    /**
+     * Weight of a new latency measurement in the exponentially weighted moving average.
+     */
+    private static final double LATENCY_EWMA_ALPHA = 0.2;
+
+    private static final double BACKOFF_FACTOR = 0.5;
+
+    private static final double RECOVERY_THRESHOLD = 0.8;
+
+    private final double maxRate;
+    private final double minRate;
+    private final long targetLatencyNanos;
+    private final long adjustIntervalNanos;
+
+    private double rate;
+    private double tokens;
+    private long lastRefillNanos;
+    private double latencyEwmaNanos = -1.0;
+    private long lastAdjustNanos;
+    private long backoffCount;
+
+    /**
+     * @param maxRate max removals per second
+     * @param minRate min removals per second to back off to
+     * @param targetLatencyMillis target latency of a repository write in milliseconds
+     */
+    public AdaptiveRemovalThrottle(final double maxRate, final double minRate, final long targetLatencyMillis) {
+        this(maxRate, minRate, targetLatencyMillis, DEFAULT_ADJUST_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param maxRate max removals per second
+     * @param minRate min removals per second to back off to
+     * @param targetLatencyMillis target latency of a repository write in milliseconds
+     * @param adjustIntervalMillis min interval between rate adjustments in milliseconds
+     */
+    public AdaptiveRemovalThrottle(final double maxRate, final double minRate, final long targetLatencyMillis,
+            final long adjustIntervalMillis) {
+        if (maxRate <= 0.0) {
+            throw new IllegalArgumentException("max rate must be positive.");
+        }
+
+        this.maxRate = maxRate;
+        this.minRate = Math.max(Math.min(minRate, maxRate), Double.MIN_NORMAL);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.adjustIntervalNanos = TimeUnit.MILLISECONDS.toNanos(adjustIntervalMillis);
+        rate = maxRate;
+        tokens = getBurst(maxRate);
+        lastRefillNanos = System.nanoTime();
+        lastAdjustNanos = lastRefillNanos;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    public double getMinRate() {
+        return minRate;
+    }
+
+    public long getTargetLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(targetLatencyNanos);
+    }
+
+    /**
+     * Returns the current removals per second.
+     * @return the current removals per second
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns the moving average of the measured latency in microseconds, or -1 if nothing measured yet.
+     * @return the moving average of the measured latency in microseconds, or -1 if nothing measured yet
+     */
+    public synchronized long getLatencyAverageMicros() {
+        return (latencyEwmaNanos < 0.0) ? -1L : (long) (latencyEwmaNanos / 1000.0);
+    }
+
+    /**
+     * Returns the number of back-offs so far.
+     * @return the number of back-offs so far
+     */
+    public synchronized long getBackoffCount() {
+        return backoffCount;
+    }
+
+    /**
+     * Takes a token for a removal, waiting until a token is available at the current rate.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        final long waitNanos;
+
+        synchronized (this) {
+            refill(System.nanoTime());
+            // reserve the token, so the waiting time of the next caller includes this one's.
+            tokens -= 1.0;
+            waitNanos = (tokens < 0.0) ? (long) (-tokens / rate * 1.0e9) : 0L;
+        }
+
+        if (waitNanos > 0L) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Records the latency of a repository write, such as a version removal or a session save,
+     * and adjusts the rate if the adjustment interval has passed.
+     * @param latencyNanos latency in nanoseconds
+     */
+    public synchronized void recordLatency(final long latencyNanos) {
+        latencyEwmaNanos = (latencyEwmaNanos < 0.0) ? latencyNanos
+                : LATENCY_EWMA_ALPHA * latencyNanos + (1.0 - LATENCY_EWMA_ALPHA) * latencyEwmaNanos;
+
+        final long nowNanos = System.nanoTime();
+
+        if (nowNanos - lastAdjustNanos < adjustIntervalNanos) {
+            return;
+        }
+
+        if (latencyEwmaNanos > targetLatencyNanos) {
+            if (rate > minRate) {
+                refill(nowNanos);
+                rate = Math.max(minRate, rate * BACKOFF_FACTOR);
+                tokens = Math.min(tokens, getBurst(rate));
+                ++backoffCount;
+                lastAdjustNanos = nowNanos;
+                log.info("Backing off version removals to {} per second as the average write latency, {}ms, "
+                        + "is over the target, {}ms.", String.format("%.1f", rate),
+                        TimeUnit.NANOSECONDS.toMillis((long) latencyEwmaNanos), getTargetLatencyMillis());
+            }
+        } else if (latencyEwmaNanos < targetLatencyNanos * RECOVERY_THRESHOLD && rate < maxRate) {
+            refill(nowNanos);
+            rate = Math.min(maxRate, rate + maxRate / 10.0);
+            lastAdjustNanos = nowNanos;
+
+            if (rate >= maxRate) {
+                log.info("Version removals recovered to the max rate, {} per second.", String.format("%.1f", rate));
+            } else {
+                log.debug("Ramping up version removals to {} per second.", String.format("%.1f", rate));
+            }
+        }
+    }
+
+    private void refill(final long nowNanos) {
+        tokens = Math.min(getBurst(rate), tokens + (nowNanos - lastRefillNanos) / 1.0e9 * rate);
+        lastRefillNanos = nowNanos;
+    }
+
+    /**
+     * Returns the bucket size, allowing a burst of a second at the rate.
+     */
+    private static double getBurst(final double rate) {
+        return Math.max(1.0, rate);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveRemovalThrottle [rate=" + rate + ", maxRate=" + maxRate + ", minRate=" + minRate
+                + ", latencyAverageMicros=" + getLatencyAverageMicros() + ", targetLatencyMillis="
+                + getTargetLatencyMillis() + ", backoffCount=" + backoffCount + "]";
+    }
+}
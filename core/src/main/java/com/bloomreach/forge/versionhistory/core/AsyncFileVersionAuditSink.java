@@ -0,0 +1,329 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link VersionAuditSink} writing the audit entries to a JSON Lines file asynchronously, one JSON object per line,
+ * e.g, <code>{"time":1718000000000,"path":"/content/documents/a/a","version":"1.3","created":1717000000000,
+ * "action":"surplus","dryRun":false}</code>.
+ * <P>
+ * The entries are queued to a bounded queue and written in batches by a background writer thread, with a flush per
+ * batch. If the queue is full, recording blocks until the writer catches up, so no entry is lost while the writer
+ * runs. If the writer thread has exited, e.g, on closing, the entry is counted as dropped instead, and the entries
+ * left in the queue by the writer thread are written by the closing or the recording thread.
+ * When the file size exceeds the max file size, the file is rotated to <code>&lt;file&gt;.1</code>, shifting the
+ * older files up to <code>&lt;file&gt;.&lt;max files - 1&gt;</code>, and the oldest one is deleted.
+ */
+public class AsyncFileVersionAuditSink implements VersionAuditSink, Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(AsyncFileVersionAuditSink.class);
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    private static final long POLL_TIMEOUT_MILLIS = 200L;
+
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final BlockingQueue<Entry> queue;
+    private final Thread writerThread;
+
+    private volatile boolean running = true;
+
+    private final AtomicLong recordedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * The writer and the size of the current file, accessed only by the writer thread, or after it has exited.
+     */
+    private Writer writer;
+    private long fileBytes;
+
+    /**
+     * @param file audit file path
+     * @param maxFileBytes the max size of the audit file in bytes before rotating it, or a non-positive number not to
+     *        rotate it
+     * @param maxFiles the max number of the audit files including the current one
+     */
+    public AsyncFileVersionAuditSink(final Path file, final long maxFileBytes, final int maxFiles) {
+        this(file, maxFileBytes, maxFiles, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param file audit file path
+     * @param maxFileBytes the max size of the audit file in bytes before rotating it, or a non-positive number not to
+     *        rotate it
+     * @param maxFiles the max number of the audit files including the current one
+     * @param queueCapacity the max number of the entries waiting to be written
+     */
+    public AsyncFileVersionAuditSink(final Path file, final long maxFileBytes, final int maxFiles,
+            final int queueCapacity) {
+        if (file == null) {
+            throw new IllegalArgumentException("file must be not null.");
+        }
+
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+
+        writerThread = new Thread(this::writeEntries, "version-history-cleaner-audit");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of the entries recorded, including the ones not written yet.
+     * @return the number of the entries recorded
+     */
+    public long getRecordedCount() {
+        return recordedCount.get();
+    }
+
+    /**
+     * Returns the number of the entries dropped as recorded after the writer thread exited or failed to write.
+     * @return the number of the entries dropped
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public void record(final String documentPath, final String versionName, final long createdMillis,
+            final String action, final boolean dryRun) {
+        final Entry entry = new Entry(System.currentTimeMillis(), documentPath, versionName, createdMillis, action,
+                dryRun);
+
+        try {
+            // not to block forever on a full queue if the writer thread has exited.
+            while (running && writerThread.isAlive()) {
+                if (queue.offer(entry, POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    recordedCount.incrementAndGet();
+
+                    if (!writerThread.isAlive()) {
+                        // the writer thread may have exited before taking the entry.
+                        writeRemainingEntries();
+                    }
+
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        droppedCount.incrementAndGet();
+    }
+
+    /**
+     * Stops accepting entries, writes all the queued entries and closes the file.
+     */
+    @Override
+    public void close() {
+        running = false;
+
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        // entries queued by a recording thread after the writer thread took the last entry.
+        writeRemainingEntries();
+    }
+
+    /**
+     * Writes the entries left in the queue after the writer thread has exited.
+     */
+    private synchronized void writeRemainingEntries() {
+        final List<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        while (queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+            try {
+                writeBatch(batch);
+            } catch (IOException e) {
+                droppedCount.addAndGet(batch.size());
+                log.error("Failed to write {} audit entries to {}.", batch.size(), file, e);
+                closeWriter();
+            }
+
+            batch.clear();
+        }
+
+        closeWriter();
+    }
+
+    private void writeEntries() {
+        final List<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        try {
+            while (running || !queue.isEmpty()) {
+                final Entry first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+                try {
+                    writeBatch(batch);
+                } catch (IOException e) {
+                    droppedCount.addAndGet(batch.size());
+                    log.error("Failed to write {} audit entries to {}.", batch.size(), file, e);
+                    closeWriter();
+                }
+
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeWriter();
+        }
+    }
+
+    private void writeBatch(final List<Entry> batch) throws IOException {
+        for (Entry entry : batch) {
+            if (writer == null) {
+                openWriter();
+            }
+
+            final String line = entry.toJson();
+            writer.write(line);
+            fileBytes += line.getBytes(StandardCharsets.UTF_8).length;
+
+            if (maxFileBytes > 0L && fileBytes >= maxFileBytes) {
+                writer.flush();
+                closeWriter();
+                rotate();
+            }
+        }
+
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    private void openWriter() throws IOException {
+        final Path parent = file.toAbsolutePath().getParent();
+
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        fileBytes = Files.size(file);
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.warn("Failed to close audit file, {}.", file, e);
+            }
+
+            writer = null;
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (maxFiles == 1) {
+            Files.deleteIfExists(file);
+            return;
+        }
+
+        Files.deleteIfExists(getRotatedFile(maxFiles - 1));
+
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            final Path rotated = getRotatedFile(i);
+
+            if (Files.exists(rotated)) {
+                Files.move(rotated, getRotatedFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        Files.move(file, getRotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path getRotatedFile(final int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    /**
+     * Audit entry waiting to be written.
+     */
+    private static class Entry {
+
+        private final long timeMillis;
+        private final String documentPath;
+        private final String versionName;
+        private final long createdMillis;
+        private final String action;
+        private final boolean dryRun;
+
+        private Entry(final long timeMillis, final String documentPath, final String versionName,
+                final long createdMillis, final String action, final boolean dryRun) {
+            this.timeMillis = timeMillis;
+            this.documentPath = documentPath;
+            this.versionName = versionName;
+            this.createdMillis = createdMillis;
+            this.action = action;
+            this.dryRun = dryRun;
+        }
+
+        private String toJson() throws IOException {
+            final StringWriter out = new StringWriter(160);
+            out.write("{\"time\":" + timeMillis + ",\"path\":");
+            RetentionReport.writeJsonString(out, documentPath);
+            out.write(",\"version\":");
+            RetentionReport.writeJsonString(out, versionName);
+            out.write(",\"created\":" + createdMillis + ",\"action\":");
+            RetentionReport.writeJsonString(out, action);
+            out.write(",\"dryRun\":" + dryRun + "}\n");
+            return out.toString();
+        }
+    }
+}
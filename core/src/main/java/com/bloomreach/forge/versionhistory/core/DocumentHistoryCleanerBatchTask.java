@@ -0,0 +1,288 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.version.VersionManager;
+
+/**
+ * Document version history cleaner task over multiple documents, which cleans up the version history of each
+ * document node from an iterator by {@link DocumentHistoryCleanerTask}, sharing one {@link VersionManager}
+ * and saving the session once per batch of documents instead of once per document.
+ * <P>
+ * If processing a document or saving a batch fails, the pending changes are discarded, and the failed document as
+ * well as the completed documents of the batch which left unsaved changes are processed again one by one with a save
+ * per document, so a failing document doesn't fail the other documents. In dry-run mode, a failed document is not
+ * processed again, not to report the same versions twice.
+ * <P>
+ * <EM>Note:</EM> The versions are removed from the version storage immediately, not on saving the session, so a batch
+ * groups the saves of the session-scoped changes only, e.g, by a task configurer, but not the version removals.
+ * The version removals of the documents completed before a failure in a batch are kept, and those documents are not
+ * processed again unless they left unsaved session-scoped changes.
+ * <P>
+ * The retention options set on this task are applied to each document by default. Set a task configurer to apply
+ * document specific options, e.g, by the document type or the path.
+ */
+public class DocumentHistoryCleanerBatchTask extends AbstractContentHistoryTask {
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * The versionable document variant nodes to clean up.
+     */
+    private final Iterator<Node> documentNodes;
+
+    private long maxRevisions = -1L;
+    private long maxDays = -1L;
+    private ThinningSchedule thinningSchedule;
+    private boolean streaming;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private Consumer<DocumentHistoryCleanerTask> taskConfigurer;
+
+    /**
+     * The number of documents processed by the last execution, including the failed ones.
+     */
+    private long documentCount;
+
+    /**
+     * The number of documents failed to process by the last execution.
+     */
+    private long failedDocumentCount;
+
+    public DocumentHistoryCleanerBatchTask(final Session session, final Iterator<Node> documentNodes) {
+        super(session);
+
+        if (documentNodes == null) {
+            throw new IllegalArgumentException("document nodes must be not null.");
+        }
+
+        this.documentNodes = documentNodes;
+    }
+
+    public long getMaxRevisions() {
+        return maxRevisions;
+    }
+
+    public void setMaxRevisions(long maxRevisions) {
+        this.maxRevisions = maxRevisions;
+    }
+
+    public long getMaxDays() {
+        return maxDays;
+    }
+
+    public void setMaxDays(long maxDays) {
+        this.maxDays = maxDays;
+    }
+
+    public ThinningSchedule getThinningSchedule() {
+        return thinningSchedule;
+    }
+
+    public void setThinningSchedule(ThinningSchedule thinningSchedule) {
+        this.thinningSchedule = thinningSchedule;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Sets whether or not to walk the versions of each document one by one instead of reading all the removal
+     * candidates first. See {@link DocumentHistoryCleanerTask#setStreaming(boolean)}.
+     * @param streaming whether or not to walk the versions one by one
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of documents to process before saving the session.
+     * @param batchSize the number of documents to process before saving the session
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public Consumer<DocumentHistoryCleanerTask> getTaskConfigurer() {
+        return taskConfigurer;
+    }
+
+    /**
+     * Sets the configurer invoked with the task of each document before executing it, after the options of this
+     * task are applied, in order to override the options for the document.
+     * @param taskConfigurer task configurer
+     */
+    public void setTaskConfigurer(final Consumer<DocumentHistoryCleanerTask> taskConfigurer) {
+        this.taskConfigurer = taskConfigurer;
+    }
+
+    /**
+     * Returns the number of documents processed by the last execution, including the failed ones.
+     * @return the number of documents processed by the last execution, including the failed ones
+     */
+    public long getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * Returns the number of documents failed to process by the last execution.
+     * @return the number of documents failed to process by the last execution
+     */
+    public long getFailedDocumentCount() {
+        return failedDocumentCount;
+    }
+
+    @Override
+    protected void doExecute() throws RepositoryException {
+        documentCount = 0L;
+        failedDocumentCount = 0L;
+
+        final Session session = getSession();
+        final VersionManager versionManager = session.getWorkspace().getVersionManager();
+        // the documents completed in the current batch.
+        final List<String> batchIds = new ArrayList<>();
+        // the documents completed in the current batch, which left unsaved session-scoped changes.
+        final List<String> unsavedIds = new ArrayList<>();
+
+        while (documentNodes.hasNext()) {
+            final Node documentNode = documentNodes.next();
+
+            if (documentNode == null) {
+                continue;
+            }
+
+            final String id = documentNode.getIdentifier();
+
+            try {
+                cleanDocument(versionManager, documentNode);
+            } catch (Exception e) {
+                getLogger().warn("Failed to clean the document at {} in a batch. Retrying it and {} unsaved "
+                        + "document(s) of the batch one by one.", documentNode.getPath(), unsavedIds.size(), e);
+                documentCount += batchIds.size() - unsavedIds.size();
+
+                if (isDryRun()) {
+                    ++documentCount;
+                    ++failedDocumentCount;
+                    getLogger().error("Failed to clean revision history for the document ({}).", id, e);
+                } else {
+                    unsavedIds.add(id);
+                }
+
+                processIndividually(versionManager, unsavedIds);
+                batchIds.clear();
+                unsavedIds.clear();
+                continue;
+            }
+
+            batchIds.add(id);
+
+            if (!isDryRun() && getSession().hasPendingChanges()) {
+                unsavedIds.add(id);
+            }
+
+            if (batchIds.size() >= Math.max(1, batchSize)) {
+                saveBatch(versionManager, batchIds, unsavedIds);
+            }
+        }
+
+        saveBatch(versionManager, batchIds, unsavedIds);
+    }
+
+    private void saveBatch(final VersionManager versionManager, final List<String> batchIds,
+            final List<String> unsavedIds) throws RepositoryException {
+        if (batchIds.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (!isDryRun() && getSession().hasPendingChanges()) {
+                getSession().save();
+            }
+
+            documentCount += batchIds.size();
+        } catch (Exception e) {
+            getLogger().warn("Failed to save a batch of {} documents. Retrying {} unsaved document(s) one by one.",
+                    batchIds.size(), unsavedIds.size(), e);
+            documentCount += batchIds.size() - unsavedIds.size();
+            processIndividually(versionManager, unsavedIds);
+        }
+
+        batchIds.clear();
+        unsavedIds.clear();
+    }
+
+    /**
+     * Discards the pending changes and processes the documents again one by one with a save per document.
+     */
+    private void processIndividually(final VersionManager versionManager, final List<String> ids)
+            throws RepositoryException {
+        getSession().refresh(false);
+
+        for (String id : ids) {
+            ++documentCount;
+
+            try {
+                cleanDocument(versionManager, getSession().getNodeByIdentifier(id));
+
+                if (!isDryRun() && getSession().hasPendingChanges()) {
+                    getSession().save();
+                }
+            } catch (Exception e) {
+                ++failedDocumentCount;
+                getLogger().error("Failed to clean revision history for the document ({}).", id, e);
+                getSession().refresh(false);
+            }
+        }
+    }
+
+    private void cleanDocument(final VersionManager versionManager, final Node documentNode)
+            throws RepositoryException {
+        final DocumentHistoryCleanerTask task = new DocumentHistoryCleanerTask(getSession(), documentNode);
+        task.setVersionManager(versionManager);
+        task.setLogger(getLogger());
+        task.setMaxDays(maxDays);
+        task.setMaxRevisions(maxRevisions);
+        task.setThinningSchedule(thinningSchedule);
+        task.setStreaming(streaming);
+        task.setDryRun(isDryRun());
+        task.setReport(getReport());
+        task.setThrottle(getThrottle());
+        task.setAuditSink(getAuditSink());
+        task.setRemovedVersionTracker(getRemovedVersionTracker());
+
+        if (taskConfigurer != null) {
+            taskConfigurer.accept(task);
+        }
+
+        task.execute();
+
+        addRemovedVersionCount(task.getRemovedVersionCount());
+        addEnumerateNanos(task.getEnumerateNanos());
+        addRemoveNanos(task.getRemoveNanos());
+    }
+}
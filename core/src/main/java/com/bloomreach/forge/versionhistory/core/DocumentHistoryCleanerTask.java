@@ -15,31 +15,28 @@
  */
 package com.bloomreach.forge.versionhistory.core;
 
-import java.util.Calendar;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.version.Version;
 import javax.jcr.version.VersionHistory;
-import javax.jcr.version.VersionIterator;
 import javax.jcr.version.VersionManager;
 
-import org.apache.commons.lang3.time.DateFormatUtils;
-
 /**
  * Document version history cleaner task.
+ * <P>
+ * By default, the removal candidates of the whole version history are read into a {@link RetentionPlan} first.
+ * In streaming mode, unless a thinning schedule is set, the versions are walked one by one along the line of
+ * descent of the base version instead, so the memory usage doesn't depend on the depth of the version history:
+ * if only <code>maxDays</code> applies, from the oldest version forward until the first version within the max days,
+ * or otherwise, from the base version backward, keeping the newest <code>maxRevisions</code> non-expired versions
+ * and removing all the older ones. Versions off the line of descent of the base version, if any, are not removed
+ * in streaming mode.
  */
 public class DocumentHistoryCleanerTask extends AbstractContentHistoryTask {
 
-    /**
-     * A day in milliseconds.
-     */
-    private static final long DAY_IN_MILLIS = 24L * 60L * 60L * 1000L;
-
     /**
      * Max revisions to keep in the version history.
      * If this is set to a negative integer, then this option will be ignored.
@@ -52,6 +49,37 @@ public class DocumentHistoryCleanerTask extends AbstractContentHistoryTask {
      */
     private long maxDays = -1L;
 
+    /**
+     * Tiered thinning schedule of the versions. If null, this option will be ignored.
+     */
+    private ThinningSchedule thinningSchedule;
+
+    /**
+     * Optional version manager shared by multiple tasks. If null, the version manager of the session is looked up.
+     */
+    private VersionManager versionManager;
+
+    /**
+     * Whether or not to walk the versions one by one instead of reading all the removal candidates first.
+     */
+    private boolean streaming;
+
+    /**
+     * The number of the unlabeled versions kept by the last execution, or -1 if unknown.
+     */
+    private long retainedVersionCount = -1L;
+
+    /**
+     * The created time in milliseconds of the oldest unlabeled version kept by the last execution,
+     * {@link Long#MAX_VALUE} if none kept, or -1 if unknown.
+     */
+    private long oldestRetainedCreatedMillis = -1L;
+
+    /**
+     * The current time in milliseconds to evaluate the ages of the versions against, or -1 to use the system clock.
+     */
+    private long nowMillis = -1L;
+
     /**
      * The versionable document variant node. i.e. the preview variant node which keeps the JCR version history.
      */
@@ -82,6 +110,10 @@ public class DocumentHistoryCleanerTask extends AbstractContentHistoryTask {
         this.documentNode = documentNode;
     }
 
+    public Node getDocumentNode() {
+        return documentNode;
+    }
+
     public long getMaxRevisions() {
         return maxRevisions;
     }
@@ -98,62 +130,200 @@ public class DocumentHistoryCleanerTask extends AbstractContentHistoryTask {
         this.maxDays = maxDays;
     }
 
+    public ThinningSchedule getThinningSchedule() {
+        return thinningSchedule;
+    }
+
+    public void setThinningSchedule(ThinningSchedule thinningSchedule) {
+        this.thinningSchedule = thinningSchedule;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Sets whether or not to walk the versions one by one instead of reading all the removal candidates first.
+     * This is ignored if a thinning schedule is set, which needs all the removal candidates.
+     * @param streaming whether or not to walk the versions one by one
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public long getNowMillis() {
+        return nowMillis;
+    }
+
+    /**
+     * Sets the current time in milliseconds to evaluate the ages of the versions against, instead of the system
+     * clock, e.g, to expire only a part of a version history created just before in a benchmark.
+     * @param nowMillis the current time in milliseconds, or -1 to use the system clock
+     */
+    public void setNowMillis(long nowMillis) {
+        this.nowMillis = nowMillis;
+    }
+
+    public VersionManager getVersionManager() {
+        return versionManager;
+    }
+
+    /**
+     * Sets the version manager to share with other tasks using the same session, instead of looking it up.
+     * @param versionManager version manager of the session of this task
+     */
+    public void setVersionManager(VersionManager versionManager) {
+        this.versionManager = versionManager;
+    }
+
+    /**
+     * Returns the number of the unlabeled versions, except for the root version, kept, or to be kept in dry-run mode,
+     * by the last execution, or -1 if unknown, e.g, when only <code>maxDays</code> applies in streaming mode.
+     * @return the number of the unlabeled versions kept by the last execution, or -1 if unknown
+     */
+    public long getRetainedVersionCount() {
+        return retainedVersionCount;
+    }
+
+    /**
+     * Returns the created time in milliseconds of the oldest unlabeled version, except for the root version, kept,
+     * or to be kept in dry-run mode, by the last execution. When only <code>maxDays</code> applies in streaming mode,
+     * this is a lower bound, as the walk stops at the first version within the max days, which may be labeled.
+     * @return the created time in milliseconds of the oldest unlabeled version kept by the last execution,
+     *         {@link Long#MAX_VALUE} if none kept, or -1 if unknown
+     */
+    public long getOldestRetainedCreatedMillis() {
+        return oldestRetainedCreatedMillis;
+    }
+
     @Override
     protected void doExecute() throws RepositoryException {
-        if (maxDays < 0L && maxRevisions < 0L) {
+        retainedVersionCount = -1L;
+        oldestRetainedCreatedMillis = -1L;
+
+        if (maxDays < 0L && maxRevisions < 0L && thinningSchedule == null) {
             return;
         }
 
-        // gather versions
-        final List<Version> versions = new LinkedList<>();
-        final VersionManager versionManager = getSession().getWorkspace().getVersionManager();
+        final long enumerateStartNanos = System.nanoTime();
+        final VersionManager versionManager = (this.versionManager != null) ? this.versionManager
+                : getSession().getWorkspace().getVersionManager();
         final VersionHistory versionHistory = versionManager.getVersionHistory(documentNode.getPath());
 
-        for (VersionIterator versionIt = versionHistory.getAllVersions(); versionIt.hasNext();) {
-            final Version version = versionIt.nextVersion();
+        if (streaming && thinningSchedule == null) {
+            executeStreaming(versionManager, versionHistory, enumerateStartNanos);
+            return;
+        }
+
+        final RetentionPlan plan = RetentionPlan.create(versionHistory, maxDays, maxRevisions,
+                thinningSchedule, getEffectiveNowMillis());
+        addEnumerateNanos(System.nanoTime() - enumerateStartNanos);
 
-            if (version == null) {
-                continue;
+        retainedVersionCount = plan.getCandidateCount() - plan.getRemovalCount();
+        oldestRetainedCreatedMillis = Long.MAX_VALUE;
+
+        for (int i = 0; i < plan.getCandidateCount(); i++) {
+            if (!plan.isRemoval(i)) {
+                oldestRetainedCreatedMillis = Math.min(oldestRetainedCreatedMillis, plan.getCreatedMillis(i));
             }
+        }
 
-            final String[] labels = versionHistory.getVersionLabels(version);
-            final boolean revisionVariant = (labels.length > 0) ? true : false;
+        if (plan.getRemovalCount() == 0) {
+            return;
+        }
 
-            if (!version.getName().equals("jcr:rootVersion") && !revisionVariant) {
-                versions.add(version);
+        final String documentPath = documentNode.getPath();
+        final String documentType = documentNode.getPrimaryNodeType().getName();
+        final long removeStartNanos = System.nanoTime();
+
+        for (int i = 0; i < plan.getCandidateCount(); i++) {
+            if (!plan.isRemoval(i)) {
+                continue;
             }
+
+            removeVersion(documentPath, documentType, versionHistory, plan.getVersionName(i),
+                    plan.getCreatedMillis(i), getRemovalReason(plan, i));
         }
 
-        if (maxDays >= 0L) {
-            final long nowInMillis = System.currentTimeMillis();
-            final long maxDaysInMillis = maxDays * DAY_IN_MILLIS;
+        addRemoveNanos(System.nanoTime() - removeStartNanos);
+    }
+
+    private void executeStreaming(final VersionManager versionManager, final VersionHistory versionHistory,
+            final long startNanos) throws RepositoryException {
+        final String documentPath = documentNode.getPath();
+        final String documentType = documentNode.getPrimaryNodeType().getName();
+        final Set<String> labeledVersionNames = RetentionPlan.getLabeledVersionNames(versionHistory);
+        final long nowMillis = getEffectiveNowMillis();
+        final long maxDaysInMillis = (maxDays >= 0L) ? maxDays * RetentionPlan.DAY_IN_MILLIS : Long.MAX_VALUE;
+        long removeNanos = 0L;
 
-            for (Iterator<Version> versionIt = versions.iterator(); versionIt.hasNext();) {
-                final Version version = versionIt.next();
-                final Calendar created = version.getCreated();
+        if (maxRevisions < 0L) {
+            // only maxDays applies, so stop at the first version within the max days from the oldest.
+            Version version = versionHistory.getRootVersion().getLinearSuccessor();
+            oldestRetainedCreatedMillis = Long.MAX_VALUE;
 
-                if (nowInMillis - created.getTimeInMillis() > maxDaysInMillis) {
-                    getLogger().info("Removing old version, '{}' created on {} at {}, of document node at {}: {}",
-                            version.getName(), DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(created),
-                            version.getPath(), documentNode.getPath(), version.getName());
-                    versionHistory.removeVersion(version.getName());
-                    versionIt.remove();
+            while (version != null) {
+                final long createdMillis = version.getCreated().getTimeInMillis();
+
+                if (nowMillis - createdMillis <= maxDaysInMillis) {
+                    oldestRetainedCreatedMillis = createdMillis;
+                    break;
                 }
+
+                final Version successor = version.getLinearSuccessor();
+
+                if (!labeledVersionNames.contains(version.getName())) {
+                    final long removeStartNanos = System.nanoTime();
+                    removeVersion(documentPath, documentType, versionHistory, version.getName(), createdMillis,
+                            VersionAuditSink.ACTION_OLD);
+                    removeNanos += System.nanoTime() - removeStartNanos;
+                }
+
+                version = successor;
             }
-        }
+        } else {
+            // keep the newest maxRevisions non-expired versions from the base version, and remove all the older.
+            Version version = versionManager.getBaseVersion(documentPath);
+            long keptCount = 0L;
+            oldestRetainedCreatedMillis = Long.MAX_VALUE;
+
+            while (version != null && !version.getName().equals("jcr:rootVersion")) {
+                final Version predecessor = version.getLinearPredecessor();
+
+                if (!labeledVersionNames.contains(version.getName())) {
+                    final long createdMillis = version.getCreated().getTimeInMillis();
+                    final boolean expired = nowMillis - createdMillis > maxDaysInMillis;
 
-        if (maxRevisions >= 0L) {
-            final long revisionCount = versions.size();
-            final long removeCount = revisionCount - maxRevisions;
-
-            for (long l = 0; l < removeCount; l++) {
-                final Version version = versions.remove(0);
-                final Calendar created = version.getCreated();
-                getLogger().info("Removing surplus version, '{}' created on {} at {}, of document node at {}: {}",
-                        version.getName(), DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(created),
-                        version.getPath(), documentNode.getPath(), version.getName());
-                versionHistory.removeVersion(version.getName());
+                    if (!expired && keptCount < maxRevisions) {
+                        ++keptCount;
+                        oldestRetainedCreatedMillis = Math.min(oldestRetainedCreatedMillis, createdMillis);
+                    } else {
+                        final long removeStartNanos = System.nanoTime();
+                        removeVersion(documentPath, documentType, versionHistory, version.getName(),
+                                createdMillis, expired ? VersionAuditSink.ACTION_OLD : VersionAuditSink.ACTION_SURPLUS);
+                        removeNanos += System.nanoTime() - removeStartNanos;
+                    }
+                }
+
+                version = predecessor;
             }
+
+            retainedVersionCount = keptCount;
+        }
+
+        addEnumerateNanos(System.nanoTime() - startNanos - removeNanos);
+        addRemoveNanos(removeNanos);
+    }
+
+    private long getEffectiveNowMillis() {
+        return (nowMillis >= 0L) ? nowMillis : System.currentTimeMillis();
+    }
+
+    private static String getRemovalReason(final RetentionPlan plan, final int index) {
+        if (plan.isThinned(index)) {
+            return VersionAuditSink.ACTION_THINNED;
         }
+
+        return plan.isExpired(index) ? VersionAuditSink.ACTION_OLD : VersionAuditSink.ACTION_SURPLUS;
     }
 }
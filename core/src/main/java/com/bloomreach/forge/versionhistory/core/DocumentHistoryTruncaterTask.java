@@ -15,18 +15,13 @@
  */
 package com.bloomreach.forge.versionhistory.core;
 
-import java.util.Calendar;
-
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.version.Version;
 import javax.jcr.version.VersionHistory;
-import javax.jcr.version.VersionIterator;
 import javax.jcr.version.VersionManager;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.time.DateFormatUtils;
 
 /**
  * Document version history truncater task.
@@ -66,32 +61,23 @@ public class DocumentHistoryTruncaterTask extends AbstractContentHistoryTask {
     @Override
     protected void doExecute() throws RepositoryException {
         final String documentNodePath = documentNode.getPath();
+        final String documentType = documentNode.getPrimaryNodeType().getName();
         final VersionManager versionManager = getSession().getWorkspace().getVersionManager();
         final VersionHistory versionHistory = versionManager.getVersionHistory(documentNodePath);
 
-        if (StringUtils.startsWith(documentNodePath, "/content/attic/")) {
+        if (!isDryRun() && StringUtils.startsWith(documentNodePath, "/content/attic/")) {
             final Node handle = documentNode.getParent();
             // delete handle node which contains a node referencing a version before truncating versinos.
             handle.remove();
             // to remove all the version references in the attic node.
+            final long saveStartNanos = System.nanoTime();
             getSession().save();
-        }
 
-        for (VersionIterator versionIt = versionHistory.getAllVersions(); versionIt.hasNext();) {
-            final Version version = versionIt.nextVersion();
-
-            if (version == null) {
-                continue;
-            }
-
-            if (!version.getName().equals("jcr:rootVersion")) {
-                final Calendar created = version.getCreated();
-                getLogger().info("Truncating version, '{}' created on {} at {}, of document node at {}: {}",
-                        version.getName(), DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(created),
-                        version.getPath(), documentNodePath, version.getName());
-
-                versionHistory.removeVersion(version.getName());
+            if (getThrottle() != null) {
+                getThrottle().recordLatency(System.nanoTime() - saveStartNanos);
             }
         }
+
+        truncateVersions(documentNodePath, documentType, versionHistory);
     }
 }
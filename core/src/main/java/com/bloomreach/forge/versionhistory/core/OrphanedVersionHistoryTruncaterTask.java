@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.version.VersionHistory;
+
+/**
+ * Orphaned version history truncater task, which truncates a version history of which the versionable node
+ * doesn't exist any more in the workspace, in the same way as {@link DocumentHistoryTruncaterTask}.
+ * <P>
+ * Once all the versions except for the root version are removed, the repository removes the orphaned version
+ * history itself.
+ */
+public class OrphanedVersionHistoryTruncaterTask extends AbstractContentHistoryTask {
+
+    private final VersionHistory versionHistory;
+
+    /**
+     * The path of the versionable node before it was removed, used in the logs and the report, or null if unknown.
+     */
+    private final String documentPath;
+
+    public OrphanedVersionHistoryTruncaterTask(final Session session, final VersionHistory versionHistory) {
+        this(session, versionHistory, null);
+    }
+
+    /**
+     * @param session session
+     * @param versionHistory orphaned version history
+     * @param documentPath the path of the versionable node before it was removed, or null if unknown, in which case
+     *        the version history path is used instead in the logs and the report
+     */
+    public OrphanedVersionHistoryTruncaterTask(final Session session, final VersionHistory versionHistory,
+            final String documentPath) {
+        super(session);
+
+        if (versionHistory == null) {
+            throw new IllegalArgumentException("version history must be not null.");
+        }
+
+        this.versionHistory = versionHistory;
+        this.documentPath = documentPath;
+    }
+
+    /**
+     * Returns true if the versionable node of the version history doesn't exist in the workspace of the session.
+     * @param session session
+     * @param versionHistory version history
+     * @return true if the versionable node of the version history doesn't exist in the workspace of the session
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static boolean isOrphaned(final Session session, final VersionHistory versionHistory)
+            throws RepositoryException {
+        try {
+            session.getNodeByIdentifier(versionHistory.getVersionableIdentifier());
+            return false;
+        } catch (ItemNotFoundException e) {
+            return true;
+        }
+    }
+
+    @Override
+    protected void doExecute() throws RepositoryException {
+        if (!isOrphaned(getSession(), versionHistory)) {
+            throw new IllegalStateException("Version history is not orphaned: " + versionHistory.getPath());
+        }
+
+        final Node rootFrozenNode = versionHistory.getRootVersion().getFrozenNode();
+        final String documentType = rootFrozenNode.hasProperty("jcr:frozenPrimaryType")
+                ? rootFrozenNode.getProperty("jcr:frozenPrimaryType").getString() : null;
+        truncateVersions(documentPath != null ? documentPath : versionHistory.getPath(), documentType,
+                versionHistory);
+    }
+}
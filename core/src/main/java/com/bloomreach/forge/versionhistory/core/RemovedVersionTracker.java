@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.version.VersionHistory;
+
+/**
+ * Tracker of the versions removed by content history tasks, counting them and estimating the binary bytes they
+ * referenced, e.g, to decide when to run the DataStore garbage collection.
+ * <P>
+ * Measuring the footprint of a version reads its whole frozen node subtree, so only one in every
+ * <code>sampleInterval</code> removed versions is measured, and the binary bytes of all the removed versions
+ * are extrapolated from the samples. The binaries shared with the other versions or documents are not reclaimed
+ * by the garbage collection, so the estimate is an upper bound.
+ * <P>
+ * This is thread-safe.
+ */
+public class RemovedVersionTracker {
+
+    private final int sampleInterval;
+
+    private final AtomicLong measureCount = new AtomicLong();
+    private final AtomicLong versionCount = new AtomicLong();
+    private final AtomicLong sampledVersionCount = new AtomicLong();
+    private final AtomicLong sampledBinaryBytes = new AtomicLong();
+
+    /**
+     * @param sampleInterval the number of the removed versions per measured one, where 1 measures all of them
+     */
+    public RemovedVersionTracker(final int sampleInterval) {
+        this.sampleInterval = Math.max(1, sampleInterval);
+    }
+
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * Measures the binary bytes of the version to be removed from the version history if sampled.
+     * This must be invoked before removing the version, and the result passed to {@link #recordRemoval(long)}
+     * once the version was removed.
+     * @param versionHistory version history
+     * @param versionName version name
+     * @return the binary bytes of the version, or -1 if not sampled
+     * @throws RepositoryException if repository exception occurs
+     */
+    public long measure(final VersionHistory versionHistory, final String versionName) throws RepositoryException {
+        if (measureCount.incrementAndGet() % sampleInterval != 0L) {
+            return -1L;
+        }
+
+        return VersionFootprint.measure(versionHistory.getVersion(versionName)).getBinaryBytes();
+    }
+
+    /**
+     * Records a removed version. This must be invoked only after the version was removed successfully, so that
+     * the failed or retried removals are not counted.
+     * @param binaryBytes the binary bytes of the version measured by
+     *        {@link #measure(VersionHistory, String)} before removing it, or -1 if not sampled
+     */
+    public void recordRemoval(final long binaryBytes) {
+        versionCount.incrementAndGet();
+
+        if (binaryBytes >= 0L) {
+            sampledBinaryBytes.addAndGet(binaryBytes);
+            sampledVersionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of the removed versions.
+     * @return the number of the removed versions
+     */
+    public long getVersionCount() {
+        return versionCount.get();
+    }
+
+    /**
+     * Returns the binary bytes of the removed versions estimated from the samples, or zero if none sampled yet.
+     * @return the estimated binary bytes of the removed versions
+     */
+    public long getEstimatedBinaryBytes() {
+        final long sampled = sampledVersionCount.get();
+
+        if (sampled == 0L) {
+            return 0L;
+        }
+
+        return (long) ((double) sampledBinaryBytes.get() / sampled * versionCount.get());
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
+import javax.jcr.version.VersionIterator;
+
+/**
+ * Retention plan of a version history, computing all the versions to remove by the <code>maxDays</code> and
+ * <code>maxRevisions</code> rules in a single pass over a compact snapshot of the removal candidates.
+ * <P>
+ * The candidates are the versions except for the root version and the labeled versions, in the order of
+ * the version history. A candidate is removed as <EM>expired</EM> if it was created more than <code>maxDays</code>
+ * days ago, or as <EM>surplus</EM> if it is one of the oldest candidates exceeding <code>maxRevisions</code> among
+ * the non-expired candidates. If a {@link ThinningSchedule} is given, a candidate not kept by the schedule is removed
+ * as <EM>thinned</EM> first, and the other rules apply to the rest.
+ */
+public final class RetentionPlan {
+
+    /**
+     * A day in milliseconds.
+     */
+    public static final long DAY_IN_MILLIS = 24L * 60L * 60L * 1000L;
+
+    private static final byte KEEP = 0;
+
+    private static final byte EXPIRED = 1;
+
+    private static final byte SURPLUS = 2;
+
+    private static final byte THINNED = 3;
+
+    private final String[] versionNames;
+    private final long[] createdMillis;
+    private final byte[] decisions;
+    private final int removalCount;
+
+    /**
+     * Creates a retention plan from the removal candidates in the order of the version history.
+     * @param versionNames version names of the candidates
+     * @param createdMillis created time in milliseconds of the candidates
+     * @param maxDays max days to keep, or a negative integer to ignore this rule
+     * @param maxRevisions max revisions to keep, or a negative integer to ignore this rule
+     * @param nowMillis current time in milliseconds
+     */
+    public RetentionPlan(final String[] versionNames, final long[] createdMillis, final long maxDays,
+            final long maxRevisions, final long nowMillis) {
+        this(versionNames, createdMillis, maxDays, maxRevisions, null, nowMillis);
+    }
+
+    /**
+     * Creates a retention plan from the removal candidates in the order of the version history.
+     * @param versionNames version names of the candidates
+     * @param createdMillis created time in milliseconds of the candidates
+     * @param maxDays max days to keep, or a negative integer to ignore this rule
+     * @param maxRevisions max revisions to keep, or a negative integer to ignore this rule
+     * @param thinningSchedule thinning schedule, or null to ignore this rule
+     * @param nowMillis current time in milliseconds
+     */
+    public RetentionPlan(final String[] versionNames, final long[] createdMillis, final long maxDays,
+            final long maxRevisions, final ThinningSchedule thinningSchedule, final long nowMillis) {
+        if (versionNames.length != createdMillis.length) {
+            throw new IllegalArgumentException("version names and created times must be of the same length.");
+        }
+
+        this.versionNames = versionNames;
+        this.createdMillis = createdMillis;
+        this.decisions = new byte[versionNames.length];
+
+        int expiredCount = 0;
+
+        if (thinningSchedule != null) {
+            final boolean[] keeps = thinningSchedule.computeKeeps(createdMillis, nowMillis);
+
+            for (int i = 0; i < keeps.length; i++) {
+                if (!keeps[i]) {
+                    decisions[i] = THINNED;
+                    ++expiredCount;
+                }
+            }
+        }
+
+        if (maxDays >= 0L) {
+            final long maxDaysInMillis = maxDays * DAY_IN_MILLIS;
+
+            for (int i = 0; i < createdMillis.length; i++) {
+                if (decisions[i] == KEEP && nowMillis - createdMillis[i] > maxDaysInMillis) {
+                    decisions[i] = EXPIRED;
+                    ++expiredCount;
+                }
+            }
+        }
+
+        long surplusCount = (maxRevisions >= 0L) ? versionNames.length - expiredCount - maxRevisions : 0L;
+        int count = expiredCount;
+
+        for (int i = 0; i < decisions.length && surplusCount > 0L; i++) {
+            if (decisions[i] == KEEP) {
+                decisions[i] = SURPLUS;
+                --surplusCount;
+                ++count;
+            }
+        }
+
+        this.removalCount = count;
+    }
+
+    /**
+     * Reads the removal candidates of the version history once, and creates a retention plan.
+     * @param versionHistory version history
+     * @param maxDays max days to keep, or a negative integer to ignore this rule
+     * @param maxRevisions max revisions to keep, or a negative integer to ignore this rule
+     * @param nowMillis current time in milliseconds
+     * @return retention plan
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static RetentionPlan create(final VersionHistory versionHistory, final long maxDays,
+            final long maxRevisions, final long nowMillis) throws RepositoryException {
+        return create(versionHistory, maxDays, maxRevisions, null, nowMillis);
+    }
+
+    /**
+     * Reads the removal candidates of the version history once, and creates a retention plan.
+     * @param versionHistory version history
+     * @param maxDays max days to keep, or a negative integer to ignore this rule
+     * @param maxRevisions max revisions to keep, or a negative integer to ignore this rule
+     * @param thinningSchedule thinning schedule, or null to ignore this rule
+     * @param nowMillis current time in milliseconds
+     * @return retention plan
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static RetentionPlan create(final VersionHistory versionHistory, final long maxDays,
+            final long maxRevisions, final ThinningSchedule thinningSchedule, final long nowMillis)
+            throws RepositoryException {
+        final Set<String> labeledVersionNames = getLabeledVersionNames(versionHistory);
+        final VersionIterator versionIt = versionHistory.getAllVersions();
+        final long size = versionIt.getSize();
+        String[] names = new String[(size > 0L) ? (int) size : 16];
+        long[] created = new long[names.length];
+        int count = 0;
+
+        while (versionIt.hasNext()) {
+            final Version version = versionIt.nextVersion();
+
+            if (version == null) {
+                continue;
+            }
+
+            final String name = version.getName();
+
+            if (name.equals("jcr:rootVersion") || labeledVersionNames.contains(name)) {
+                continue;
+            }
+
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+                created = Arrays.copyOf(created, count * 2);
+            }
+
+            names[count] = name;
+            created[count] = version.getCreated().getTimeInMillis();
+            ++count;
+        }
+
+        return new RetentionPlan(Arrays.copyOf(names, count), Arrays.copyOf(created, count), maxDays, maxRevisions,
+                thinningSchedule, nowMillis);
+    }
+
+    /**
+     * Returns the number of the removal candidates.
+     * @return the number of the removal candidates
+     */
+    public int getCandidateCount() {
+        return versionNames.length;
+    }
+
+    /**
+     * Returns the number of the candidates to remove.
+     * @return the number of the candidates to remove
+     */
+    public int getRemovalCount() {
+        return removalCount;
+    }
+
+    public String getVersionName(final int index) {
+        return versionNames[index];
+    }
+
+    public long getCreatedMillis(final int index) {
+        return createdMillis[index];
+    }
+
+    /**
+     * Returns true if the candidate at the index is to be removed.
+     * @param index candidate index
+     * @return true if the candidate at the index is to be removed
+     */
+    public boolean isRemoval(final int index) {
+        return decisions[index] != KEEP;
+    }
+
+    /**
+     * Returns true if the candidate at the index is to be removed by the <code>maxDays</code> rule.
+     * @param index candidate index
+     * @return true if the candidate at the index is to be removed by the <code>maxDays</code> rule
+     */
+    public boolean isExpired(final int index) {
+        return decisions[index] == EXPIRED;
+    }
+
+    /**
+     * Returns true if the candidate at the index is to be removed by the thinning schedule.
+     * @param index candidate index
+     * @return true if the candidate at the index is to be removed by the thinning schedule
+     */
+    public boolean isThinned(final int index) {
+        return decisions[index] == THINNED;
+    }
+
+    /**
+     * Returns the names of the labeled versions, which are never removed.
+     * @param versionHistory version history
+     * @return the names of the labeled versions
+     * @throws RepositoryException if repository exception occurs
+     */
+    static Set<String> getLabeledVersionNames(final VersionHistory versionHistory)
+            throws RepositoryException {
+        final String[] labels = versionHistory.getVersionLabels();
+
+        if (labels.length == 0) {
+            return Set.of();
+        }
+
+        final Set<String> names = new HashSet<>();
+
+        for (String label : labels) {
+            names.add(versionHistory.getVersionByLabel(label).getName());
+        }
+
+        return names;
+    }
+}
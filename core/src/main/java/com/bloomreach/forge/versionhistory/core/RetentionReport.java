@@ -0,0 +1,228 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.version.Version;
+
+/**
+ * Report of the versions removed, or to be removed in dry-run mode, by content history tasks,
+ * aggregated per document and per document type.
+ * <P>
+ * The report can be written in JSON or CSV format, so that reports of different runs can be compared.
+ * This is thread-safe, so a report can be shared by tasks executed in multiple threads.
+ * <P>
+ * The versions added by {@link #add(String, String, Version)} count each DataStore binary once in the report,
+ * under the first document referencing it. The binary bytes are still an upper bound of the reclaimable bytes,
+ * as a binary may also be referenced by the retained versions or the documents.
+ */
+public class RetentionReport {
+
+    /**
+     * Report output format.
+     */
+    public enum Format {
+        JSON, CSV
+    }
+
+    private final Map<String, Entry> documentEntries = new TreeMap<>();
+    private final Map<String, VersionFootprint> documentTypeFootprints = new TreeMap<>();
+    private VersionFootprint totalFootprint = new VersionFootprint();
+    private final Set<String> countedContentIds = ConcurrentHashMap.newKeySet();
+
+    public RetentionReport() {
+    }
+
+    /**
+     * Adds the footprint of a version removed, or to be removed, from the version history of the document.
+     * @param documentPath document node path
+     * @param documentType document type name
+     * @param footprint footprint of the version
+     */
+    public synchronized void add(final String documentPath, final String documentType,
+            final VersionFootprint footprint) {
+        addFootprint(documentPath, documentType, footprint);
+    }
+
+    /**
+     * Measures and adds the footprint of a version removed, or to be removed, from the version history of
+     * the document, counting the binaries already counted in this report as zero bytes.
+     * @param documentPath document node path
+     * @param documentType document type name
+     * @param version the version
+     * @throws RepositoryException if repository exception occurs
+     */
+    public void add(final String documentPath, final String documentType, final Version version)
+            throws RepositoryException {
+        final VersionFootprint footprint = VersionFootprint.measure(version, countedContentIds);
+
+        synchronized (this) {
+            addFootprint(documentPath, documentType, footprint);
+        }
+    }
+
+    private void addFootprint(final String documentPath, final String documentType,
+            final VersionFootprint footprint) {
+        final String type = (documentType != null) ? documentType : "";
+        documentEntries.computeIfAbsent(documentPath, path -> new Entry(type)).footprint.add(footprint);
+        documentTypeFootprints.computeIfAbsent(type, key -> new VersionFootprint()).add(footprint);
+        totalFootprint.add(footprint);
+    }
+
+    public synchronized boolean isEmpty() {
+        return documentEntries.isEmpty();
+    }
+
+    public synchronized VersionFootprint getTotalFootprint() {
+        final VersionFootprint footprint = new VersionFootprint();
+        footprint.add(totalFootprint);
+        return footprint;
+    }
+
+    public synchronized void clear() {
+        documentEntries.clear();
+        documentTypeFootprints.clear();
+        totalFootprint = new VersionFootprint();
+        countedContentIds.clear();
+    }
+
+    public synchronized void write(final Writer writer, final Format format) throws IOException {
+        if (format == Format.CSV) {
+            writeCsv(writer);
+        } else {
+            writeJson(writer);
+        }
+
+        writer.flush();
+    }
+
+    private void writeJson(final Writer writer) throws IOException {
+        writer.write("{\n  \"total\": ");
+        writeJsonFootprint(writer, totalFootprint);
+        writer.write(",\n  \"documentTypes\": {");
+
+        String separator = "\n";
+
+        for (Map.Entry<String, VersionFootprint> entry : documentTypeFootprints.entrySet()) {
+            writer.write(separator);
+            writer.write("    ");
+            writeJsonString(writer, entry.getKey());
+            writer.write(": ");
+            writeJsonFootprint(writer, entry.getValue());
+            separator = ",\n";
+        }
+
+        writer.write("\n  },\n  \"documents\": [");
+        separator = "\n";
+
+        for (Map.Entry<String, Entry> entry : documentEntries.entrySet()) {
+            writer.write(separator);
+            writer.write("    {\"path\": ");
+            writeJsonString(writer, entry.getKey());
+            writer.write(", \"documentType\": ");
+            writeJsonString(writer, entry.getValue().documentType);
+            writer.write(", \"footprint\": ");
+            writeJsonFootprint(writer, entry.getValue().footprint);
+            writer.write("}");
+            separator = ",\n";
+        }
+
+        writer.write("\n  ]\n}\n");
+    }
+
+    private void writeCsv(final Writer writer) throws IOException {
+        writer.write("path,documentType,versionCount,frozenNodeCount,propertyBytes,binaryBytes\n");
+
+        for (Map.Entry<String, Entry> entry : documentEntries.entrySet()) {
+            final VersionFootprint footprint = entry.getValue().footprint;
+            writer.write(escapeCsv(entry.getKey()) + "," + escapeCsv(entry.getValue().documentType) + ","
+                    + footprint.getVersionCount() + "," + footprint.getFrozenNodeCount() + ","
+                    + footprint.getPropertyBytes() + "," + footprint.getBinaryBytes() + "\n");
+        }
+    }
+
+    /**
+     * Writes the footprint as a JSON object.
+     * @param writer writer
+     * @param footprint footprint
+     * @throws IOException if IO exception occurs
+     */
+    public static void writeJsonFootprint(final Writer writer, final VersionFootprint footprint)
+            throws IOException {
+        writer.write("{\"versionCount\": " + footprint.getVersionCount() + ", \"frozenNodeCount\": "
+                + footprint.getFrozenNodeCount() + ", \"propertyBytes\": " + footprint.getPropertyBytes()
+                + ", \"binaryBytes\": " + footprint.getBinaryBytes() + "}");
+    }
+
+    /**
+     * Writes the value as a JSON string, or <code>null</code> if the value is null.
+     * @param writer writer
+     * @param value value
+     * @throws IOException if IO exception occurs
+     */
+    public static void writeJsonString(final Writer writer, final String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+
+        writer.write('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+
+        writer.write('"');
+    }
+
+    private static String escapeCsv(final String value) {
+        if (value == null) {
+            return "";
+        }
+
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static class Entry {
+
+        private final String documentType;
+        private final VersionFootprint footprint = new VersionFootprint();
+
+        private Entry(final String documentType) {
+            this.documentType = documentType;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Tiered thinning schedule of versions, keeping all the recent versions and thinning out the older versions
+ * to one per interval which grows with the age, e.g, all the versions of the last 7 days, one per day for 30 days,
+ * one per week for a year, and then one per month.
+ * <P>
+ * A schedule is expressed as comma separated tiers in the order of the age, each of which is
+ * <code>&lt;max-age&gt;:&lt;interval&gt;</code>, where <code>max-age</code> is the max age of the versions in
+ * the tier or <code>*</code> for no limit, and <code>interval</code> is the interval to keep one version per, or
+ * <code>all</code> to keep all the versions. A duration is a number followed by a unit, <code>h</code> (hours),
+ * <code>d</code> (days), <code>w</code> (weeks), <code>m</code> (30 days) or <code>y</code> (365 days).
+ * For example, <code>7d:all, 30d:1d, 1y:1w, *:1m</code>. The versions older than the max age of the last tier
+ * are removed, unless the last tier has no limit.
+ * <P>
+ * The interval buckets are aligned to the epoch, not to the current time, so the version kept in a bucket stays
+ * the kept one on the next runs until it moves to a tier of a longer interval. The newest version in each bucket
+ * is kept.
+ */
+public final class ThinningSchedule {
+
+    private static final long HOUR_IN_MILLIS = 60L * 60L * 1000L;
+
+    private final String expression;
+
+    /**
+     * Max ages of the tiers in milliseconds, where {@link Long#MAX_VALUE} means no limit.
+     */
+    private final long[] maxAgeMillis;
+
+    /**
+     * Intervals of the tiers in milliseconds, where 0 means keeping all the versions.
+     */
+    private final long[] intervalMillis;
+
+    private ThinningSchedule(final String expression, final long[] maxAgeMillis, final long[] intervalMillis) {
+        this.expression = expression;
+        this.maxAgeMillis = maxAgeMillis;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Parses the schedule expression.
+     * @param expression schedule expression, such as <code>7d:all, 30d:1d, 1y:1w, *:1m</code>
+     * @return the schedule
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static ThinningSchedule parse(final String expression) {
+        if (StringUtils.isBlank(expression)) {
+            throw new IllegalArgumentException("Blank thinning schedule.");
+        }
+
+        final List<long[]> tiers = new ArrayList<>();
+        long prevMaxAgeMillis = 0L;
+
+        for (String tier : StringUtils.split(expression, ',')) {
+            final String[] parts = StringUtils.split(tier.trim(), ':');
+
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid thinning tier, '" + tier.trim()
+                        + "', which must be '<max-age>:<interval>'.");
+            }
+
+            if (prevMaxAgeMillis == Long.MAX_VALUE) {
+                throw new IllegalArgumentException("No thinning tier may follow the tier without max age.");
+            }
+
+            final String maxAge = parts[0].trim();
+            final String interval = parts[1].trim();
+            final long tierMaxAgeMillis = "*".equals(maxAge) ? Long.MAX_VALUE : parseDuration(maxAge);
+            final long tierIntervalMillis = "all".equalsIgnoreCase(interval) ? 0L : parseDuration(interval);
+
+            if (tierMaxAgeMillis <= prevMaxAgeMillis) {
+                throw new IllegalArgumentException("Thinning tiers must be in the increasing order of max age.");
+            }
+
+            tiers.add(new long[] { tierMaxAgeMillis, tierIntervalMillis });
+            prevMaxAgeMillis = tierMaxAgeMillis;
+        }
+
+        final long[] maxAgeMillis = new long[tiers.size()];
+        final long[] intervalMillis = new long[tiers.size()];
+
+        for (int i = 0; i < tiers.size(); i++) {
+            maxAgeMillis[i] = tiers.get(i)[0];
+            intervalMillis[i] = tiers.get(i)[1];
+        }
+
+        return new ThinningSchedule(expression.trim(), maxAgeMillis, intervalMillis);
+    }
+
+    /**
+     * Returns the number of the tiers.
+     * @return the number of the tiers
+     */
+    public int getTierCount() {
+        return maxAgeMillis.length;
+    }
+
+    /**
+     * Returns the index of the tier of a version by the age, or -1 if the version is older than all the tiers.
+     * @param ageMillis age of the version in milliseconds
+     * @return the index of the tier, or -1 if the version is older than all the tiers
+     */
+    public int getTierIndex(final long ageMillis) {
+        for (int i = 0; i < maxAgeMillis.length; i++) {
+            if (ageMillis <= maxAgeMillis[i]) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the interval of the tier in milliseconds, or 0 if the tier keeps all the versions.
+     * @param tierIndex tier index
+     * @return the interval of the tier in milliseconds, or 0 if the tier keeps all the versions
+     */
+    public long getIntervalMillis(final int tierIndex) {
+        return intervalMillis[tierIndex];
+    }
+
+    /**
+     * Decides which versions to keep by the schedule.
+     * @param createdMillis created time in milliseconds of the versions in the order of the version history
+     * @param nowMillis current time in milliseconds
+     * @return the flags whether or not to keep each version
+     */
+    public boolean[] computeKeeps(final long[] createdMillis, final long nowMillis) {
+        final boolean[] keeps = new boolean[createdMillis.length];
+        int lastTierIndex = -2;
+        long lastBucket = 0L;
+
+        // from the newest, keeping the first, so the newest, version of each bucket.
+        for (int i = createdMillis.length - 1; i >= 0; i--) {
+            final int tierIndex = getTierIndex(nowMillis - createdMillis[i]);
+
+            if (tierIndex < 0) {
+                continue;
+            }
+
+            final long interval = intervalMillis[tierIndex];
+
+            if (interval == 0L) {
+                keeps[i] = true;
+                continue;
+            }
+
+            final long bucket = Math.floorDiv(createdMillis[i], interval);
+
+            if (tierIndex != lastTierIndex || bucket != lastBucket) {
+                keeps[i] = true;
+                lastTierIndex = tierIndex;
+                lastBucket = bucket;
+            }
+        }
+
+        return keeps;
+    }
+
+    private static long parseDuration(final String duration) {
+        if (duration.length() < 2) {
+            throw new IllegalArgumentException("Invalid duration, '" + duration + "'.");
+        }
+
+        final long amount;
+
+        try {
+            amount = Long.parseLong(duration.substring(0, duration.length() - 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid duration, '" + duration + "'.", e);
+        }
+
+        if (amount <= 0L) {
+            throw new IllegalArgumentException("Duration must be positive, '" + duration + "'.");
+        }
+
+        switch (Character.toLowerCase(duration.charAt(duration.length() - 1))) {
+        case 'h':
+            return amount * HOUR_IN_MILLIS;
+        case 'd':
+            return amount * RetentionPlan.DAY_IN_MILLIS;
+        case 'w':
+            return amount * 7L * RetentionPlan.DAY_IN_MILLIS;
+        case 'm':
+            return amount * 30L * RetentionPlan.DAY_IN_MILLIS;
+        case 'y':
+            return amount * 365L * RetentionPlan.DAY_IN_MILLIS;
+        default:
+            throw new IllegalArgumentException("Unknown duration unit, '" + duration + "'.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
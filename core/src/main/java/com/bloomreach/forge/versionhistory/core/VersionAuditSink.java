@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+/**
+ * Sink of the audit entries of the versions removed, or to be removed in dry-run mode, by content history tasks.
+ * <P>
+ * Implementations must be thread-safe, as a sink can be shared by tasks executed in multiple threads, and should
+ * return quickly, as they are invoked for every version removal.
+ */
+public interface VersionAuditSink {
+
+    /**
+     * Action of removing a version created more than the max days ago.
+     */
+    String ACTION_OLD = "old";
+
+    /**
+     * Action of removing a version exceeding the max revisions.
+     */
+    String ACTION_SURPLUS = "surplus";
+
+    /**
+     * Action of removing a version not kept by the thinning schedule.
+     */
+    String ACTION_THINNED = "thinned";
+
+    /**
+     * Action of removing a version by truncating the whole version history.
+     */
+    String ACTION_TRUNCATED = "truncated";
+
+    /**
+     * Records a version removed, or to be removed in dry-run mode.
+     * @param documentPath the versionable document node path, or the version history path if the versionable node
+     *        doesn't exist any more
+     * @param versionName version name
+     * @param createdMillis created time of the version in milliseconds
+     * @param action removal action, such as {@link #ACTION_OLD}
+     * @param dryRun whether or not the version is only to be removed in dry-run mode
+     */
+    void record(String documentPath, String versionName, long createdMillis, String action, boolean dryRun);
+
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.version.Version;
+
+import org.apache.jackrabbit.api.JackrabbitValue;
+
+/**
+ * Approximate storage footprint of versions, measured by walking the frozen node subtrees.
+ * <P>
+ * Property bytes are approximated by the lengths of the non-binary property values,
+ * and binary bytes by the lengths of the binary property values.
+ * <P>
+ * Binaries in a DataStore are shared by all the properties having the same content, so the binary bytes summed
+ * over versions count a shared binary multiple times. Measure the versions with a set of the counted content
+ * identities, such as by {@link RetentionReport}, to count each DataStore binary once. Even so, the binary bytes
+ * are an upper bound of the bytes reclaimable by removing the versions, as a binary may still be referenced by
+ * the retained versions or the documents.
+ */
+public final class VersionFootprint {
+
+    private long versionCount;
+    private long frozenNodeCount;
+    private long propertyBytes;
+    private long binaryBytes;
+
+    public VersionFootprint() {
+    }
+
+    /**
+     * Measures the footprint of the version.
+     * @param version version
+     * @return the footprint of the version
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static VersionFootprint measure(final Version version) throws RepositoryException {
+        return measure(version, null);
+    }
+
+    /**
+     * Measures the footprint of the version, counting the bytes of a binary having a content identity only if
+     * the identity is not in the set yet, and adding the identities of the counted binaries to the set.
+     * @param version version
+     * @param countedContentIds the content identities of the binaries already counted, or null to count
+     *        all the binaries. It must be thread-safe if shared by multiple threads.
+     * @return the footprint of the version
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static VersionFootprint measure(final Version version, final Set<String> countedContentIds)
+            throws RepositoryException {
+        final VersionFootprint footprint = new VersionFootprint();
+        footprint.versionCount = 1L;
+
+        if (version.hasNode("jcr:frozenNode")) {
+            footprint.addNode(version.getNode("jcr:frozenNode"), countedContentIds);
+        }
+
+        return footprint;
+    }
+
+    public long getVersionCount() {
+        return versionCount;
+    }
+
+    public long getFrozenNodeCount() {
+        return frozenNodeCount;
+    }
+
+    public long getPropertyBytes() {
+        return propertyBytes;
+    }
+
+    public long getBinaryBytes() {
+        return binaryBytes;
+    }
+
+    /**
+     * Adds the other footprint to this.
+     * @param other other footprint
+     */
+    public void add(final VersionFootprint other) {
+        versionCount += other.versionCount;
+        frozenNodeCount += other.frozenNodeCount;
+        propertyBytes += other.propertyBytes;
+        binaryBytes += other.binaryBytes;
+    }
+
+    private void addNode(final Node node, final Set<String> countedContentIds) throws RepositoryException {
+        ++frozenNodeCount;
+
+        for (PropertyIterator propIt = node.getProperties(); propIt.hasNext();) {
+            final Property prop = propIt.nextProperty();
+
+            if (prop == null) {
+                continue;
+            }
+
+            if (prop.getType() == PropertyType.BINARY && countedContentIds != null) {
+                addBinaryProperty(prop, countedContentIds);
+                continue;
+            }
+
+            long length = 0L;
+
+            if (prop.isMultiple()) {
+                for (long valueLength : prop.getLengths()) {
+                    length += Math.max(0L, valueLength);
+                }
+            } else {
+                length = Math.max(0L, prop.getLength());
+            }
+
+            if (prop.getType() == PropertyType.BINARY) {
+                binaryBytes += length;
+            } else {
+                propertyBytes += length;
+            }
+        }
+
+        for (NodeIterator nodeIt = node.getNodes(); nodeIt.hasNext();) {
+            final Node child = nodeIt.nextNode();
+
+            if (child != null) {
+                addNode(child, countedContentIds);
+            }
+        }
+    }
+
+    private void addBinaryProperty(final Property prop, final Set<String> countedContentIds)
+            throws RepositoryException {
+        final Value[] values = prop.isMultiple() ? prop.getValues() : new Value[] { prop.getValue() };
+        final long[] lengths = prop.isMultiple() ? prop.getLengths() : new long[] { prop.getLength() };
+
+        for (int i = 0; i < values.length && i < lengths.length; i++) {
+            final String contentId = (values[i] instanceof JackrabbitValue)
+                    ? ((JackrabbitValue) values[i]).getContentIdentity() : null;
+
+            // a binary without a content identity is stored inline, so not shared.
+            if (contentId == null || countedContentIds.add(contentId)) {
+                binaryBytes += Math.max(0L, lengths[i]);
+            }
+        }
+    }
+}
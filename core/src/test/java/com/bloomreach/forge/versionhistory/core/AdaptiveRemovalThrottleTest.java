@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link AdaptiveRemovalThrottle}.
+ */
+public class AdaptiveRemovalThrottleTest {
+
+    private static final double DELTA = 1.0e-9;
+
+    private static final long SLOW_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(50L);
+
+    @Test
+    public void testBacksOffDownToMinRate() throws Exception {
+        final AdaptiveRemovalThrottle throttle = new AdaptiveRemovalThrottle(100.0, 10.0, 10L, 0L);
+
+        assertEquals(100.0, throttle.getRate(), DELTA);
+        assertEquals(-1L, throttle.getLatencyAverageMicros());
+
+        throttle.recordLatency(SLOW_LATENCY_NANOS);
+        assertEquals(50.0, throttle.getRate(), DELTA);
+        assertEquals(50000L, throttle.getLatencyAverageMicros());
+
+        throttle.recordLatency(SLOW_LATENCY_NANOS);
+        throttle.recordLatency(SLOW_LATENCY_NANOS);
+        assertEquals(12.5, throttle.getRate(), DELTA);
+
+        throttle.recordLatency(SLOW_LATENCY_NANOS);
+        assertEquals(10.0, throttle.getRate(), DELTA);
+        assertEquals(4L, throttle.getBackoffCount());
+
+        // no more back-off below the min rate.
+        throttle.recordLatency(SLOW_LATENCY_NANOS);
+        assertEquals(10.0, throttle.getRate(), DELTA);
+        assertEquals(4L, throttle.getBackoffCount());
+    }
+
+    @Test
+    public void testRecoversToMaxRate() throws Exception {
+        final AdaptiveRemovalThrottle throttle = new AdaptiveRemovalThrottle(100.0, 10.0, 10L, 0L);
+        throttle.recordLatency(SLOW_LATENCY_NANOS);
+        assertEquals(50.0, throttle.getRate(), DELTA);
+
+        // the moving average goes down below 80% of the target latency only after a few fast writes,
+        // and then the rate is increased by a tenth of the max rate per adjustment.
+        for (int i = 0; i < 100; i++) {
+            throttle.recordLatency(0L);
+        }
+
+        assertEquals(100.0, throttle.getRate(), DELTA);
+        assertEquals(0L, throttle.getLatencyAverageMicros());
+    }
+
+    @Test
+    public void testAdjustsAtMostOncePerInterval() throws Exception {
+        final AdaptiveRemovalThrottle throttle = new AdaptiveRemovalThrottle(100.0, 10.0, 10L, 60000L);
+
+        for (int i = 0; i < 10; i++) {
+            throttle.recordLatency(SLOW_LATENCY_NANOS);
+        }
+
+        assertEquals(100.0, throttle.getRate(), DELTA);
+        assertEquals(0L, throttle.getBackoffCount());
+        assertEquals(50000L, throttle.getLatencyAverageMicros());
+    }
+
+    @Test
+    public void testAcquireWaitsForTokens() throws Exception {
+        final AdaptiveRemovalThrottle throttle = new AdaptiveRemovalThrottle(10.0, 1.0, 10L);
+        final long startNanos = System.nanoTime();
+
+        // a burst of a second at the rate is allowed, and the next one waits for a token.
+        for (int i = 0; i < 12; i++) {
+            throttle.acquire();
+        }
+
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        assertTrue("Must wait for the tokens beyond the burst: " + elapsedMillis + "ms", elapsedMillis >= 150L);
+    }
+
+    @Test
+    public void testRates() throws Exception {
+        final AdaptiveRemovalThrottle throttle = new AdaptiveRemovalThrottle(10.0, 100.0, 10L);
+
+        assertEquals(10.0, throttle.getMaxRate(), DELTA);
+        // the min rate is limited by the max rate.
+        assertEquals(10.0, throttle.getMinRate(), DELTA);
+        assertEquals(10L, throttle.getTargetLatencyMillis());
+
+        try {
+            new AdaptiveRemovalThrottle(0.0, 0.0, 10L);
+            fail("Non-positive max rate must be rejected.");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+}
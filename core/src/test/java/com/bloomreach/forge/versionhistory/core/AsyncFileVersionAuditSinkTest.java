@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link AsyncFileVersionAuditSink}.
+ */
+public class AsyncFileVersionAuditSinkTest {
+
+    private static final String DOCUMENT_PATH = "/content/documents/news/a/a";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testWritesJsonLines() throws Exception {
+        final Path file = tempFolder.getRoot().toPath().resolve("audit/removed-versions.jsonl");
+        final AsyncFileVersionAuditSink sink = new AsyncFileVersionAuditSink(file, 0L, 1);
+
+        sink.record(DOCUMENT_PATH, "1.0", 1000L, VersionAuditSink.ACTION_OLD, false);
+        sink.record("/content/documents/news/\"quoted\"", "1.1", 2000L, VersionAuditSink.ACTION_SURPLUS, true);
+        sink.close();
+
+        final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).startsWith("{\"time\":"));
+        assertTrue(lines.get(0).endsWith(",\"path\":\"" + DOCUMENT_PATH + "\",\"version\":\"1.0\",\"created\":1000,"
+                + "\"action\":\"old\",\"dryRun\":false}"));
+        assertTrue(lines.get(1).contains("\"path\":\"/content/documents/news/\\\"quoted\\\"\""));
+        assertTrue(lines.get(1).endsWith("\"action\":\"surplus\",\"dryRun\":true}"));
+        assertEquals(2L, sink.getRecordedCount());
+        assertEquals(0L, sink.getDroppedCount());
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        final Path file = tempFolder.getRoot().toPath().resolve("removed-versions.jsonl");
+        // every entry exceeds the max file size, so the file is rotated after each entry.
+        final AsyncFileVersionAuditSink sink = new AsyncFileVersionAuditSink(file, 1L, 3);
+
+        for (int i = 0; i < 5; i++) {
+            sink.record(DOCUMENT_PATH, "1." + i, 1000L, VersionAuditSink.ACTION_OLD, false);
+        }
+
+        sink.close();
+
+        assertFalse(Files.exists(file));
+        assertRotatedVersion(file.resolveSibling("removed-versions.jsonl.1"), "1.4");
+        assertRotatedVersion(file.resolveSibling("removed-versions.jsonl.2"), "1.3");
+        // only the max files including the current one are kept.
+        assertFalse(Files.exists(file.resolveSibling("removed-versions.jsonl.3")));
+    }
+
+    @Test
+    public void testCloseWritesQueuedEntries() throws Exception {
+        final Path file = tempFolder.getRoot().toPath().resolve("removed-versions.jsonl");
+        final AsyncFileVersionAuditSink sink = new AsyncFileVersionAuditSink(file, 0L, 1, 100);
+        final int count = 5000;
+
+        // more than the queue capacity, so recording blocks until the writer catches up.
+        for (int i = 0; i < count; i++) {
+            sink.record(DOCUMENT_PATH, "1." + i, 1000L, VersionAuditSink.ACTION_OLD, false);
+        }
+
+        sink.close();
+
+        final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+
+        assertEquals(count, lines.size());
+        assertTrue(lines.get(count - 1).contains("\"version\":\"1." + (count - 1) + "\""));
+        assertEquals(count, sink.getRecordedCount());
+        assertEquals(0L, sink.getDroppedCount());
+    }
+
+    @Test
+    public void testDropsEntriesAfterClose() throws Exception {
+        final Path file = tempFolder.getRoot().toPath().resolve("removed-versions.jsonl");
+        final AsyncFileVersionAuditSink sink = new AsyncFileVersionAuditSink(file, 0L, 1);
+        sink.close();
+
+        sink.record(DOCUMENT_PATH, "1.0", 1000L, VersionAuditSink.ACTION_OLD, false);
+
+        assertEquals(0L, sink.getRecordedCount());
+        assertEquals(1L, sink.getDroppedCount());
+        assertFalse(Files.exists(file));
+    }
+
+    private static void assertRotatedVersion(final Path rotatedFile, final String versionName) throws Exception {
+        final List<String> lines = Files.readAllLines(rotatedFile, StandardCharsets.UTF_8);
+
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\"version\":\"" + versionName + "\""));
+    }
+}
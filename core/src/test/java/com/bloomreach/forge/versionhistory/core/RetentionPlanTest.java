@@ -0,0 +1,229 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
+import javax.jcr.version.VersionIterator;
+
+import org.junit.Test;
+
+import static com.bloomreach.forge.versionhistory.core.RetentionPlan.DAY_IN_MILLIS;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link RetentionPlan}.
+ */
+public class RetentionPlanTest {
+
+    private static final long HOUR_IN_MILLIS = 60L * 60L * 1000L;
+
+    private static final long NOW_MILLIS = 100L * DAY_IN_MILLIS + 12L * HOUR_IN_MILLIS;
+
+    @Test
+    public void testExpiredVersions() throws Exception {
+        final RetentionPlan plan = new RetentionPlan(new String[] { "1.0", "1.1", "1.2", "1.3" },
+                new long[] { daysAgo(20L), daysAgo(10L) - 1L, daysAgo(10L), daysAgo(1L) }, 10L, -1L, NOW_MILLIS);
+
+        assertEquals(4, plan.getCandidateCount());
+        assertEquals(2, plan.getRemovalCount());
+        assertTrue(plan.isExpired(0));
+        assertTrue(plan.isExpired(1));
+        // exactly maxDays old is not expired yet.
+        assertFalse(plan.isRemoval(2));
+        assertFalse(plan.isRemoval(3));
+    }
+
+    @Test
+    public void testSurplusVersions() throws Exception {
+        final RetentionPlan plan = new RetentionPlan(new String[] { "1.0", "1.1", "1.2", "1.3", "1.4" },
+                new long[] { daysAgo(5L), daysAgo(4L), daysAgo(3L), daysAgo(2L), daysAgo(1L) }, -1L, 2L, NOW_MILLIS);
+
+        assertEquals(3, plan.getRemovalCount());
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(plan.isRemoval(i));
+            assertFalse(plan.isExpired(i));
+            assertFalse(plan.isThinned(i));
+        }
+
+        assertFalse(plan.isRemoval(3));
+        assertFalse(plan.isRemoval(4));
+    }
+
+    @Test
+    public void testSurplusCountedAmongNonExpiredVersions() throws Exception {
+        final RetentionPlan plan = new RetentionPlan(new String[] { "1.0", "1.1", "1.2", "1.3", "1.4", "1.5" },
+                new long[] { daysAgo(30L), daysAgo(20L), daysAgo(5L), daysAgo(4L), daysAgo(3L), daysAgo(2L) }, 10L,
+                2L, NOW_MILLIS);
+
+        assertEquals(4, plan.getRemovalCount());
+        assertTrue(plan.isExpired(0));
+        assertTrue(plan.isExpired(1));
+        assertTrue(plan.isRemoval(2) && !plan.isExpired(2));
+        assertTrue(plan.isRemoval(3) && !plan.isExpired(3));
+        assertFalse(plan.isRemoval(4));
+        assertFalse(plan.isRemoval(5));
+    }
+
+    @Test
+    public void testNoRules() throws Exception {
+        final RetentionPlan plan = new RetentionPlan(new String[] { "1.0", "1.1" },
+                new long[] { daysAgo(1000L), daysAgo(1L) }, -1L, -1L, NOW_MILLIS);
+
+        assertEquals(0, plan.getRemovalCount());
+        assertFalse(plan.isRemoval(0));
+        assertFalse(plan.isRemoval(1));
+    }
+
+    @Test
+    public void testZeroMaxRevisionsRemovesAll() throws Exception {
+        final RetentionPlan plan = new RetentionPlan(new String[] { "1.0", "1.1" },
+                new long[] { daysAgo(2L), daysAgo(1L) }, -1L, 0L, NOW_MILLIS);
+
+        assertEquals(2, plan.getRemovalCount());
+    }
+
+    @Test
+    public void testThinnedVersions() throws Exception {
+        final ThinningSchedule schedule = ThinningSchedule.parse("1d:all, *:1d");
+        // the first two in the same day bucket, of which only the newer one is kept by the schedule.
+        final RetentionPlan plan = new RetentionPlan(new String[] { "1.0", "1.1", "1.2", "1.3", "1.4" },
+                new long[] { 10L * DAY_IN_MILLIS + HOUR_IN_MILLIS, 10L * DAY_IN_MILLIS + 5L * HOUR_IN_MILLIS,
+                        50L * DAY_IN_MILLIS + 2L * HOUR_IN_MILLIS, NOW_MILLIS - 2L * HOUR_IN_MILLIS,
+                        NOW_MILLIS - HOUR_IN_MILLIS },
+                -1L, 2L, schedule, NOW_MILLIS);
+
+        assertEquals(3, plan.getRemovalCount());
+        assertTrue(plan.isThinned(0));
+        // the thinned versions are not counted in maxRevisions, so the oldest of the rest are surplus.
+        assertTrue(plan.isRemoval(1) && !plan.isThinned(1) && !plan.isExpired(1));
+        assertTrue(plan.isRemoval(2) && !plan.isThinned(2) && !plan.isExpired(2));
+        assertFalse(plan.isRemoval(3));
+        assertFalse(plan.isRemoval(4));
+    }
+
+    @Test
+    public void testMismatchingLengths() throws Exception {
+        try {
+            new RetentionPlan(new String[] { "1.0" }, new long[0], -1L, -1L, NOW_MILLIS);
+            fail("Mismatching lengths must be rejected.");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCreateSkipsRootAndLabeledVersions() throws Exception {
+        final Version rootVersion = createVersion("jcr:rootVersion", daysAgo(30L));
+        final Version version10 = createVersion("1.0", daysAgo(20L));
+        final Version version11 = createVersion("1.1", daysAgo(15L));
+        final Version version12 = createVersion("1.2", daysAgo(1L));
+
+        final VersionHistory versionHistory = createMock(VersionHistory.class);
+        expect(versionHistory.getVersionLabels()).andReturn(new String[] { "live" }).anyTimes();
+        expect(versionHistory.getVersionByLabel("live")).andReturn(version10).anyTimes();
+        expect(versionHistory.getAllVersions()).andReturn(
+                new ListVersionIterator(Arrays.asList(rootVersion, version10, version11, version12)));
+        replay(versionHistory);
+
+        final RetentionPlan plan = RetentionPlan.create(versionHistory, 10L, -1L, NOW_MILLIS);
+
+        assertEquals(2, plan.getCandidateCount());
+        assertEquals("1.1", plan.getVersionName(0));
+        assertEquals(version11.getCreated().getTimeInMillis(), plan.getCreatedMillis(0));
+        assertEquals("1.2", plan.getVersionName(1));
+        // the labeled version is older, but never removed.
+        assertEquals(1, plan.getRemovalCount());
+        assertTrue(plan.isExpired(0));
+        assertFalse(plan.isRemoval(1));
+    }
+
+    private static long daysAgo(final long days) {
+        return NOW_MILLIS - days * DAY_IN_MILLIS;
+    }
+
+    private static Version createVersion(final String name, final long createdMillis) throws Exception {
+        final Calendar created = Calendar.getInstance();
+        created.setTimeInMillis(createdMillis);
+
+        final Version version = createMock(Version.class);
+        expect(version.getName()).andReturn(name).anyTimes();
+        expect(version.getCreated()).andReturn(created).anyTimes();
+        replay(version);
+        return version;
+    }
+
+    /**
+     * {@link VersionIterator} over a list of versions.
+     */
+    private static class ListVersionIterator implements VersionIterator {
+
+        private final List<Version> versions;
+        private final Iterator<Version> iterator;
+        private long position;
+
+        private ListVersionIterator(final List<Version> versions) {
+            this.versions = new ArrayList<>(versions);
+            this.iterator = this.versions.iterator();
+        }
+
+        @Override
+        public Version nextVersion() {
+            ++position;
+            return iterator.next();
+        }
+
+        @Override
+        public void skip(final long skipNum) {
+            for (long i = 0; i < skipNum; i++) {
+                nextVersion();
+            }
+        }
+
+        @Override
+        public long getSize() {
+            return versions.size();
+        }
+
+        @Override
+        public long getPosition() {
+            return position;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Object next() {
+            return nextVersion();
+        }
+    }
+}
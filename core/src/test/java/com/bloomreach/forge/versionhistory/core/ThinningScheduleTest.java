@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core;
+
+import org.junit.Test;
+
+import static com.bloomreach.forge.versionhistory.core.RetentionPlan.DAY_IN_MILLIS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link ThinningSchedule}.
+ */
+public class ThinningScheduleTest {
+
+    private static final long HOUR_IN_MILLIS = 60L * 60L * 1000L;
+
+    private static final long NOW_MILLIS = 10L * DAY_IN_MILLIS + 12L * HOUR_IN_MILLIS;
+
+    @Test
+    public void testParse() throws Exception {
+        final ThinningSchedule schedule = ThinningSchedule.parse(" 7d:all, 30d:1d, 1y:1w, *:1m ");
+
+        assertEquals(4, schedule.getTierCount());
+        assertEquals(0L, schedule.getIntervalMillis(0));
+        assertEquals(DAY_IN_MILLIS, schedule.getIntervalMillis(1));
+        assertEquals(7L * DAY_IN_MILLIS, schedule.getIntervalMillis(2));
+        assertEquals(30L * DAY_IN_MILLIS, schedule.getIntervalMillis(3));
+        assertEquals("7d:all, 30d:1d, 1y:1w, *:1m", schedule.toString());
+    }
+
+    @Test
+    public void testTierBoundaries() throws Exception {
+        final ThinningSchedule schedule = ThinningSchedule.parse("7d:all, 30d:1d, 1y:1w, *:1m");
+
+        assertEquals(0, schedule.getTierIndex(0L));
+        // the max age is inclusive.
+        assertEquals(0, schedule.getTierIndex(7L * DAY_IN_MILLIS));
+        assertEquals(1, schedule.getTierIndex(7L * DAY_IN_MILLIS + 1L));
+        assertEquals(1, schedule.getTierIndex(30L * DAY_IN_MILLIS));
+        assertEquals(2, schedule.getTierIndex(30L * DAY_IN_MILLIS + 1L));
+        assertEquals(2, schedule.getTierIndex(365L * DAY_IN_MILLIS));
+        assertEquals(3, schedule.getTierIndex(365L * DAY_IN_MILLIS + 1L));
+        assertEquals(3, schedule.getTierIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testNoTierBeyondLastMaxAge() throws Exception {
+        final ThinningSchedule schedule = ThinningSchedule.parse("1h:all, 7d:1d");
+
+        assertEquals(1, schedule.getTierIndex(7L * DAY_IN_MILLIS));
+        assertEquals(-1, schedule.getTierIndex(7L * DAY_IN_MILLIS + 1L));
+        assertArrayEquals(new boolean[] { false, true },
+                schedule.computeKeeps(new long[] { NOW_MILLIS - 8L * DAY_IN_MILLIS, NOW_MILLIS }, NOW_MILLIS));
+    }
+
+    @Test
+    public void testKeepsNewestVersionPerBucket() throws Exception {
+        final ThinningSchedule schedule = ThinningSchedule.parse("1d:1h, *:1d");
+        final long[] createdMillis = {
+                // one day bucket, more than a day ago.
+                5L * DAY_IN_MILLIS + HOUR_IN_MILLIS,
+                5L * DAY_IN_MILLIS + 2L * HOUR_IN_MILLIS,
+                // one hour bucket, within a day.
+                10L * DAY_IN_MILLIS + 11L * HOUR_IN_MILLIS + 10L * 60L * 1000L,
+                10L * DAY_IN_MILLIS + 11L * HOUR_IN_MILLIS + 20L * 60L * 1000L };
+
+        assertArrayEquals(new boolean[] { false, true, false, true },
+                schedule.computeKeeps(createdMillis, NOW_MILLIS));
+    }
+
+    @Test
+    public void testBucketsSplitAtTierBoundary() throws Exception {
+        final ThinningSchedule schedule = ThinningSchedule.parse("1d:all, *:1d");
+        // all in the same day bucket, the newest at the max age of the first tier, and the others in the second.
+        final long[] createdMillis = { NOW_MILLIS - DAY_IN_MILLIS - 11L * HOUR_IN_MILLIS,
+                NOW_MILLIS - DAY_IN_MILLIS - 1L, NOW_MILLIS - DAY_IN_MILLIS };
+
+        assertArrayEquals(new boolean[] { false, true, true }, schedule.computeKeeps(createdMillis, NOW_MILLIS));
+    }
+
+    @Test
+    public void testInvalidSchedules() throws Exception {
+        assertInvalid(null);
+        assertInvalid(" ");
+        assertInvalid("7d");
+        assertInvalid("7d:all:1d");
+        assertInvalid("*:1d, 1y:1w");
+        assertInvalid("30d:1d, 7d:all");
+        assertInvalid("7d:all, 7d:1d");
+        assertInvalid("0d:all");
+        assertInvalid("-1d:all");
+        assertInvalid("7x:all");
+        assertInvalid("d:all");
+        assertInvalid("7d:some");
+    }
+
+    private static void assertInvalid(final String expression) {
+        try {
+            ThinningSchedule.parse(expression);
+            fail("Invalid thinning schedule must be rejected: " + expression);
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.time.LocalTime;
+import java.util.Calendar;
+import java.util.Iterator;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hippoecm.repository.util.JcrUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloomreach.forge.versionhistory.core.RemovedVersionTracker;
+
+/**
+ * Coordinator of the DataStore garbage collection, which runs the garbage collection during the allowed window
+ * once the versions removed since the last run, or their estimated binary bytes, exceed a threshold, so that
+ * the binaries referenced only by the removed versions are actually deleted from the DataStore.
+ * <P>
+ * Each cluster node accumulates the versions and the estimated binary bytes removed by itself in its own child node
+ * under the state node, and the totals at the last run are kept in the state node, so that the versions removed by
+ * all the cluster nodes since the last run are counted, without concurrent writes on the same node. If a cluster
+ * coordinator is set, only the cluster node owning the garbage collection runs it. Otherwise, every instance runs it,
+ * so set a cluster coordinator if the repository is clustered.
+ * <P>
+ * The duration, the number of the deleted DataStore records and the reclaimed bytes of the last run, if measured,
+ * are recorded in the state node.
+ * <P>
+ * <EM>Note:</EM> This is not thread-safe. Run it in a single thread with a dedicated session, e.g, in a background
+ * thread started by {@link DocumentHistoryCleanerDaemonModule}.
+ */
+public class DataStoreGarbageCollectionCoordinator implements DocumentHistoryCleanerJob {
+
+    private static Logger log = LoggerFactory.getLogger(DataStoreGarbageCollectionCoordinator.class);
+
+    /**
+     * The subject identifier by which the owner cluster node of the garbage collection is decided.
+     */
+    static final String OWNER_SUBJECT_ID = "datastore-gc";
+
+    private static final String VERSION_COUNT_PROP_NAME = "versionCount";
+
+    private static final String BINARY_BYTES_PROP_NAME = "binaryBytes";
+
+    private static final String LAST_RUN_VERSION_COUNT_PROP_NAME = "lastRunVersionCount";
+
+    private static final String LAST_RUN_BINARY_BYTES_PROP_NAME = "lastRunBinaryBytes";
+
+    private static final String LAST_RUN_STARTED_PROP_NAME = "lastRunStarted";
+
+    private static final String LAST_RUN_DURATION_PROP_NAME = "lastRunDuration";
+
+    private static final String LAST_RUN_DELETED_RECORDS_PROP_NAME = "lastRunDeletedRecords";
+
+    private static final String LAST_RUN_RECLAIMED_BYTES_PROP_NAME = "lastRunReclaimedBytes";
+
+    private static final String RUN_COUNT_PROP_NAME = "runCount";
+
+    /**
+     * Runner of a DataStore garbage collection.
+     */
+    public interface Runner {
+
+        /**
+         * Runs a DataStore garbage collection.
+         * @param session the session of the coordinator
+         * @return the result
+         * @throws Exception if the garbage collection fails
+         */
+        Result run(Session session) throws Exception;
+    }
+
+    /**
+     * Result of a DataStore garbage collection.
+     */
+    public static final class Result {
+
+        private final long deletedRecordCount;
+        private final long reclaimedBytes;
+
+        /**
+         * @param deletedRecordCount the number of the deleted DataStore records
+         * @param reclaimedBytes the reclaimed bytes, or -1 if unknown
+         */
+        public Result(final long deletedRecordCount, final long reclaimedBytes) {
+            this.deletedRecordCount = deletedRecordCount;
+            this.reclaimedBytes = reclaimedBytes;
+        }
+
+        public long getDeletedRecordCount() {
+            return deletedRecordCount;
+        }
+
+        public long getReclaimedBytes() {
+            return reclaimedBytes;
+        }
+    }
+
+    private final Session session;
+    private final String statePath;
+    private final RemovedVersionTracker tracker;
+    private final Runner runner;
+
+    private DocumentHistoryClusterCoordinator clusterCoordinator;
+    private long versionThreshold;
+    private long binaryBytesThreshold;
+    private LocalTime windowStart = LocalTime.MIDNIGHT;
+    private LocalTime windowEnd = LocalTime.MIDNIGHT;
+    private long checkIntervalMillis = 60000L;
+
+    /**
+     * The versions and the estimated binary bytes removed by this cluster node before this coordinator started.
+     */
+    private long baseVersionCount;
+    private long baseBinaryBytes;
+    private boolean baseLoaded;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param session the session dedicated to this coordinator
+     * @param statePath the path of the state node
+     * @param tracker the tracker of the versions removed by this cluster node
+     * @param runner the runner of a garbage collection, or null to run the Jackrabbit DataStore garbage collector
+     *        without measuring the reclaimed bytes
+     */
+    public DataStoreGarbageCollectionCoordinator(final Session session, final String statePath,
+            final RemovedVersionTracker tracker, final Runner runner) {
+        if (session == null) {
+            throw new IllegalArgumentException("session must be not null.");
+        }
+
+        if (!StringUtils.startsWith(statePath, "/") || "/".equals(statePath)) {
+            throw new IllegalArgumentException("state path must be an absolute non-root path.");
+        }
+
+        if (tracker == null) {
+            throw new IllegalArgumentException("tracker must be not null.");
+        }
+
+        this.session = session;
+        this.statePath = statePath;
+        this.tracker = tracker;
+        this.runner = (runner != null) ? runner : new JackrabbitRunner(false);
+    }
+
+    public DocumentHistoryClusterCoordinator getClusterCoordinator() {
+        return clusterCoordinator;
+    }
+
+    /**
+     * Sets the cluster coordinator, by which only the owner cluster node runs the garbage collection.
+     * @param clusterCoordinator cluster coordinator, or null if not clustered
+     */
+    public void setClusterCoordinator(final DocumentHistoryClusterCoordinator clusterCoordinator) {
+        this.clusterCoordinator = clusterCoordinator;
+    }
+
+    public long getVersionThreshold() {
+        return versionThreshold;
+    }
+
+    /**
+     * Sets the number of the versions removed since the last run, over which to run the garbage collection.
+     * @param versionThreshold version threshold, or a non-positive number to ignore it
+     */
+    public void setVersionThreshold(final long versionThreshold) {
+        this.versionThreshold = versionThreshold;
+    }
+
+    public long getBinaryBytesThreshold() {
+        return binaryBytesThreshold;
+    }
+
+    /**
+     * Sets the estimated binary bytes removed since the last run, over which to run the garbage collection.
+     * @param binaryBytesThreshold binary bytes threshold, or a non-positive number to ignore it
+     */
+    public void setBinaryBytesThreshold(final long binaryBytesThreshold) {
+        this.binaryBytesThreshold = binaryBytesThreshold;
+    }
+
+    public LocalTime getWindowStart() {
+        return windowStart;
+    }
+
+    public LocalTime getWindowEnd() {
+        return windowEnd;
+    }
+
+    /**
+     * Sets the window of the local time of day in which the garbage collection may start. If the end is before
+     * the start, the window spans midnight. If both are the same, the garbage collection may start at any time.
+     * @param windowStart window start time
+     * @param windowEnd window end time
+     */
+    public void setWindow(final LocalTime windowStart, final LocalTime windowEnd) {
+        this.windowStart = (windowStart != null) ? windowStart : LocalTime.MIDNIGHT;
+        this.windowEnd = (windowEnd != null) ? windowEnd : this.windowStart;
+    }
+
+    public long getCheckIntervalMillis() {
+        return checkIntervalMillis;
+    }
+
+    /**
+     * Sets the interval at which the removed versions are saved and checked against the thresholds.
+     * @param checkIntervalMillis check interval in milliseconds
+     */
+    public void setCheckIntervalMillis(final long checkIntervalMillis) {
+        this.checkIntervalMillis = Math.max(1000L, checkIntervalMillis);
+    }
+
+    /**
+     * Requests the running coordinator to stop after the current check. A running garbage collection is not
+     * interrupted.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Saves the versions removed by this cluster node and checks the thresholds at each check interval, running
+     * the garbage collection if any threshold is exceeded during the window, until stopped.
+     * @return false as it runs until stopped
+     * @throws RepositoryException if repository exception occurs
+     */
+    @Override
+    public boolean run() throws RepositoryException {
+        while (!stopped) {
+            try {
+                check();
+            } catch (RepositoryException e) {
+                log.error("Failed to check the DataStore garbage collection thresholds.", e);
+                session.refresh(false);
+            }
+
+            synchronized (this) {
+                if (!stopped) {
+                    try {
+                        wait(checkIntervalMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+
+        saveRemovedVersions();
+        return false;
+    }
+
+    private void check() throws RepositoryException {
+        saveRemovedVersions();
+
+        if (clusterCoordinator != null && !clusterCoordinator.isOwner(OWNER_SUBJECT_ID)) {
+            return;
+        }
+
+        if (!isInWindow(LocalTime.now())) {
+            return;
+        }
+
+        final Node stateNode = session.getNode(statePath);
+        long versionCount = 0L;
+        long binaryBytes = 0L;
+
+        for (NodeIterator it = stateNode.getNodes(); it.hasNext(); ) {
+            final Node memberNode = it.nextNode();
+            versionCount += JcrUtils.getLongProperty(memberNode, VERSION_COUNT_PROP_NAME, 0L);
+            binaryBytes += JcrUtils.getLongProperty(memberNode, BINARY_BYTES_PROP_NAME, 0L);
+        }
+
+        final long pendingVersionCount = versionCount
+                - JcrUtils.getLongProperty(stateNode, LAST_RUN_VERSION_COUNT_PROP_NAME, 0L);
+        final long pendingBinaryBytes = binaryBytes
+                - JcrUtils.getLongProperty(stateNode, LAST_RUN_BINARY_BYTES_PROP_NAME, 0L);
+
+        if (!isThresholdExceeded(pendingVersionCount, pendingBinaryBytes)) {
+            return;
+        }
+
+        log.info("Running DataStore garbage collection as {} versions with about {} binary bytes were removed "
+                + "since the last run.", pendingVersionCount, pendingBinaryBytes);
+
+        final Calendar started = Calendar.getInstance();
+        final long startMillis = System.currentTimeMillis();
+        final Result result;
+
+        try {
+            result = runner.run(session);
+        } catch (Exception e) {
+            log.error("Failed to run DataStore garbage collection.", e);
+            session.refresh(false);
+            return;
+        }
+
+        final long durationMillis = System.currentTimeMillis() - startMillis;
+
+        stateNode.setProperty(LAST_RUN_VERSION_COUNT_PROP_NAME, versionCount);
+        stateNode.setProperty(LAST_RUN_BINARY_BYTES_PROP_NAME, binaryBytes);
+        stateNode.setProperty(LAST_RUN_STARTED_PROP_NAME, started);
+        stateNode.setProperty(LAST_RUN_DURATION_PROP_NAME, durationMillis);
+        stateNode.setProperty(LAST_RUN_DELETED_RECORDS_PROP_NAME, result.getDeletedRecordCount());
+        stateNode.setProperty(LAST_RUN_RECLAIMED_BYTES_PROP_NAME, result.getReclaimedBytes());
+        stateNode.setProperty(RUN_COUNT_PROP_NAME, JcrUtils.getLongProperty(stateNode, RUN_COUNT_PROP_NAME, 0L) + 1L);
+        session.save();
+
+        log.info("Completed DataStore garbage collection in {}ms: {} records deleted, {} bytes reclaimed.",
+                durationMillis, result.getDeletedRecordCount(),
+                (result.getReclaimedBytes() >= 0L) ? result.getReclaimedBytes() : "unknown");
+    }
+
+    boolean isInWindow(final LocalTime time) {
+        if (windowStart.equals(windowEnd)) {
+            return true;
+        }
+
+        if (windowStart.isBefore(windowEnd)) {
+            return !time.isBefore(windowStart) && time.isBefore(windowEnd);
+        }
+
+        return !time.isBefore(windowStart) || time.isBefore(windowEnd);
+    }
+
+    boolean isThresholdExceeded(final long pendingVersionCount, final long pendingBinaryBytes) {
+        if (pendingVersionCount <= 0L) {
+            return false;
+        }
+
+        return (versionThreshold > 0L && pendingVersionCount >= versionThreshold)
+                || (binaryBytesThreshold > 0L && pendingBinaryBytes >= binaryBytesThreshold);
+    }
+
+    /**
+     * Saves the totals of the versions removed by this cluster node to its member node if changed.
+     */
+    private void saveRemovedVersions() throws RepositoryException {
+        final Node memberNode = getOrCreateMemberNode();
+
+        if (!baseLoaded) {
+            baseVersionCount = JcrUtils.getLongProperty(memberNode, VERSION_COUNT_PROP_NAME, 0L);
+            baseBinaryBytes = JcrUtils.getLongProperty(memberNode, BINARY_BYTES_PROP_NAME, 0L);
+            baseLoaded = true;
+        }
+
+        final long versionCount = baseVersionCount + tracker.getVersionCount();
+        final long binaryBytes = baseBinaryBytes + tracker.getEstimatedBinaryBytes();
+
+        if (versionCount != JcrUtils.getLongProperty(memberNode, VERSION_COUNT_PROP_NAME, 0L)
+                || binaryBytes != JcrUtils.getLongProperty(memberNode, BINARY_BYTES_PROP_NAME, 0L)) {
+            memberNode.setProperty(VERSION_COUNT_PROP_NAME, versionCount);
+            memberNode.setProperty(BINARY_BYTES_PROP_NAME, binaryBytes);
+            session.save();
+        }
+    }
+
+    private Node getOrCreateMemberNode() throws RepositoryException {
+        final Node node = DocumentHistoryCleanerUtils.getOrCreateNode(session, statePath);
+        // not a shared member name without a cluster coordinator, not to overwrite the totals of the other nodes.
+        final String memberName = (clusterCoordinator != null) ? clusterCoordinator.getClusterNodeId()
+                : DocumentHistoryClusterCoordinator.toNodeName(
+                        DocumentHistoryClusterCoordinator.getDefaultClusterNodeId());
+        return node.hasNode(memberName) ? node.getNode(memberName) : node.addNode(memberName, "nt:unstructured");
+    }
+
+    /**
+     * Runner of the Jackrabbit DataStore garbage collector, invoked reflectively so as not to depend on the
+     * repository implementation. If measuring is enabled, the bytes of the DataStore records not marked as in use
+     * are summed before sweeping them, which takes another pass over the DataStore records, which may be as costly
+     * as the sweep itself on a database or a cloud storage DataStore.
+     */
+    static class JackrabbitRunner implements Runner {
+
+        private static final String REPOSITORY_DECORATOR_CLASS_NAME =
+                "org.hippoecm.repository.decorating.RepositoryDecorator";
+
+        private final boolean measureReclaimedBytes;
+
+        /**
+         * @param measureReclaimedBytes whether or not to sum the bytes of the records to be deleted before sweeping
+         */
+        JackrabbitRunner(final boolean measureReclaimedBytes) {
+            this.measureReclaimedBytes = measureReclaimedBytes;
+        }
+
+        @Override
+        public Result run(final Session session) throws Exception {
+            final Object repository = unwrap(session.getRepository());
+            final Object collector = invoke(repository, "createDataStoreGarbageCollector");
+
+            if (collector == null) {
+                throw new IllegalStateException("The repository has no DataStore.");
+            }
+
+            try {
+                final long markStartMillis = System.currentTimeMillis();
+                invoke(collector, "mark");
+                final long reclaimedBytes = measureReclaimedBytes
+                        ? sumBytesOlderThan(invoke(collector, "getDataStore"), markStartMillis) : -1L;
+                final Object deleted = invoke(collector, "sweep");
+                return new Result((deleted instanceof Number) ? ((Number) deleted).longValue() : -1L,
+                        reclaimedBytes);
+            } finally {
+                invoke(collector, "close");
+            }
+        }
+
+        private static Object unwrap(final Repository repository) {
+            try {
+                final Class<?> decoratorClass = Class.forName(REPOSITORY_DECORATOR_CLASS_NAME);
+                return decoratorClass.getMethod("unwrap", Repository.class).invoke(null, repository);
+            } catch (ReflectiveOperationException e) {
+                log.debug("Cannot unwrap the repository. Using it as is: {}", e.toString());
+                return repository;
+            }
+        }
+
+        /**
+         * Sums the lengths of the records last modified before the time, which are to be deleted by the sweep,
+         * or returns -1 if the DataStore cannot be inspected. The methods are looked up once, by the classes of
+         * the first identifier and the first record.
+         */
+        private static long sumBytesOlderThan(final Object dataStore, final long timeMillis) {
+            if (dataStore == null) {
+                return -1L;
+            }
+
+            try {
+                long bytes = 0L;
+                final Iterator<?> ids = (Iterator<?>) invoke(dataStore, "getAllIdentifiers");
+                Method getRecord = null;
+                Method getLastModified = null;
+                Method getLength = null;
+
+                while (ids.hasNext()) {
+                    final Object id = ids.next();
+
+                    if (getRecord == null) {
+                        getRecord = dataStore.getClass().getMethod("getRecordIfStored", id.getClass());
+                    }
+
+                    final Object record = getRecord.invoke(dataStore, id);
+
+                    if (record == null) {
+                        continue;
+                    }
+
+                    if (getLastModified == null) {
+                        getLastModified = record.getClass().getMethod("getLastModified");
+                        getLength = record.getClass().getMethod("getLength");
+                    }
+
+                    if (((Number) getLastModified.invoke(record)).longValue() < timeMillis) {
+                        bytes += ((Number) getLength.invoke(record)).longValue();
+                    }
+                }
+
+                return bytes;
+            } catch (Exception e) {
+                log.warn("Cannot measure the DataStore records to be deleted: {}", e.toString());
+                return -1L;
+            }
+        }
+
+        private static Object invoke(final Object target, final String methodName) throws Exception {
+            try {
+                return target.getClass().getMethod(methodName).invoke(target);
+            } catch (InvocationTargetException e) {
+                final Throwable cause = e.getCause();
+                throw (cause instanceof Exception) ? (Exception) cause : e;
+            }
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
+import javax.jcr.version.VersionManager;
+
+import org.hippoecm.repository.api.HippoNodeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloomreach.forge.versionhistory.core.AdaptiveRemovalThrottle;
+import com.bloomreach.forge.versionhistory.core.DocumentHistoryTruncaterTask;
+import com.bloomreach.forge.versionhistory.core.OrphanedVersionHistoryTruncaterTask;
+import com.bloomreach.forge.versionhistory.core.RemovedVersionTracker;
+import com.bloomreach.forge.versionhistory.core.RetentionPlan;
+import com.bloomreach.forge.versionhistory.core.RetentionReport;
+import com.bloomreach.forge.versionhistory.core.VersionAuditSink;
+
+/**
+ * Attic sweeper which truncates the version histories of the deleted documents in the attic
+ * (<code>/content/attic</code> by default) which were deleted longer ago than the min days, if the
+ * <code>truncate.ondelete</code> option is turned on for the document type.
+ * <P>
+ * The deleted variant nodes are queried page by page in the order of the identifiers, each page starting after
+ * the last identifier of the previous page, so at most a page of the result is held in memory at a time and
+ * removing the documents of a page doesn't shift the next page. The deletion time of a document is the created
+ * time of the base version of the deleted variant node, which is checked in when the document is deleted.
+ * <P>
+ * Unlike {@link DocumentHistoryTruncaterTask}, which removes a handle and saves the session per document,
+ * this removes the handles of a batch of documents with one save, and then truncates the version histories,
+ * which are orphaned by then, by {@link OrphanedVersionHistoryTruncaterTask}. In dry-run mode, nothing is removed
+ * and each document is processed by {@link DocumentHistoryTruncaterTask} in dry-run mode.
+ * <P>
+ * As the truncated documents are removed from the attic, a run doesn't need a checkpoint: an interrupted run
+ * starts over on the next run, finding only the documents not truncated yet.
+ * <P>
+ * <EM>Note:</EM> This is not thread-safe. Run it in a single thread with a dedicated session, e.g, in a groovy
+ * updater script or in a background thread started by {@link DocumentHistoryCleanerDaemonModule}.
+ */
+public class DocumentHistoryAtticSweeper implements DocumentHistoryCleanerJob {
+
+    private static Logger defaultLogger = LoggerFactory.getLogger(DocumentHistoryAtticSweeper.class);
+
+    private static final int DEFAULT_MIN_DAYS = 30;
+
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private static final int DEFAULT_BATCH_SIZE = 50;
+
+    private final Session session;
+    private final Supplier<DocumentHistoryCleanerPolicies> policies;
+
+    private String atticPath = "/content/attic";
+    private int minDays = DEFAULT_MIN_DAYS;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private Logger logger;
+    private boolean dryRun;
+    private RetentionReport report;
+    private AdaptiveRemovalThrottle throttle;
+    private VersionAuditSink auditSink;
+    private RemovedVersionTracker removedVersionTracker;
+
+    private volatile boolean stopped;
+
+    private final List<AtticDocument> batch = new ArrayList<>();
+    private long startMillis;
+    private long visitedCount;
+    private long handleCount;
+    private long removedVersionCount;
+
+    /**
+     * @param session the session dedicated to this sweeper
+     * @param policies supplier of the current policies
+     */
+    public DocumentHistoryAtticSweeper(final Session session,
+            final Supplier<DocumentHistoryCleanerPolicies> policies) {
+        if (session == null) {
+            throw new IllegalArgumentException("session must be not null.");
+        }
+
+        this.session = session;
+        this.policies = policies;
+    }
+
+    public String getAtticPath() {
+        return atticPath;
+    }
+
+    /**
+     * Sets the absolute path of the attic folder to sweep.
+     * @param atticPath the absolute path of the attic folder
+     */
+    public void setAtticPath(final String atticPath) {
+        if (!StringUtils.startsWith(atticPath, "/")) {
+            throw new IllegalArgumentException("attic path must be an absolute path.");
+        }
+
+        this.atticPath = atticPath;
+    }
+
+    public int getMinDays() {
+        return minDays;
+    }
+
+    /**
+     * Sets the min days since the deletion of a document to truncate its version history.
+     * @param minDays the min days since the deletion of a document to truncate its version history
+     */
+    public void setMinDays(final int minDays) {
+        this.minDays = minDays;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the max number of the deleted documents to query at a time.
+     * @param pageSize the max number of the deleted documents to query at a time
+     */
+    public void setPageSize(final int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of the handles to remove with one save before truncating their version histories.
+     * @param batchSize the number of the handles to remove with one save
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * Sets whether or not to compute the versions to remove without removing them or the handles.
+     * @param dryRun whether or not to compute the versions to remove without removing them or the handles
+     */
+    public void setDryRun(final boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public RetentionReport getReport() {
+        return report;
+    }
+
+    /**
+     * Sets the report to which the footprints of the removed, or to be removed in dry-run mode, versions are added.
+     * @param report report
+     */
+    public void setReport(final RetentionReport report) {
+        this.report = report;
+    }
+
+    public AdaptiveRemovalThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Sets the throttle to limit the rate of version removals by the repository write latency.
+     * @param throttle throttle
+     */
+    public void setThrottle(final AdaptiveRemovalThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    public VersionAuditSink getAuditSink() {
+        return auditSink;
+    }
+
+    /**
+     * Sets the audit sink to which the versions removed, or to be removed in dry-run mode, are recorded.
+     * @param auditSink audit sink
+     */
+    public void setAuditSink(final VersionAuditSink auditSink) {
+        this.auditSink = auditSink;
+    }
+
+    public RemovedVersionTracker getRemovedVersionTracker() {
+        return removedVersionTracker;
+    }
+
+    /**
+     * Sets the tracker of the removed versions. The tracker is not applied in dry-run mode.
+     * @param removedVersionTracker removed version tracker
+     */
+    public void setRemovedVersionTracker(final RemovedVersionTracker removedVersionTracker) {
+        this.removedVersionTracker = removedVersionTracker;
+    }
+
+    public Logger getLogger() {
+        return logger != null ? logger : defaultLogger;
+    }
+
+    public void setLogger(final Logger logger) {
+        this.logger = logger;
+    }
+
+    public long getHandleCount() {
+        return handleCount;
+    }
+
+    public long getRemovedVersionCount() {
+        return removedVersionCount;
+    }
+
+    /**
+     * Requests the running sweeper to stop after the current batch.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Runs the sweeper over all the deleted documents in the attic.
+     * @return true if all the deleted documents were visited, false if stopped before completion
+     * @throws RepositoryException if repository exception occurs
+     */
+    @Override
+    public boolean run() throws RepositoryException {
+        // this also rejects a malformed path before it's used in the query.
+        if (!session.nodeExists(atticPath)) {
+            getLogger().warn("Attic path doesn't exist: {}", atticPath);
+            return true;
+        }
+
+        batch.clear();
+        startMillis = System.currentTimeMillis();
+        visitedCount = 0L;
+        handleCount = 0L;
+        removedVersionCount = 0L;
+
+        getLogger().info("Starting attic sweep under {} for the documents deleted more than {} days ago.", atticPath,
+                minDays);
+
+        final long maxDeletedMillis = startMillis - Math.max(0, minDays) * RetentionPlan.DAY_IN_MILLIS;
+        final QueryManager queryManager = session.getWorkspace().getQueryManager();
+        // the path is a string literal in the query, in which a single quote is escaped by doubling it.
+        final String escapedAtticPath = StringUtils.replace(atticPath, "'", "''");
+        final Query query = queryManager.createQuery("SELECT * FROM [" + HippoNodeType.NT_DELETED + "] AS d "
+                + "WHERE ISDESCENDANTNODE(d, '" + escapedAtticPath + "') AND d.[jcr:uuid] > $lastId "
+                + "ORDER BY d.[jcr:uuid]", Query.JCR_SQL2);
+        query.setLimit(Math.max(1, pageSize));
+        String lastId = "";
+
+        while (!stopped) {
+            query.bindValue("lastId", session.getValueFactory().createValue(lastId));
+            final List<String> pageIds = new ArrayList<>();
+
+            for (NodeIterator nodeIt = query.execute().getNodes(); nodeIt.hasNext();) {
+                final Node node = nodeIt.nextNode();
+
+                if (node != null) {
+                    pageIds.add(node.getIdentifier());
+                }
+            }
+
+            if (pageIds.isEmpty()) {
+                break;
+            }
+
+            for (String id : pageIds) {
+                if (stopped) {
+                    break;
+                }
+
+                visitDeletedNode(id, maxDeletedMillis);
+            }
+
+            lastId = pageIds.get(pageIds.size() - 1);
+
+            if (pageIds.size() < Math.max(1, pageSize)) {
+                break;
+            }
+        }
+
+        flushBatch();
+
+        final long elapsedMillis = System.currentTimeMillis() - startMillis;
+        getLogger().info("{} attic sweep under {}: {} documents visited, {} handles and {} versions {} in {}ms "
+                + "({} handles/s, {} versions/s).", stopped ? "Stopped" : "Completed", atticPath, visitedCount,
+                handleCount, removedVersionCount, dryRun ? "to remove" : "removed", elapsedMillis,
+                perSecond(handleCount, elapsedMillis), perSecond(removedVersionCount, elapsedMillis));
+        return !stopped;
+    }
+
+    private void visitDeletedNode(final String id, final long maxDeletedMillis) throws RepositoryException {
+        ++visitedCount;
+
+        try {
+            final Node deletedNode = session.getNodeByIdentifier(id);
+
+            if (!deletedNode.isNodeType("mix:versionable")) {
+                return;
+            }
+
+            final String documentPath = deletedNode.getPath();
+            final VersionManager versionManager = session.getWorkspace().getVersionManager();
+            final Version baseVersion = versionManager.getBaseVersion(documentPath);
+            final Calendar deleted = baseVersion.getCreated();
+
+            if (deleted != null && deleted.getTimeInMillis() > maxDeletedMillis) {
+                return;
+            }
+
+            final String documentType = deletedNode.getPrimaryNodeType().getName();
+
+            if (!policies.get().getConfiguration(documentType, documentPath).isTruncateOnDelete()) {
+                return;
+            }
+
+            if (dryRun) {
+                final DocumentHistoryTruncaterTask task = new DocumentHistoryTruncaterTask(session, deletedNode);
+                task.setLogger(getLogger());
+                task.setDryRun(true);
+                task.setReport(report);
+                task.setAuditSink(auditSink);
+                task.setRemovedVersionTracker(removedVersionTracker);
+                task.execute();
+                ++handleCount;
+                removedVersionCount += task.getRemovedVersionCount();
+                return;
+            }
+
+            batch.add(new AtticDocument(documentPath, deletedNode.getParent().getPath(),
+                    versionManager.getVersionHistory(documentPath)));
+        } catch (ItemNotFoundException e) {
+            getLogger().debug("Skipping deleted document removed in the meantime: {}", id);
+        } catch (Exception e) {
+            getLogger().error("Failed to visit deleted document ({}) in the attic.", id, e);
+            session.refresh(false);
+        }
+
+        if (batch.size() >= Math.max(1, batchSize)) {
+            flushBatch();
+        }
+    }
+
+    /**
+     * Removes the handles of the batch with one save, and then truncates the version histories orphaned by that.
+     */
+    private void flushBatch() throws RepositoryException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            for (AtticDocument document : batch) {
+                if (session.nodeExists(document.handlePath)) {
+                    // remove handle node which contains a node referencing a version before truncating versions.
+                    session.getNode(document.handlePath).remove();
+                }
+            }
+
+            final long saveStartNanos = System.nanoTime();
+            session.save();
+
+            if (throttle != null) {
+                throttle.recordLatency(System.nanoTime() - saveStartNanos);
+            }
+        } catch (Exception e) {
+            getLogger().error("Failed to remove a batch of {} handles in the attic, starting at {}.", batch.size(),
+                    batch.get(0).handlePath, e);
+            session.refresh(false);
+            batch.clear();
+            return;
+        }
+
+        for (AtticDocument document : batch) {
+            try {
+                final OrphanedVersionHistoryTruncaterTask task = new OrphanedVersionHistoryTruncaterTask(session,
+                        document.versionHistory, document.documentPath);
+                task.setLogger(getLogger());
+                task.setReport(report);
+                task.setThrottle(throttle);
+                task.setAuditSink(auditSink);
+                task.setRemovedVersionTracker(removedVersionTracker);
+                task.execute();
+                ++handleCount;
+                removedVersionCount += task.getRemovedVersionCount();
+            } catch (Exception e) {
+                getLogger().error("Failed to truncate version history of the deleted document at {}.",
+                        document.documentPath, e);
+            }
+        }
+
+        batch.clear();
+
+        final long elapsedMillis = System.currentTimeMillis() - startMillis;
+        getLogger().info("Attic sweep removed {} handles and {} versions ({} handles/s, {} versions/s).",
+                handleCount, removedVersionCount, perSecond(handleCount, elapsedMillis),
+                perSecond(removedVersionCount, elapsedMillis));
+    }
+
+    private static long perSecond(final long count, final long elapsedMillis) {
+        return (elapsedMillis > 0L) ? count * 1000L / elapsedMillis : count;
+    }
+
+    /**
+     * Deleted document whose handle is to be removed in the current batch.
+     */
+    private static class AtticDocument {
+
+        private final String documentPath;
+        private final String handlePath;
+        private final VersionHistory versionHistory;
+
+        private AtticDocument(final String documentPath, final String handlePath,
+                final VersionHistory versionHistory) {
+            this.documentPath = documentPath;
+            this.handlePath = handlePath;
+            this.versionHistory = versionHistory;
+        }
+    }
+}
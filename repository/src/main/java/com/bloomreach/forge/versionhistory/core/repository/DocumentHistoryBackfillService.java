@@ -0,0 +1,386 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateFormatUtils;
+import org.hippoecm.repository.api.HippoNodeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloomreach.forge.versionhistory.core.AdaptiveRemovalThrottle;
+import com.bloomreach.forge.versionhistory.core.DocumentHistoryCleanerBatchTask;
+import com.bloomreach.forge.versionhistory.core.DocumentHistoryCleanerTask;
+import com.bloomreach.forge.versionhistory.core.RemovedVersionTracker;
+import com.bloomreach.forge.versionhistory.core.RetentionReport;
+import com.bloomreach.forge.versionhistory.core.VersionAuditSink;
+
+/**
+ * Backfill service which walks all the document handles under a root path (<code>/content</code> by default)
+ * and cleans up the version history of each preview variant node by {@link DocumentHistoryCleanerTask}, applying
+ * the same document type specific configurations as {@link DocumentHistoryCleanerListener}.
+ * <P>
+ * This is useful to apply the retention policies to the existing documents which are not published again.
+ * The preview variant nodes of each batch of handles are cleaned up by a {@link DocumentHistoryCleanerBatchTask},
+ * and then the last processed handle path is saved in the {@link DocumentHistoryCheckpoint}, so an interrupted run
+ * resumes from the handle after the checkpoint on the next run. If the checkpoint handle doesn't exist any more, the
+ * run resumes from the start of its nearest existing folder instead. When the run completes, the checkpoint is marked
+ * completed, and the next runs are skipped until the checkpoint is cleared.
+ * <P>
+ * <EM>Note:</EM> This is not thread-safe. Run it in a single thread with a dedicated session, e.g, in a groovy
+ * updater script or in a background thread started by {@link DocumentHistoryCleanerDaemonModule}.
+ */
+public class DocumentHistoryBackfillService implements DocumentHistoryCleanerJob {
+
+    private static Logger defaultLogger = LoggerFactory.getLogger(DocumentHistoryBackfillService.class);
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final Session session;
+    private final Supplier<DocumentHistoryCleanerPolicies> policies;
+
+    private String rootPath = "/content";
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private DocumentHistoryCheckpoint checkpoint;
+    private Logger logger;
+    private boolean dryRun;
+    private RetentionReport report;
+    private AdaptiveRemovalThrottle throttle;
+    private VersionAuditSink auditSink;
+    private RemovedVersionTracker removedVersionTracker;
+
+    private volatile boolean stopped;
+
+    /**
+     * The checkpoint position to seek before processing handles in a resumed run. Null if not seeking.
+     */
+    private String seekPosition;
+    private String lastPosition;
+    private long processedCount;
+    private long batchCount;
+
+    /**
+     * The preview variant nodes of the handles in the current batch, cleaned up when the batch is saved.
+     */
+    private final List<Node> batchNodes = new ArrayList<>();
+
+    /**
+     * @param session the session dedicated to this service
+     * @param policies supplier of the current policies
+     */
+    public DocumentHistoryBackfillService(final Session session,
+            final Supplier<DocumentHistoryCleanerPolicies> policies) {
+        if (session == null) {
+            throw new IllegalArgumentException("session must be not null.");
+        }
+
+        this.session = session;
+        this.policies = policies;
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    public void setRootPath(final String rootPath) {
+        this.rootPath = rootPath;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public DocumentHistoryCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Sets the checkpoint to resume from and save to. If null, every run starts from the root path.
+     * @param checkpoint checkpoint
+     */
+    public void setCheckpoint(final DocumentHistoryCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * Sets whether or not to compute the versions to remove without removing them.
+     * @param dryRun whether or not to compute the versions to remove without removing them
+     */
+    public void setDryRun(final boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public RetentionReport getReport() {
+        return report;
+    }
+
+    /**
+     * Sets the report to which the footprints of the removed, or to be removed in dry-run mode, versions are added.
+     * @param report report
+     */
+    public void setReport(final RetentionReport report) {
+        this.report = report;
+    }
+
+    public AdaptiveRemovalThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Sets the throttle to limit the rate of version removals by the repository write latency.
+     * @param throttle throttle
+     */
+    public void setThrottle(final AdaptiveRemovalThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    public VersionAuditSink getAuditSink() {
+        return auditSink;
+    }
+
+    /**
+     * Sets the audit sink to which the versions removed, or to be removed in dry-run mode, are recorded.
+     * @param auditSink audit sink
+     */
+    public void setAuditSink(final VersionAuditSink auditSink) {
+        this.auditSink = auditSink;
+    }
+
+    public RemovedVersionTracker getRemovedVersionTracker() {
+        return removedVersionTracker;
+    }
+
+    /**
+     * Sets the tracker of the removed versions. The tracker is not applied in dry-run mode.
+     * @param removedVersionTracker removed version tracker
+     */
+    public void setRemovedVersionTracker(final RemovedVersionTracker removedVersionTracker) {
+        this.removedVersionTracker = removedVersionTracker;
+    }
+
+    public Logger getLogger() {
+        return logger != null ? logger : defaultLogger;
+    }
+
+    public void setLogger(final Logger logger) {
+        this.logger = logger;
+    }
+
+    public long getProcessedCount() {
+        return processedCount;
+    }
+
+    /**
+     * Requests the running backfill to stop after the current document.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Runs the backfill from the checkpoint, or from the root path if there's no checkpoint.
+     * @return true if all the documents were processed, false if stopped before completion
+     * @throws RepositoryException if repository exception occurs
+     */
+    @Override
+    public boolean run() throws RepositoryException {
+        if (!session.nodeExists(rootPath)) {
+            getLogger().warn("Backfill root path doesn't exist: {}", rootPath);
+            return true;
+        }
+
+        final Calendar completed = (checkpoint != null) ? checkpoint.getCompleted() : null;
+
+        if (completed != null) {
+            getLogger().info("Skipping version history backfill completed on {} ({} documents processed). "
+                    + "Remove the checkpoint node at {} to run it again.",
+                    DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(completed), checkpoint.getProcessedCount(),
+                    checkpoint.getPath());
+            return true;
+        }
+
+        seekPosition = (checkpoint != null) ? checkpoint.getPosition() : null;
+        processedCount = (checkpoint != null) ? checkpoint.getProcessedCount() : 0L;
+        lastPosition = seekPosition;
+        batchCount = 0L;
+        batchNodes.clear();
+
+        if (seekPosition != null) {
+            getLogger().info("Resuming version history backfill after {} ({} documents processed).", seekPosition,
+                    processedCount);
+        } else {
+            getLogger().info("Starting version history backfill under {}.", rootPath);
+        }
+
+        final Node root = session.getNode(rootPath);
+        visitChildren(root);
+
+        if (seekPosition != null && !stopped) {
+            // the checkpoint position is not under the root path any more, so nothing was visited.
+            getLogger().warn("Backfill checkpoint position {} not found under {}. Restarting from {}.", seekPosition,
+                    rootPath, rootPath);
+            seekPosition = null;
+            visitChildren(root);
+        }
+
+        if (stopped) {
+            saveBatch();
+            getLogger().info("Stopped version history backfill after {} ({} documents processed).", lastPosition,
+                    processedCount);
+            return false;
+        }
+
+        saveBatch();
+
+        if (checkpoint != null) {
+            // not to walk all the documents again on every restart while the backfill is left enabled.
+            checkpoint.complete(processedCount);
+        }
+
+        getLogger().info("Completed version history backfill under {} ({} documents processed).", rootPath,
+                processedCount);
+        return true;
+    }
+
+    private void visitChildren(final Node parent) throws RepositoryException {
+        for (NodeIterator nodeIt = parent.getNodes(); nodeIt.hasNext() && !stopped;) {
+            final Node child = nodeIt.nextNode();
+
+            if (child == null) {
+                continue;
+            }
+
+            final String childPath = child.getPath();
+
+            if (seekPosition != null) {
+                if (seekPosition.equals(childPath)) {
+                    // already processed in the previous run.
+                    seekPosition = null;
+                    continue;
+                }
+
+                if (!StringUtils.startsWith(seekPosition, childPath + "/")) {
+                    // the whole subtree was processed in the previous run.
+                    continue;
+                }
+            }
+
+            if (child.isNodeType(HippoNodeType.NT_HANDLE)) {
+                processHandle(child);
+            } else if (!child.isNodeType(HippoNodeType.NT_DOCUMENT)) {
+                visitChildren(child);
+
+                if (seekPosition != null && !stopped && StringUtils.startsWith(seekPosition, childPath + "/")) {
+                    // the checkpoint handle was deleted, moved or renamed since the previous run, so nothing in this
+                    // folder was visited. Visit it again from the start, and the following siblings after it.
+                    getLogger().warn("Backfill checkpoint position {} not found. Resuming from the start of {}.",
+                            seekPosition, childPath);
+                    seekPosition = null;
+                    visitChildren(child);
+                }
+            }
+        }
+    }
+
+    private void processHandle(final Node handle) throws RepositoryException {
+        final String handlePath = handle.getPath();
+
+        try {
+            final Node versionableNode = DocumentHistoryCleanerUtils.findVersionableNode(handle);
+
+            if (versionableNode != null && !versionableNode.isNodeType(HippoNodeType.NT_DELETED)) {
+                batchNodes.add(versionableNode);
+            }
+        } catch (Exception e) {
+            getLogger().error("Failed to find revision history for the document at {}.", handlePath, e);
+        }
+
+        lastPosition = handlePath;
+        ++processedCount;
+
+        if (++batchCount >= Math.max(1, batchSize)) {
+            saveBatch();
+        }
+    }
+
+    private void saveBatch() throws RepositoryException {
+        if (batchCount == 0L) {
+            return;
+        }
+
+        if (!batchNodes.isEmpty()) {
+            final DocumentHistoryCleanerBatchTask task = new DocumentHistoryCleanerBatchTask(session,
+                    batchNodes.iterator());
+            task.setLogger(getLogger());
+            task.setBatchSize(batchNodes.size());
+            task.setTaskConfigurer(this::configureTask);
+            task.setDryRun(dryRun);
+            task.setReport(report);
+            task.setThrottle(throttle);
+            task.setAuditSink(auditSink);
+            task.setRemovedVersionTracker(removedVersionTracker);
+            task.execute();
+            batchNodes.clear();
+        }
+
+        if (checkpoint != null) {
+            checkpoint.save(lastPosition, processedCount);
+        }
+
+        getLogger().info("Version history backfill processed {} documents until {}.", processedCount, lastPosition);
+        batchCount = 0L;
+    }
+
+    /**
+     * Applies the document type and path specific configuration to the task of a preview variant node.
+     */
+    private void configureTask(final DocumentHistoryCleanerTask task) {
+        try {
+            final Node documentNode = task.getDocumentNode();
+            final DocumentHistoryCleanerConfiguration config = policies.get().getConfiguration(
+                    documentNode.getPrimaryNodeType().getName(), documentNode.getPath());
+            task.setMaxDays(config.getMaxDays());
+            task.setMaxRevisions(config.getMaxRevisions());
+            task.setThinningSchedule(config.getThinningSchedule());
+            task.setStreaming(config.isStreaming());
+        } catch (RepositoryException e) {
+            throw new IllegalStateException("Failed to read document node of the task.", e);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.Calendar;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hippoecm.repository.util.JcrUtils;
+
+/**
+ * Persistent checkpoint of a long running job, stored as a node in the repository, so that an interrupted job
+ * can resume from the last saved position instead of starting from scratch.
+ * <P>
+ * A job which should run only once can mark the checkpoint completed instead of clearing it, so that it's skipped
+ * on the next runs until the checkpoint is cleared.
+ * <P>
+ * <EM>Note:</EM> {@link #save(String, long)}, {@link #complete(long)} and {@link #clear()} save the session,
+ * which persists any other pending changes in the session as well.
+ */
+public class DocumentHistoryCheckpoint {
+
+    private static final String POSITION_PROP_NAME = "position";
+
+    private static final String PROCESSED_COUNT_PROP_NAME = "processedCount";
+
+    private static final String LAST_MODIFIED_PROP_NAME = "lastModified";
+
+    private static final String COMPLETED_PROP_NAME = "completed";
+
+    private final Session session;
+
+    /**
+     * The absolute path of the checkpoint node.
+     */
+    private final String path;
+
+    public DocumentHistoryCheckpoint(final Session session, final String path) {
+        if (session == null) {
+            throw new IllegalArgumentException("session must be not null.");
+        }
+
+        if (!StringUtils.startsWith(path, "/") || "/".equals(path)) {
+            throw new IllegalArgumentException("checkpoint path must be an absolute non-root path.");
+        }
+
+        this.session = session;
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the last saved position, or null if there's no checkpoint.
+     * @return the last saved position, or null if there's no checkpoint
+     * @throws RepositoryException if repository exception occurs
+     */
+    public String getPosition() throws RepositoryException {
+        final Node node = getCheckpointNode();
+        return (node != null) ? JcrUtils.getStringProperty(node, POSITION_PROP_NAME, null) : null;
+    }
+
+    /**
+     * Returns the number of items processed until the last saved position, or zero if there's no checkpoint.
+     * @return the number of items processed until the last saved position
+     * @throws RepositoryException if repository exception occurs
+     */
+    public long getProcessedCount() throws RepositoryException {
+        final Node node = getCheckpointNode();
+        return (node != null) ? JcrUtils.getLongProperty(node, PROCESSED_COUNT_PROP_NAME, 0L) : 0L;
+    }
+
+    /**
+     * Returns the time when the checkpoint was marked completed, or null if not completed.
+     * @return the time when the checkpoint was marked completed, or null if not completed
+     * @throws RepositoryException if repository exception occurs
+     */
+    public Calendar getCompleted() throws RepositoryException {
+        final Node node = getCheckpointNode();
+        return (node != null) ? JcrUtils.getDateProperty(node, COMPLETED_PROP_NAME, null) : null;
+    }
+
+    public void save(final String position, final long processedCount) throws RepositoryException {
+        final Node node = DocumentHistoryCleanerUtils.getOrCreateNode(session, path);
+        node.setProperty(POSITION_PROP_NAME, position);
+        node.setProperty(PROCESSED_COUNT_PROP_NAME, processedCount);
+        node.setProperty(LAST_MODIFIED_PROP_NAME, Calendar.getInstance());
+        session.save();
+    }
+
+    /**
+     * Marks the checkpoint completed with the total number of processed items, removing the position.
+     * @param processedCount the total number of processed items
+     * @throws RepositoryException if repository exception occurs
+     */
+    public void complete(final long processedCount) throws RepositoryException {
+        final Node node = DocumentHistoryCleanerUtils.getOrCreateNode(session, path);
+
+        if (node.hasProperty(POSITION_PROP_NAME)) {
+            node.getProperty(POSITION_PROP_NAME).remove();
+        }
+
+        final Calendar now = Calendar.getInstance();
+        node.setProperty(PROCESSED_COUNT_PROP_NAME, processedCount);
+        node.setProperty(LAST_MODIFIED_PROP_NAME, now);
+        node.setProperty(COMPLETED_PROP_NAME, now);
+        session.save();
+    }
+
+    public void clear() throws RepositoryException {
+        final Node node = getCheckpointNode();
+
+        if (node != null) {
+            node.remove();
+            session.save();
+        }
+    }
+
+    private Node getCheckpointNode() throws RepositoryException {
+        return session.nodeExists(path) ? session.getNode(path) : null;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.bloomreach.forge.versionhistory.core.repository;
 
+import com.bloomreach.forge.versionhistory.core.ThinningSchedule;
+
 /**
  * Configuration for Document History Cleaner task.
  */
@@ -37,9 +39,32 @@ public class DocumentHistoryCleanerConfiguration {
      */
     private boolean truncateOnDelete;
 
+    /**
+     * Tiered thinning schedule of the versions.
+     * If this is set to null, then this option will be ignored.
+     */
+    private ThinningSchedule thinningSchedule;
+
+    /**
+     * Whether or not to walk the versions one by one instead of reading all the removal candidates first.
+     */
+    private boolean streaming;
+
     public DocumentHistoryCleanerConfiguration() {
     }
 
+    /**
+     * Copy constructor.
+     * @param source the configuration to copy from
+     */
+    public DocumentHistoryCleanerConfiguration(final DocumentHistoryCleanerConfiguration source) {
+        maxRevisions = source.maxRevisions;
+        maxDays = source.maxDays;
+        truncateOnDelete = source.truncateOnDelete;
+        thinningSchedule = source.thinningSchedule;
+        streaming = source.streaming;
+    }
+
     public long getMaxDays() {
         return maxDays;
     }
@@ -64,4 +89,20 @@ public class DocumentHistoryCleanerConfiguration {
         this.truncateOnDelete = truncateOnDelete;
     }
 
+    public ThinningSchedule getThinningSchedule() {
+        return thinningSchedule;
+    }
+
+    public void setThinningSchedule(ThinningSchedule thinningSchedule) {
+        this.thinningSchedule = thinningSchedule;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
 }
@@ -15,88 +15,977 @@
  */
 package com.bloomreach.forge.versionhistory.core.repository;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import javax.jcr.Node;
-import javax.jcr.Property;
-import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
+import org.apache.commons.lang3.StringUtils;
 import org.hippoecm.repository.util.JcrUtils;
+import org.onehippo.cms7.services.HippoServiceRegistry;
 import org.onehippo.cms7.services.eventbus.HippoEventListenerRegistry;
 import org.onehippo.repository.modules.AbstractReconfigurableDaemonModule;
+import org.onehippo.repository.modules.RequiresService;
+import org.onehippo.repository.scheduling.RepositoryJobCronTrigger;
+import org.onehippo.repository.scheduling.RepositoryJobInfo;
+import org.onehippo.repository.scheduling.RepositoryScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloomreach.forge.versionhistory.core.AdaptiveRemovalThrottle;
+import com.bloomreach.forge.versionhistory.core.AsyncFileVersionAuditSink;
+import com.bloomreach.forge.versionhistory.core.RemovedVersionTracker;
+import com.bloomreach.forge.versionhistory.core.RetentionReport;
+import com.bloomreach.forge.versionhistory.core.VersionFootprint;
 
 /**
  * Document History Cleaner Daemon Module.
  */
+@RequiresService(types = { RepositoryScheduler.class }, optional = { true })
 public class DocumentHistoryCleanerDaemonModule extends AbstractReconfigurableDaemonModule {
 
-    private static final Pattern DOCTYPE_PREFIXED_PROP_NAME_PATTERN = Pattern
-            .compile("^([A-Za-z_\\-]+:[A-Za-z_\\-]+)\\.(.+)$");
+    private static Logger log = LoggerFactory.getLogger(DocumentHistoryCleanerDaemonModule.class);
+
+    private static final int DEFAULT_ASYNC_WORKERS = 1;
+
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
+
+    private static final long DEFAULT_ASYNC_SHUTDOWN_TIMEOUT_MILLIS = 30000L;
+
+    private static final int DEFAULT_ASYNC_SPILL_MAX_SIZE = 100000;
+
+    private static final long DEFAULT_DEBOUNCE_QUIET_PERIOD_MILLIS = 60000L;
+
+    private static final int DEFAULT_DEBOUNCE_MAX_PENDING = 500000;
+
+    private static final int DEBOUNCE_PERSIST_BATCH_SIZE = 100;
+
+    private static final int DEFAULT_SKIP_CACHE_SIZE = 10000;
+
+    private static final long DEFAULT_SKIP_CACHE_MAX_AGE_MILLIS = 24L * 60L * 60L * 1000L;
+
+    /**
+     * The default path of the node keeping the runtime state such as the pending queue, outside the module config
+     * node, so that writing the runtime state doesn't trigger a module reconfiguration or a configuration export.
+     */
+    static final String DEFAULT_STATE_PATH = "/hippo:configuration/hippo:temporary/version-history-cleaner";
+
+    private static final int DEFAULT_BACKFILL_BATCH_SIZE = 100;
+
+    private static final int DEFAULT_SWEEP_WORKERS = 2;
+
+    private static final long DEFAULT_SWEEP_PROGRESS_INTERVAL = 1000L;
+
+    private static final int DEFAULT_ORPHAN_GC_BATCH_SIZE = 100;
+
+    private static final int DEFAULT_ATTIC_SWEEP_MIN_DAYS = 30;
+
+    private static final int DEFAULT_ATTIC_SWEEP_PAGE_SIZE = 100;
+
+    private static final int DEFAULT_ATTIC_SWEEP_BATCH_SIZE = 50;
+
+    private static final int DEFAULT_FOOTPRINT_TOP_SIZE = 100;
+
+    private static final long DEFAULT_AUDIT_MAX_FILE_SIZE = 100L * 1024L * 1024L;
+
+    private static final int DEFAULT_AUDIT_MAX_FILES = 10;
+
+    private static final long DEFAULT_DATASTORE_GC_VERSION_THRESHOLD = 100000L;
+
+    private static final long DEFAULT_DATASTORE_GC_BYTES_THRESHOLD = 10L * 1024L * 1024L * 1024L;
+
+    private static final String DEFAULT_DATASTORE_GC_WINDOW_START = "02:00";
+
+    private static final String DEFAULT_DATASTORE_GC_WINDOW_END = "05:00";
+
+    private static final long DEFAULT_DATASTORE_GC_CHECK_INTERVAL_MILLIS = 60000L;
+
+    private static final int DEFAULT_DATASTORE_GC_SAMPLE_INTERVAL = 10;
+
+    private static final long BACKGROUND_JOB_SHUTDOWN_TIMEOUT_MILLIS = 10000L;
+
+    private static final long DEFAULT_SESSION_POOL_MAX_AGE_MILLIS = 10L * 60L * 1000L;
+
+    private static final double DEFAULT_THROTTLE_MAX_RATE = 100.0;
+
+    private static final double DEFAULT_THROTTLE_MIN_RATE = 1.0;
+
+    private static final long DEFAULT_THROTTLE_TARGET_LATENCY_MILLIS = 50L;
 
-    private DocumentHistoryCleanerConfiguration defaultConfig = new DocumentHistoryCleanerConfiguration();
-    private Map<String, DocumentHistoryCleanerConfiguration> documentTypeConfigs = new HashMap<>();
+    private static final String DEFERRED_JOB_NAME = "version-history-cleaner-deferred";
+
+    private static final String DEFERRED_JOB_GROUP = "version-history-cleaner";
+
+    /**
+     * Name of the property of the runtime state node keeping the cron expression and the attributes of the scheduled
+     * deferred cleanup job, to reschedule the job only when they change.
+     */
+    private static final String DEFERRED_JOB_SIGNATURE_PROP_NAME = "deferredJobSignature";
+
+    private static final String DEFAULT_DEFERRED_CRON = "0 0 2 * * ?";
+
+    private static final long DEFAULT_DEFERRED_WINDOW_DURATION_MILLIS = 4L * 60L * 60L * 1000L;
+
+    private static final int DEFAULT_DEFERRED_BATCH_SIZE = 100;
+
+    private static final long DEFAULT_CLUSTER_HEARTBEAT_INTERVAL_MILLIS = 10000L;
+
+    private static final long DEFAULT_CLUSTER_MEMBER_TIMEOUT_MILLIS = 60000L;
+
+    private static final long DEFAULT_DEAD_LETTER_SWEEP_INTERVAL_MILLIS = 10L * 60L * 1000L;
+
+    /**
+     * The current policies, replaced as a whole on reconfiguration.
+     */
+    private final AtomicReference<DocumentHistoryCleanerPolicies> policies = new AtomicReference<>(
+            new DocumentHistoryCleanerPolicies(new DocumentHistoryCleanerConfiguration(), null));
     private DocumentHistoryCleanerListener documentHistoryCleanerListener;
 
+    private boolean asyncEnabled;
+    private int asyncWorkers = DEFAULT_ASYNC_WORKERS;
+    private int asyncQueueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+    private DocumentHistoryCleanupExecutor.OverflowPolicy asyncOverflowPolicy =
+            DocumentHistoryCleanupExecutor.OverflowPolicy.BLOCK;
+    private long asyncShutdownTimeoutMillis = DEFAULT_ASYNC_SHUTDOWN_TIMEOUT_MILLIS;
+    private int asyncSpillMaxSize = DEFAULT_ASYNC_SPILL_MAX_SIZE;
+    private DocumentHistoryCleanupExecutor documentHistoryCleanupExecutor;
+    private Session spillSession;
+
+    private boolean debounceEnabled;
+    private long debounceQuietPeriodMillis = DEFAULT_DEBOUNCE_QUIET_PERIOD_MILLIS;
+    private int debounceMaxPending = DEFAULT_DEBOUNCE_MAX_PENDING;
+    private DocumentHistoryCleanupDebouncer documentHistoryCleanupDebouncer;
+    private Session debounceSession;
+
+    private boolean skipCacheEnabled;
+    private int skipCacheSize = DEFAULT_SKIP_CACHE_SIZE;
+    private long skipCacheMaxAgeMillis = DEFAULT_SKIP_CACHE_MAX_AGE_MILLIS;
+
+    private String moduleConfigPath;
+    private String statePath = DEFAULT_STATE_PATH;
+
+    private boolean dryRun;
+    private String dryRunReportFile;
+    private RetentionReport dryRunReport;
+
+    private boolean backfillEnabled;
+    private String backfillRootPath = "/content";
+    private int backfillBatchSize = DEFAULT_BACKFILL_BATCH_SIZE;
+
+    private boolean sweepEnabled;
+    private int sweepWorkers = DEFAULT_SWEEP_WORKERS;
+    private long sweepProgressInterval = DEFAULT_SWEEP_PROGRESS_INTERVAL;
+
+    private boolean orphanGcEnabled;
+    private int orphanGcBatchSize = DEFAULT_ORPHAN_GC_BATCH_SIZE;
+
+    private boolean atticSweepEnabled;
+    private int atticSweepMinDays = DEFAULT_ATTIC_SWEEP_MIN_DAYS;
+    private int atticSweepPageSize = DEFAULT_ATTIC_SWEEP_PAGE_SIZE;
+    private int atticSweepBatchSize = DEFAULT_ATTIC_SWEEP_BATCH_SIZE;
+
+    private boolean footprintEnabled;
+    private int footprintTopSize = DEFAULT_FOOTPRINT_TOP_SIZE;
+    private String footprintReportFile;
+
+    private boolean dataStoreGcEnabled;
+    private long dataStoreGcVersionThreshold = DEFAULT_DATASTORE_GC_VERSION_THRESHOLD;
+    private long dataStoreGcBytesThreshold = DEFAULT_DATASTORE_GC_BYTES_THRESHOLD;
+    private LocalTime dataStoreGcWindowStart = LocalTime.parse(DEFAULT_DATASTORE_GC_WINDOW_START);
+    private LocalTime dataStoreGcWindowEnd = LocalTime.parse(DEFAULT_DATASTORE_GC_WINDOW_END);
+    private long dataStoreGcCheckIntervalMillis = DEFAULT_DATASTORE_GC_CHECK_INTERVAL_MILLIS;
+    private int dataStoreGcSampleInterval = DEFAULT_DATASTORE_GC_SAMPLE_INTERVAL;
+    private boolean dataStoreGcMeasureBytes;
+    private RemovedVersionTracker removedVersionTracker;
+
+    private final Map<DocumentHistoryCleanerJob, Thread> backgroundJobs = new LinkedHashMap<>();
+
+    private boolean metricsEnabled;
+    private String metricsRepositoryName = DocumentHistoryCleanerMetrics.DEFAULT_REPOSITORY_NAME;
+    private DocumentHistoryCleanerMetrics metrics;
+
+    private String recorderFile;
+    private DocumentHistoryEventRecorder recorder;
+
+    private String auditFile;
+    private long auditMaxFileSize = DEFAULT_AUDIT_MAX_FILE_SIZE;
+    private int auditMaxFiles = DEFAULT_AUDIT_MAX_FILES;
+    private AsyncFileVersionAuditSink auditSink;
+
+    private boolean sessionPoolEnabled;
+    private long sessionPoolMaxAgeMillis = DEFAULT_SESSION_POOL_MAX_AGE_MILLIS;
+    private DocumentHistorySessionPool sessionPool;
+
+    private boolean throttleEnabled;
+    private double throttleMaxRate = DEFAULT_THROTTLE_MAX_RATE;
+    private double throttleMinRate = DEFAULT_THROTTLE_MIN_RATE;
+    private long throttleTargetLatencyMillis = DEFAULT_THROTTLE_TARGET_LATENCY_MILLIS;
+    private AdaptiveRemovalThrottle throttle;
+
+    private boolean deferredEnabled;
+    private String deferredCron = DEFAULT_DEFERRED_CRON;
+    private long deferredWindowDurationMillis = DEFAULT_DEFERRED_WINDOW_DURATION_MILLIS;
+    private int deferredBatchSize = DEFAULT_DEFERRED_BATCH_SIZE;
+
+    private DocumentHistoryClusterCoordinator.Mode clusterMode;
+    private String clusterNodeId;
+    private long clusterHeartbeatIntervalMillis = DEFAULT_CLUSTER_HEARTBEAT_INTERVAL_MILLIS;
+    private long clusterMemberTimeoutMillis = DEFAULT_CLUSTER_MEMBER_TIMEOUT_MILLIS;
+
+    private DocumentHistoryRetryPolicy retryPolicy = DocumentHistoryRetryPolicy.NO_RETRY;
+    private long deadLetterSweepIntervalMillis = DEFAULT_DEAD_LETTER_SWEEP_INTERVAL_MILLIS;
+    private DocumentHistoryClusterCoordinator clusterCoordinator;
+
     @Override
     protected void doConfigure(final Node moduleConfig) throws RepositoryException {
-        defaultConfig.setMaxDays(JcrUtils.getLongProperty(moduleConfig, "default.max.days", -1L));
-        defaultConfig.setMaxRevisions(JcrUtils.getLongProperty(moduleConfig, "default.max.revisions", -1L));
-        defaultConfig.setTruncateOnDelete(JcrUtils.getBooleanProperty(moduleConfig, "default.truncate.ondelete", false));
+        moduleConfigPath = moduleConfig.getPath();
 
-        documentTypeConfigs.clear();
+        // state path is applied only when the module is (re)initialized.
+        statePath = StringUtils.removeEnd(StringUtils.trim(
+                JcrUtils.getStringProperty(moduleConfig, "state.path", DEFAULT_STATE_PATH)), "/");
 
-        for (PropertyIterator propIt = moduleConfig.getProperties(); propIt.hasNext();) {
-            final Property prop = propIt.nextProperty();
+        if (!StringUtils.startsWith(statePath, "/")
+                || StringUtils.startsWith(statePath + "/", moduleConfigPath + "/")) {
+            log.warn("Invalid state path, '{}', which must be absolute and outside the module config node. "
+                    + "Falling back to '{}'.", statePath, DEFAULT_STATE_PATH);
+            statePath = DEFAULT_STATE_PATH;
+        }
 
-            if (prop == null) {
-                continue;
-            }
+        // dry-run settings are applied only when the module is (re)initialized.
+        dryRun = JcrUtils.getBooleanProperty(moduleConfig, "dryrun.enabled", false);
+        dryRunReportFile = JcrUtils.getStringProperty(moduleConfig, "dryrun.report.file", null);
 
-            final String propName = prop.getName();
-            final Matcher matcher = DOCTYPE_PREFIXED_PROP_NAME_PATTERN.matcher(propName);
+        // async settings are applied only when the listener is (re)initialized.
+        asyncEnabled = JcrUtils.getBooleanProperty(moduleConfig, "async.enabled", false);
+        asyncWorkers = (int) JcrUtils.getLongProperty(moduleConfig, "async.workers", (long) DEFAULT_ASYNC_WORKERS);
+        asyncQueueSize = (int) JcrUtils.getLongProperty(moduleConfig, "async.queue.size",
+                (long) DEFAULT_ASYNC_QUEUE_SIZE);
+        asyncOverflowPolicy = DocumentHistoryCleanupExecutor.OverflowPolicy.parse(
+                JcrUtils.getStringProperty(moduleConfig, "async.overflow.policy", null),
+                DocumentHistoryCleanupExecutor.OverflowPolicy.BLOCK);
+        asyncShutdownTimeoutMillis = JcrUtils.getLongProperty(moduleConfig, "async.shutdown.timeout",
+                DEFAULT_ASYNC_SHUTDOWN_TIMEOUT_MILLIS);
+        asyncSpillMaxSize = (int) JcrUtils.getLongProperty(moduleConfig, "async.spill.max.size",
+                (long) DEFAULT_ASYNC_SPILL_MAX_SIZE);
 
-            if (matcher.matches()) {
-                final String docTypeName = matcher.group(1);
-                DocumentHistoryCleanerConfiguration documentTypeConfig = documentTypeConfigs.get(docTypeName);
+        // debounce settings are applied only when the listener is (re)initialized.
+        debounceEnabled = JcrUtils.getBooleanProperty(moduleConfig, "debounce.enabled", false);
+        debounceQuietPeriodMillis = JcrUtils.getLongProperty(moduleConfig, "debounce.quiet.period",
+                DEFAULT_DEBOUNCE_QUIET_PERIOD_MILLIS);
+        debounceMaxPending = (int) JcrUtils.getLongProperty(moduleConfig, "debounce.max.pending",
+                (long) DEFAULT_DEBOUNCE_MAX_PENDING);
 
-                if (documentTypeConfig == null) {
-                    documentTypeConfig = new DocumentHistoryCleanerConfiguration();
-                    documentTypeConfig.setMaxDays(defaultConfig.getMaxDays());
-                    documentTypeConfig.setMaxRevisions(defaultConfig.getMaxRevisions());
-                    documentTypeConfig.setTruncateOnDelete(defaultConfig.isTruncateOnDelete());
-                    documentTypeConfigs.put(docTypeName, documentTypeConfig);
-                }
+        // skip cache settings are applied only when the listener is (re)initialized.
+        skipCacheEnabled = JcrUtils.getBooleanProperty(moduleConfig, "skip.cache.enabled", false);
+        skipCacheSize = (int) JcrUtils.getLongProperty(moduleConfig, "skip.cache.size",
+                (long) DEFAULT_SKIP_CACHE_SIZE);
+        skipCacheMaxAgeMillis = JcrUtils.getLongProperty(moduleConfig, "skip.cache.max.age",
+                DEFAULT_SKIP_CACHE_MAX_AGE_MILLIS);
 
-                final String configPropName = matcher.group(2);
+        // backfill settings are applied only when the module is (re)initialized.
+        backfillEnabled = JcrUtils.getBooleanProperty(moduleConfig, "backfill.enabled", false);
+        backfillRootPath = JcrUtils.getStringProperty(moduleConfig, "backfill.root.path", "/content");
+        backfillBatchSize = (int) JcrUtils.getLongProperty(moduleConfig, "backfill.batch.size",
+                (long) DEFAULT_BACKFILL_BATCH_SIZE);
 
-                if ("max.days".equals(configPropName)) {
-                    documentTypeConfig.setMaxDays(prop.getLong());
-                } else if ("max.revisions".equals(configPropName)) {
-                    documentTypeConfig.setMaxRevisions(prop.getLong());
-                } else if ("truncate.ondelete".equals(configPropName)) {
-                    documentTypeConfig.setTruncateOnDelete(prop.getBoolean());
-                }
-            }
-        }
+        // sweep settings are applied only when the module is (re)initialized.
+        sweepEnabled = JcrUtils.getBooleanProperty(moduleConfig, "sweep.enabled", false);
+        sweepWorkers = (int) JcrUtils.getLongProperty(moduleConfig, "sweep.workers", (long) DEFAULT_SWEEP_WORKERS);
+        sweepProgressInterval = JcrUtils.getLongProperty(moduleConfig, "sweep.progress.interval",
+                DEFAULT_SWEEP_PROGRESS_INTERVAL);
+
+        // orphaned version history collection settings are applied only when the module is (re)initialized.
+        orphanGcEnabled = JcrUtils.getBooleanProperty(moduleConfig, "orphan.gc.enabled", false);
+        orphanGcBatchSize = (int) JcrUtils.getLongProperty(moduleConfig, "orphan.gc.batch.size",
+                (long) DEFAULT_ORPHAN_GC_BATCH_SIZE);
+
+        // attic sweep settings are applied only when the module is (re)initialized.
+        atticSweepEnabled = JcrUtils.getBooleanProperty(moduleConfig, "attic.sweep.enabled", false);
+        atticSweepMinDays = (int) JcrUtils.getLongProperty(moduleConfig, "attic.sweep.min.days",
+                (long) DEFAULT_ATTIC_SWEEP_MIN_DAYS);
+        atticSweepPageSize = (int) JcrUtils.getLongProperty(moduleConfig, "attic.sweep.page.size",
+                (long) DEFAULT_ATTIC_SWEEP_PAGE_SIZE);
+        atticSweepBatchSize = (int) JcrUtils.getLongProperty(moduleConfig, "attic.sweep.batch.size",
+                (long) DEFAULT_ATTIC_SWEEP_BATCH_SIZE);
+
+        // footprint analysis settings are applied only when the module is (re)initialized.
+        footprintEnabled = JcrUtils.getBooleanProperty(moduleConfig, "footprint.enabled", false);
+        footprintTopSize = (int) JcrUtils.getLongProperty(moduleConfig, "footprint.top.size",
+                (long) DEFAULT_FOOTPRINT_TOP_SIZE);
+        footprintReportFile = JcrUtils.getStringProperty(moduleConfig, "footprint.report.file", null);
+
+        // datastore gc settings are applied only when the module is (re)initialized.
+        dataStoreGcEnabled = JcrUtils.getBooleanProperty(moduleConfig, "datastore.gc.enabled", false);
+        dataStoreGcVersionThreshold = JcrUtils.getLongProperty(moduleConfig, "datastore.gc.version.threshold",
+                DEFAULT_DATASTORE_GC_VERSION_THRESHOLD);
+        dataStoreGcBytesThreshold = JcrUtils.getLongProperty(moduleConfig, "datastore.gc.bytes.threshold",
+                DEFAULT_DATASTORE_GC_BYTES_THRESHOLD);
+        dataStoreGcWindowStart = parseLocalTime(
+                JcrUtils.getStringProperty(moduleConfig, "datastore.gc.window.start", null),
+                DEFAULT_DATASTORE_GC_WINDOW_START);
+        dataStoreGcWindowEnd = parseLocalTime(
+                JcrUtils.getStringProperty(moduleConfig, "datastore.gc.window.end", null),
+                DEFAULT_DATASTORE_GC_WINDOW_END);
+        dataStoreGcCheckIntervalMillis = JcrUtils.getLongProperty(moduleConfig, "datastore.gc.check.interval",
+                DEFAULT_DATASTORE_GC_CHECK_INTERVAL_MILLIS);
+        dataStoreGcSampleInterval = (int) JcrUtils.getLongProperty(moduleConfig, "datastore.gc.sample.interval",
+                (long) DEFAULT_DATASTORE_GC_SAMPLE_INTERVAL);
+        dataStoreGcMeasureBytes = JcrUtils.getBooleanProperty(moduleConfig, "datastore.gc.measure.bytes", false);
+
+        // metrics settings are applied only when the module is (re)initialized.
+        metricsEnabled = JcrUtils.getBooleanProperty(moduleConfig, "metrics.enabled", false);
+        metricsRepositoryName = JcrUtils.getStringProperty(moduleConfig, "metrics.repository.name",
+                DocumentHistoryCleanerMetrics.DEFAULT_REPOSITORY_NAME);
+
+        // recorder settings are applied only when the module is (re)initialized.
+        recorderFile = JcrUtils.getStringProperty(moduleConfig, "recorder.file", null);
+
+        // audit settings are applied only when the module is (re)initialized.
+        auditFile = JcrUtils.getStringProperty(moduleConfig, "audit.file", null);
+        auditMaxFileSize = JcrUtils.getLongProperty(moduleConfig, "audit.max.file.size", DEFAULT_AUDIT_MAX_FILE_SIZE);
+        auditMaxFiles = (int) JcrUtils.getLongProperty(moduleConfig, "audit.max.files",
+                (long) DEFAULT_AUDIT_MAX_FILES);
+
+        // session pool settings are applied only when the module is (re)initialized.
+        sessionPoolEnabled = JcrUtils.getBooleanProperty(moduleConfig, "session.pool.enabled", false);
+        sessionPoolMaxAgeMillis = JcrUtils.getLongProperty(moduleConfig, "session.pool.max.age",
+                DEFAULT_SESSION_POOL_MAX_AGE_MILLIS);
+
+        // throttle settings are applied only when the module is (re)initialized.
+        throttleEnabled = JcrUtils.getBooleanProperty(moduleConfig, "throttle.enabled", false);
+        throttleMaxRate = JcrUtils.getDoubleProperty(moduleConfig, "throttle.max.rate", DEFAULT_THROTTLE_MAX_RATE);
+        throttleMinRate = JcrUtils.getDoubleProperty(moduleConfig, "throttle.min.rate", DEFAULT_THROTTLE_MIN_RATE);
+        throttleTargetLatencyMillis = JcrUtils.getLongProperty(moduleConfig, "throttle.target.latency",
+                DEFAULT_THROTTLE_TARGET_LATENCY_MILLIS);
+
+        // deferred settings are applied only when the module is (re)initialized.
+        deferredEnabled = JcrUtils.getBooleanProperty(moduleConfig, "deferred.enabled", false);
+        deferredCron = JcrUtils.getStringProperty(moduleConfig, "deferred.cron", DEFAULT_DEFERRED_CRON);
+        deferredWindowDurationMillis = JcrUtils.getLongProperty(moduleConfig, "deferred.window.duration",
+                DEFAULT_DEFERRED_WINDOW_DURATION_MILLIS);
+        deferredBatchSize = (int) JcrUtils.getLongProperty(moduleConfig, "deferred.batch.size",
+                (long) DEFAULT_DEFERRED_BATCH_SIZE);
+
+        // cluster settings are applied only when the module is (re)initialized.
+        clusterMode = DocumentHistoryClusterCoordinator.Mode.parse(
+                JcrUtils.getStringProperty(moduleConfig, "cluster.mode", null));
+        clusterNodeId = JcrUtils.getStringProperty(moduleConfig, "cluster.node.id", null);
+        clusterHeartbeatIntervalMillis = JcrUtils.getLongProperty(moduleConfig, "cluster.heartbeat.interval",
+                DEFAULT_CLUSTER_HEARTBEAT_INTERVAL_MILLIS);
+        clusterMemberTimeoutMillis = JcrUtils.getLongProperty(moduleConfig, "cluster.member.timeout",
+                DEFAULT_CLUSTER_MEMBER_TIMEOUT_MILLIS);
+
+        // retry settings are applied only when the module is (re)initialized.
+        retryPolicy = DocumentHistoryRetryPolicy.read(moduleConfig);
+        deadLetterSweepIntervalMillis = JcrUtils.getLongProperty(moduleConfig, "retry.deadletter.sweep.interval",
+                DEFAULT_DEAD_LETTER_SWEEP_INTERVAL_MILLIS);
+
+        final DocumentHistoryCleanerPolicies newPolicies = DocumentHistoryCleanerPolicies.compile(moduleConfig);
+        policies.set(newPolicies);
+        log.info("Version history cleanup policies compiled: {} document types configured, {} resolved, "
+                + "{} paths configured.", newPolicies.getDocumentTypeConfigurations().size(),
+                newPolicies.getResolvedDocumentTypeCount(), newPolicies.getPathConfigurationCount());
     }
 
     @Override
     protected void doInitialize(final Session daemonSession) throws RepositoryException {
-        documentHistoryCleanerListener = new DocumentHistoryCleanerListener(daemonSession, defaultConfig,
-                documentTypeConfigs);
+        documentHistoryCleanerListener = new DocumentHistoryCleanerListener(daemonSession, policies::get);
+
+        if (dryRun) {
+            log.info("Version history cleaner is running in dry-run mode. No version will be removed.");
+            dryRunReport = new RetentionReport();
+            documentHistoryCleanerListener.setDryRun(true);
+            documentHistoryCleanerListener.setReport(dryRunReport);
+        }
+
+        if (throttleEnabled) {
+            throttle = new AdaptiveRemovalThrottle(Math.max(throttleMaxRate, 0.1), throttleMinRate,
+                    throttleTargetLatencyMillis);
+            log.info("Throttling version removals: {}", throttle);
+
+            // the throttle must not block the event bus thread, so the listener is throttled only in async mode.
+            if (asyncEnabled) {
+                documentHistoryCleanerListener.setThrottle(throttle);
+            } else {
+                log.info("Not throttling the event listener as async.enabled is false. Only the background jobs "
+                        + "are throttled.");
+            }
+        }
+
+        if (skipCacheEnabled && !dryRun) {
+            documentHistoryCleanerListener.setSkipCache(
+                    new DocumentHistorySkipCache(Math.max(1, skipCacheSize), skipCacheMaxAgeMillis));
+        }
+
+        if (metricsEnabled) {
+            metrics = new DocumentHistoryCleanerMetrics();
+            metrics.setThrottle(throttle);
+            metrics.register(metricsRepositoryName);
+            documentHistoryCleanerListener.setMetrics(metrics);
+        }
+
+        if (sessionPoolEnabled) {
+            sessionPool = new DocumentHistorySessionPool(daemonSession, sessionPoolMaxAgeMillis);
+            documentHistoryCleanerListener.setSessionPool(sessionPool);
+        }
+
+        if (StringUtils.isNotBlank(recorderFile)) {
+            try {
+                recorder = new DocumentHistoryEventRecorder(Paths.get(recorderFile));
+                documentHistoryCleanerListener.setRecorder(recorder);
+                log.info("Recording workflow events to {}.", recorderFile);
+            } catch (IOException e) {
+                log.error("Failed to open workflow event recording file, {}.", recorderFile, e);
+            }
+        }
+
+        if (StringUtils.isNotBlank(auditFile)) {
+            auditSink = new AsyncFileVersionAuditSink(Paths.get(auditFile), auditMaxFileSize, auditMaxFiles);
+            documentHistoryCleanerListener.setAuditSink(auditSink);
+            log.info("Recording removed versions to audit file, {}.", auditFile);
+        }
+
+        // the backoffs and the dead letters must not block the event bus thread, so they apply only in async mode.
+        final boolean retryEnabled = asyncEnabled && retryPolicy.getMaxAttempts() > 1;
+        final String deadLetterQueuePath = statePath + "/deadletters";
+
+        if (retryEnabled) {
+            documentHistoryCleanerListener.setRetryPolicy(retryPolicy);
+            documentHistoryCleanerListener.setDeadLetterQueuePath(deadLetterQueuePath);
+        } else if (retryPolicy.getMaxAttempts() > 1) {
+            log.info("Not retrying the cleanups of the event listener as async.enabled is false.");
+        }
+
+        scheduleDeferredCleanupJob(daemonSession);
+
+        if (clusterMode != null) {
+            startClusterCoordinator(daemonSession);
+        }
+
+        if (dataStoreGcEnabled && !dryRun) {
+            if (clusterCoordinator != null) {
+                removedVersionTracker = new RemovedVersionTracker(dataStoreGcSampleInterval);
+                documentHistoryCleanerListener.setRemovedVersionTracker(removedVersionTracker);
+            } else {
+                // otherwise, every cluster node would write the same counters and run the garbage collection.
+                log.error("DataStore garbage collection requires cluster coordination to elect the cluster node "
+                        + "running it. Set cluster.mode to 'lease', even on a single node. DataStore garbage "
+                        + "collection is disabled.");
+            }
+        }
+
+        if (asyncEnabled) {
+            documentHistoryCleanupExecutor = new DocumentHistoryCleanupExecutor(
+                    documentHistoryCleanerListener::process, Math.max(1, asyncWorkers), Math.max(1, asyncQueueSize),
+                    asyncOverflowPolicy);
+
+            if (asyncOverflowPolicy == DocumentHistoryCleanupExecutor.OverflowPolicy.SPILL) {
+                // a spill queue per cluster node, as each cluster node drains its own spilled requests.
+                final String spillQueuePath = (clusterCoordinator != null)
+                        ? statePath + "/spill/" + clusterCoordinator.getClusterNodeId() : statePath + "/spill";
+                spillSession = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+                documentHistoryCleanupExecutor.setSpillQueue(
+                        new DocumentHistoryPendingQueue(spillSession, spillQueuePath), Math.max(1, asyncSpillMaxSize));
+            }
+
+            documentHistoryCleanupExecutor.start();
+            documentHistoryCleanerListener.setExecutor(documentHistoryCleanupExecutor);
+        }
+
+        if (debounceEnabled) {
+            documentHistoryCleanupDebouncer = new DocumentHistoryCleanupDebouncer(
+                    documentHistoryCleanerListener::dispatch, Math.max(1L, debounceQuietPeriodMillis),
+                    Math.max(1, debounceMaxPending));
+            documentHistoryCleanupDebouncer.start();
+            documentHistoryCleanerListener.setDebouncer(documentHistoryCleanupDebouncer);
+            // to persist the pending requests on shutdown.
+            debounceSession = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+        }
+
         HippoEventListenerRegistry.get().register(documentHistoryCleanerListener);
+
+        if (retryEnabled || daemonSession.nodeExists(deadLetterQueuePath)) {
+            startDeadLetterSweep(daemonSession, deadLetterQueuePath, retryEnabled);
+        }
+
+        final String debouncedQueuePath = statePath + "/debounced";
+
+        if (daemonSession.nodeExists(debouncedQueuePath)) {
+            startDebouncedSweep(daemonSession, debouncedQueuePath);
+        }
+
+        if (backfillEnabled && sweepEnabled) {
+            // both would clean up the same version histories concurrently, failing each other's removals.
+            log.warn("Skipping the backfill as the version storage sweep covers all the version histories. "
+                    + "Enable either backfill.enabled or sweep.enabled, not both.");
+        } else if (backfillEnabled) {
+            startBackfill(daemonSession);
+        }
+
+        if (sweepEnabled) {
+            startSweep(daemonSession);
+        }
+
+        if (orphanGcEnabled) {
+            startOrphanGc(daemonSession);
+        }
+
+        if (atticSweepEnabled) {
+            startAtticSweep(daemonSession);
+        }
+
+        if (footprintEnabled) {
+            startFootprintAnalysis(daemonSession);
+        }
+
+        if (removedVersionTracker != null) {
+            startDataStoreGcCoordinator(daemonSession);
+        }
     }
 
     @Override
     protected void doShutdown() {
+        stopBackgroundJobs();
+
         if (documentHistoryCleanerListener != null) {
             HippoEventListenerRegistry.get().unregister(documentHistoryCleanerListener);
             documentHistoryCleanerListener = null;
         }
+
+        if (documentHistoryCleanupDebouncer != null) {
+            persistDebouncedRequests(documentHistoryCleanupDebouncer.shutdown());
+            documentHistoryCleanupDebouncer = null;
+        }
+
+        if (debounceSession != null) {
+            debounceSession.logout();
+            debounceSession = null;
+        }
+
+        if (documentHistoryCleanupExecutor != null) {
+            documentHistoryCleanupExecutor.shutdown(asyncShutdownTimeoutMillis);
+            documentHistoryCleanupExecutor = null;
+        }
+
+        if (spillSession != null) {
+            spillSession.logout();
+            spillSession = null;
+        }
+
+        if (clusterCoordinator != null) {
+            clusterCoordinator.stop();
+            clusterCoordinator = null;
+        }
+
+        if (sessionPool != null) {
+            sessionPool.close();
+            sessionPool = null;
+        }
+
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                log.error("Failed to close workflow event recording file, {}.", recorderFile, e);
+            }
+
+            recorder = null;
+        }
+
+        if (auditSink != null) {
+            auditSink.close();
+            log.info("Closed audit file, {}: {} removed versions recorded, {} dropped.", auditFile,
+                    auditSink.getRecordedCount(), auditSink.getDroppedCount());
+            auditSink = null;
+        }
+
+        if (metrics != null) {
+            metrics.unregister();
+            metrics = null;
+        }
+
+        throttle = null;
+        removedVersionTracker = null;
+
+        if (dryRunReport != null) {
+            writeDryRunReport();
+            dryRunReport = null;
+        }
+    }
+
+    /**
+     * Schedules the deferred cleanup job if deferred mode is enabled, or deletes it otherwise, as the job
+     * is persisted by the repository scheduler across restarts and shared by the cluster nodes.
+     * <P>
+     * The job is rescheduled only when its cron expression or attributes differ from the ones recorded in the
+     * runtime state node by the last scheduling, so that the cluster nodes don't delete and recreate the job
+     * on every start, racing each other.
+     */
+    private void scheduleDeferredCleanupJob(final Session daemonSession) throws RepositoryException {
+        final RepositoryScheduler scheduler = HippoServiceRegistry.getService(RepositoryScheduler.class);
+
+        if (scheduler == null) {
+            if (deferredEnabled) {
+                log.error("Repository scheduler is not available. Deferred cleanup is disabled.");
+            }
+
+            return;
+        }
+
+        final String queuePath = statePath + "/pending";
+        final String signature = deferredEnabled ? StringUtils.join(new Object[] { deferredCron, moduleConfigPath,
+                queuePath, deferredWindowDurationMillis, deferredBatchSize }, '|') : null;
+        final String scheduledSignature = daemonSession.nodeExists(statePath)
+                ? JcrUtils.getStringProperty(daemonSession.getNode(statePath), DEFERRED_JOB_SIGNATURE_PROP_NAME, null)
+                : null;
+        final boolean exists = scheduler.checkExists(DEFERRED_JOB_NAME, DEFERRED_JOB_GROUP);
+
+        if (exists != deferredEnabled || !StringUtils.equals(signature, scheduledSignature)) {
+            try {
+                rescheduleDeferredCleanupJob(scheduler, exists, queuePath);
+                final Node stateNode = DocumentHistoryCleanerUtils.getOrCreateNode(daemonSession, statePath);
+                stateNode.setProperty(DEFERRED_JOB_SIGNATURE_PROP_NAME, signature);
+                daemonSession.save();
+            } catch (RepositoryException e) {
+                // another cluster node may have rescheduled the job at the same time.
+                log.warn("Failed to reschedule the deferred cleanup job: {}", e.toString());
+                daemonSession.refresh(false);
+            }
+        }
+
+        if (!deferredEnabled) {
+            return;
+        }
+
+        documentHistoryCleanerListener.setDeferredQueuePath(queuePath);
+        log.info("Deferring version history cleanups to the window starting by '{}' for {}ms.", deferredCron,
+                deferredWindowDurationMillis);
+    }
+
+    private void rescheduleDeferredCleanupJob(final RepositoryScheduler scheduler, final boolean exists,
+            final String queuePath) throws RepositoryException {
+        if (exists) {
+            scheduler.deleteJob(DEFERRED_JOB_NAME, DEFERRED_JOB_GROUP);
+        }
+
+        if (!deferredEnabled) {
+            return;
+        }
+
+        final RepositoryJobInfo jobInfo = new RepositoryJobInfo(DEFERRED_JOB_NAME, DEFERRED_JOB_GROUP,
+                DocumentHistoryDeferredCleanupJob.class);
+        jobInfo.setAttribute(DocumentHistoryDeferredCleanupJob.MODULE_CONFIG_PATH_ATTR, moduleConfigPath);
+        jobInfo.setAttribute(DocumentHistoryDeferredCleanupJob.QUEUE_PATH_ATTR, queuePath);
+        jobInfo.setAttribute(DocumentHistoryDeferredCleanupJob.WINDOW_DURATION_ATTR,
+                Long.toString(deferredWindowDurationMillis));
+        jobInfo.setAttribute(DocumentHistoryDeferredCleanupJob.BATCH_SIZE_ATTR, Integer.toString(deferredBatchSize));
+        scheduler.scheduleJob(jobInfo, new RepositoryJobCronTrigger(DEFERRED_JOB_NAME + "-trigger", deferredCron));
+        log.info("Scheduled the deferred cleanup job by '{}'.", deferredCron);
+    }
+
+    private void startClusterCoordinator(final Session daemonSession) throws RepositoryException {
+        final String nodeId = StringUtils.isNotBlank(clusterNodeId) ? clusterNodeId
+                : DocumentHistoryClusterCoordinator.getDefaultClusterNodeId();
+
+        final Session coordinatorSession = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+
+        try {
+            clusterCoordinator = new DocumentHistoryClusterCoordinator(coordinatorSession, statePath + "/cluster",
+                    nodeId, clusterMode, clusterHeartbeatIntervalMillis, clusterMemberTimeoutMillis);
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid cluster coordination settings. Coordination is disabled.", e);
+            coordinatorSession.logout();
+            return;
+        }
+
+        clusterCoordinator.start();
+        documentHistoryCleanerListener.setCoordinator(clusterCoordinator);
+
+        // the handed-off cleanups run in another thread, not to delay the heartbeats and the lease renewal.
+        final Session handoffSession = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+        startBackgroundJob("cluster-handoff", new DocumentHistoryHandoffWorker(handoffSession, clusterCoordinator,
+                documentHistoryCleanerListener::execute), handoffSession);
+    }
+
+    /**
+     * Sweeps the dead letter queue periodically while new dead letters may be added, or once otherwise, to process
+     * the dead letters left by a previous run.
+     */
+    private void startDeadLetterSweep(final Session daemonSession, final String deadLetterQueuePath,
+            final boolean periodic) throws RepositoryException {
+        final Session deadLetterSession = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+        final DocumentHistoryCleanerListener listener = documentHistoryCleanerListener;
+        final long intervalMillis = periodic ? Math.max(1000L, deadLetterSweepIntervalMillis) : 0L;
+        // the dead letters are retried regardless of the owners of their subjects, so only by one cluster node.
+        startClusterOwnedJob("deadletters", () -> {
+            final DocumentHistoryDeadLetterSweeper sweeper = new DocumentHistoryDeadLetterSweeper(deadLetterSession,
+                    deadLetterQueuePath, listener::retryDeadLetter);
+            sweeper.setIntervalMillis(intervalMillis);
+            return sweeper;
+        }, deadLetterSession);
+    }
+
+    private void startDebouncedSweep(final Session daemonSession, final String debouncedQueuePath)
+            throws RepositoryException {
+        final Session debouncedSession = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+        final DocumentHistoryCleanerListener listener = documentHistoryCleanerListener;
+        // the queue is shared by the cluster nodes, and each request is handed off to its owner by the listener.
+        startClusterOwnedJob("debounced", () -> new DocumentHistoryDeadLetterSweeper(debouncedSession,
+                debouncedQueuePath, request -> {
+                    listener.process(request);
+                    return true;
+                }), debouncedSession);
+    }
+
+    /**
+     * Persists the pending requests of the debouncer to the queue node, <code>debounced</code> under the state node,
+     * to be processed when the module is initialized next time, instead of processing them all on shutdown.
+     * The requests not persisted within the async shutdown timeout are dropped.
+     */
+    private void persistDebouncedRequests(final List<DocumentHistoryCleanupRequest> requests) {
+        if (requests.isEmpty() || debounceSession == null) {
+            return;
+        }
+
+        final DocumentHistoryPendingQueue queue = new DocumentHistoryPendingQueue(debounceSession,
+                statePath + "/debounced");
+        final long deadlineMillis = System.currentTimeMillis() + Math.max(0L, asyncShutdownTimeoutMillis);
+        int persistedCount = 0;
+
+        try {
+            while (persistedCount < requests.size() && System.currentTimeMillis() < deadlineMillis) {
+                final int endIndex = Math.min(requests.size(), persistedCount + DEBOUNCE_PERSIST_BATCH_SIZE);
+                queue.enqueue(requests.subList(persistedCount, endIndex));
+                persistedCount = endIndex;
+            }
+        } catch (RepositoryException e) {
+            log.error("Failed to persist the pending cleanup requests of the debouncer to {}.", queue.getPath(), e);
+        }
+
+        log.info("Persisted {} pending cleanup request(s) of the debouncer to {} on shutdown.", persistedCount,
+                queue.getPath());
+
+        if (persistedCount < requests.size()) {
+            log.warn("Dropped {} pending cleanup request(s) of the debouncer not persisted on shutdown.",
+                    requests.size() - persistedCount);
+        }
+    }
+
+    private void startBackfill(final Session daemonSession) throws RepositoryException {
+        final Session backfillSession = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+        startClusterOwnedJob("backfill", () -> createBackfillService(backfillSession), backfillSession);
+    }
+
+    private DocumentHistoryBackfillService createBackfillService(final Session backfillSession) {
+        final DocumentHistoryBackfillService backfillService = new DocumentHistoryBackfillService(backfillSession,
+                policies::get);
+        backfillService.setRootPath(backfillRootPath);
+        backfillService.setBatchSize(backfillBatchSize);
+        backfillService.setThrottle(throttle);
+        backfillService.setAuditSink(auditSink);
+        backfillService.setRemovedVersionTracker(removedVersionTracker);
+
+        if (dryRun) {
+            // a dry run must not let the next real run skip the documents.
+            backfillService.setDryRun(true);
+            backfillService.setReport(dryRunReport);
+        } else {
+            backfillService.setCheckpoint(new DocumentHistoryCheckpoint(backfillSession,
+                    statePath + "/backfill"));
+        }
+
+        return backfillService;
+    }
+
+    private void startSweep(final Session daemonSession) {
+        startClusterOwnedJob("sweep", () -> createSweeper(daemonSession), null);
+    }
+
+    private VersionStorageSweeper createSweeper(final Session daemonSession) {
+        final VersionStorageSweeper sweeper = new VersionStorageSweeper(daemonSession, policies::get);
+        sweeper.setWorkers(sweepWorkers);
+        sweeper.setProgressInterval(sweepProgressInterval);
+        sweeper.setThrottle(throttle);
+        sweeper.setAuditSink(auditSink);
+        sweeper.setRemovedVersionTracker(removedVersionTracker);
+        sweeper.setDryRun(dryRun);
+        sweeper.setReport(dryRunReport);
+        return sweeper;
+    }
+
+    private void startOrphanGc(final Session daemonSession) throws RepositoryException {
+        final Session orphanGcSession = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+        startClusterOwnedJob("orphangc", () -> createOrphanCollector(orphanGcSession), orphanGcSession);
+    }
+
+    private OrphanedVersionHistoryCollector createOrphanCollector(final Session orphanGcSession) {
+        final OrphanedVersionHistoryCollector collector = new OrphanedVersionHistoryCollector(orphanGcSession);
+        collector.setBatchSize(orphanGcBatchSize);
+        collector.setThrottle(throttle);
+        collector.setAuditSink(auditSink);
+        collector.setRemovedVersionTracker(removedVersionTracker);
+
+        if (dryRun) {
+            // a dry run must not let the next real run skip the version histories.
+            collector.setDryRun(true);
+            collector.setReport(dryRunReport);
+        } else {
+            collector.setCheckpoint(new DocumentHistoryCheckpoint(orphanGcSession, statePath + "/orphangc"));
+        }
+
+        return collector;
+    }
+
+    private void startAtticSweep(final Session daemonSession) throws RepositoryException {
+        final Session atticSweepSession = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+        startClusterOwnedJob("atticsweep", () -> createAtticSweeper(atticSweepSession), atticSweepSession);
+    }
+
+    private DocumentHistoryAtticSweeper createAtticSweeper(final Session atticSweepSession) {
+        final DocumentHistoryAtticSweeper atticSweeper = new DocumentHistoryAtticSweeper(atticSweepSession,
+                policies::get);
+        atticSweeper.setMinDays(atticSweepMinDays);
+        atticSweeper.setPageSize(atticSweepPageSize);
+        atticSweeper.setBatchSize(atticSweepBatchSize);
+        atticSweeper.setThrottle(throttle);
+        atticSweeper.setAuditSink(auditSink);
+        atticSweeper.setRemovedVersionTracker(removedVersionTracker);
+        atticSweeper.setDryRun(dryRun);
+        atticSweeper.setReport(dryRunReport);
+        return atticSweeper;
+    }
+
+    private void startFootprintAnalysis(final Session daemonSession) throws RepositoryException {
+        if (StringUtils.isBlank(footprintReportFile)) {
+            log.warn("No footprint.report.file configured. The version storage footprint report will not be written.");
+        }
+
+        final Session footprintSession = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+        final VersionStorageFootprintAnalyzer analyzer = new VersionStorageFootprintAnalyzer(footprintSession);
+        analyzer.setTopSize(footprintTopSize);
+        analyzer.setReportFile(footprintReportFile);
+        startBackgroundJob("footprint", analyzer, footprintSession);
+    }
+
+    private void startDataStoreGcCoordinator(final Session daemonSession) throws RepositoryException {
+        final Session gcSession = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+        final DataStoreGarbageCollectionCoordinator coordinator = new DataStoreGarbageCollectionCoordinator(
+                gcSession, statePath + "/datastoregc", removedVersionTracker,
+                new DataStoreGarbageCollectionCoordinator.JackrabbitRunner(dataStoreGcMeasureBytes));
+        coordinator.setClusterCoordinator(clusterCoordinator);
+        coordinator.setVersionThreshold(dataStoreGcVersionThreshold);
+        coordinator.setBinaryBytesThreshold(dataStoreGcBytesThreshold);
+        coordinator.setWindow(dataStoreGcWindowStart, dataStoreGcWindowEnd);
+        coordinator.setCheckIntervalMillis(dataStoreGcCheckIntervalMillis);
+        startBackgroundJob("datastoregc", coordinator, gcSession);
+    }
+
+    /**
+     * Runs the job in a background thread only on the cluster node owning it if clustered, so that the repository-wide
+     * jobs don't remove the same versions and write the same checkpoints on every cluster node.
+     */
+    private void startClusterOwnedJob(final String name, final Supplier<DocumentHistoryCleanerJob> jobFactory,
+            final Session jobSession) {
+        if (clusterCoordinator == null) {
+            startBackgroundJob(name, jobFactory.get(), jobSession);
+            return;
+        }
+
+        startBackgroundJob(name, new DocumentHistoryClusterOwnedJob(clusterCoordinator, name, jobFactory),
+                jobSession);
+    }
+
+    /**
+     * Runs the job in a background thread, logging out the job session, if any, when the job is done.
+     */
+    private void startBackgroundJob(final String name, final DocumentHistoryCleanerJob job, final Session jobSession) {
+        final Thread thread = new Thread(() -> {
+            try {
+                job.run();
+
+                if (dryRun) {
+                    writeDryRunReport();
+                }
+            } catch (Exception e) {
+                log.error("Failed to run version history cleaner job, '{}'.", name, e);
+            } finally {
+                if (jobSession != null) {
+                    jobSession.logout();
+                }
+            }
+        }, "version-history-cleaner-" + name);
+        thread.setDaemon(true);
+        backgroundJobs.put(job, thread);
+        thread.start();
+    }
+
+    private void stopBackgroundJobs() {
+        for (DocumentHistoryCleanerJob job : backgroundJobs.keySet()) {
+            job.stop();
+        }
+
+        for (Thread thread : backgroundJobs.values()) {
+            try {
+                thread.join(BACKGROUND_JOB_SHUTDOWN_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        backgroundJobs.clear();
+    }
+
+    private static LocalTime parseLocalTime(final String value, final String defaultValue) {
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return LocalTime.parse(value.trim());
+            } catch (DateTimeParseException e) {
+                log.warn("Invalid time of day, '{}'. Falling back to '{}'.", value, defaultValue);
+            }
+        }
+
+        return LocalTime.parse(defaultValue);
+    }
+
+    /**
+     * Writes the dry-run report to the report file in CSV format if the file name ends with ".csv",
+     * or in JSON format otherwise. If no report file is configured, it logs only the total footprint.
+     */
+    private synchronized void writeDryRunReport() {
+        final RetentionReport report = dryRunReport;
+
+        if (report == null) {
+            return;
+        }
+
+        final VersionFootprint total = report.getTotalFootprint();
+        log.info("[Dry run] {} versions ({} frozen nodes, {} property bytes, at most {} binary bytes) can be removed.",
+                total.getVersionCount(), total.getFrozenNodeCount(), total.getPropertyBytes(),
+                total.getBinaryBytes());
+
+        if (StringUtils.isBlank(dryRunReportFile)) {
+            return;
+        }
+
+        final RetentionReport.Format format = StringUtils.endsWithIgnoreCase(dryRunReportFile, ".csv")
+                ? RetentionReport.Format.CSV : RetentionReport.Format.JSON;
+
+        try (Writer writer = Files.newBufferedWriter(Paths.get(dryRunReportFile), StandardCharsets.UTF_8)) {
+            report.write(writer, format);
+        } catch (IOException e) {
+            log.error("Failed to write dry-run report to {}.", dryRunReportFile, e);
+        }
     }
 }
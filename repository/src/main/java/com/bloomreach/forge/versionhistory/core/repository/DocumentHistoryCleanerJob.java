@@ -0,0 +1,38 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * Long running version history maintenance job, which can be run in a background thread
+ * and requested to stop at any time.
+ */
+public interface DocumentHistoryCleanerJob {
+
+    /**
+     * Runs the job until it completes or it is requested to stop.
+     * @return true if the job completed, false if it was stopped before completion
+     * @throws RepositoryException if repository exception occurs
+     */
+    boolean run() throws RepositoryException;
+
+    /**
+     * Requests the running job to stop as soon as possible.
+     */
+    void stop();
+
+}
@@ -15,17 +15,12 @@
  */
 package com.bloomreach.forge.versionhistory.core.repository;
 
-import java.util.Map;
+import java.util.function.Supplier;
 
-import javax.jcr.Credentials;
 import javax.jcr.Node;
-import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.SimpleCredentials;
 
-import org.hippoecm.repository.HippoStdNodeType;
-import org.hippoecm.repository.api.HippoNodeType;
 import org.onehippo.cms7.event.HippoEvent;
 import org.onehippo.cms7.event.HippoEventConstants;
 import org.onehippo.cms7.services.eventbus.Subscribe;
@@ -33,8 +28,12 @@ import org.onehippo.repository.events.HippoWorkflowEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.bloomreach.forge.versionhistory.core.AdaptiveRemovalThrottle;
 import com.bloomreach.forge.versionhistory.core.DocumentHistoryCleanerTask;
 import com.bloomreach.forge.versionhistory.core.DocumentHistoryTruncaterTask;
+import com.bloomreach.forge.versionhistory.core.RemovedVersionTracker;
+import com.bloomreach.forge.versionhistory.core.RetentionReport;
+import com.bloomreach.forge.versionhistory.core.VersionAuditSink;
 
 /**
  * EventBus event listener, which listens to document publication events and invokes {@link DocumentHistoryCleanerTask}
@@ -44,18 +43,241 @@ public class DocumentHistoryCleanerListener {
 
     private static Logger log = LoggerFactory.getLogger(DocumentHistoryCleanerListener.class);
 
-    private static final Credentials SYSTEM_CREDENTIALS = new SimpleCredentials("system", new char[] {});
-
     private final Session daemonSession;
-    private final DocumentHistoryCleanerConfiguration defaultConfig;
-    private final Map<String, DocumentHistoryCleanerConfiguration> documentTypeConfigs;
-
+    private final Supplier<DocumentHistoryCleanerPolicies> policies;
+
+    /**
+     * Optional executor to process cleanup requests asynchronously. If null, requests are processed
+     * in the event bus thread.
+     */
+    private DocumentHistoryCleanupExecutor executor;
+
+    /**
+     * Optional debouncer to merge the requests for the same document within a quiet period. If null, requests are
+     * dispatched immediately.
+     */
+    private DocumentHistoryCleanupDebouncer debouncer;
+
+    private boolean dryRun;
+    private RetentionReport report;
+
+    /**
+     * Optional metrics to record the events and the cleanup latencies to.
+     */
+    private DocumentHistoryCleanerMetrics metrics;
+
+    /**
+     * Optional recorder to record the workflow events to, to be replayed offline.
+     */
+    private DocumentHistoryEventRecorder recorder;
+
+    /**
+     * Optional pool to borrow sessions from. If null, a session is impersonated and logged out for each request.
+     */
+    private DocumentHistorySessionPool sessionPool;
+
+    /**
+     * Optional throttle to limit the rate of version removals by the repository write latency.
+     */
+    private AdaptiveRemovalThrottle throttle;
+
+    /**
+     * Optional audit sink to which the versions removed, or to be removed in dry-run mode, are recorded.
+     */
+    private VersionAuditSink auditSink;
+
+    /**
+     * Optional tracker of the removed versions. Not applied in dry-run mode.
+     */
+    private RemovedVersionTracker removedVersionTracker;
+
+    /**
+     * Optional cache of the version history sizes, by which the cleanups which cannot remove any version are skipped
+     * without opening a session. Not used in dry-run mode.
+     */
+    private DocumentHistorySkipCache skipCache;
+
+    /**
+     * Optional path of the {@link DocumentHistoryPendingQueue} node. If set, requests are only queued to be
+     * processed later by {@link DocumentHistoryDeferredCleanupJob}.
+     */
+    private String deferredQueuePath;
+
+    /**
+     * Optional coordinator, by which the requests not owned by this cluster node are handed off to the owner.
+     */
+    private DocumentHistoryClusterCoordinator coordinator;
+
+    /**
+     * Retry policy of the cleanups and the truncations failed by a concurrent modification.
+     */
+    private volatile DocumentHistoryRetryPolicy retryPolicy = DocumentHistoryRetryPolicy.NO_RETRY;
+
+    /**
+     * Optional path of the {@link DocumentHistoryPendingQueue} node to which the requests which ran out of retries
+     * are added, to be processed later by {@link #retryDeadLetter(DocumentHistoryCleanupRequest)}.
+     */
+    private String deadLetterQueuePath;
+
+    /**
+     * @param daemonSession the session from which system sessions are impersonated
+     * @param policies supplier of the current policies, read on every request so that a reconfiguration applies
+     *        to the next request
+     */
     public DocumentHistoryCleanerListener(final Session daemonSession,
-            final DocumentHistoryCleanerConfiguration defaultConfig,
-            final Map<String, DocumentHistoryCleanerConfiguration> documentTypeConfigs) {
+            final Supplier<DocumentHistoryCleanerPolicies> policies) {
         this.daemonSession = daemonSession;
-        this.defaultConfig = defaultConfig;
-        this.documentTypeConfigs = documentTypeConfigs;
+        this.policies = policies;
+    }
+
+    public DocumentHistoryCleanupExecutor getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(final DocumentHistoryCleanupExecutor executor) {
+        this.executor = executor;
+    }
+
+    public DocumentHistoryCleanupDebouncer getDebouncer() {
+        return debouncer;
+    }
+
+    public void setDebouncer(final DocumentHistoryCleanupDebouncer debouncer) {
+        this.debouncer = debouncer;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * Sets whether or not to compute the versions to remove without removing them.
+     * @param dryRun whether or not to compute the versions to remove without removing them
+     */
+    public void setDryRun(final boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public RetentionReport getReport() {
+        return report;
+    }
+
+    /**
+     * Sets the report to which the footprints of the removed, or to be removed in dry-run mode, versions are added.
+     * @param report report
+     */
+    public void setReport(final RetentionReport report) {
+        this.report = report;
+    }
+
+    public DocumentHistoryCleanerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(final DocumentHistoryCleanerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public DocumentHistoryEventRecorder getRecorder() {
+        return recorder;
+    }
+
+    public void setRecorder(final DocumentHistoryEventRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public DocumentHistorySessionPool getSessionPool() {
+        return sessionPool;
+    }
+
+    public void setSessionPool(final DocumentHistorySessionPool sessionPool) {
+        this.sessionPool = sessionPool;
+    }
+
+    public AdaptiveRemovalThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Sets the throttle to limit the rate of version removals by the repository write latency.
+     * <P>
+     * <EM>Note:</EM> The throttle blocks the processing thread, so set it only with an executor, not to block
+     * the event bus thread.
+     * @param throttle throttle
+     */
+    public void setThrottle(final AdaptiveRemovalThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    public VersionAuditSink getAuditSink() {
+        return auditSink;
+    }
+
+    public void setAuditSink(final VersionAuditSink auditSink) {
+        this.auditSink = auditSink;
+    }
+
+    public RemovedVersionTracker getRemovedVersionTracker() {
+        return removedVersionTracker;
+    }
+
+    public void setRemovedVersionTracker(final RemovedVersionTracker removedVersionTracker) {
+        this.removedVersionTracker = removedVersionTracker;
+    }
+
+    public DocumentHistorySkipCache getSkipCache() {
+        return skipCache;
+    }
+
+    public void setSkipCache(final DocumentHistorySkipCache skipCache) {
+        this.skipCache = skipCache;
+    }
+
+    public String getDeferredQueuePath() {
+        return deferredQueuePath;
+    }
+
+    /**
+     * Sets the path of the pending queue node to defer the requests to, or null to process the requests immediately.
+     * @param deferredQueuePath the path of the pending queue node
+     */
+    public void setDeferredQueuePath(final String deferredQueuePath) {
+        this.deferredQueuePath = deferredQueuePath;
+    }
+
+    public DocumentHistoryClusterCoordinator getCoordinator() {
+        return coordinator;
+    }
+
+    public void setCoordinator(final DocumentHistoryClusterCoordinator coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    public DocumentHistoryRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the retry policy of the cleanups and the truncations failed by a concurrent modification.
+     * <P>
+     * <EM>Note:</EM> The backoffs block the processing thread, which is the event bus thread if there's no executor,
+     * so set it only with an executor.
+     * @param retryPolicy retry policy, or null not to retry
+     */
+    public void setRetryPolicy(final DocumentHistoryRetryPolicy retryPolicy) {
+        this.retryPolicy = (retryPolicy != null) ? retryPolicy : DocumentHistoryRetryPolicy.NO_RETRY;
+    }
+
+    public String getDeadLetterQueuePath() {
+        return deadLetterQueuePath;
+    }
+
+    /**
+     * Sets the path of the queue node to add the requests which ran out of retries to, or null to drop them.
+     * @param deadLetterQueuePath the path of the dead letter queue node
+     */
+    public void setDeadLetterQueuePath(final String deadLetterQueuePath) {
+        this.deadLetterQueuePath = deadLetterQueuePath;
     }
 
     @Subscribe
@@ -67,124 +289,372 @@ public class DocumentHistoryCleanerListener {
         }
 
         final HippoWorkflowEvent<?> wfEvent = (HippoWorkflowEvent<?>) event;
+
+        if (recorder != null) {
+            recorder.record(wfEvent);
+        }
+
         final String workflowName = wfEvent.workflowName();
+        final String documentType = wfEvent.documentType();
+
+        if (metrics != null) {
+            metrics.eventSeen(documentType);
+        }
 
         if ("folder".equals(workflowName)) {
+            eventFiltered(documentType);
             return;
         }
 
         final String action = event.action();
-        final String documentType = wfEvent.documentType();
-        final String subjectId = wfEvent.subjectId();
-        final String subjectPath = wfEvent.subjectPath();
 
-        if ("publish".equals(action)) {
-            cleanUpOldVersions(subjectId, subjectPath, documentType);
-        } else if ("delete".equals(action)) {
-            truncateAllVersions(subjectId, subjectPath, documentType);
+        if (!DocumentHistoryCleanupRequest.ACTION_PUBLISH.equals(action)
+                && !DocumentHistoryCleanupRequest.ACTION_DELETE.equals(action)) {
+            eventFiltered(documentType);
+            return;
+        }
+
+        final DocumentHistoryCleanupRequest request = new DocumentHistoryCleanupRequest(wfEvent.subjectId(),
+                wfEvent.subjectPath(), documentType, action);
+
+        if (debouncer != null) {
+            debouncer.submit(request);
+        } else {
+            dispatch(request);
+        }
+    }
+
+    /**
+     * Submits the cleanup request to the executor if any, or processes it in the current thread otherwise.
+     * @param request cleanup request
+     */
+    public void dispatch(final DocumentHistoryCleanupRequest request) {
+        if (executor != null) {
+            executor.submit(request);
+        } else {
+            process(request);
+        }
+    }
+
+    /**
+     * Processes the cleanup request in the current thread, or hands it off to the owner cluster node
+     * if this cluster node doesn't own it.
+     * @param request cleanup request
+     */
+    public void process(final DocumentHistoryCleanupRequest request) {
+        if (deferredQueuePath != null) {
+            defer(request);
+            return;
+        }
+
+        if (coordinator != null && !coordinator.isOwner(request.getSubjectId())) {
+            handOff(request);
+            return;
+        }
+
+        execute(request);
+    }
+
+    /**
+     * Executes the cleanup request in the current thread, regardless of the cluster node owning it, retrying it
+     * by the retry policy and adding it to the dead letter queue if it runs out of retries.
+     * @param request cleanup request
+     */
+    public void execute(final DocumentHistoryCleanupRequest request) {
+        if (!executeWithRetries(request)) {
+            deadLetter(request);
+        }
+    }
+
+    /**
+     * Executes the cleanup request from the dead letter queue in the current thread, retrying it by the retry policy.
+     * @param request cleanup request from the dead letter queue
+     * @return true if the request is done with, or false if it ran out of retries again and should be kept
+     */
+    public boolean retryDeadLetter(final DocumentHistoryCleanupRequest request) {
+        return executeWithRetries(request);
+    }
+
+    /**
+     * Executes the cleanup request, retrying it while it fails by a concurrent modification.
+     * @return false if the request ran out of retries, or true otherwise, even if failed by a non-retryable failure
+     */
+    private boolean executeWithRetries(final DocumentHistoryCleanupRequest request) {
+        final String action = request.getAction();
+        final String documentType = request.getDocumentType();
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (DocumentHistoryCleanupRequest.ACTION_PUBLISH.equals(action)) {
+                    cleanUpOldVersions(request.getSubjectId(), request.getSubjectPath(), documentType);
+                } else if (DocumentHistoryCleanupRequest.ACTION_DELETE.equals(action)) {
+                    truncateAllVersions(request.getSubjectId(), request.getSubjectPath(), documentType);
+                }
+
+                return true;
+            } catch (Exception e) {
+                if (retryPolicy.shouldRetry(e, attempt)) {
+                    log.warn("Retrying {} of revision history for the document ({}) at {} after attempt {} of {} "
+                            + "failed by a concurrent modification: {}", action, request.getSubjectId(),
+                            request.getSubjectPath(), attempt, retryPolicy.getMaxAttempts(), e.toString());
+
+                    try {
+                        retryPolicy.backOff(attempt);
+                        continue;
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                log.error("Failed to {} revision history for the document ({}) at {} in {} attempts.",
+                        DocumentHistoryCleanupRequest.ACTION_PUBLISH.equals(action) ? "clean" : "truncate",
+                        request.getSubjectId(), request.getSubjectPath(), attempt, e);
+
+                if (metrics != null) {
+                    metrics.failure(documentType);
+                }
+
+                return !DocumentHistoryRetryPolicy.isRetryable(e);
+            }
         }
     }
 
-    private void cleanUpOldVersions(final String subjectId, final String subjectPath, final String documentType) {
-        final DocumentHistoryCleanerConfiguration docTypeConfig = documentTypeConfigs.get(documentType);
-        final long maxDays = (docTypeConfig != null) ? docTypeConfig.getMaxDays() : defaultConfig.getMaxDays();
-        final long maxRevisions = (docTypeConfig != null) ? docTypeConfig.getMaxRevisions()
-                : defaultConfig.getMaxRevisions();
+    private void cleanUpOldVersions(final String subjectId, final String subjectPath, final String documentType)
+            throws Exception {
+        final DocumentHistoryCleanerConfiguration config = policies.get().getConfiguration(documentType,
+                subjectPath);
+        final long maxDays = config.getMaxDays();
+        final long maxRevisions = config.getMaxRevisions();
+        final DocumentHistorySkipCache skipCache = !dryRun ? this.skipCache : null;
+
+        if (skipCache != null && skipCache.skipPublication(subjectId, config, System.currentTimeMillis())) {
+            eventFiltered(documentType);
+            return;
+        }
 
         Session session = null;
+        boolean failed = false;
 
         try {
-            session = daemonSession.impersonate(SYSTEM_CREDENTIALS);
+            long startNanos = System.nanoTime();
+            session = acquireSession();
+            startNanos = recordPhase(documentType, DocumentHistoryCleanerMetrics.Phase.IMPERSONATE, startNanos);
 
             final Node handleNode = session.getNodeByIdentifier(subjectId);
-            final Node versionableNode = findVersionableNode(handleNode);
+            final Node versionableNode = DocumentHistoryCleanerUtils.findVersionableNode(handleNode);
+            recordPhase(documentType, DocumentHistoryCleanerMetrics.Phase.FIND_VERSIONABLE_NODE, startNanos);
 
             final DocumentHistoryCleanerTask task = new DocumentHistoryCleanerTask(session, versionableNode);
             task.setMaxDays(maxDays);
             task.setMaxRevisions(maxRevisions);
+            task.setThinningSchedule(config.getThinningSchedule());
+            task.setStreaming(config.isStreaming());
+            task.setDryRun(dryRun);
+            task.setReport(report);
+            task.setThrottle(throttle);
+            task.setAuditSink(auditSink);
+            task.setRemovedVersionTracker(removedVersionTracker);
             task.execute();
 
-            session.save();
+            // a dry run must not save anything, e.g. the changes by the other tasks in the same pooled session.
+            if (!dryRun) {
+                startNanos = System.nanoTime();
+                session.save();
+                final long saveNanos = recordPhase(documentType, DocumentHistoryCleanerMetrics.Phase.SAVE,
+                        startNanos) - startNanos;
+
+                if (throttle != null && task.getRemovedVersionCount() > 0L) {
+                    throttle.recordLatency(saveNanos);
+                }
+            }
+
+            if (metrics != null) {
+                metrics.recordPhase(documentType, DocumentHistoryCleanerMetrics.Phase.ENUMERATE,
+                        task.getEnumerateNanos());
+                metrics.recordPhase(documentType, DocumentHistoryCleanerMetrics.Phase.REMOVE, task.getRemoveNanos());
+                metrics.cleanupExecuted(documentType, task.getRemovedVersionCount());
+            }
+
+            if (skipCache != null) {
+                skipCache.put(subjectId, config, task.getRetainedVersionCount(), task.getOldestRetainedCreatedMillis(),
+                        System.currentTimeMillis());
+            }
         } catch (Exception e) {
-            log.error("Failed to clean revision history for the document () at {}.", subjectId, subjectPath, e);
+            failed = true;
 
-            try {
-                session.refresh(false);
-            } catch (RepositoryException re) {
-                log.error("Failed to refresh session.", re);
+            if (skipCache != null) {
+                skipCache.remove(subjectId);
             }
+
+            throw e;
         } finally {
             if (session != null) {
-                session.logout();
+                releaseSession(session, failed);
             }
         }
     }
 
-    private void truncateAllVersions(final String subjectId, final String subjectPath, final String documentType) {
-        final DocumentHistoryCleanerConfiguration docTypeConfig = documentTypeConfigs.get(documentType);
-        final boolean truncateOnDelete = (docTypeConfig != null) ? docTypeConfig.isTruncateOnDelete()
-                : defaultConfig.isTruncateOnDelete();
+    private void truncateAllVersions(final String subjectId, final String subjectPath, final String documentType)
+            throws Exception {
+        final boolean truncateOnDelete = policies.get().getConfiguration(documentType, subjectPath)
+                .isTruncateOnDelete();
+
+        if (skipCache != null) {
+            skipCache.remove(subjectId);
+        }
 
         if (!truncateOnDelete) {
+            eventFiltered(documentType);
             return;
         }
 
         Session session = null;
+        boolean failed = false;
 
         try {
-            session = daemonSession.impersonate(SYSTEM_CREDENTIALS);
+            long startNanos = System.nanoTime();
+            session = acquireSession();
+            startNanos = recordPhase(documentType, DocumentHistoryCleanerMetrics.Phase.IMPERSONATE, startNanos);
 
             final Node handleNode = session.getNodeByIdentifier(subjectId);
-            final Node versionableNode = findVersionableNode(handleNode);
+            final Node versionableNode = DocumentHistoryCleanerUtils.findVersionableNode(handleNode);
+            recordPhase(documentType, DocumentHistoryCleanerMetrics.Phase.FIND_VERSIONABLE_NODE, startNanos);
 
             final DocumentHistoryTruncaterTask task = new DocumentHistoryTruncaterTask(session, versionableNode);
+            task.setDryRun(dryRun);
+            task.setReport(report);
+            task.setThrottle(throttle);
+            task.setAuditSink(auditSink);
+            task.setRemovedVersionTracker(removedVersionTracker);
             task.execute();
 
-            session.save();
-        } catch (Exception e) {
-            log.error("Failed to truncate revision history for the document () at {}.", subjectId, subjectPath, e);
+            // a dry run must not save anything, e.g. the changes by the other tasks in the same pooled session.
+            if (!dryRun) {
+                startNanos = System.nanoTime();
+                session.save();
+                final long saveNanos = recordPhase(documentType, DocumentHistoryCleanerMetrics.Phase.SAVE,
+                        startNanos) - startNanos;
 
-            try {
-                session.refresh(false);
-            } catch (RepositoryException re) {
-                log.error("Failed to refresh session.", re);
+                if (throttle != null && task.getRemovedVersionCount() > 0L) {
+                    throttle.recordLatency(saveNanos);
+                }
             }
+
+            if (metrics != null) {
+                metrics.recordPhase(documentType, DocumentHistoryCleanerMetrics.Phase.ENUMERATE,
+                        task.getEnumerateNanos());
+                metrics.recordPhase(documentType, DocumentHistoryCleanerMetrics.Phase.REMOVE, task.getRemoveNanos());
+                metrics.truncationExecuted(documentType, task.getRemovedVersionCount());
+            }
+        } catch (Exception e) {
+            failed = true;
+            throw e;
         } finally {
             if (session != null) {
-                session.logout();
+                releaseSession(session, failed);
             }
         }
     }
 
-    private Node findVersionableNode(final Node handle) throws RepositoryException {
-        for (NodeIterator nodeIt = handle.getNodes(handle.getName()); nodeIt.hasNext();) {
-            final Node node = nodeIt.nextNode();
+    private void defer(final DocumentHistoryCleanupRequest request) {
+        Session session = null;
+        boolean failed = false;
 
-            if (node != null && isPreviewVariantNode(node)) {
-                return node;
+        try {
+            session = acquireSession();
+            new DocumentHistoryPendingQueue(session, deferredQueuePath).enqueue(request);
+        } catch (Exception e) {
+            failed = true;
+            log.error("Failed to defer revision history cleanup for the document ({}) at {}.",
+                    request.getSubjectId(), request.getSubjectPath(), e);
+        } finally {
+            if (session != null) {
+                releaseSession(session, failed);
             }
         }
+    }
 
-        for (NodeIterator nodeIt = handle.getNodes(handle.getName()); nodeIt.hasNext();) {
-            final Node node = nodeIt.nextNode();
+    private void deadLetter(final DocumentHistoryCleanupRequest request) {
+        if (deadLetterQueuePath == null) {
+            return;
+        }
 
-            if (node != null && node.isNodeType(HippoNodeType.NT_DELETED) && node.isNodeType("mix:versionable")) {
-                return node;
+        Session session = null;
+        boolean failed = false;
+
+        try {
+            session = acquireSession();
+            new DocumentHistoryPendingQueue(session, deadLetterQueuePath).enqueue(request);
+            log.info("Added revision history cleanup for the document ({}) at {} to the dead letter queue.",
+                    request.getSubjectId(), request.getSubjectPath());
+        } catch (Exception e) {
+            failed = true;
+            log.error("Failed to add revision history cleanup for the document ({}) at {} to the dead letter queue.",
+                    request.getSubjectId(), request.getSubjectPath(), e);
+        } finally {
+            if (session != null) {
+                releaseSession(session, failed);
             }
         }
-
-        return null;
     }
 
-    private boolean isPreviewVariantNode(final Node node) throws RepositoryException {
-        if (node.isNodeType(HippoStdNodeType.NT_PUBLISHABLE)) {
-            final String hippoState = node.getProperty(HippoStdNodeType.HIPPOSTD_STATE).getString();
+    private void handOff(final DocumentHistoryCleanupRequest request) {
+        Session session = null;
+        boolean failed = false;
 
-            if (HippoStdNodeType.UNPUBLISHED.equals(hippoState)) {
-                return true;
+        try {
+            session = acquireSession();
+            coordinator.handOff(session, request);
+        } catch (Exception e) {
+            failed = true;
+            log.error("Failed to hand off revision history cleanup for the document ({}) at {}.",
+                    request.getSubjectId(), request.getSubjectPath(), e);
+        } finally {
+            if (session != null) {
+                releaseSession(session, failed);
             }
         }
+    }
+
+    private Session acquireSession() throws RepositoryException {
+        if (sessionPool != null) {
+            return sessionPool.borrow();
+        }
+
+        return DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+    }
+
+    /**
+     * Returns the session to the pool, discarding it after a failure, or logs it out if there's no pool.
+     */
+    private void releaseSession(final Session session, final boolean failed) {
+        if (sessionPool == null) {
+            session.logout();
+        } else if (failed) {
+            sessionPool.invalidate(session);
+        } else {
+            sessionPool.release(session);
+        }
+    }
+
+    private void eventFiltered(final String documentType) {
+        if (metrics != null) {
+            metrics.eventFiltered(documentType);
+        }
+    }
+
+    /**
+     * Records the latency of the phase from the start time if metrics are enabled.
+     * @return the current time in nanoseconds, from which the next phase may be timed
+     */
+    private long recordPhase(final String documentType, final DocumentHistoryCleanerMetrics.Phase phase,
+            final long startNanos) {
+        final long nowNanos = System.nanoTime();
+
+        if (metrics != null) {
+            metrics.recordPhase(documentType, phase, nowNanos - startNanos);
+        }
 
-        return false;
+        return nowNanos;
     }
 }
@@ -0,0 +1,352 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloomreach.forge.versionhistory.core.AdaptiveRemovalThrottle;
+
+/**
+ * Version history cleaner metrics, counting the events and the cleanups and recording the latency of each phase,
+ * in total and per document type.
+ * <P>
+ * Recording is lock-free by striped adders, so it doesn't add contention in the event processing threads.
+ */
+public class DocumentHistoryCleanerMetrics implements DocumentHistoryCleanerMetricsMXBean {
+
+    private static Logger log = LoggerFactory.getLogger(DocumentHistoryCleanerMetrics.class);
+
+    public static final String OBJECT_NAME = "com.bloomreach.forge.versionhistory:type=DocumentHistoryCleanerMetrics";
+
+    /**
+     * Default repository name, which is the value of the <code>repository</code> key of the object name.
+     */
+    public static final String DEFAULT_REPOSITORY_NAME = "default";
+
+    /**
+     * Document type name used when the event doesn't have a document type.
+     */
+    private static final String UNKNOWN_DOCUMENT_TYPE = "unknown";
+
+    /**
+     * Cleanup phases of which the latency is recorded.
+     */
+    public enum Phase {
+        IMPERSONATE, FIND_VERSIONABLE_NODE, ENUMERATE, REMOVE, SAVE
+    }
+
+    private final Counters total = new Counters();
+    private final ConcurrentMap<String, Counters> documentTypeCounters = new ConcurrentHashMap<>();
+    private ObjectName registeredObjectName;
+    private volatile AdaptiveRemovalThrottle throttle;
+
+    public DocumentHistoryCleanerMetrics() {
+    }
+
+    public AdaptiveRemovalThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Sets the adaptive throttle of which the state is exposed.
+     * @param throttle throttle
+     */
+    public void setThrottle(final AdaptiveRemovalThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    public void eventSeen(final String documentType) {
+        total.eventsSeen.increment();
+        getCounters(documentType).eventsSeen.increment();
+    }
+
+    public void eventFiltered(final String documentType) {
+        total.eventsFiltered.increment();
+        getCounters(documentType).eventsFiltered.increment();
+    }
+
+    public void cleanupExecuted(final String documentType, final long removedVersionCount) {
+        final Counters counters = getCounters(documentType);
+        total.cleanupsExecuted.increment();
+        counters.cleanupsExecuted.increment();
+        total.versionsRemoved.add(removedVersionCount);
+        counters.versionsRemoved.add(removedVersionCount);
+    }
+
+    public void truncationExecuted(final String documentType, final long removedVersionCount) {
+        final Counters counters = getCounters(documentType);
+        total.truncationsExecuted.increment();
+        counters.truncationsExecuted.increment();
+        total.versionsRemoved.add(removedVersionCount);
+        counters.versionsRemoved.add(removedVersionCount);
+    }
+
+    public void failure(final String documentType) {
+        total.failures.increment();
+        getCounters(documentType).failures.increment();
+    }
+
+    public void recordPhase(final String documentType, final Phase phase, final long nanos) {
+        total.latencies.get(phase).record(nanos);
+        getCounters(documentType).latencies.get(phase).record(nanos);
+    }
+
+    @Override
+    public long getEventsSeen() {
+        return total.eventsSeen.sum();
+    }
+
+    @Override
+    public long getEventsFiltered() {
+        return total.eventsFiltered.sum();
+    }
+
+    @Override
+    public long getCleanupsExecuted() {
+        return total.cleanupsExecuted.sum();
+    }
+
+    @Override
+    public long getTruncationsExecuted() {
+        return total.truncationsExecuted.sum();
+    }
+
+    @Override
+    public long getVersionsRemoved() {
+        return total.versionsRemoved.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return total.failures.sum();
+    }
+
+    @Override
+    public double getRemovalRateLimit() {
+        final AdaptiveRemovalThrottle curThrottle = throttle;
+        return (curThrottle != null) ? curThrottle.getRate() : -1.0;
+    }
+
+    @Override
+    public long getRemovalLatencyAverageMicros() {
+        final AdaptiveRemovalThrottle curThrottle = throttle;
+        return (curThrottle != null) ? curThrottle.getLatencyAverageMicros() : -1L;
+    }
+
+    @Override
+    public long getRemovalBackoffCount() {
+        final AdaptiveRemovalThrottle curThrottle = throttle;
+        return (curThrottle != null) ? curThrottle.getBackoffCount() : 0L;
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getPhaseLatencies() {
+        return total.getLatencySnapshots();
+    }
+
+    @Override
+    public Map<String, Stats> getDocumentTypeStats() {
+        final Map<String, Stats> stats = new TreeMap<>();
+
+        for (Map.Entry<String, Counters> entry : documentTypeCounters.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().toStats());
+        }
+
+        return stats;
+    }
+
+    @Override
+    public void reset() {
+        total.reset();
+        documentTypeCounters.clear();
+    }
+
+    /**
+     * Returns the object name of the metrics MBean of the repository.
+     * @param repositoryName the repository name, distinguishing the MBeans of multiple repositories in a JVM
+     * @return the object name of the metrics MBean of the repository
+     * @throws JMException if the object name is malformed
+     */
+    public static ObjectName getObjectName(final String repositoryName) throws JMException {
+        return new ObjectName(OBJECT_NAME + ",repository=" + ObjectName.quote(repositoryName));
+    }
+
+    public synchronized ObjectName getRegisteredObjectName() {
+        return registeredObjectName;
+    }
+
+    /**
+     * Registers this to the platform MBean server, unless another MBean is already registered by the same name,
+     * e.g, by another repository of the same name in the JVM.
+     * @param repositoryName the repository name, distinguishing the MBeans of multiple repositories in a JVM
+     * @return true if registered
+     */
+    public synchronized boolean register(final String repositoryName) {
+        try {
+            final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = getObjectName(repositoryName);
+
+            if (mbeanServer.isRegistered(objectName)) {
+                log.warn("Version history cleaner metrics MBean is already registered as {}, e.g, by another "
+                        + "repository in the JVM. Configure a unique metrics.repository.name to expose the metrics.",
+                        objectName);
+                return false;
+            }
+
+            mbeanServer.registerMBean(this, objectName);
+            registeredObjectName = objectName;
+            return true;
+        } catch (JMException e) {
+            log.error("Failed to register version history cleaner metrics MBean.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Unregisters this from the platform MBean server if registered.
+     */
+    public synchronized void unregister() {
+        if (registeredObjectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredObjectName);
+        } catch (JMException e) {
+            log.warn("Failed to unregister version history cleaner metrics MBean.", e);
+        } finally {
+            registeredObjectName = null;
+        }
+    }
+
+    private Counters getCounters(final String documentType) {
+        final String key = (documentType != null) ? documentType : UNKNOWN_DOCUMENT_TYPE;
+        final Counters counters = documentTypeCounters.get(key);
+        return (counters != null) ? counters : documentTypeCounters.computeIfAbsent(key, type -> new Counters());
+    }
+
+    private static class Counters {
+
+        private final LongAdder eventsSeen = new LongAdder();
+        private final LongAdder eventsFiltered = new LongAdder();
+        private final LongAdder cleanupsExecuted = new LongAdder();
+        private final LongAdder truncationsExecuted = new LongAdder();
+        private final LongAdder versionsRemoved = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final Map<Phase, LatencyHistogram> latencies = new EnumMap<>(Phase.class);
+
+        private Counters() {
+            for (Phase phase : Phase.values()) {
+                latencies.put(phase, new LatencyHistogram());
+            }
+        }
+
+        private Map<String, LatencyHistogram.Snapshot> getLatencySnapshots() {
+            final Map<String, LatencyHistogram.Snapshot> snapshots = new TreeMap<>();
+
+            for (Map.Entry<Phase, LatencyHistogram> entry : latencies.entrySet()) {
+                snapshots.put(entry.getKey().name(), entry.getValue().getSnapshot());
+            }
+
+            return snapshots;
+        }
+
+        private Stats toStats() {
+            return new Stats(eventsSeen.sum(), eventsFiltered.sum(), cleanupsExecuted.sum(),
+                    truncationsExecuted.sum(), versionsRemoved.sum(), failures.sum(), getLatencySnapshots());
+        }
+
+        private void reset() {
+            eventsSeen.reset();
+            eventsFiltered.reset();
+            cleanupsExecuted.reset();
+            truncationsExecuted.reset();
+            versionsRemoved.reset();
+            failures.reset();
+
+            for (LatencyHistogram histogram : latencies.values()) {
+                histogram.reset();
+            }
+        }
+    }
+
+    /**
+     * Point-in-time snapshot of the counters and the latencies of a document type.
+     */
+    public static class Stats {
+
+        private final long eventsSeen;
+        private final long eventsFiltered;
+        private final long cleanupsExecuted;
+        private final long truncationsExecuted;
+        private final long versionsRemoved;
+        private final long failures;
+        private final Map<String, LatencyHistogram.Snapshot> phaseLatencies;
+
+        public Stats(final long eventsSeen, final long eventsFiltered, final long cleanupsExecuted,
+                final long truncationsExecuted, final long versionsRemoved, final long failures,
+                final Map<String, LatencyHistogram.Snapshot> phaseLatencies) {
+            this.eventsSeen = eventsSeen;
+            this.eventsFiltered = eventsFiltered;
+            this.cleanupsExecuted = cleanupsExecuted;
+            this.truncationsExecuted = truncationsExecuted;
+            this.versionsRemoved = versionsRemoved;
+            this.failures = failures;
+            this.phaseLatencies = phaseLatencies;
+        }
+
+        public long getEventsSeen() {
+            return eventsSeen;
+        }
+
+        public long getEventsFiltered() {
+            return eventsFiltered;
+        }
+
+        public long getCleanupsExecuted() {
+            return cleanupsExecuted;
+        }
+
+        public long getTruncationsExecuted() {
+            return truncationsExecuted;
+        }
+
+        public long getVersionsRemoved() {
+            return versionsRemoved;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public Map<String, LatencyHistogram.Snapshot> getPhaseLatencies() {
+            return phaseLatencies;
+        }
+    }
+}
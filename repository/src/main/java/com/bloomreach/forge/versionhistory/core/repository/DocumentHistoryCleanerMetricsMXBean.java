@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.Map;
+
+/**
+ * JMX management interface of the version history cleaner metrics.
+ */
+public interface DocumentHistoryCleanerMetricsMXBean {
+
+    long getEventsSeen();
+
+    long getEventsFiltered();
+
+    long getCleanupsExecuted();
+
+    long getTruncationsExecuted();
+
+    long getVersionsRemoved();
+
+    long getFailures();
+
+    /**
+     * Returns the current removals per second allowed by the adaptive throttle, or -1 if not throttled.
+     * @return the current removals per second allowed by the adaptive throttle, or -1 if not throttled
+     */
+    double getRemovalRateLimit();
+
+    /**
+     * Returns the moving average of the write latency measured by the adaptive throttle in microseconds,
+     * or -1 if not throttled or nothing measured yet.
+     * @return the moving average of the write latency measured by the adaptive throttle in microseconds
+     */
+    long getRemovalLatencyAverageMicros();
+
+    long getRemovalBackoffCount();
+
+    /**
+     * Returns the latency snapshots of all the document types keyed by phase name.
+     * @return the latency snapshots of all the document types keyed by phase name
+     */
+    Map<String, LatencyHistogram.Snapshot> getPhaseLatencies();
+
+    /**
+     * Returns the counters and the latency snapshots keyed by document type name.
+     * @return the counters and the latency snapshots keyed by document type name
+     */
+    Map<String, DocumentHistoryCleanerMetrics.Stats> getDocumentTypeStats();
+
+    void reset();
+
+}
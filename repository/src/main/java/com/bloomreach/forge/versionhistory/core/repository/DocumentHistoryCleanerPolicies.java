@@ -0,0 +1,363 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.NodeTypeIterator;
+import javax.jcr.nodetype.NodeTypeManager;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hippoecm.repository.util.JcrUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloomreach.forge.versionhistory.core.ThinningSchedule;
+
+/**
+ * Immutable table of the compiled cleanup policies, to be published as a whole on reconfiguration,
+ * e.g, through an {@link java.util.concurrent.atomic.AtomicReference}, so that readers never see a half-updated
+ * configuration.
+ * <P>
+ * A document type without its own configuration inherits the configuration of the nearest configured supertype,
+ * searched breadth-first through the declared supertypes, so a policy configured for a base document type applies
+ * to all the document types extending it. The configurations are resolved for all the node types registered
+ * when the table is compiled, so a lookup is a single hash map lookup without locking or allocation.
+ * A document type registered afterward gets its own configuration or the default configuration
+ * until the table is compiled again.
+ * <P>
+ * Path-scoped configurations can be added for content path prefixes as well, and the configuration of the longest
+ * prefix of the document path takes precedence over the document type configurations.
+ * <P>
+ * The configurations returned must not be modified.
+ */
+public final class DocumentHistoryCleanerPolicies {
+
+    private static Logger log = LoggerFactory.getLogger(DocumentHistoryCleanerPolicies.class);
+
+    private static final Pattern DOCTYPE_PREFIXED_PROP_NAME_PATTERN = Pattern
+            .compile("^([A-Za-z_\\-]+:[A-Za-z_\\-]+)\\.(.+)$");
+
+    /**
+     * The name of the child node of the module config node, containing a node per path-scoped configuration.
+     */
+    public static final String PATH_POLICIES_NODE_NAME = "pathpolicies";
+
+    private static final String PATH_PROP_NAME = "path";
+
+    private final DocumentHistoryCleanerConfiguration defaultConfig;
+
+    /**
+     * The configurations configured for document types explicitly.
+     */
+    private final Map<String, DocumentHistoryCleanerConfiguration> documentTypeConfigs;
+
+    /**
+     * The configurations keyed by the document type, including the ones inherited from the supertypes.
+     */
+    private final Map<String, DocumentHistoryCleanerConfiguration> resolvedConfigs;
+
+    /**
+     * The path-scoped configurations keyed by the path prefix.
+     */
+    private final PathPrefixTrie<DocumentHistoryCleanerConfiguration> pathConfigs;
+
+    /**
+     * Creates a table with the given configurations, without supertype resolution.
+     * @param defaultConfig default configuration
+     * @param documentTypeConfigs document type specific configurations
+     */
+    public DocumentHistoryCleanerPolicies(final DocumentHistoryCleanerConfiguration defaultConfig,
+            final Map<String, DocumentHistoryCleanerConfiguration> documentTypeConfigs) {
+        this.defaultConfig = new DocumentHistoryCleanerConfiguration(defaultConfig);
+        this.documentTypeConfigs = copyConfigurations(documentTypeConfigs);
+        resolvedConfigs = this.documentTypeConfigs;
+        pathConfigs = new PathPrefixTrie<>();
+    }
+
+    /**
+     * Creates a table with the given configurations, resolving the configurations of all the node types registered
+     * in the node type manager through their supertypes.
+     * @param defaultConfig default configuration
+     * @param documentTypeConfigs document type specific configurations
+     * @param nodeTypeManager node type manager
+     * @throws RepositoryException if repository exception occurs
+     */
+    public DocumentHistoryCleanerPolicies(final DocumentHistoryCleanerConfiguration defaultConfig,
+            final Map<String, DocumentHistoryCleanerConfiguration> documentTypeConfigs,
+            final NodeTypeManager nodeTypeManager) throws RepositoryException {
+        this(defaultConfig, documentTypeConfigs, null, nodeTypeManager);
+    }
+
+    /**
+     * Creates a table with the given configurations, resolving the configurations of all the node types registered
+     * in the node type manager through their supertypes.
+     * @param defaultConfig default configuration
+     * @param documentTypeConfigs document type specific configurations
+     * @param pathConfigs path-scoped configurations keyed by the path prefix
+     * @param nodeTypeManager node type manager, or null not to resolve through the supertypes
+     * @throws RepositoryException if repository exception occurs
+     */
+    public DocumentHistoryCleanerPolicies(final DocumentHistoryCleanerConfiguration defaultConfig,
+            final Map<String, DocumentHistoryCleanerConfiguration> documentTypeConfigs,
+            final Map<String, DocumentHistoryCleanerConfiguration> pathConfigs,
+            final NodeTypeManager nodeTypeManager) throws RepositoryException {
+        this.defaultConfig = new DocumentHistoryCleanerConfiguration(defaultConfig);
+        this.documentTypeConfigs = copyConfigurations(documentTypeConfigs);
+        resolvedConfigs = resolveConfigurations(this.documentTypeConfigs, nodeTypeManager);
+        this.pathConfigs = new PathPrefixTrie<>();
+
+        if (pathConfigs != null) {
+            for (Map.Entry<String, DocumentHistoryCleanerConfiguration> entry : pathConfigs.entrySet()) {
+                this.pathConfigs.put(entry.getKey(), new DocumentHistoryCleanerConfiguration(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Compiles the policies from the module config node, reading the <code>default.*</code> properties and
+     * the document type prefixed properties such as <code>myproject:basedocument.max.revisions</code>,
+     * and resolving the configurations of the registered node types through their supertypes. The path-scoped
+     * configurations are read from the child nodes of the <code>pathpolicies</code> node, each of which has
+     * the <code>path</code> property and the same properties without prefix, such as <code>max.revisions</code>.
+     * @param moduleConfig module config node
+     * @return the compiled policies
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static DocumentHistoryCleanerPolicies compile(final Node moduleConfig) throws RepositoryException {
+        final DocumentHistoryCleanerConfiguration defaultConfig = new DocumentHistoryCleanerConfiguration();
+        defaultConfig.setMaxDays(JcrUtils.getLongProperty(moduleConfig, "default.max.days", -1L));
+        defaultConfig.setMaxRevisions(JcrUtils.getLongProperty(moduleConfig, "default.max.revisions", -1L));
+        defaultConfig.setTruncateOnDelete(
+                JcrUtils.getBooleanProperty(moduleConfig, "default.truncate.ondelete", false));
+        defaultConfig.setStreaming(JcrUtils.getBooleanProperty(moduleConfig, "default.streaming", false));
+
+        if (moduleConfig.hasProperty("default.thinning")) {
+            setConfigurationProperty(defaultConfig, "thinning", moduleConfig.getProperty("default.thinning"));
+        }
+
+        final Map<String, DocumentHistoryCleanerConfiguration> documentTypeConfigs = new LinkedHashMap<>();
+
+        for (PropertyIterator propIt = moduleConfig.getProperties(); propIt.hasNext();) {
+            final Property prop = propIt.nextProperty();
+
+            if (prop == null) {
+                continue;
+            }
+
+            final Matcher matcher = DOCTYPE_PREFIXED_PROP_NAME_PATTERN.matcher(prop.getName());
+
+            if (matcher.matches()) {
+                final String docTypeName = matcher.group(1);
+                DocumentHistoryCleanerConfiguration documentTypeConfig = documentTypeConfigs.get(docTypeName);
+
+                if (documentTypeConfig == null) {
+                    documentTypeConfig = new DocumentHistoryCleanerConfiguration(defaultConfig);
+                    documentTypeConfigs.put(docTypeName, documentTypeConfig);
+                }
+
+                setConfigurationProperty(documentTypeConfig, matcher.group(2), prop);
+            }
+        }
+
+        final Map<String, DocumentHistoryCleanerConfiguration> pathConfigs = new LinkedHashMap<>();
+
+        if (moduleConfig.hasNode(PATH_POLICIES_NODE_NAME)) {
+            for (NodeIterator nodeIt = moduleConfig.getNode(PATH_POLICIES_NODE_NAME).getNodes(); nodeIt.hasNext();) {
+                final Node pathPolicyNode = nodeIt.nextNode();
+
+                if (pathPolicyNode == null) {
+                    continue;
+                }
+
+                final String path = StringUtils.trim(JcrUtils.getStringProperty(pathPolicyNode, PATH_PROP_NAME,
+                        null));
+
+                if (!StringUtils.startsWith(path, "/")) {
+                    log.warn("Ignoring path policy at {} without an absolute 'path' property.",
+                            pathPolicyNode.getPath());
+                    continue;
+                }
+
+                final DocumentHistoryCleanerConfiguration pathConfig = new DocumentHistoryCleanerConfiguration(
+                        defaultConfig);
+
+                for (PropertyIterator propIt = pathPolicyNode.getProperties(); propIt.hasNext();) {
+                    final Property prop = propIt.nextProperty();
+
+                    if (prop != null) {
+                        setConfigurationProperty(pathConfig, prop.getName(), prop);
+                    }
+                }
+
+                pathConfigs.put(path, pathConfig);
+            }
+        }
+
+        return new DocumentHistoryCleanerPolicies(defaultConfig, documentTypeConfigs, pathConfigs,
+                moduleConfig.getSession().getWorkspace().getNodeTypeManager());
+    }
+
+    private static void setConfigurationProperty(final DocumentHistoryCleanerConfiguration config,
+            final String configPropName, final Property prop) throws RepositoryException {
+        if ("max.days".equals(configPropName)) {
+            config.setMaxDays(prop.getLong());
+        } else if ("max.revisions".equals(configPropName)) {
+            config.setMaxRevisions(prop.getLong());
+        } else if ("truncate.ondelete".equals(configPropName)) {
+            config.setTruncateOnDelete(prop.getBoolean());
+        } else if ("streaming".equals(configPropName)) {
+            config.setStreaming(prop.getBoolean());
+        } else if ("thinning".equals(configPropName)) {
+            try {
+                config.setThinningSchedule(StringUtils.isBlank(prop.getString()) ? null
+                        : ThinningSchedule.parse(prop.getString()));
+            } catch (IllegalArgumentException e) {
+                log.warn("Ignoring invalid thinning schedule at {}: {}", prop.getPath(), e.getMessage());
+            }
+        }
+    }
+
+    public DocumentHistoryCleanerConfiguration getDefaultConfiguration() {
+        return defaultConfig;
+    }
+
+    /**
+     * Returns the configurations configured for document types explicitly, keyed by the document type name.
+     * @return the configurations configured for document types explicitly
+     */
+    public Map<String, DocumentHistoryCleanerConfiguration> getDocumentTypeConfigurations() {
+        return documentTypeConfigs;
+    }
+
+    /**
+     * Returns the number of the document types resolved to a specific configuration, including the inherited ones.
+     * @return the number of the document types resolved to a specific configuration
+     */
+    public int getResolvedDocumentTypeCount() {
+        return resolvedConfigs.size();
+    }
+
+    /**
+     * Returns the number of the path-scoped configurations.
+     * @return the number of the path-scoped configurations
+     */
+    public int getPathConfigurationCount() {
+        return pathConfigs.size();
+    }
+
+    /**
+     * Returns the configuration of the document type, inherited from the nearest configured supertype if not
+     * configured explicitly, or the default configuration.
+     * @param documentType document type name
+     * @return the configuration of the document type
+     */
+    public DocumentHistoryCleanerConfiguration getConfiguration(final String documentType) {
+        final DocumentHistoryCleanerConfiguration config = (documentType != null)
+                ? resolvedConfigs.get(documentType) : null;
+        return (config != null) ? config : defaultConfig;
+    }
+
+    /**
+     * Returns the configuration of the longest path prefix of the document path if any, or the configuration of
+     * the document type otherwise.
+     * @param documentType document type name
+     * @param path the path of the document handle or variant node, or null if unknown
+     * @return the configuration of the document
+     */
+    public DocumentHistoryCleanerConfiguration getConfiguration(final String documentType, final String path) {
+        final DocumentHistoryCleanerConfiguration config = pathConfigs.getLongestPrefixMatch(path);
+        return (config != null) ? config : getConfiguration(documentType);
+    }
+
+    private static Map<String, DocumentHistoryCleanerConfiguration> copyConfigurations(
+            final Map<String, DocumentHistoryCleanerConfiguration> documentTypeConfigs) {
+        final Map<String, DocumentHistoryCleanerConfiguration> configs = new LinkedHashMap<>();
+
+        if (documentTypeConfigs != null) {
+            for (Map.Entry<String, DocumentHistoryCleanerConfiguration> entry : documentTypeConfigs.entrySet()) {
+                configs.put(entry.getKey(), new DocumentHistoryCleanerConfiguration(entry.getValue()));
+            }
+        }
+
+        return Collections.unmodifiableMap(configs);
+    }
+
+    private static Map<String, DocumentHistoryCleanerConfiguration> resolveConfigurations(
+            final Map<String, DocumentHistoryCleanerConfiguration> documentTypeConfigs,
+            final NodeTypeManager nodeTypeManager) throws RepositoryException {
+        if (documentTypeConfigs.isEmpty() || nodeTypeManager == null) {
+            return documentTypeConfigs;
+        }
+
+        final Map<String, DocumentHistoryCleanerConfiguration> configs = new HashMap<>(documentTypeConfigs);
+
+        for (NodeTypeIterator typeIt = nodeTypeManager.getAllNodeTypes(); typeIt.hasNext();) {
+            final NodeType nodeType = typeIt.nextNodeType();
+
+            if (!configs.containsKey(nodeType.getName())) {
+                final DocumentHistoryCleanerConfiguration inherited = findSupertypeConfiguration(nodeType,
+                        documentTypeConfigs);
+
+                if (inherited != null) {
+                    configs.put(nodeType.getName(), inherited);
+                }
+            }
+        }
+
+        return Collections.unmodifiableMap(configs);
+    }
+
+    private static DocumentHistoryCleanerConfiguration findSupertypeConfiguration(final NodeType nodeType,
+            final Map<String, DocumentHistoryCleanerConfiguration> documentTypeConfigs) {
+        final Deque<NodeType> queue = new ArrayDeque<>();
+        final Set<String> visited = new HashSet<>();
+        Collections.addAll(queue, nodeType.getDeclaredSupertypes());
+
+        while (!queue.isEmpty()) {
+            final NodeType supertype = queue.poll();
+
+            if (!visited.add(supertype.getName())) {
+                continue;
+            }
+
+            final DocumentHistoryCleanerConfiguration config = documentTypeConfigs.get(supertype.getName());
+
+            if (config != null) {
+                return config;
+            }
+
+            Collections.addAll(queue, supertype.getDeclaredSupertypes());
+        }
+
+        return null;
+    }
+}
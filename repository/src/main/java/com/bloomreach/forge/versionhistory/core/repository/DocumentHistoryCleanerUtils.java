@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import javax.jcr.Credentials;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hippoecm.repository.HippoStdNodeType;
+import org.hippoecm.repository.api.HippoNodeType;
+
+/**
+ * Utilities for the version history cleaner components.
+ */
+public class DocumentHistoryCleanerUtils {
+
+    private static final Credentials SYSTEM_CREDENTIALS = new SimpleCredentials("system", new char[] {});
+
+    private DocumentHistoryCleanerUtils() {
+    }
+
+    /**
+     * Impersonates a new system session from the daemon session, which may be shared by multiple threads.
+     * @param daemonSession daemon session
+     * @return a new system session, which should be logged out by the caller
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static Session impersonateSystemSession(final Session daemonSession) throws RepositoryException {
+        synchronized (daemonSession) {
+            return daemonSession.impersonate(SYSTEM_CREDENTIALS);
+        }
+    }
+
+    /**
+     * Finds the versionable document variant node under the handle node, which is either the preview variant node
+     * or the deleted variant node in the attic.
+     * @param handle document handle node
+     * @return the versionable document variant node, or null if not found
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static Node findVersionableNode(final Node handle) throws RepositoryException {
+        for (NodeIterator nodeIt = handle.getNodes(handle.getName()); nodeIt.hasNext();) {
+            final Node node = nodeIt.nextNode();
+
+            if (node != null && isPreviewVariantNode(node)) {
+                return node;
+            }
+        }
+
+        for (NodeIterator nodeIt = handle.getNodes(handle.getName()); nodeIt.hasNext();) {
+            final Node node = nodeIt.nextNode();
+
+            if (node != null && node.isNodeType(HippoNodeType.NT_DELETED) && node.isNodeType("mix:versionable")) {
+                return node;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the node at the absolute path, creating the missing nodes on the path as <code>nt:unstructured</code>
+     * without saving the session.
+     * @param session session
+     * @param absPath absolute node path
+     * @return the node at the absolute path
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static Node getOrCreateNode(final Session session, final String absPath) throws RepositoryException {
+        if (session.nodeExists(absPath)) {
+            return session.getNode(absPath);
+        }
+
+        Node node = session.getRootNode();
+
+        for (String name : StringUtils.split(absPath, '/')) {
+            node = node.hasNode(name) ? node.getNode(name) : node.addNode(name, "nt:unstructured");
+        }
+
+        return node;
+    }
+
+    public static boolean isPreviewVariantNode(final Node node) throws RepositoryException {
+        if (node.isNodeType(HippoStdNodeType.NT_PUBLISHABLE)) {
+            final String hippoState = node.getProperty(HippoStdNodeType.HIPPOSTD_STATE).getString();
+
+            if (HippoStdNodeType.UNPUBLISHED.equals(hippoState)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
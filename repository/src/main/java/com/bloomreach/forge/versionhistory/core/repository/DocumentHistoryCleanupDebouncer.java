@@ -0,0 +1,308 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Debouncer of {@link DocumentHistoryCleanupRequest}s, merging the requests for the same subject into a single
+ * pending request, which is dispatched once the subject has had no requests for the quiet period.
+ * <P>
+ * The latest request for a subject replaces the pending one, so that e.g. a deletion after publications results in
+ * a truncation only.
+ * <P>
+ * The pending requests are kept in a hashed timer wheel of a fixed number of buckets, advanced by a single thread
+ * once per tick, instead of scheduling a task per subject. A request for a pending subject only extends its
+ * deadline; when the bucket of the old deadline is reached, the pending request is moved to the bucket of the new
+ * deadline. So both submitting a request and advancing a tick take a constant time per request, regardless of
+ * the number of the pending subjects.
+ * <P>
+ * When the max number of the pending subjects is reached, a request for a new subject is dispatched immediately.
+ * On shutdown, the pending requests are not dispatched but returned to the caller, e.g, to be persisted, as
+ * dispatching up to the max number of the pending requests could hold up the shutdown for a long time.
+ */
+public class DocumentHistoryCleanupDebouncer {
+
+    private static Logger log = LoggerFactory.getLogger(DocumentHistoryCleanupDebouncer.class);
+
+    private static final int WHEEL_SIZE = 512;
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /**
+     * The number of ticks per quiet period, by which the tick duration is computed from the quiet period.
+     */
+    private static final long TICKS_PER_QUIET_PERIOD = 64L;
+
+    private static final long MIN_TICK_MILLIS = 10L;
+
+    private static final long MAX_TICK_MILLIS = 1000L;
+
+    private final Consumer<DocumentHistoryCleanupRequest> dispatcher;
+    private final long quietPeriodMillis;
+    private final int maxPendingCount;
+    private final long tickMillis;
+
+    /**
+     * The pending requests by the subject identifiers, and the timer wheel buckets of the pending requests by
+     * the deadline ticks, guarded by this.
+     */
+    private final Map<String, PendingRequest> pendingRequests = new HashMap<>();
+    private final List<List<PendingRequest>> buckets = new ArrayList<>(WHEEL_SIZE);
+
+    /**
+     * The next tick to be advanced by the timer thread, guarded by this.
+     */
+    private long nextTick;
+
+    private long mergedCount;
+    private long dispatchedCount;
+
+    private Thread timerThread;
+    private volatile boolean running;
+
+    /**
+     * @param dispatcher dispatcher of the requests after the quiet period
+     * @param quietPeriodMillis the quiet period in milliseconds after the last request for a subject, before
+     *        dispatching the request
+     * @param maxPendingCount the max number of the pending subjects
+     */
+    public DocumentHistoryCleanupDebouncer(final Consumer<DocumentHistoryCleanupRequest> dispatcher,
+            final long quietPeriodMillis, final int maxPendingCount) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("dispatcher must be not null.");
+        }
+
+        if (quietPeriodMillis < 1L) {
+            throw new IllegalArgumentException("quiet period must be a positive integer.");
+        }
+
+        if (maxPendingCount < 1) {
+            throw new IllegalArgumentException("max pending count must be a positive integer.");
+        }
+
+        this.dispatcher = dispatcher;
+        this.quietPeriodMillis = quietPeriodMillis;
+        this.maxPendingCount = maxPendingCount;
+        this.tickMillis = Math.min(MAX_TICK_MILLIS,
+                Math.max(MIN_TICK_MILLIS, quietPeriodMillis / TICKS_PER_QUIET_PERIOD));
+
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            buckets.add(new ArrayList<>());
+        }
+    }
+
+    public long getQuietPeriodMillis() {
+        return quietPeriodMillis;
+    }
+
+    public int getMaxPendingCount() {
+        return maxPendingCount;
+    }
+
+    /**
+     * Returns the number of the subjects having a pending request.
+     * @return the number of the subjects having a pending request
+     */
+    public synchronized int getPendingCount() {
+        return pendingRequests.size();
+    }
+
+    /**
+     * Returns the number of the requests merged into a pending request of the same subject.
+     * @return the number of the requests merged into a pending request of the same subject
+     */
+    public synchronized long getMergedCount() {
+        return mergedCount;
+    }
+
+    /**
+     * Returns the number of the requests dispatched.
+     * @return the number of the requests dispatched
+     */
+    public synchronized long getDispatchedCount() {
+        return dispatchedCount;
+    }
+
+    public synchronized void start() {
+        if (timerThread != null) {
+            throw new IllegalStateException("Already started.");
+        }
+
+        nextTick = System.currentTimeMillis() / tickMillis + 1L;
+        running = true;
+        timerThread = new Thread(this::runTimer, "version-history-cleaner-debouncer");
+        timerThread.setDaemon(true);
+        timerThread.start();
+    }
+
+    /**
+     * Submits the request, merging it into the pending request of the same subject if any, or dispatches it
+     * immediately if the debouncer is not running or the max number of the pending subjects is reached.
+     * @param request cleanup request
+     */
+    public void submit(final DocumentHistoryCleanupRequest request) {
+        synchronized (this) {
+            if (running) {
+                final long deadlineMillis = System.currentTimeMillis() + quietPeriodMillis;
+                final PendingRequest pending = pendingRequests.get(request.getSubjectId());
+
+                if (pending != null) {
+                    pending.request = request;
+                    pending.deadlineMillis = deadlineMillis;
+                    ++mergedCount;
+                    return;
+                }
+
+                if (pendingRequests.size() < maxPendingCount) {
+                    final PendingRequest newPending = new PendingRequest(request, deadlineMillis);
+                    pendingRequests.put(request.getSubjectId(), newPending);
+                    schedule(newPending);
+                    return;
+                }
+            }
+
+            ++dispatchedCount;
+        }
+
+        dispatch(request);
+    }
+
+    /**
+     * Stops the timer thread and returns all the pending requests without dispatching them.
+     * A request submitted after the shutdown is dispatched immediately.
+     * @return the pending requests which were not dispatched
+     */
+    public List<DocumentHistoryCleanupRequest> shutdown() {
+        final Thread thread;
+
+        synchronized (this) {
+            running = false;
+            thread = timerThread;
+            timerThread = null;
+        }
+
+        if (thread != null) {
+            // not interrupting the timer thread which may be dispatching requests, as a tick is at most a second.
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        final List<DocumentHistoryCleanupRequest> pendings = new ArrayList<>();
+
+        synchronized (this) {
+            for (PendingRequest pending : pendingRequests.values()) {
+                pendings.add(pending.request);
+            }
+
+            pendingRequests.clear();
+            buckets.forEach(List::clear);
+        }
+
+        return pendings;
+    }
+
+    /**
+     * Adds the pending request to the bucket of its deadline tick, or of the next tick if the deadline tick has
+     * already been advanced.
+     */
+    private void schedule(final PendingRequest pending) {
+        final long deadlineTick = Math.max(nextTick, (pending.deadlineMillis + tickMillis - 1L) / tickMillis);
+        buckets.get((int) (deadlineTick & WHEEL_MASK)).add(pending);
+    }
+
+    private void runTimer() {
+        while (running) {
+            final long tickStartMillis;
+
+            synchronized (this) {
+                tickStartMillis = nextTick * tickMillis;
+            }
+
+            final long sleepMillis = tickStartMillis - System.currentTimeMillis();
+
+            if (sleepMillis > 0L) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            for (PendingRequest pending : advance()) {
+                dispatch(pending.request);
+            }
+        }
+    }
+
+    /**
+     * Advances the next tick, returning the pending requests due, and moving the ones whose deadlines were
+     * extended to the buckets of their new deadlines.
+     */
+    private synchronized List<PendingRequest> advance() {
+        final int index = (int) (nextTick & WHEEL_MASK);
+        final List<PendingRequest> bucket = buckets.get(index);
+        buckets.set(index, new ArrayList<>());
+        ++nextTick;
+
+        final long nowMillis = System.currentTimeMillis();
+        final List<PendingRequest> due = new ArrayList<>();
+
+        for (PendingRequest pending : bucket) {
+            if (pending.deadlineMillis <= nowMillis) {
+                pendingRequests.remove(pending.request.getSubjectId());
+                due.add(pending);
+            } else {
+                schedule(pending);
+            }
+        }
+
+        dispatchedCount += due.size();
+        return due;
+    }
+
+    private void dispatch(final DocumentHistoryCleanupRequest request) {
+        try {
+            dispatcher.accept(request);
+        } catch (RuntimeException e) {
+            log.error("Failed to dispatch {}.", request, e);
+        }
+    }
+
+    /**
+     * The latest request for a subject and its deadline, guarded by the debouncer.
+     */
+    private static class PendingRequest {
+
+        private DocumentHistoryCleanupRequest request;
+        private long deadlineMillis;
+
+        private PendingRequest(final DocumentHistoryCleanupRequest request, final long deadlineMillis) {
+            this.request = request;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded worker pool processing {@link DocumentHistoryCleanupRequest}s asynchronously,
+ * so that the event bus thread only needs to enqueue a request.
+ * <P>
+ * When the queue is full, the {@link OverflowPolicy} decides whether the submitter blocks until there's room,
+ * the request is dropped, or the request is spilled to a durable {@link DocumentHistoryPendingQueue}, so that
+ * the memory used by the pending requests is always bounded by the queue size.
+ * <P>
+ * The spilled requests are bounded by the max spill size, and moved back into the in-memory queue by the workers
+ * whenever it has room. The spilled requests left on shutdown, as well as the in-memory requests not drained within
+ * the shutdown timeout, stay in the spill queue, and are processed after the next start.
+ */
+public class DocumentHistoryCleanupExecutor {
+
+    private static Logger log = LoggerFactory.getLogger(DocumentHistoryCleanupExecutor.class);
+
+    /**
+     * Interval in milliseconds at which idle workers and blocked submitters re-check the executor state.
+     */
+    private static final long POLL_INTERVAL_MILLIS = 500L;
+
+    /**
+     * What to do with a request when the bounded queue is full.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Block the submitter until there's room in the queue.
+         */
+        BLOCK,
+
+        /**
+         * Drop the request, logging a warning.
+         */
+        DROP,
+
+        /**
+         * Store the request in the durable spill queue, or drop it with a warning if the spill queue is full.
+         * Blocks the submitter like {@link #BLOCK} if the executor has no spill queue.
+         */
+        SPILL;
+
+        public static OverflowPolicy parse(final String value, final OverflowPolicy defaultPolicy) {
+            if (StringUtils.isBlank(value)) {
+                return defaultPolicy;
+            }
+
+            try {
+                return OverflowPolicy.valueOf(StringUtils.upperCase(value.trim()));
+            } catch (IllegalArgumentException e) {
+                log.warn("Unknown overflow policy, '{}'. Falling back to '{}'.", value, defaultPolicy);
+                return defaultPolicy;
+            }
+        }
+    }
+
+    private final Consumer<DocumentHistoryCleanupRequest> processor;
+    private final int workerCount;
+    private final OverflowPolicy overflowPolicy;
+    private final BlockingQueue<DocumentHistoryCleanupRequest> queue;
+    private Thread[] workers;
+    private volatile boolean accepting;
+
+    /**
+     * Lock guarding the spill queue, as its session must not be used by multiple threads concurrently.
+     */
+    private final Object spillLock = new Object();
+    private DocumentHistoryPendingQueue spillQueue;
+    private int maxSpillSize;
+
+    /**
+     * The estimated number of the spilled requests, which may be higher than the actual number when a spilled
+     * request is updated in place by a newer request for the same subject.
+     */
+    private volatile int spilledCount;
+
+    public DocumentHistoryCleanupExecutor(final Consumer<DocumentHistoryCleanupRequest> processor,
+            final int workerCount, final int queueSize, final OverflowPolicy overflowPolicy) {
+        if (processor == null) {
+            throw new IllegalArgumentException("processor must be not null.");
+        }
+
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("worker count must be a positive integer.");
+        }
+
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queue size must be a positive integer.");
+        }
+
+        this.processor = processor;
+        this.workerCount = workerCount;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.overflowPolicy = (overflowPolicy != null) ? overflowPolicy : OverflowPolicy.BLOCK;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets the durable queue to spill the requests to when the in-memory queue is full, which must be invoked
+     * before {@link #start()}. The executor owns the session of the spill queue from then on.
+     * @param spillQueue durable spill queue, using a session dedicated to the executor
+     * @param maxSpillSize the max number of spilled requests
+     */
+    public synchronized void setSpillQueue(final DocumentHistoryPendingQueue spillQueue, final int maxSpillSize) {
+        if (workers != null) {
+            throw new IllegalStateException("Already started.");
+        }
+
+        if (spillQueue != null && maxSpillSize < 1) {
+            throw new IllegalArgumentException("max spill size must be a positive integer.");
+        }
+
+        this.spillQueue = spillQueue;
+        this.maxSpillSize = maxSpillSize;
+    }
+
+    /**
+     * Returns the number of requests waiting to be processed, including the estimated number of spilled requests.
+     * @return the number of requests waiting to be processed
+     */
+    public int getPendingCount() {
+        return queue.size() + spilledCount;
+    }
+
+    public synchronized void start() {
+        if (workers != null) {
+            throw new IllegalStateException("Already started.");
+        }
+
+        if (spillQueue != null) {
+            countSpilledRequests();
+        }
+
+        accepting = true;
+        workers = new Thread[workerCount];
+
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::runWorker, "version-history-cleaner-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Enqueues the request, applying the {@link OverflowPolicy} if the queue is full.
+     * @param request cleanup request
+     * @return true if the request was accepted, false if it was dropped or the executor is shutting down
+     */
+    public boolean submit(final DocumentHistoryCleanupRequest request) {
+        if (!accepting) {
+            log.warn("Rejecting {} as the executor is shutting down.", request);
+            return false;
+        }
+
+        if (queue.offer(request)) {
+            return true;
+        }
+
+        switch (overflowPolicy) {
+        case DROP:
+            log.warn("Dropping {} as the cleanup queue is full.", request);
+            return false;
+        case SPILL:
+            if (spillQueue != null) {
+                return spill(request);
+            }
+
+            return putBlocking(request);
+        default:
+            return putBlocking(request);
+        }
+    }
+
+    /**
+     * Stops accepting new requests and lets the workers drain the pending requests,
+     * waiting at most {@code timeoutMillis} before interrupting them. The in-memory requests not drained within
+     * the timeout are moved to the spill queue if any, or discarded otherwise.
+     * @param timeoutMillis max wait time in milliseconds
+     */
+    public synchronized void shutdown(final long timeoutMillis) {
+        accepting = false;
+
+        if (workers == null) {
+            return;
+        }
+
+        final long deadline = System.currentTimeMillis() + Math.max(0L, timeoutMillis);
+
+        for (Thread worker : workers) {
+            try {
+                worker.join(Math.max(1L, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        for (Thread worker : workers) {
+            if (worker.isAlive()) {
+                worker.interrupt();
+            }
+        }
+
+        final List<DocumentHistoryCleanupRequest> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+
+        if (!remaining.isEmpty()) {
+            if (spillQueue != null) {
+                spillRemaining(remaining, timeoutMillis);
+            } else {
+                log.warn("Discarding {} pending cleanup request(s) not drained within {}ms.", remaining.size(),
+                        timeoutMillis);
+            }
+        }
+
+        workers = null;
+    }
+
+    private void spillRemaining(final List<DocumentHistoryCleanupRequest> remaining, final long timeoutMillis) {
+        synchronized (spillLock) {
+            try {
+                spillQueue.enqueue(remaining);
+                spilledCount += remaining.size();
+                log.info("Spilled {} pending cleanup request(s) not drained within {}ms to {}.", remaining.size(),
+                        timeoutMillis, spillQueue.getPath());
+            } catch (RepositoryException e) {
+                log.error("Discarding {} pending cleanup request(s) not drained within {}ms, failed to spill them.",
+                        remaining.size(), timeoutMillis, e);
+                refreshSpillSession();
+            }
+        }
+    }
+
+    /**
+     * Stores the request in the spill queue, unless the spill queue is full.
+     * @return true if the request was spilled, false if it was dropped
+     */
+    private boolean spill(final DocumentHistoryCleanupRequest request) {
+        synchronized (spillLock) {
+            if (spilledCount >= maxSpillSize) {
+                log.warn("Dropping {} as both the cleanup queue and the spill queue are full.", request);
+                return false;
+            }
+
+            try {
+                spillQueue.enqueue(request);
+                spilledCount++;
+                return true;
+            } catch (RepositoryException e) {
+                log.error("Dropping {} as it failed to spill.", request, e);
+                refreshSpillSession();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Moves the spilled requests back into the in-memory queue as far as it has room.
+     */
+    private void refill() {
+        if (spilledCount == 0 || queue.remainingCapacity() == 0) {
+            return;
+        }
+
+        synchronized (spillLock) {
+            final int room = queue.remainingCapacity();
+
+            if (spilledCount == 0 || room == 0) {
+                return;
+            }
+
+            try {
+                final List<DocumentHistoryCleanupRequest> spilled = spillQueue.peek(room);
+                final List<DocumentHistoryCleanupRequest> moved = new ArrayList<>(spilled.size());
+
+                for (DocumentHistoryCleanupRequest request : spilled) {
+                    if (!queue.offer(request)) {
+                        break;
+                    }
+
+                    moved.add(request);
+                }
+
+                spillQueue.remove(moved);
+                spilledCount = spilled.isEmpty() ? 0 : Math.max(0, spilledCount - moved.size());
+            } catch (RepositoryException e) {
+                log.error("Failed to move the spilled cleanup requests from {}.", spillQueue.getPath(), e);
+                refreshSpillSession();
+            }
+        }
+    }
+
+    private void countSpilledRequests() {
+        synchronized (spillLock) {
+            try {
+                spilledCount = spillQueue.peek(maxSpillSize).size();
+            } catch (RepositoryException e) {
+                log.error("Failed to count the spilled cleanup requests in {}.", spillQueue.getPath(), e);
+                // assume it's full, so that the workers try to move the spilled requests.
+                spilledCount = maxSpillSize;
+            }
+
+            if (spilledCount > 0) {
+                log.info("Resuming {} spilled cleanup request(s) in {}.", spilledCount, spillQueue.getPath());
+            }
+        }
+    }
+
+    private void refreshSpillSession() {
+        try {
+            spillQueue.getSession().refresh(false);
+        } catch (RepositoryException e) {
+            log.warn("Failed to refresh the spill queue session: {}", e.toString());
+        }
+    }
+
+    private boolean putBlocking(final DocumentHistoryCleanupRequest request) {
+        try {
+            while (accepting) {
+                if (queue.offer(request, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        log.warn("Rejecting {} as the executor is shutting down.", request);
+        return false;
+    }
+
+    private void runWorker() {
+        while (!Thread.currentThread().isInterrupted()) {
+            if (accepting && spillQueue != null) {
+                refill();
+            }
+
+            DocumentHistoryCleanupRequest request;
+
+            try {
+                request = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if (request == null) {
+                if (!accepting) {
+                    break;
+                }
+
+                continue;
+            }
+
+            try {
+                processor.accept(request);
+            } catch (RuntimeException e) {
+                log.error("Failed to process {}.", request, e);
+            }
+        }
+    }
+}
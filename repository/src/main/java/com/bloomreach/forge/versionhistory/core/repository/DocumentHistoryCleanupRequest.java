@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+/**
+ * Immutable cleanup request captured from a workflow event, which is small enough to be queued
+ * and processed later outside the event bus thread.
+ */
+public final class DocumentHistoryCleanupRequest {
+
+    /**
+     * Action name of a request to clean up old versions on document publication.
+     */
+    public static final String ACTION_PUBLISH = "publish";
+
+    /**
+     * Action name of a request to truncate all the versions on document deletion.
+     */
+    public static final String ACTION_DELETE = "delete";
+
+    private final String subjectId;
+    private final String subjectPath;
+    private final String documentType;
+    private final String action;
+
+    public DocumentHistoryCleanupRequest(final String subjectId, final String subjectPath,
+            final String documentType, final String action) {
+        this.subjectId = subjectId;
+        this.subjectPath = subjectPath;
+        this.documentType = documentType;
+        this.action = action;
+    }
+
+    public String getSubjectId() {
+        return subjectId;
+    }
+
+    public String getSubjectPath() {
+        return subjectPath;
+    }
+
+    public String getDocumentType() {
+        return documentType;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    @Override
+    public String toString() {
+        return "DocumentHistoryCleanupRequest [action=" + action + ", subjectId=" + subjectId + ", subjectPath="
+                + subjectPath + ", documentType=" + documentType + "]";
+    }
+}
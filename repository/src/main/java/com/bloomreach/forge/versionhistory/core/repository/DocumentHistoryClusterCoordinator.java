@@ -0,0 +1,508 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hippoecm.repository.util.JcrUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinates the cleanup among the nodes of a repository cluster, so that the version history of a document
+ * is cleaned up by only one cluster node at a time.
+ * <P>
+ * Each cluster node writes a heartbeat to a member node under the cluster state node in the repository,
+ * and the cluster nodes of which the heartbeat is not older than the member timeout are considered live.
+ * The member node of a cluster node that hasn't written a heartbeat for twice the member timeout is removed.
+ * In {@link Mode#LEASE} mode, the cluster node holding the lease owns all the cleanups, and the lease is taken over
+ * by another cluster node when it expires. In {@link Mode#PARTITION} mode, the subject identifiers are split across
+ * the live cluster nodes by consistent hashing, so a cluster node that disappears only moves its own share
+ * to the others.
+ * <P>
+ * A cleanup request of which this cluster node is not the owner is handed off to the owner through a shared queue
+ * in the repository. Each cluster node drains the handed-off requests it owns by a
+ * {@link DocumentHistoryHandoffWorker} in another thread, so the heartbeat thread only writes the heartbeats
+ * and renews the lease.
+ * <P>
+ * <EM>Note:</EM> the heartbeats are compared with the local clock, so the clocks of the cluster nodes must be
+ * synchronized well within the member timeout.
+ */
+public class DocumentHistoryClusterCoordinator {
+
+    private static Logger log = LoggerFactory.getLogger(DocumentHistoryClusterCoordinator.class);
+
+    /**
+     * The system property of the Jackrabbit cluster node identifier, used as the default cluster node identifier.
+     */
+    public static final String CLUSTER_NODE_ID_SYSTEM_PROP = "org.apache.jackrabbit.core.cluster.node_id";
+
+    private static final String MEMBERS_NODE_NAME = "members";
+
+    private static final String LEASE_NODE_NAME = "lease";
+
+    private static final String HANDOFF_NODE_NAME = "handoff";
+
+    private static final String HEARTBEAT_PROP_NAME = "heartbeat";
+
+    private static final String OWNER_PROP_NAME = "owner";
+
+    private static final String EXPIRES_PROP_NAME = "expires";
+
+    /**
+     * The number of points of each cluster node on the hash ring, to spread the subjects evenly.
+     */
+    private static final int VIRTUAL_NODE_COUNT = 64;
+
+    private static final long STOP_TIMEOUT_MILLIS = 10000L;
+
+    public enum Mode {
+
+        /**
+         * One cluster node holding the lease owns all the cleanups.
+         */
+        LEASE,
+
+        /**
+         * The subjects are split across the live cluster nodes by consistent hashing.
+         */
+        PARTITION;
+
+        /**
+         * Parses the mode, returning null if the value is blank or "none".
+         * @param value mode name
+         * @return the mode, or null if coordination is disabled or the mode is unknown
+         */
+        public static Mode parse(final String value) {
+            if (StringUtils.isBlank(value) || "none".equalsIgnoreCase(value.trim())) {
+                return null;
+            }
+
+            try {
+                return Mode.valueOf(StringUtils.upperCase(value.trim()));
+            } catch (IllegalArgumentException e) {
+                log.warn("Unknown cluster coordination mode, '{}'. Coordination is disabled.", value);
+                return null;
+            }
+        }
+    }
+
+    private final Session session;
+    private final String statePath;
+    private final String clusterNodeId;
+    private final Mode mode;
+    private final long heartbeatIntervalMillis;
+    private final long memberTimeoutMillis;
+
+    private volatile boolean joined;
+    private volatile boolean leaseHeld;
+    private volatile List<String> liveMembers;
+    private volatile NavigableMap<Integer, String> ring;
+
+    private volatile boolean stopped;
+    private Thread heartbeatThread;
+
+    /**
+     * @param session the session used only by the heartbeat thread, logged out on {@link #stop()}
+     * @param statePath the absolute path of the cluster state node
+     * @param clusterNodeId the identifier of this cluster node, unique in the cluster
+     * @param mode coordination mode
+     * @param heartbeatIntervalMillis interval between heartbeats in milliseconds
+     * @param memberTimeoutMillis the age in milliseconds after which a heartbeat or the lease expires
+     */
+    public DocumentHistoryClusterCoordinator(final Session session, final String statePath,
+            final String clusterNodeId, final Mode mode, final long heartbeatIntervalMillis,
+            final long memberTimeoutMillis) {
+        if (session == null) {
+            throw new IllegalArgumentException("session must be not null.");
+        }
+
+        if (!StringUtils.startsWith(statePath, "/") || "/".equals(statePath)) {
+            throw new IllegalArgumentException("state path must be an absolute non-root path.");
+        }
+
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must be not null.");
+        }
+
+        if (heartbeatIntervalMillis <= 0L || memberTimeoutMillis <= heartbeatIntervalMillis) {
+            throw new IllegalArgumentException("member timeout must be longer than the positive heartbeat interval.");
+        }
+
+        this.session = session;
+        this.statePath = statePath;
+        this.clusterNodeId = toNodeName(clusterNodeId);
+        this.mode = mode;
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+        this.memberTimeoutMillis = memberTimeoutMillis;
+
+        // until the first heartbeat, this cluster node considers itself the only live member.
+        liveMembers = Collections.singletonList(this.clusterNodeId);
+        ring = buildRing(liveMembers);
+    }
+
+    /**
+     * Returns the default cluster node identifier, which is the Jackrabbit cluster node identifier if set,
+     * or the name of the JVM, such as "pid@hostname", otherwise.
+     * @return the default cluster node identifier
+     */
+    public static String getDefaultClusterNodeId() {
+        final String clusterNodeId = System.getProperty(CLUSTER_NODE_ID_SYSTEM_PROP);
+        return StringUtils.isNotBlank(clusterNodeId) ? clusterNodeId : ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    public String getClusterNodeId() {
+        return clusterNodeId;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    public long getMemberTimeoutMillis() {
+        return memberTimeoutMillis;
+    }
+
+    public String getHandoffQueuePath() {
+        return statePath + "/" + HANDOFF_NODE_NAME;
+    }
+
+    /**
+     * Returns whether or not this cluster node has read the live members and, in lease mode, the lease
+     * by a heartbeat. Until then, this cluster node considers itself the only live member.
+     * @return whether or not this cluster node has read the live members by a heartbeat
+     */
+    public boolean isJoined() {
+        return joined;
+    }
+
+    /**
+     * Returns whether or not this cluster node holds the lease, which is meaningful only in lease mode.
+     * @return whether or not this cluster node holds the lease
+     */
+    public boolean isLeaseHeld() {
+        return leaseHeld;
+    }
+
+    /**
+     * Returns the identifiers of the live cluster nodes as of the last heartbeat.
+     * @return the identifiers of the live cluster nodes as of the last heartbeat
+     */
+    public List<String> getLiveMembers() {
+        return liveMembers;
+    }
+
+    /**
+     * Returns whether or not this cluster node owns the cleanup of the subject.
+     * @param subjectId subject identifier
+     * @return whether or not this cluster node owns the cleanup of the subject
+     */
+    public boolean isOwner(final String subjectId) {
+        if (mode == Mode.LEASE) {
+            return leaseHeld;
+        }
+
+        return clusterNodeId.equals(getPartitionOwner(subjectId));
+    }
+
+    /**
+     * Hands off the request to the owner through the shared queue, and saves the session.
+     * @param session session to write the queue with
+     * @param request cleanup request
+     * @throws RepositoryException if repository exception occurs
+     */
+    public void handOff(final Session session, final DocumentHistoryCleanupRequest request)
+            throws RepositoryException {
+        new DocumentHistoryPendingQueue(session, getHandoffQueuePath()).enqueue(request);
+    }
+
+    /**
+     * Writes the first heartbeat and starts the heartbeat thread.
+     */
+    public synchronized void start() {
+        if (heartbeatThread != null) {
+            throw new IllegalStateException("Already started.");
+        }
+
+        heartbeatThread = new Thread(this::runHeartbeats, "version-history-cleaner-cluster");
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+        log.info("Coordinating version history cleanup in {} mode as cluster node '{}'.", mode, clusterNodeId);
+    }
+
+    /**
+     * Stops the heartbeat thread, leaves the cluster by removing the member node and releasing the lease if held,
+     * and logs out the session.
+     */
+    public synchronized void stop() {
+        stopped = true;
+
+        if (heartbeatThread != null) {
+            heartbeatThread.interrupt();
+
+            try {
+                heartbeatThread.join(STOP_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            heartbeatThread = null;
+        }
+
+        try {
+            session.refresh(false);
+            leave();
+        } catch (RepositoryException e) {
+            log.warn("Failed to leave the cluster. The other cluster nodes take over after the member timeout.", e);
+        } finally {
+            joined = false;
+            leaseHeld = false;
+            session.logout();
+        }
+    }
+
+    private void runHeartbeats() {
+        while (!stopped) {
+            try {
+                heartbeat();
+                TimeUnit.MILLISECONDS.sleep(heartbeatIntervalMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Failed cluster heartbeat of cluster node '{}'.", clusterNodeId, e);
+                refreshQuietly();
+
+                try {
+                    TimeUnit.MILLISECONDS.sleep(heartbeatIntervalMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the heartbeat of this cluster node, reads the live members, removes the expired member nodes,
+     * and renews or takes over the lease.
+     */
+    private void heartbeat() throws RepositoryException {
+        final long nowMillis = System.currentTimeMillis();
+        Node stateNode = DocumentHistoryCleanerUtils.getOrCreateNode(session, statePath);
+        Node membersNode = getOrCreateNode(stateNode, MEMBERS_NODE_NAME);
+
+        try {
+            getOrCreateNode(membersNode, clusterNodeId).setProperty(HEARTBEAT_PROP_NAME, nowMillis);
+            session.save();
+        } catch (InvalidItemStateException e) {
+            // another cluster node removed the member node of this cluster node, after a long pause of this one.
+            session.refresh(false);
+            stateNode = DocumentHistoryCleanerUtils.getOrCreateNode(session, statePath);
+            membersNode = getOrCreateNode(stateNode, MEMBERS_NODE_NAME);
+            getOrCreateNode(membersNode, clusterNodeId).setProperty(HEARTBEAT_PROP_NAME, nowMillis);
+            session.save();
+        }
+
+        final List<String> members = new ArrayList<>();
+        final List<Node> expiredMemberNodes = new ArrayList<>();
+
+        for (NodeIterator nodeIt = membersNode.getNodes(); nodeIt.hasNext();) {
+            final Node node = nodeIt.nextNode();
+
+            if (node == null) {
+                continue;
+            }
+
+            final long age = nowMillis - JcrUtils.getLongProperty(node, HEARTBEAT_PROP_NAME, 0L);
+
+            if (age <= memberTimeoutMillis) {
+                members.add(node.getName());
+            } else if (age > 2L * memberTimeoutMillis) {
+                expiredMemberNodes.add(node);
+            }
+        }
+
+        removeExpiredMembers(expiredMemberNodes);
+
+        Collections.sort(members);
+
+        if (!members.equals(liveMembers)) {
+            log.info("Live version history cleaner cluster nodes changed from {} to {}.", liveMembers, members);
+            liveMembers = Collections.unmodifiableList(members);
+            ring = buildRing(members);
+        }
+
+        if (mode == Mode.LEASE) {
+            renewLease(stateNode, nowMillis);
+        }
+
+        joined = true;
+    }
+
+    private void renewLease(final Node stateNode, final long nowMillis) throws RepositoryException {
+        final Node leaseNode = getOrCreateNode(stateNode, LEASE_NODE_NAME);
+        final String owner = JcrUtils.getStringProperty(leaseNode, OWNER_PROP_NAME, null);
+        final long expires = JcrUtils.getLongProperty(leaseNode, EXPIRES_PROP_NAME, 0L);
+        final boolean wasHeld = leaseHeld;
+
+        if (!clusterNodeId.equals(owner) && expires >= nowMillis) {
+            leaseHeld = false;
+        } else {
+            leaseNode.setProperty(OWNER_PROP_NAME, clusterNodeId);
+            leaseNode.setProperty(EXPIRES_PROP_NAME, nowMillis + memberTimeoutMillis);
+
+            try {
+                session.save();
+                leaseHeld = true;
+            } catch (InvalidItemStateException e) {
+                // another cluster node renewed or took over the lease concurrently.
+                refreshQuietly();
+                leaseHeld = false;
+            }
+        }
+
+        if (leaseHeld != wasHeld) {
+            log.info("Cluster node '{}' {} the version history cleanup lease.", clusterNodeId,
+                    leaseHeld ? "acquired" : "lost");
+        }
+    }
+
+    /**
+     * Removes the member nodes of the cluster nodes gone for good, e.g, of which the identifier changed,
+     * which would pile up otherwise. A cluster node coming back writes its member node again on the next heartbeat.
+     */
+    private void removeExpiredMembers(final List<Node> expiredMemberNodes) throws RepositoryException {
+        if (expiredMemberNodes.isEmpty()) {
+            return;
+        }
+
+        final List<String> names = new ArrayList<>(expiredMemberNodes.size());
+
+        for (Node node : expiredMemberNodes) {
+            names.add(node.getName());
+            node.remove();
+        }
+
+        try {
+            session.save();
+            log.info("Removed the expired version history cleaner cluster members, {}.", names);
+        } catch (InvalidItemStateException e) {
+            // another cluster node removed or wrote them concurrently.
+            refreshQuietly();
+        }
+    }
+
+    private void leave() throws RepositoryException {
+        if (!session.nodeExists(statePath)) {
+            return;
+        }
+
+        final Node stateNode = session.getNode(statePath);
+
+        if (stateNode.hasNode(MEMBERS_NODE_NAME + "/" + clusterNodeId)) {
+            stateNode.getNode(MEMBERS_NODE_NAME + "/" + clusterNodeId).remove();
+        }
+
+        if (leaseHeld && stateNode.hasNode(LEASE_NODE_NAME)) {
+            stateNode.getNode(LEASE_NODE_NAME).setProperty(EXPIRES_PROP_NAME, 0L);
+        }
+
+        session.save();
+    }
+
+    private String getPartitionOwner(final String subjectId) {
+        final NavigableMap<Integer, String> curRing = ring;
+        final SortedMap<Integer, String> tail = curRing.tailMap(hash(subjectId));
+        return tail.isEmpty() ? curRing.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    private static NavigableMap<Integer, String> buildRing(final List<String> members) {
+        final NavigableMap<Integer, String> newRing = new TreeMap<>();
+
+        for (String member : members) {
+            for (int i = 0; i < VIRTUAL_NODE_COUNT; i++) {
+                newRing.put(hash(member + "#" + i), member);
+            }
+        }
+
+        return newRing;
+    }
+
+    /**
+     * Returns the first 4 bytes of the MD5 digest, which is the same on every cluster node unlike
+     * {@link String#hashCode()} of which the distribution is too poor for the ring.
+     */
+    private static int hash(final String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            return ((digest[0] & 0xFF) << 24) | ((digest[1] & 0xFF) << 16) | ((digest[2] & 0xFF) << 8)
+                    | (digest[3] & 0xFF);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available.", e);
+        }
+    }
+
+    private void refreshQuietly() {
+        try {
+            session.refresh(false);
+        } catch (RepositoryException e) {
+            log.warn("Failed to refresh cluster coordinator session.", e);
+        }
+    }
+
+    private static Node getOrCreateNode(final Node parent, final String... names) throws RepositoryException {
+        Node node = parent;
+
+        for (String name : names) {
+            node = node.hasNode(name) ? node.getNode(name) : node.addNode(name, "nt:unstructured");
+        }
+
+        return node;
+    }
+
+    /**
+     * Replaces the characters not allowed or unsafe in a node name.
+     */
+    static String toNodeName(final String clusterNodeId) {
+        if (StringUtils.isBlank(clusterNodeId)) {
+            throw new IllegalArgumentException("cluster node id must be not blank.");
+        }
+
+        return clusterNodeId.trim().replaceAll("[^A-Za-z0-9_.\\-]", "_");
+    }
+}
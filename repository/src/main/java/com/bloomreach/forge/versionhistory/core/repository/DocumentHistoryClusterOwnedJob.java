@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.function.Supplier;
+
+import javax.jcr.RepositoryException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Job run only by the cluster node owning it by the {@link DocumentHistoryClusterCoordinator}, so that
+ * a repository-wide job such as the backfill doesn't run on every cluster node over the same version histories.
+ * <P>
+ * It waits until this cluster node has joined the cluster and owns the job name as a subject, and then runs a job
+ * created by the factory. While the job runs, the ownership is checked at every heartbeat interval, and the job is
+ * stopped once another cluster node takes it over, e.g, when a cluster node joins in partition mode. Then this
+ * cluster node waits again until it owns the job, while the new owner runs a new job, resuming from the checkpoint
+ * if the job has one.
+ * <P>
+ * <EM>Note:</EM> This is not thread-safe. Run it in a single thread, e.g, in a background thread started by
+ * {@link DocumentHistoryCleanerDaemonModule}.
+ */
+public class DocumentHistoryClusterOwnedJob implements DocumentHistoryCleanerJob {
+
+    private static Logger log = LoggerFactory.getLogger(DocumentHistoryClusterOwnedJob.class);
+
+    private final DocumentHistoryClusterCoordinator coordinator;
+    private final String name;
+    private final Supplier<? extends DocumentHistoryCleanerJob> jobFactory;
+
+    private volatile DocumentHistoryCleanerJob currentJob;
+    private volatile boolean ownershipLost;
+    private volatile boolean stopped;
+
+    /**
+     * @param coordinator the cluster coordinator deciding the ownership of the job
+     * @param name the name of the job, by which the owner cluster node is decided
+     * @param jobFactory factory of the job, invoked each time this cluster node becomes the owner
+     */
+    public DocumentHistoryClusterOwnedJob(final DocumentHistoryClusterCoordinator coordinator, final String name,
+            final Supplier<? extends DocumentHistoryCleanerJob> jobFactory) {
+        if (coordinator == null) {
+            throw new IllegalArgumentException("coordinator must be not null.");
+        }
+
+        if (name == null) {
+            throw new IllegalArgumentException("name must be not null.");
+        }
+
+        if (jobFactory == null) {
+            throw new IllegalArgumentException("job factory must be not null.");
+        }
+
+        this.coordinator = coordinator;
+        this.name = name;
+        this.jobFactory = jobFactory;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Requests the waiting or the running job to stop.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+        final DocumentHistoryCleanerJob job = currentJob;
+
+        if (job != null) {
+            job.stop();
+        }
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Runs the job whenever this cluster node owns it, until the job completes or this is stopped.
+     * @return true if the job completed, false if stopped before completion
+     * @throws RepositoryException if repository exception occurs while this cluster node owns the job
+     */
+    @Override
+    public boolean run() throws RepositoryException {
+        while (awaitOwnership()) {
+            final DocumentHistoryCleanerJob job = jobFactory.get();
+            ownershipLost = false;
+            currentJob = job;
+
+            if (stopped) {
+                job.stop();
+            }
+
+            final Thread watcher = new Thread(() -> watchOwnership(job), Thread.currentThread().getName() + "-owner");
+            watcher.setDaemon(true);
+            watcher.start();
+            log.info("Running version history cleaner job '{}' on cluster node '{}'.", name,
+                    coordinator.getClusterNodeId());
+            final boolean completed;
+
+            try {
+                completed = job.run();
+            } catch (RepositoryException | RuntimeException e) {
+                if (!ownershipLost) {
+                    throw e;
+                }
+
+                // e.g, a save conflict with the new owner.
+                log.warn("Version history cleaner job '{}' failed after cluster node '{}' lost it: {}", name,
+                        coordinator.getClusterNodeId(), e.toString());
+                continue;
+            } finally {
+                currentJob = null;
+                watcher.interrupt();
+            }
+
+            if (completed || !ownershipLost) {
+                return completed;
+            }
+
+            log.info("Stopped version history cleaner job '{}' as cluster node '{}' doesn't own it any more.", name,
+                    coordinator.getClusterNodeId());
+        }
+
+        return false;
+    }
+
+    /**
+     * Waits until this cluster node has joined the cluster and owns the job.
+     * @return true if this cluster node owns the job, false if stopped
+     */
+    private synchronized boolean awaitOwnership() {
+        while (!stopped) {
+            if (coordinator.isJoined() && coordinator.isOwner(name)) {
+                return true;
+            }
+
+            try {
+                wait(coordinator.getHeartbeatIntervalMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Stops the job once this cluster node doesn't own it any more.
+     */
+    private void watchOwnership(final DocumentHistoryCleanerJob job) {
+        try {
+            while (!stopped) {
+                Thread.sleep(coordinator.getHeartbeatIntervalMillis());
+
+                if (!coordinator.isOwner(name)) {
+                    ownershipLost = true;
+                    job.stop();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // the job is done.
+        }
+    }
+}
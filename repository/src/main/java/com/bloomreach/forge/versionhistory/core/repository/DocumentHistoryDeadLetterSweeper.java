@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sweeper of the dead letter queue, which is a {@link DocumentHistoryPendingQueue} of the cleanup requests which ran
+ * out of retries, processing each request once per run and removing the requests done with from the queue.
+ * <P>
+ * The requests which run out of retries again are kept in the queue for the next run. If a sweep interval is set,
+ * it sweeps the queue again at every interval until stopped, so that the dead letters added while running are
+ * processed as well.
+ * <P>
+ * It also sweeps the pending requests persisted by {@link DocumentHistoryCleanerDaemonModule} when the debouncer was
+ * shut down, as a queue of the same kind.
+ * <P>
+ * <EM>Note:</EM> This is not thread-safe. Run it in a single thread with a dedicated session, e.g, in a background
+ * thread started by {@link DocumentHistoryCleanerDaemonModule}.
+ */
+public class DocumentHistoryDeadLetterSweeper implements DocumentHistoryCleanerJob {
+
+    private static Logger log = LoggerFactory.getLogger(DocumentHistoryDeadLetterSweeper.class);
+
+    private static final int BATCH_SIZE = 100;
+
+    private final Session session;
+    private final String queuePath;
+
+    /**
+     * Processor of a request, returning true if the request is done with, or false if it should be kept.
+     */
+    private final Predicate<DocumentHistoryCleanupRequest> processor;
+
+    /**
+     * The interval between the sweeps in milliseconds, or 0 to sweep only once.
+     */
+    private long intervalMillis;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param session the session dedicated to this sweeper
+     * @param queuePath the path of the dead letter queue node
+     * @param processor processor of a request, returning true if the request is done with, or false if it should
+     *        be kept in the queue
+     */
+    public DocumentHistoryDeadLetterSweeper(final Session session, final String queuePath,
+            final Predicate<DocumentHistoryCleanupRequest> processor) {
+        if (session == null) {
+            throw new IllegalArgumentException("session must be not null.");
+        }
+
+        if (processor == null) {
+            throw new IllegalArgumentException("processor must be not null.");
+        }
+
+        this.session = session;
+        this.queuePath = queuePath;
+        this.processor = processor;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Sets the interval between the sweeps.
+     * @param intervalMillis the interval between the sweeps in milliseconds, or 0 to sweep only once
+     */
+    public void setIntervalMillis(final long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Requests the running sweeper to stop after the current request.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Processes each request in the dead letter queue once, or at every interval until stopped if an interval
+     * is set.
+     * @return true if all the requests were processed by a single sweep, false if stopped
+     * @throws RepositoryException if repository exception occurs
+     */
+    @Override
+    public boolean run() throws RepositoryException {
+        while (true) {
+            sweep();
+
+            if (stopped || intervalMillis <= 0L) {
+                return !stopped;
+            }
+
+            if (!awaitNextSweep()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Waits for the interval until the next sweep.
+     * @return true if the interval elapsed, false if stopped
+     */
+    private synchronized boolean awaitNextSweep() {
+        final long deadlineMillis = System.currentTimeMillis() + intervalMillis;
+
+        while (!stopped) {
+            final long remainingMillis = deadlineMillis - System.currentTimeMillis();
+
+            if (remainingMillis <= 0L) {
+                return true;
+            }
+
+            try {
+                wait(remainingMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    private void sweep() throws RepositoryException {
+        final DocumentHistoryPendingQueue queue = new DocumentHistoryPendingQueue(session, queuePath);
+        // the subject identifiers of the requests processed in this run, not to process the kept ones again.
+        final Set<String> attemptedIds = new HashSet<>();
+        long doneCount = 0L;
+
+        while (!stopped) {
+            final List<DocumentHistoryCleanupRequest> batch = queue.peek(BATCH_SIZE,
+                    request -> !attemptedIds.contains(request.getSubjectId()));
+
+            if (batch.isEmpty()) {
+                break;
+            }
+
+            final List<DocumentHistoryCleanupRequest> done = new ArrayList<>(batch.size());
+
+            for (DocumentHistoryCleanupRequest request : batch) {
+                if (stopped) {
+                    break;
+                }
+
+                attemptedIds.add(request.getSubjectId());
+
+                if (processor.test(request)) {
+                    done.add(request);
+                }
+            }
+
+            queue.remove(done);
+            doneCount += done.size();
+        }
+
+        if (!attemptedIds.isEmpty()) {
+            log.info("{} sweep of {}: {} requests done with, {} kept.", stopped ? "Stopped" : "Completed",
+                    queuePath, doneCount, attemptedIds.size() - doneCount);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hippoecm.repository.api.HippoNodeType;
+import org.hippoecm.repository.util.JcrUtils;
+import org.onehippo.repository.scheduling.RepositoryJob;
+import org.onehippo.repository.scheduling.RepositoryJobExecutionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloomreach.forge.versionhistory.core.DocumentHistoryCleanerTask;
+import com.bloomreach.forge.versionhistory.core.DocumentHistoryTruncaterTask;
+
+/**
+ * Repository scheduler job draining the {@link DocumentHistoryPendingQueue} of the deferred cleanup requests
+ * in batches, in an off-peak window started by a cron trigger.
+ * <P>
+ * The job stops cleanly when the window closes, after saving the current batch, and the remaining requests
+ * are processed in the next window. The configurations are read from the module config node when the job starts.
+ * <P>
+ * A request failed by a concurrent modification is retried by the {@link DocumentHistoryRetryPolicy}, and is kept
+ * in the queue for the next window if it runs out of retries.
+ */
+public class DocumentHistoryDeferredCleanupJob implements RepositoryJob {
+
+    private static Logger log = LoggerFactory.getLogger(DocumentHistoryDeferredCleanupJob.class);
+
+    /**
+     * Job attribute name of the module config node path.
+     */
+    static final String MODULE_CONFIG_PATH_ATTR = "moduleConfigPath";
+
+    /**
+     * Job attribute name of the queue node path.
+     */
+    static final String QUEUE_PATH_ATTR = "queuePath";
+
+    /**
+     * Job attribute name of the window duration in milliseconds.
+     */
+    static final String WINDOW_DURATION_ATTR = "windowDuration";
+
+    /**
+     * Job attribute name of the batch size.
+     */
+    static final String BATCH_SIZE_ATTR = "batchSize";
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    @Override
+    public void execute(final RepositoryJobExecutionContext context) throws RepositoryException {
+        final String moduleConfigPath = context.getAttribute(MODULE_CONFIG_PATH_ATTR);
+        final String queuePath = context.getAttribute(QUEUE_PATH_ATTR);
+        final long windowDurationMillis = parseLong(context.getAttribute(WINDOW_DURATION_ATTR), 0L);
+        final int batchSize = (int) Math.max(1L, parseLong(context.getAttribute(BATCH_SIZE_ATTR),
+                DEFAULT_BATCH_SIZE));
+        final long startMillis = System.currentTimeMillis();
+        final long endMillis = (windowDurationMillis > 0L) ? startMillis + windowDurationMillis : Long.MAX_VALUE;
+
+        final Session session = context.createSystemSession();
+
+        try {
+            final Node moduleConfig = session.getNode(moduleConfigPath);
+            final DocumentHistoryCleanerPolicies policies = DocumentHistoryCleanerPolicies.compile(moduleConfig);
+            final boolean dryRun = JcrUtils.getBooleanProperty(moduleConfig, "dryrun.enabled", false);
+            final DocumentHistoryRetryPolicy retryPolicy = DocumentHistoryRetryPolicy.read(moduleConfig);
+
+            final DocumentHistoryPendingQueue queue = new DocumentHistoryPendingQueue(session, queuePath);
+            // the subject identifiers of the requests kept in the queue in this window, not to process them again.
+            final Set<String> keptIds = new HashSet<>();
+            long processedCount = 0L;
+            boolean windowClosed = false;
+
+            log.info("Starting deferred version history cleanup until the window closes in {}ms.",
+                    windowDurationMillis);
+
+            while (!windowClosed && !Thread.currentThread().isInterrupted()) {
+                final List<DocumentHistoryCleanupRequest> batch = queue.peek(batchSize,
+                        request -> !keptIds.contains(request.getSubjectId()));
+
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                final List<DocumentHistoryCleanupRequest> processed = new ArrayList<>(batch.size());
+
+                for (DocumentHistoryCleanupRequest request : batch) {
+                    if (System.currentTimeMillis() >= endMillis || Thread.currentThread().isInterrupted()) {
+                        windowClosed = true;
+                        break;
+                    }
+
+                    final DocumentHistoryCleanerConfiguration config = policies
+                            .getConfiguration(request.getDocumentType(), request.getSubjectPath());
+
+                    if (processWithRetries(session, request, config, dryRun, retryPolicy)) {
+                        processed.add(request);
+                    } else {
+                        keptIds.add(request.getSubjectId());
+                    }
+                }
+
+                queue.remove(processed);
+                processedCount += processed.size();
+            }
+
+            log.info("{} deferred version history cleanup: {} documents processed, {} kept for retries in {}ms.",
+                    windowClosed ? "Stopped" : "Completed", processedCount, keptIds.size(),
+                    System.currentTimeMillis() - startMillis);
+        } finally {
+            session.logout();
+        }
+    }
+
+    /**
+     * Processes the request, retrying it while it fails by a concurrent modification.
+     * @return false if the request ran out of retries, or true otherwise, even if failed by a non-retryable failure
+     */
+    private boolean processWithRetries(final Session session, final DocumentHistoryCleanupRequest request,
+            final DocumentHistoryCleanerConfiguration config, final boolean dryRun,
+            final DocumentHistoryRetryPolicy retryPolicy) throws RepositoryException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                process(session, request, config, dryRun);
+                return true;
+            } catch (Exception e) {
+                session.refresh(false);
+
+                if (retryPolicy.shouldRetry(e, attempt)) {
+                    log.warn("Retrying deferred cleanup of the document ({}) at {} after attempt {} of {} failed "
+                            + "by a concurrent modification: {}", request.getSubjectId(), request.getSubjectPath(),
+                            attempt, retryPolicy.getMaxAttempts(), e.toString());
+
+                    try {
+                        retryPolicy.backOff(attempt);
+                        continue;
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                log.error("Failed to process deferred cleanup of the document ({}) at {} in {} attempts.",
+                        request.getSubjectId(), request.getSubjectPath(), attempt, e);
+                return !DocumentHistoryRetryPolicy.isRetryable(e);
+            }
+        }
+    }
+
+    private void process(final Session session, final DocumentHistoryCleanupRequest request,
+            final DocumentHistoryCleanerConfiguration config, final boolean dryRun) throws Exception {
+        final String action = request.getAction();
+
+        try {
+            final Node handleNode = session.getNodeByIdentifier(request.getSubjectId());
+            final Node versionableNode = DocumentHistoryCleanerUtils.findVersionableNode(handleNode);
+
+            if (versionableNode == null) {
+                return;
+            }
+
+            if (DocumentHistoryCleanupRequest.ACTION_PUBLISH.equals(action)
+                    && !versionableNode.isNodeType(HippoNodeType.NT_DELETED)) {
+                final DocumentHistoryCleanerTask task = new DocumentHistoryCleanerTask(session, versionableNode);
+                task.setMaxDays(config.getMaxDays());
+                task.setMaxRevisions(config.getMaxRevisions());
+                task.setThinningSchedule(config.getThinningSchedule());
+                task.setStreaming(config.isStreaming());
+                task.setDryRun(dryRun);
+                task.execute();
+            } else if (DocumentHistoryCleanupRequest.ACTION_DELETE.equals(action) && config.isTruncateOnDelete()
+                    && versionableNode.isNodeType(HippoNodeType.NT_DELETED)) {
+                final DocumentHistoryTruncaterTask task = new DocumentHistoryTruncaterTask(session, versionableNode);
+                task.setDryRun(dryRun);
+                task.execute();
+            }
+
+            if (session.hasPendingChanges()) {
+                session.save();
+            }
+        } catch (ItemNotFoundException e) {
+            log.debug("Skipping deferred cleanup of non-existing document ({}) at {}.", request.getSubjectId(),
+                    request.getSubjectPath());
+        }
+    }
+
+    private static long parseLong(final String value, final long defaultValue) {
+        return StringUtils.isNumeric(value) ? Long.parseLong(value) : defaultValue;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.onehippo.cms7.event.HippoEventConstants;
+import org.onehippo.repository.events.HippoWorkflowEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recorder of the workflow events received by {@link DocumentHistoryCleanerListener}, writing only the fields
+ * used by the listener into a gzipped file of tab-separated lines, so that a recorded publish storm can be replayed
+ * offline.
+ * <P>
+ * This is thread-safe. A write failure is logged once and disables the recorder, not to affect event processing.
+ */
+public class DocumentHistoryEventRecorder implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(DocumentHistoryEventRecorder.class);
+
+    /**
+     * Header line of a recording file, followed by the version of the format.
+     */
+    private static final String HEADER = "#version-history-cleaner-events\t1";
+
+    private final Path file;
+    private Writer writer;
+
+    /**
+     * Opens the file to record to, appending a new gzip member if the file exists.
+     * @param file recording file
+     * @throws IOException if the file cannot be opened
+     */
+    public DocumentHistoryEventRecorder(final Path file) throws IOException {
+        this.file = file;
+        writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)), StandardCharsets.UTF_8));
+        writer.write(HEADER);
+        writer.write('\n');
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Records the workflow event.
+     * @param event workflow event
+     */
+    public void record(final HippoWorkflowEvent<?> event) {
+        final Long timestamp = event.timestamp();
+        record(new RecordedEvent((timestamp != null) ? timestamp : System.currentTimeMillis(), event.workflowName(),
+                event.action(), event.subjectId(), event.subjectPath(), event.documentType()));
+    }
+
+    public synchronized void record(final RecordedEvent event) {
+        if (writer == null) {
+            return;
+        }
+
+        try {
+            writer.write(event.toLine());
+            writer.write('\n');
+        } catch (IOException e) {
+            log.error("Failed to record workflow event to {}. Recording is disabled.", file, e);
+            closeQuietly();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            try {
+                writer.close();
+            } finally {
+                writer = null;
+            }
+        }
+    }
+
+    /**
+     * Reads all the recorded events from the recording file.
+     * @param file recording file
+     * @return recorded events in the recorded order
+     * @throws IOException if the file cannot be read
+     */
+    public static List<RecordedEvent> read(final Path file) throws IOException {
+        final List<RecordedEvent> events = new ArrayList<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty() && line.charAt(0) != '#') {
+                    events.add(RecordedEvent.parse(line));
+                }
+            }
+        } catch (EOFException e) {
+            // the recorder was not closed, e.g. on a crash, and the last gzip member is incomplete.
+            log.warn("Recording file is truncated after {} events: {}", events.size(), file);
+        }
+
+        return events;
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Immutable workflow event fields recorded.
+     */
+    public static final class RecordedEvent {
+
+        private static final int FIELD_COUNT = 6;
+
+        private final long timestamp;
+        private final String workflowName;
+        private final String action;
+        private final String subjectId;
+        private final String subjectPath;
+        private final String documentType;
+
+        public RecordedEvent(final long timestamp, final String workflowName, final String action,
+                final String subjectId, final String subjectPath, final String documentType) {
+            this.timestamp = timestamp;
+            this.workflowName = workflowName;
+            this.action = action;
+            this.subjectId = subjectId;
+            this.subjectPath = subjectPath;
+            this.documentType = documentType;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getWorkflowName() {
+            return workflowName;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public String getSubjectId() {
+            return subjectId;
+        }
+
+        public String getSubjectPath() {
+            return subjectPath;
+        }
+
+        public String getDocumentType() {
+            return documentType;
+        }
+
+        /**
+         * Creates a workflow event having the recorded fields.
+         * @return a workflow event having the recorded fields
+         */
+        public HippoWorkflowEvent<?> toWorkflowEvent() {
+            final HippoWorkflowEvent<?> event = new HippoWorkflowEvent<>();
+            event.workflowName(workflowName).subjectId(subjectId).subjectPath(subjectPath)
+                    .documentType(documentType).category(HippoEventConstants.CATEGORY_WORKFLOW).action(action)
+                    .timestamp(timestamp);
+            return event;
+        }
+
+        String toLine() {
+            return timestamp + "\t" + escape(workflowName) + "\t" + escape(action) + "\t" + escape(subjectId) + "\t"
+                    + escape(subjectPath) + "\t" + escape(documentType);
+        }
+
+        static RecordedEvent parse(final String line) {
+            final String[] fields = line.split("\t", -1);
+
+            if (fields.length != FIELD_COUNT) {
+                throw new IllegalArgumentException("Invalid recorded event line: " + line);
+            }
+
+            return new RecordedEvent(Long.parseLong(fields[0]), unescape(fields[1]), unescape(fields[2]),
+                    unescape(fields[3]), unescape(fields[4]), unescape(fields[5]));
+        }
+
+        /**
+         * Escapes the backslashes, tabs and new lines, and a null value to a single backslash.
+         */
+        private static String escape(final String value) {
+            if (value == null) {
+                return "\\";
+            }
+
+            return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+        }
+
+        private static String unescape(final String value) {
+            if ("\\".equals(value)) {
+                return null;
+            }
+
+            if (value.indexOf('\\') < 0) {
+                return value;
+            }
+
+            final StringBuilder sb = new StringBuilder(value.length());
+
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+
+                if (c == '\\' && i + 1 < value.length()) {
+                    final char next = value.charAt(++i);
+                    sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+                } else {
+                    sb.append(c);
+                }
+            }
+
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return "RecordedEvent [timestamp=" + timestamp + ", workflowName=" + workflowName + ", action=" + action
+                    + ", subjectId=" + subjectId + ", subjectPath=" + subjectPath + ", documentType=" + documentType
+                    + "]";
+        }
+    }
+}
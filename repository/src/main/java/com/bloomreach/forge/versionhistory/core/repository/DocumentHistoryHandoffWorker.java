@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Worker draining the cleanup requests handed off to this cluster node through the shared queue of the cluster
+ * coordinator, in its own thread, so that a long cleanup never delays the heartbeats and the lease renewal.
+ * <P>
+ * The ownership of each request is checked again right before processing it, so the worker stops processing
+ * a batch as soon as this cluster node loses the lease or the subject moves to another cluster node. The requests
+ * not processed are kept in the queue for the new owner.
+ * <P>
+ * <EM>Note:</EM> This is not thread-safe. Run it in a single thread with a dedicated session, e.g, in a background
+ * thread started by {@link DocumentHistoryCleanerDaemonModule}.
+ */
+public class DocumentHistoryHandoffWorker implements DocumentHistoryCleanerJob {
+
+    private static Logger log = LoggerFactory.getLogger(DocumentHistoryHandoffWorker.class);
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final Session session;
+    private final DocumentHistoryClusterCoordinator coordinator;
+    private final Consumer<DocumentHistoryCleanupRequest> processor;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long pollIntervalMillis;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param session the session dedicated to this worker
+     * @param coordinator the cluster coordinator deciding the ownership of the requests
+     * @param processor processor of the handed-off requests owned by this cluster node
+     */
+    public DocumentHistoryHandoffWorker(final Session session, final DocumentHistoryClusterCoordinator coordinator,
+            final Consumer<DocumentHistoryCleanupRequest> processor) {
+        if (session == null) {
+            throw new IllegalArgumentException("session must be not null.");
+        }
+
+        if (coordinator == null) {
+            throw new IllegalArgumentException("coordinator must be not null.");
+        }
+
+        if (processor == null) {
+            throw new IllegalArgumentException("processor must be not null.");
+        }
+
+        this.session = session;
+        this.coordinator = coordinator;
+        this.processor = processor;
+        this.pollIntervalMillis = coordinator.getHeartbeatIntervalMillis();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public long getPollIntervalMillis() {
+        return pollIntervalMillis;
+    }
+
+    /**
+     * Sets the interval at which the queue is polled while it has no request owned by this cluster node.
+     * @param pollIntervalMillis poll interval in milliseconds
+     */
+    public void setPollIntervalMillis(final long pollIntervalMillis) {
+        this.pollIntervalMillis = Math.max(1L, pollIntervalMillis);
+    }
+
+    /**
+     * Requests the running worker to stop after the current request.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Drains the handed-off requests owned by this cluster node, polling the queue until stopped.
+     * @return false as it runs until stopped
+     * @throws RepositoryException if repository exception occurs
+     */
+    @Override
+    public boolean run() throws RepositoryException {
+        while (!stopped) {
+            int processedCount = 0;
+
+            try {
+                processedCount = drain();
+            } catch (RepositoryException e) {
+                log.error("Failed to drain the handed-off version history cleanup requests.", e);
+                session.refresh(false);
+            }
+
+            // keep draining without waiting while there's more.
+            if (processedCount < batchSize) {
+                synchronized (this) {
+                    if (!stopped) {
+                        try {
+                            wait(pollIntervalMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Processes a batch of the handed-off requests owned by this cluster node.
+     * @return the number of the processed requests
+     */
+    int drain() throws RepositoryException {
+        if (coordinator.getMode() == DocumentHistoryClusterCoordinator.Mode.LEASE && !coordinator.isLeaseHeld()) {
+            return 0;
+        }
+
+        final DocumentHistoryPendingQueue queue = new DocumentHistoryPendingQueue(session,
+                coordinator.getHandoffQueuePath());
+        final List<DocumentHistoryCleanupRequest> requests = queue.peek(batchSize,
+                request -> coordinator.isOwner(request.getSubjectId()));
+        final List<DocumentHistoryCleanupRequest> processed = new ArrayList<>(requests.size());
+
+        for (DocumentHistoryCleanupRequest request : requests) {
+            // the ownership may have moved while processing the previous requests.
+            if (stopped || !coordinator.isOwner(request.getSubjectId())) {
+                break;
+            }
+
+            processor.accept(request);
+            processed.add(request);
+        }
+
+        queue.remove(processed);
+        return processed.size();
+    }
+}
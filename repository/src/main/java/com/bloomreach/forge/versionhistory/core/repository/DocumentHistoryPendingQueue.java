@@ -0,0 +1,319 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hippoecm.repository.util.JcrUtils;
+
+/**
+ * Durable queue of deferred cleanup requests, stored as descendant nodes of a queue node in the repository and
+ * de-duplicated by the subject identifier, so that the pending requests survive restarts.
+ * <P>
+ * Each request is stored in a node named by the subject identifier, in a two-level bucket folder by the hash of
+ * the subject identifier, such as <code>&lt;queue&gt;/1f/3a/&lt;subjectId&gt;</code>, so that a burst of hundreds
+ * of thousands of requests doesn't pile up under a single node. If a request for the same subject is queued again,
+ * the existing entry is updated in place, so the latest action wins. The requests are returned in the order of
+ * the buckets, not in the order they were queued. The bucket folders are kept when empty, as their number is
+ * bounded, not to conflict with concurrent requests queued in the same bucket.
+ * <P>
+ * The entry and bucket nodes are <code>nt:unstructured</code>, so concurrent enqueues on different sessions or
+ * cluster nodes may create same-name siblings, such as <code>1f[2]</code> or <code>&lt;subjectId&gt;[2]</code>.
+ * {@link #peek(int, Predicate)} merges the sibling entries of the same subject into a single request, and
+ * {@link #remove(Collection)} removes exactly the entry nodes read by the last peek, by their identifiers, together
+ * with the empty same-name sibling bucket folders. Each write stamps the entry with a random token, and an entry
+ * whose token changed after the peek was updated by a newer request, so it is kept, without comparing the clocks
+ * of the cluster nodes.
+ * <P>
+ * <EM>Note:</EM> {@link #enqueue(DocumentHistoryCleanupRequest)}, {@link #enqueue(Collection)} and
+ * {@link #remove(Collection)} save the session, which persists any other pending changes in the session as well.
+ * An instance is not thread-safe, as it keeps the entries read by the last peek.
+ */
+public class DocumentHistoryPendingQueue {
+
+    private static final String SUBJECT_PATH_PROP_NAME = "subjectPath";
+
+    private static final String DOCUMENT_TYPE_PROP_NAME = "documentType";
+
+    private static final String ACTION_PROP_NAME = "action";
+
+    private static final String QUEUED_PROP_NAME = "queued";
+
+    private static final String TOKEN_PROP_NAME = "token";
+
+    /**
+     * The number of the bucket folders at each level, which must be a power of two.
+     */
+    private static final int BUCKET_COUNT = 64;
+
+    private final Session session;
+
+    /**
+     * The absolute path of the queue node.
+     */
+    private final String path;
+
+    /**
+     * The entries read by the last peek by the returned requests, to remove exactly those entries.
+     */
+    private final Map<DocumentHistoryCleanupRequest, List<PeekedEntry>> peekedEntries = new IdentityHashMap<>();
+
+    public DocumentHistoryPendingQueue(final Session session, final String path) {
+        if (session == null) {
+            throw new IllegalArgumentException("session must be not null.");
+        }
+
+        if (!StringUtils.startsWith(path, "/") || "/".equals(path)) {
+            throw new IllegalArgumentException("queue path must be an absolute non-root path.");
+        }
+
+        this.session = session;
+        this.path = path;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Adds the request to the queue, or updates the pending request of the same subject, and saves the session.
+     * @param request cleanup request
+     * @throws RepositoryException if repository exception occurs
+     */
+    public void enqueue(final DocumentHistoryCleanupRequest request) throws RepositoryException {
+        addEntry(request);
+        session.save();
+    }
+
+    /**
+     * Adds the requests to the queue, or updates the pending requests of the same subjects, and saves the session
+     * once for all the requests.
+     * @param requests cleanup requests
+     * @throws RepositoryException if repository exception occurs
+     */
+    public void enqueue(final Collection<DocumentHistoryCleanupRequest> requests) throws RepositoryException {
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        for (DocumentHistoryCleanupRequest request : requests) {
+            addEntry(request);
+        }
+
+        session.save();
+    }
+
+    private void addEntry(final DocumentHistoryCleanupRequest request) throws RepositoryException {
+        final Node bucketNode = DocumentHistoryCleanerUtils.getOrCreateNode(session,
+                path + "/" + getBucketPath(request.getSubjectId()));
+        final String name = request.getSubjectId();
+        final Node entry = bucketNode.hasNode(name) ? bucketNode.getNode(name) : bucketNode.addNode(name,
+                "nt:unstructured");
+        entry.setProperty(SUBJECT_PATH_PROP_NAME, request.getSubjectPath());
+        entry.setProperty(DOCUMENT_TYPE_PROP_NAME, request.getDocumentType());
+        entry.setProperty(ACTION_PROP_NAME, request.getAction());
+        entry.setProperty(QUEUED_PROP_NAME, Calendar.getInstance());
+        entry.setProperty(TOKEN_PROP_NAME, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Returns the pending requests at the head of the queue, without removing them.
+     * The entries of the returned requests are the ones removed by the next {@link #remove(Collection)}.
+     * @param maxCount the max number of requests to return
+     * @return the pending requests at the head of the queue
+     * @throws RepositoryException if repository exception occurs
+     */
+    public List<DocumentHistoryCleanupRequest> peek(final int maxCount) throws RepositoryException {
+        return peek(maxCount, request -> true);
+    }
+
+    /**
+     * Returns the pending requests accepted by the filter at the head of the queue, without removing them.
+     * The entries of the returned requests are the ones removed by the next {@link #remove(Collection)}.
+     * @param maxCount the max number of requests to return
+     * @param filter filter of the requests to return
+     * @return the pending requests accepted by the filter at the head of the queue
+     * @throws RepositoryException if repository exception occurs
+     */
+    public List<DocumentHistoryCleanupRequest> peek(final int maxCount,
+            final Predicate<DocumentHistoryCleanupRequest> filter) throws RepositoryException {
+        final List<DocumentHistoryCleanupRequest> requests = new ArrayList<>();
+        peekedEntries.clear();
+
+        if (!session.nodeExists(path)) {
+            return requests;
+        }
+
+        // the requests by the subject identifiers, to merge the same-name sibling entries of the same subject.
+        final Map<String, DocumentHistoryCleanupRequest> requestsById = new HashMap<>();
+
+        for (NodeIterator bucketIt = session.getNode(path).getNodes(); bucketIt.hasNext()
+                && requests.size() < maxCount;) {
+            final Node bucketNode = bucketIt.nextNode();
+
+            if (bucketNode == null) {
+                continue;
+            }
+
+            for (NodeIterator subBucketIt = bucketNode.getNodes(); subBucketIt.hasNext()
+                    && requests.size() < maxCount;) {
+                final Node subBucketNode = subBucketIt.nextNode();
+
+                if (subBucketNode != null) {
+                    addRequests(subBucketNode, requests, requestsById, maxCount, filter);
+                }
+            }
+        }
+
+        return requests;
+    }
+
+    private void addRequests(final Node bucketNode, final List<DocumentHistoryCleanupRequest> requests,
+            final Map<String, DocumentHistoryCleanupRequest> requestsById, final int maxCount,
+            final Predicate<DocumentHistoryCleanupRequest> filter) throws RepositoryException {
+        for (NodeIterator nodeIt = bucketNode.getNodes(); nodeIt.hasNext() && requests.size() < maxCount;) {
+            final Node entry = nodeIt.nextNode();
+
+            if (entry == null) {
+                continue;
+            }
+
+            final PeekedEntry peekedEntry = new PeekedEntry(entry.getIdentifier(),
+                    JcrUtils.getStringProperty(entry, TOKEN_PROP_NAME, null));
+            final DocumentHistoryCleanupRequest sibling = requestsById.get(entry.getName());
+
+            if (sibling != null) {
+                peekedEntries.get(sibling).add(peekedEntry);
+                continue;
+            }
+
+            final DocumentHistoryCleanupRequest request = new DocumentHistoryCleanupRequest(entry.getName(),
+                    JcrUtils.getStringProperty(entry, SUBJECT_PATH_PROP_NAME, null),
+                    JcrUtils.getStringProperty(entry, DOCUMENT_TYPE_PROP_NAME, null),
+                    JcrUtils.getStringProperty(entry, ACTION_PROP_NAME, null));
+
+            if (filter.test(request)) {
+                final List<PeekedEntry> entries = new ArrayList<>(1);
+                entries.add(peekedEntry);
+                peekedEntries.put(request, entries);
+                requestsById.put(request.getSubjectId(), request);
+                requests.add(request);
+            }
+        }
+    }
+
+    /**
+     * Removes the entries of the processed requests returned by the last peek from the queue, and saves the session.
+     * An entry updated by a newer request after the peek is kept, not to lose the newer request. The requests not
+     * returned by the last peek are ignored.
+     * @param requests processed requests returned by the last peek
+     * @throws RepositoryException if repository exception occurs
+     */
+    public void remove(final Collection<DocumentHistoryCleanupRequest> requests) throws RepositoryException {
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        for (DocumentHistoryCleanupRequest request : requests) {
+            final List<PeekedEntry> entries = peekedEntries.remove(request);
+
+            if (entries == null) {
+                continue;
+            }
+
+            for (PeekedEntry peekedEntry : entries) {
+                removeEntry(peekedEntry);
+            }
+        }
+
+        session.save();
+    }
+
+    private void removeEntry(final PeekedEntry peekedEntry) throws RepositoryException {
+        final Node entry;
+
+        try {
+            entry = session.getNodeByIdentifier(peekedEntry.identifier);
+        } catch (ItemNotFoundException e) {
+            // already removed, by another reader of the queue.
+            return;
+        }
+
+        if (!StringUtils.equals(peekedEntry.token, JcrUtils.getStringProperty(entry, TOKEN_PROP_NAME, null))) {
+            return;
+        }
+
+        final Node subBucketNode = entry.getParent();
+        final Node bucketNode = subBucketNode.getParent();
+        entry.remove();
+
+        // merge the same-name sibling bucket folders by removing the duplicates once empty.
+        if (subBucketNode.getIndex() > 1 && !subBucketNode.hasNodes()) {
+            subBucketNode.remove();
+        }
+
+        if (bucketNode.getIndex() > 1 && !bucketNode.hasNodes()) {
+            bucketNode.remove();
+        }
+    }
+
+    /**
+     * Returns the relative path of the bucket folder of the subject, which is the same on every cluster node.
+     */
+    static String getBucketPath(final String subjectId) {
+        int hash = subjectId.hashCode();
+        // spread the bits, as the subject identifiers may differ only in a few characters.
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        final int first = hash & (BUCKET_COUNT - 1);
+        final int second = (hash >>> 8) & (BUCKET_COUNT - 1);
+        return String.format("%02x/%02x", first, second);
+    }
+
+    /**
+     * Entry node read by a peek, with the token of the request it held.
+     */
+    private static class PeekedEntry {
+
+        private final String identifier;
+        private final String token;
+
+        private PeekedEntry(final String identifier, final String token) {
+            this.identifier = identifier;
+            this.token = token;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.lock.LockException;
+
+import org.hippoecm.repository.util.JcrUtils;
+
+/**
+ * Retry policy of the cleanups and the truncations failed by a concurrent modification, e.g, when an editor saves
+ * the document while its versions are being removed.
+ * <P>
+ * A failure is retryable if the exception or any of its causes is an {@link InvalidItemStateException},
+ * a {@link LockException}, a {@link ConcurrentModificationException} or a stale item state exception of the
+ * repository. Other failures are not retried, as they would fail again.
+ * <P>
+ * The backoff before the <code>n</code>-th retry is <code>initial backoff * 2^(n-1)</code>, limited by the max
+ * backoff, with an equal jitter, i.e. a random duration between the half and the whole of the backoff, so that
+ * the retries of the concurrent failures don't collide again.
+ * <P>
+ * This is immutable and thread-safe.
+ */
+public final class DocumentHistoryRetryPolicy {
+
+    /**
+     * No retry by default, as the backoffs block the processing thread.
+     */
+    private static final int DEFAULT_MAX_ATTEMPTS = 1;
+
+    private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100L;
+
+    private static final long DEFAULT_MAX_BACKOFF_MILLIS = 5000L;
+
+    /**
+     * Retry policy which never retries.
+     */
+    public static final DocumentHistoryRetryPolicy NO_RETRY = new DocumentHistoryRetryPolicy(1, 0L, 0L);
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    /**
+     * @param maxAttempts the max number of attempts including the first one, where 1 means no retry
+     * @param initialBackoffMillis the backoff before the first retry in milliseconds
+     * @param maxBackoffMillis the max backoff before a retry in milliseconds
+     */
+    public DocumentHistoryRetryPolicy(final int maxAttempts, final long initialBackoffMillis,
+            final long maxBackoffMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = Math.max(0L, initialBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.initialBackoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * Reads the retry policy from the <code>retry.*</code> properties of the module config node.
+     * @param moduleConfig module config node
+     * @return the retry policy
+     * @throws RepositoryException if repository exception occurs
+     */
+    public static DocumentHistoryRetryPolicy read(final Node moduleConfig) throws RepositoryException {
+        return new DocumentHistoryRetryPolicy(
+                (int) JcrUtils.getLongProperty(moduleConfig, "retry.max.attempts", (long) DEFAULT_MAX_ATTEMPTS),
+                JcrUtils.getLongProperty(moduleConfig, "retry.initial.backoff", DEFAULT_INITIAL_BACKOFF_MILLIS),
+                JcrUtils.getLongProperty(moduleConfig, "retry.max.backoff", DEFAULT_MAX_BACKOFF_MILLIS));
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    /**
+     * Returns true if the failure is caused by a concurrent modification, which may succeed on a retry.
+     * @param e failure
+     * @return true if the failure is caused by a concurrent modification
+     */
+    public static boolean isRetryable(final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = (cause.getCause() != cause) ? cause.getCause() : null) {
+            if (cause instanceof InvalidItemStateException || cause instanceof LockException
+                    || cause instanceof ConcurrentModificationException
+                    || cause.getClass().getName().endsWith(".StaleItemStateException")) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns true if the attempt failed by the failure should be retried.
+     * @param e failure of the attempt
+     * @param attempt the number of the failed attempt, starting from 1
+     * @return true if the attempt failed by the failure should be retried
+     */
+    public boolean shouldRetry(final Throwable e, final int attempt) {
+        return attempt < maxAttempts && isRetryable(e);
+    }
+
+    /**
+     * Returns true if the attempt failed by the failure was the last attempt of a retryable failure.
+     * @param e failure of the attempt
+     * @param attempt the number of the failed attempt, starting from 1
+     * @return true if the attempt failed by the failure was the last attempt of a retryable failure
+     */
+    public boolean isExhausted(final Throwable e, final int attempt) {
+        return attempt >= maxAttempts && isRetryable(e);
+    }
+
+    /**
+     * Returns the jittered backoff before retrying the failed attempt.
+     * @param attempt the number of the failed attempt, starting from 1
+     * @return the jittered backoff before retrying the failed attempt in milliseconds
+     */
+    public long getBackoffMillis(final int attempt) {
+        final int shift = Math.min(Math.max(0, attempt - 1), 30);
+        final long backoffMillis = Math.min(maxBackoffMillis, initialBackoffMillis << shift);
+        final long halfMillis = backoffMillis / 2L;
+        return halfMillis + ThreadLocalRandom.current().nextLong(backoffMillis - halfMillis + 1L);
+    }
+
+    /**
+     * Sleeps for the jittered backoff before retrying the failed attempt.
+     * @param attempt the number of the failed attempt, starting from 1
+     * @throws InterruptedException if interrupted while sleeping
+     */
+    public void backOff(final int attempt) throws InterruptedException {
+        final long backoffMillis = getBackoffMillis(attempt);
+
+        if (backoffMillis > 0L) {
+            Thread.sleep(backoffMillis);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DocumentHistoryRetryPolicy{maxAttempts=" + maxAttempts + ", initialBackoffMillis="
+                + initialBackoffMillis + ", maxBackoffMillis=" + maxBackoffMillis + "}";
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of long-lived system sessions impersonated from the daemon session, keeping one session per thread,
+ * so that a session is not impersonated and logged out for every event.
+ * <P>
+ * A borrowed session must be returned by {@link #release(Session)} after successful use, which refreshes it without
+ * keeping changes, or by {@link #invalidate(Session)} after a failure, which logs it out. A session older than
+ * the max age is logged out and replaced on the next borrow. The sessions of dead threads are logged out whenever
+ * a new session is created.
+ */
+public class DocumentHistorySessionPool {
+
+    private static Logger log = LoggerFactory.getLogger(DocumentHistorySessionPool.class);
+
+    private final Session daemonSession;
+    private final long maxAgeMillis;
+    private final Map<Thread, PooledSession> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong discardedCount = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * @param daemonSession the session from which system sessions are impersonated
+     * @param maxAgeMillis max age of a session in milliseconds, or a non-positive number for no limit
+     */
+    public DocumentHistorySessionPool(final Session daemonSession, final long maxAgeMillis) {
+        if (daemonSession == null) {
+            throw new IllegalArgumentException("session must be not null.");
+        }
+
+        this.daemonSession = daemonSession;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * Returns the number of sessions created so far.
+     * @return the number of sessions created so far
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * Returns the number of sessions discarded so far by failure, age, dead thread or close.
+     * @return the number of sessions discarded so far by failure, age, dead thread or close
+     */
+    public long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    /**
+     * Returns the number of sessions currently kept in the pool.
+     * @return the number of sessions currently kept in the pool
+     */
+    public int getSize() {
+        return sessions.size();
+    }
+
+    /**
+     * Borrows the session of the current thread, creating a new one if the thread doesn't have a live session
+     * younger than the max age.
+     * @return the session of the current thread
+     * @throws RepositoryException if a new session cannot be impersonated
+     */
+    public Session borrow() throws RepositoryException {
+        if (closed) {
+            throw new IllegalStateException("Session pool is closed.");
+        }
+
+        final Thread thread = Thread.currentThread();
+        final PooledSession pooled = sessions.get(thread);
+
+        if (pooled != null) {
+            if (pooled.session.isLive() && !pooled.isExpired(System.currentTimeMillis())) {
+                return pooled.session;
+            }
+
+            sessions.remove(thread);
+            discard(pooled.session);
+        }
+
+        evictDeadThreadSessions();
+
+        final Session session = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+        createdCount.incrementAndGet();
+        sessions.put(thread, new PooledSession(session, System.currentTimeMillis()));
+
+        if (closed) {
+            // closed concurrently, so don't keep the new session.
+            sessions.remove(thread);
+            discard(session);
+            throw new IllegalStateException("Session pool is closed.");
+        }
+
+        return session;
+    }
+
+    /**
+     * Returns the session after successful use, discarding any pending changes to keep it clean for the next use.
+     * @param session the session borrowed by the current thread
+     */
+    public void release(final Session session) {
+        try {
+            if (session.isLive()) {
+                session.refresh(false);
+            }
+        } catch (RepositoryException e) {
+            log.warn("Failed to refresh pooled session. Discarding it.", e);
+            invalidate(session);
+        }
+    }
+
+    /**
+     * Discards the session after a failure, so that the next borrow creates a new session.
+     * @param session the session borrowed by the current thread
+     */
+    public void invalidate(final Session session) {
+        final PooledSession pooled = sessions.get(Thread.currentThread());
+
+        if (pooled != null && pooled.session == session) {
+            sessions.remove(Thread.currentThread());
+        }
+
+        discard(session);
+    }
+
+    /**
+     * Logs out all the sessions in the pool. The sessions in use by other threads are logged out as well,
+     * so this should be called after the threads borrowing sessions have stopped.
+     */
+    public void close() {
+        closed = true;
+
+        for (Iterator<PooledSession> it = sessions.values().iterator(); it.hasNext();) {
+            final PooledSession pooled = it.next();
+            it.remove();
+            discard(pooled.session);
+        }
+    }
+
+    private void evictDeadThreadSessions() {
+        for (Iterator<Map.Entry<Thread, PooledSession>> it = sessions.entrySet().iterator(); it.hasNext();) {
+            final Map.Entry<Thread, PooledSession> entry = it.next();
+
+            if (!entry.getKey().isAlive()) {
+                it.remove();
+                discard(entry.getValue().session);
+            }
+        }
+    }
+
+    private void discard(final Session session) {
+        discardedCount.incrementAndGet();
+
+        try {
+            if (session.isLive()) {
+                session.logout();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to log out pooled session.", e);
+        }
+    }
+
+    private class PooledSession {
+
+        private final Session session;
+        private final long createdMillis;
+
+        private PooledSession(final Session session, final long createdMillis) {
+            this.session = session;
+            this.createdMillis = createdMillis;
+        }
+
+        private boolean isExpired(final long nowMillis) {
+            return maxAgeMillis > 0L && nowMillis - createdMillis > maxAgeMillis;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.bloomreach.forge.versionhistory.core.RetentionPlan;
+
+/**
+ * Bounded LRU cache of the version history sizes of the documents by the handle identifiers, remembering the number
+ * of the unlabeled versions and the created time of the oldest one kept by the last full cleanup, in order to skip
+ * the cleanup on a publication when the configuration cannot remove any version.
+ * <P>
+ * A publication is assumed to add a version, so the cached number of the versions is incremented on each skip.
+ * A cleanup is not skipped if the cache misses, the configuration of the document is not the one the entry was
+ * computed by, e.g, after a reconfiguration, a thinning schedule applies, or the entry is older than the max age,
+ * which bounds the drift by the versions created or removed without a publication event.
+ * <P>
+ * This is thread-safe.
+ */
+public class DocumentHistorySkipCache {
+
+    private final int maxSize;
+    private final long maxAgeMillis;
+    private final Map<String, Entry> entries;
+
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * @param maxSize the max number of the entries
+     * @param maxAgeMillis the max age of an entry in milliseconds since the full cleanup computing it
+     */
+    public DocumentHistorySkipCache(final int maxSize, final long maxAgeMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("max size must be a positive integer.");
+        }
+
+        this.maxSize = maxSize;
+        this.maxAgeMillis = maxAgeMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > DocumentHistorySkipCache.this.maxSize;
+            }
+        };
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of the cleanups skipped.
+     * @return the number of the cleanups skipped
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of the cleanups not skipped.
+     * @return the number of the cleanups not skipped
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns true if the configuration cannot remove any version after a publication of the document, by the cached
+     * entry, accounting the version added by the publication to the entry if so.
+     * @param handleId document handle identifier
+     * @param config the current configuration of the document
+     * @param nowMillis current time in milliseconds
+     * @return true if the cleanup of the document can be skipped
+     */
+    public synchronized boolean skipPublication(final String handleId, final DocumentHistoryCleanerConfiguration config,
+            final long nowMillis) {
+        final Entry entry = entries.get(handleId);
+
+        if (entry == null || entry.config != config || config.getThinningSchedule() != null
+                || nowMillis - entry.computedMillis > maxAgeMillis) {
+            ++missCount;
+            return false;
+        }
+
+        final long maxRevisions = config.getMaxRevisions();
+        final long maxDays = config.getMaxDays();
+
+        if (maxRevisions >= 0L && (entry.versionCount < 0L || entry.versionCount + 1L > maxRevisions)) {
+            ++missCount;
+            return false;
+        }
+
+        if (maxDays >= 0L && entry.oldestCreatedMillis != Long.MAX_VALUE
+                && (entry.oldestCreatedMillis < 0L
+                        || nowMillis - entry.oldestCreatedMillis > maxDays * RetentionPlan.DAY_IN_MILLIS)) {
+            ++missCount;
+            return false;
+        }
+
+        if (entry.versionCount >= 0L) {
+            ++entry.versionCount;
+        }
+
+        if (entry.oldestCreatedMillis == Long.MAX_VALUE) {
+            entry.oldestCreatedMillis = nowMillis;
+        }
+
+        ++hitCount;
+        return true;
+    }
+
+    /**
+     * Puts the entry computed by a full cleanup of the document.
+     * @param handleId document handle identifier
+     * @param config the configuration by which the cleanup was executed
+     * @param versionCount the number of the unlabeled versions kept, or -1 if unknown
+     * @param oldestCreatedMillis the created time in milliseconds of the oldest unlabeled version kept,
+     *        {@link Long#MAX_VALUE} if none kept, or -1 if unknown
+     * @param nowMillis current time in milliseconds
+     */
+    public synchronized void put(final String handleId, final DocumentHistoryCleanerConfiguration config,
+            final long versionCount, final long oldestCreatedMillis, final long nowMillis) {
+        entries.put(handleId, new Entry(config, versionCount, oldestCreatedMillis, nowMillis));
+    }
+
+    /**
+     * Removes the entry of the document, e.g, when it is deleted or the cleanup failed.
+     * @param handleId document handle identifier
+     */
+    public synchronized void remove(final String handleId) {
+        entries.remove(handleId);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Version history size of a document, guarded by the cache.
+     */
+    private static class Entry {
+
+        private final DocumentHistoryCleanerConfiguration config;
+        private long versionCount;
+        private long oldestCreatedMillis;
+        private final long computedMillis;
+
+        private Entry(final DocumentHistoryCleanerConfiguration config, final long versionCount,
+                final long oldestCreatedMillis, final long computedMillis) {
+            this.config = config;
+            this.versionCount = versionCount;
+            this.oldestCreatedMillis = oldestCreatedMillis;
+            this.computedMillis = computedMillis;
+        }
+    }
+}
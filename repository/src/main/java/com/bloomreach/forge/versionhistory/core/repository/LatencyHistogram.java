@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets.
+ * <P>
+ * Recording a value costs a few striped adder increments, so it can be used in hot paths
+ * by multiple threads without contention. Percentiles are approximated by the upper bounds of the buckets.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of buckets. The last bucket holds all the values of 2^30 microseconds (about 18 minutes) or more.
+     */
+    private static final int BUCKET_COUNT = 32;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0L);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(final long nanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0L, nanos));
+        buckets[Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+        count.increment();
+        sumMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+
+        count.reset();
+        sumMicros.reset();
+        maxMicros.reset();
+    }
+
+    public Snapshot getSnapshot() {
+        final long[] bucketCounts = new long[BUCKET_COUNT];
+        long total = 0L;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            bucketCounts[i] = buckets[i].sum();
+            total += bucketCounts[i];
+        }
+
+        final long sum = sumMicros.sum();
+        final long max = maxMicros.get();
+        return new Snapshot(total, (total > 0L) ? sum / total : 0L, max,
+                percentile(bucketCounts, total, max, 0.50), percentile(bucketCounts, total, max, 0.90),
+                percentile(bucketCounts, total, max, 0.99));
+    }
+
+    private static long percentile(final long[] bucketCounts, final long total, final long max,
+            final double quantile) {
+        if (total == 0L) {
+            return 0L;
+        }
+
+        final long rank = (long) Math.ceil(total * quantile);
+        long cumulative = 0L;
+
+        for (int i = 0; i < bucketCounts.length; i++) {
+            cumulative += bucketCounts[i];
+
+            if (cumulative >= rank) {
+                // bucket i holds the values in [2^(i-1), 2^i - 1].
+                return (i == 0) ? 0L : Math.min((1L << i) - 1L, max);
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * Point-in-time snapshot of a {@link LatencyHistogram} in microseconds.
+     */
+    public static class Snapshot {
+
+        private final long count;
+        private final long meanMicros;
+        private final long maxMicros;
+        private final long p50Micros;
+        private final long p90Micros;
+        private final long p99Micros;
+
+        @ConstructorProperties({ "count", "meanMicros", "maxMicros", "p50Micros", "p90Micros", "p99Micros" })
+        public Snapshot(final long count, final long meanMicros, final long maxMicros, final long p50Micros,
+                final long p90Micros, final long p99Micros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.maxMicros = maxMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP90Micros() {
+            return p90Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+    }
+}
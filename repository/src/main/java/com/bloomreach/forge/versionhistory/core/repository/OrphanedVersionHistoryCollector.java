@@ -0,0 +1,331 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.version.VersionHistory;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloomreach.forge.versionhistory.core.AdaptiveRemovalThrottle;
+import com.bloomreach.forge.versionhistory.core.OrphanedVersionHistoryTruncaterTask;
+import com.bloomreach.forge.versionhistory.core.RemovedVersionTracker;
+import com.bloomreach.forge.versionhistory.core.RetentionReport;
+import com.bloomreach.forge.versionhistory.core.VersionAuditSink;
+
+/**
+ * Garbage collector of the orphaned version histories, of which the versionable node doesn't exist any more,
+ * e.g, left behind when <code>truncate.ondelete</code> is off or a truncation failed.
+ * <P>
+ * It streams through <code>/jcr:system/jcr:versionStorage</code> depth-first, visiting the children of each
+ * folder in the order of the name, and truncates each orphaned version history by
+ * {@link OrphanedVersionHistoryTruncaterTask}. The path of the last visited version history is saved in
+ * the {@link DocumentHistoryCheckpoint} after each batch of version histories, so an interrupted run resumes after
+ * the checkpoint on the next run, even if the version history at the checkpoint was removed in the meantime.
+ * <P>
+ * <EM>Note:</EM> This is not thread-safe. Run it in a single thread with a dedicated session, e.g, in a groovy
+ * updater script or in a background thread started by {@link DocumentHistoryCleanerDaemonModule}.
+ */
+public class OrphanedVersionHistoryCollector implements DocumentHistoryCleanerJob {
+
+    private static Logger defaultLogger = LoggerFactory.getLogger(OrphanedVersionHistoryCollector.class);
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final Session session;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private DocumentHistoryCheckpoint checkpoint;
+    private Logger logger;
+    private boolean dryRun;
+    private RetentionReport report;
+    private AdaptiveRemovalThrottle throttle;
+    private VersionAuditSink auditSink;
+    private RemovedVersionTracker removedVersionTracker;
+
+    private volatile boolean stopped;
+
+    /**
+     * The checkpoint position after which to resume in a resumed run. Null if not resuming.
+     */
+    private String seekPosition;
+    private String lastPosition;
+    private long historyCount;
+    private long orphanCount;
+    private long removedVersionCount;
+    private long batchCount;
+
+    public OrphanedVersionHistoryCollector(final Session session) {
+        if (session == null) {
+            throw new IllegalArgumentException("session must be not null.");
+        }
+
+        this.session = session;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of visited version histories between the checkpoint saves.
+     * @param batchSize the number of visited version histories between the checkpoint saves
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public DocumentHistoryCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Sets the checkpoint to resume from and save to. If null, every run starts from the beginning.
+     * @param checkpoint checkpoint
+     */
+    public void setCheckpoint(final DocumentHistoryCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * Sets whether or not to find the orphaned version histories without removing them.
+     * @param dryRun whether or not to find the orphaned version histories without removing them
+     */
+    public void setDryRun(final boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public RetentionReport getReport() {
+        return report;
+    }
+
+    /**
+     * Sets the report to which the footprints of the removed, or to be removed in dry-run mode, versions are added.
+     * @param report report
+     */
+    public void setReport(final RetentionReport report) {
+        this.report = report;
+    }
+
+    public AdaptiveRemovalThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Sets the throttle to limit the rate of version removals by the repository write latency.
+     * @param throttle throttle
+     */
+    public void setThrottle(final AdaptiveRemovalThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    public VersionAuditSink getAuditSink() {
+        return auditSink;
+    }
+
+    /**
+     * Sets the audit sink to which the versions removed, or to be removed in dry-run mode, are recorded.
+     * @param auditSink audit sink
+     */
+    public void setAuditSink(final VersionAuditSink auditSink) {
+        this.auditSink = auditSink;
+    }
+
+    public RemovedVersionTracker getRemovedVersionTracker() {
+        return removedVersionTracker;
+    }
+
+    /**
+     * Sets the tracker of the removed versions. The tracker is not applied in dry-run mode.
+     * @param removedVersionTracker removed version tracker
+     */
+    public void setRemovedVersionTracker(final RemovedVersionTracker removedVersionTracker) {
+        this.removedVersionTracker = removedVersionTracker;
+    }
+
+    public Logger getLogger() {
+        return logger != null ? logger : defaultLogger;
+    }
+
+    public void setLogger(final Logger logger) {
+        this.logger = logger;
+    }
+
+    public long getHistoryCount() {
+        return historyCount;
+    }
+
+    public long getOrphanCount() {
+        return orphanCount;
+    }
+
+    public long getRemovedVersionCount() {
+        return removedVersionCount;
+    }
+
+    /**
+     * Requests the running collector to stop after the current version history.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Runs the collector from the checkpoint, or from the beginning if there's no checkpoint.
+     * @return true if all the version histories were visited, false if stopped before completion
+     * @throws RepositoryException if repository exception occurs
+     */
+    @Override
+    public boolean run() throws RepositoryException {
+        seekPosition = (checkpoint != null) ? checkpoint.getPosition() : null;
+        lastPosition = seekPosition;
+        historyCount = (checkpoint != null) ? checkpoint.getProcessedCount() : 0L;
+        orphanCount = 0L;
+        removedVersionCount = 0L;
+        batchCount = 0L;
+
+        if (seekPosition != null) {
+            getLogger().info("Resuming orphaned version history collection after {} ({} histories visited).",
+                    seekPosition, historyCount);
+        } else {
+            getLogger().info("Starting orphaned version history collection.");
+        }
+
+        final long startMillis = System.currentTimeMillis();
+        visitFolder(session.getNode(VersionStorageSweeper.VERSION_STORAGE_PATH));
+        final long elapsedMillis = System.currentTimeMillis() - startMillis;
+
+        if (stopped) {
+            saveBatch();
+        } else if (checkpoint != null) {
+            checkpoint.clear();
+        }
+
+        getLogger().info("{} orphaned version history collection: {} histories visited, {} orphaned, {} versions {} "
+                + "in {}ms.", stopped ? "Stopped" : "Completed", historyCount, orphanCount, removedVersionCount,
+                dryRun ? "to remove" : "removed", elapsedMillis);
+        return !stopped;
+    }
+
+    private void visitFolder(final Node folder) throws RepositoryException {
+        // a folder of the version storage has at most a few hundreds of children, hashed by the identifiers.
+        final List<String> childNames = new ArrayList<>();
+
+        for (NodeIterator nodeIt = folder.getNodes(); nodeIt.hasNext();) {
+            final Node child = nodeIt.nextNode();
+
+            if (child != null) {
+                childNames.add(child.getName());
+            }
+        }
+
+        Collections.sort(childNames);
+
+        for (String childName : childNames) {
+            if (stopped) {
+                return;
+            }
+
+            if (!folder.hasNode(childName)) {
+                continue;
+            }
+
+            final Node child = folder.getNode(childName);
+            final String childPath = child.getPath();
+            final boolean versionHistory = child.isNodeType("nt:versionHistory");
+
+            if (seekPosition != null) {
+                if (versionHistory ? childPath.compareTo(seekPosition) <= 0
+                        : childPath.compareTo(seekPosition) < 0 && !StringUtils.startsWith(seekPosition,
+                                childPath + "/")) {
+                    // visited in the previous run.
+                    continue;
+                }
+
+                if (versionHistory || !StringUtils.startsWith(seekPosition, childPath + "/")) {
+                    seekPosition = null;
+                }
+            }
+
+            if (versionHistory) {
+                processVersionHistory((VersionHistory) child);
+            } else {
+                visitFolder(child);
+            }
+        }
+    }
+
+    private void processVersionHistory(final VersionHistory versionHistory) throws RepositoryException {
+        final String versionHistoryPath = versionHistory.getPath();
+        lastPosition = versionHistoryPath;
+        ++historyCount;
+
+        try {
+            if (!OrphanedVersionHistoryTruncaterTask.isOrphaned(session, versionHistory)) {
+                return;
+            }
+
+            final OrphanedVersionHistoryTruncaterTask task = new OrphanedVersionHistoryTruncaterTask(session,
+                    versionHistory);
+            task.setLogger(getLogger());
+            task.setDryRun(dryRun);
+            task.setReport(report);
+            task.setThrottle(throttle);
+            task.setAuditSink(auditSink);
+            task.setRemovedVersionTracker(removedVersionTracker);
+            task.execute();
+
+            ++orphanCount;
+            removedVersionCount += task.getRemovedVersionCount();
+        } catch (Exception e) {
+            getLogger().error("Failed to collect orphaned version history at {}.", versionHistoryPath, e);
+            session.refresh(false);
+        }
+
+        if (++batchCount >= Math.max(1, batchSize)) {
+            saveBatch();
+        }
+    }
+
+    private void saveBatch() throws RepositoryException {
+        if (batchCount == 0L) {
+            return;
+        }
+
+        if (checkpoint != null && !dryRun) {
+            checkpoint.save(lastPosition, historyCount);
+        }
+
+        getLogger().info("Orphaned version history collection visited {} histories until {}: {} orphaned, "
+                + "{} versions {}.", historyCount, lastPosition, orphanCount, removedVersionCount,
+                dryRun ? "to remove" : "removed");
+        batchCount = 0L;
+    }
+}
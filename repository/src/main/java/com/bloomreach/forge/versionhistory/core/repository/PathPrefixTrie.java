@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Trie over the segments of absolute repository paths, finding the value of the longest path prefix of a path,
+ * so that the cost of a lookup depends on the depth of the path, not on the number of the prefixes.
+ * <P>
+ * A prefix matches only at segment boundaries, e.g, <code>/content/documents/brand-a</code> matches
+ * <code>/content/documents/brand-a/news</code>, but not <code>/content/documents/brand-ab</code>.
+ * <P>
+ * <EM>Note:</EM> This is not thread-safe for modification. Build it fully before publishing it to other threads,
+ * and don't modify it afterward.
+ */
+public class PathPrefixTrie<V> {
+
+    private final TrieNode<V> root = new TrieNode<>();
+
+    private int size;
+
+    /**
+     * Returns the number of the prefixes.
+     * @return the number of the prefixes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Puts the value of the path prefix, replacing the existing value of the same prefix.
+     * @param pathPrefix absolute path prefix, where "/" matches all the paths
+     * @param value value
+     */
+    public void put(final String pathPrefix, final V value) {
+        if (pathPrefix == null || !pathPrefix.startsWith("/")) {
+            throw new IllegalArgumentException("path prefix must be an absolute path: " + pathPrefix);
+        }
+
+        TrieNode<V> node = root;
+        int start = 1;
+
+        while (start < pathPrefix.length()) {
+            int end = pathPrefix.indexOf('/', start);
+
+            if (end < 0) {
+                end = pathPrefix.length();
+            }
+
+            if (end > start) {
+                node = node.children.computeIfAbsent(pathPrefix.substring(start, end), name -> new TrieNode<>());
+            }
+
+            start = end + 1;
+        }
+
+        if (node.value == null) {
+            ++size;
+        }
+
+        node.value = value;
+    }
+
+    /**
+     * Returns the value of the longest prefix of the path, or null if no prefix matches.
+     * @param path absolute path
+     * @return the value of the longest prefix of the path, or null if no prefix matches
+     */
+    public V getLongestPrefixMatch(final String path) {
+        if (path == null || size == 0) {
+            return null;
+        }
+
+        TrieNode<V> node = root;
+        V match = root.value;
+        int start = 1;
+
+        while (start < path.length() && !node.children.isEmpty()) {
+            int end = path.indexOf('/', start);
+
+            if (end < 0) {
+                end = path.length();
+            }
+
+            if (end > start) {
+                node = node.children.get(path.substring(start, end));
+
+                if (node == null) {
+                    break;
+                }
+
+                if (node.value != null) {
+                    match = node.value;
+                }
+            }
+
+            start = end + 1;
+        }
+
+        return match;
+    }
+
+    private static class TrieNode<V> {
+
+        private final Map<String, TrieNode<V>> children = new HashMap<>();
+
+        private V value;
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
+import javax.jcr.version.VersionIterator;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloomreach.forge.versionhistory.core.RetentionReport;
+import com.bloomreach.forge.versionhistory.core.VersionFootprint;
+
+/**
+ * Analyzer of the version storage footprint, which streams through all the version histories in
+ * <code>/jcr:system/jcr:versionStorage</code> and measures the version count, the frozen node count and
+ * the approximate property and binary bytes of each version history by {@link VersionFootprint}.
+ * <P>
+ * It keeps only the top N heaviest version histories, by the sum of the property and binary bytes, in a min-heap,
+ * and the aggregated footprint and the histogram of the version counts per document type, so the memory usage
+ * doesn't grow with the number of the version histories. The paths of the versionable nodes are resolved only
+ * for the top N version histories when the report is written. Nothing is modified.
+ * <P>
+ * <EM>Note:</EM> This is not thread-safe. Run it in a single thread with a dedicated session, e.g, in a groovy
+ * updater script or in a background thread started by {@link DocumentHistoryCleanerDaemonModule}.
+ */
+public class VersionStorageFootprintAnalyzer implements DocumentHistoryCleanerJob {
+
+    private static Logger defaultLogger = LoggerFactory.getLogger(VersionStorageFootprintAnalyzer.class);
+
+    private static final int DEFAULT_TOP_SIZE = 100;
+
+    private static final long DEFAULT_PROGRESS_INTERVAL = 1000L;
+
+    /**
+     * Comparator of the version histories from the lightest to the heaviest.
+     */
+    private static final Comparator<HistoryEntry> WEIGHT_COMPARATOR = Comparator
+            .comparingLong((HistoryEntry entry) -> entry.getWeight())
+            .thenComparingLong(entry -> entry.footprint.getVersionCount())
+            .thenComparing(entry -> entry.versionHistoryPath);
+
+    private final Session session;
+
+    private int topSize = DEFAULT_TOP_SIZE;
+    private long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private String reportFile;
+    private Logger logger;
+
+    private volatile boolean stopped;
+    private boolean completed;
+
+    private final PriorityQueue<HistoryEntry> topEntries = new PriorityQueue<>(WEIGHT_COMPARATOR);
+    private final Map<String, DocumentTypeStats> documentTypeStats = new TreeMap<>();
+    private VersionFootprint totalFootprint = new VersionFootprint();
+    private long historyCount;
+
+    public VersionStorageFootprintAnalyzer(final Session session) {
+        if (session == null) {
+            throw new IllegalArgumentException("session must be not null.");
+        }
+
+        this.session = session;
+    }
+
+    public int getTopSize() {
+        return topSize;
+    }
+
+    /**
+     * Sets the number of the heaviest version histories to keep in the report.
+     * @param topSize the number of the heaviest version histories to keep in the report
+     */
+    public void setTopSize(final int topSize) {
+        this.topSize = topSize;
+    }
+
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Sets the number of version histories between the progress logs.
+     * @param progressInterval the number of version histories between the progress logs
+     */
+    public void setProgressInterval(final long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    public String getReportFile() {
+        return reportFile;
+    }
+
+    /**
+     * Sets the path of the file to which the JSON report is written at the end of each run.
+     * If not set, the report is written only by {@link #write(Writer)}.
+     * @param reportFile the path of the file to which the JSON report is written at the end of each run
+     */
+    public void setReportFile(final String reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    public Logger getLogger() {
+        return logger != null ? logger : defaultLogger;
+    }
+
+    public void setLogger(final Logger logger) {
+        this.logger = logger;
+    }
+
+    public long getHistoryCount() {
+        return historyCount;
+    }
+
+    /**
+     * Requests the running analyzer to stop after the current version history.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Runs the analyzer over all the version histories, discarding the result of the previous run.
+     * @return true if all the version histories were analyzed, false if stopped before completion
+     * @throws RepositoryException if repository exception occurs
+     */
+    @Override
+    public boolean run() throws RepositoryException {
+        topEntries.clear();
+        documentTypeStats.clear();
+        totalFootprint = new VersionFootprint();
+        historyCount = 0L;
+        completed = false;
+
+        getLogger().info("Starting version storage footprint analysis.");
+
+        final long startMillis = System.currentTimeMillis();
+        visitFolder(session.getNode(VersionStorageSweeper.VERSION_STORAGE_PATH));
+        final long elapsedMillis = System.currentTimeMillis() - startMillis;
+        completed = !stopped;
+
+        getLogger().info("{} version storage footprint analysis: {} histories, {} versions, {} property bytes and "
+                + "{} binary bytes in {}ms.", completed ? "Completed" : "Stopped", historyCount,
+                totalFootprint.getVersionCount(), totalFootprint.getPropertyBytes(),
+                totalFootprint.getBinaryBytes(), elapsedMillis);
+
+        if (StringUtils.isNotBlank(reportFile)) {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(reportFile), StandardCharsets.UTF_8)) {
+                write(writer);
+            } catch (IOException e) {
+                getLogger().error("Failed to write version storage footprint report to {}.", reportFile, e);
+            }
+        }
+
+        return completed;
+    }
+
+    private void visitFolder(final Node folder) throws RepositoryException {
+        for (NodeIterator nodeIt = folder.getNodes(); nodeIt.hasNext() && !stopped;) {
+            final Node child = nodeIt.nextNode();
+
+            if (child == null) {
+                continue;
+            }
+
+            if (child.isNodeType("nt:versionHistory")) {
+                analyzeVersionHistory((VersionHistory) child);
+            } else {
+                visitFolder(child);
+            }
+        }
+    }
+
+    private void analyzeVersionHistory(final VersionHistory versionHistory) throws RepositoryException {
+        final VersionFootprint footprint = new VersionFootprint();
+        String documentType = "";
+
+        try {
+            final Node rootFrozenNode = versionHistory.getRootVersion().getFrozenNode();
+
+            if (rootFrozenNode.hasProperty("jcr:frozenPrimaryType")) {
+                documentType = rootFrozenNode.getProperty("jcr:frozenPrimaryType").getString();
+            }
+
+            for (VersionIterator versionIt = versionHistory.getAllVersions(); versionIt.hasNext();) {
+                final Version version = versionIt.nextVersion();
+
+                if (version != null && !version.getName().equals("jcr:rootVersion")) {
+                    footprint.add(VersionFootprint.measure(version));
+                }
+            }
+        } catch (Exception e) {
+            getLogger().error("Failed to analyze version history at {}.", versionHistory.getPath(), e);
+            return;
+        }
+
+        ++historyCount;
+        totalFootprint.add(footprint);
+        documentTypeStats.computeIfAbsent(documentType, type -> new DocumentTypeStats()).add(footprint);
+
+        final int maxTopSize = Math.max(0, topSize);
+
+        if (maxTopSize > 0) {
+            final HistoryEntry entry = new HistoryEntry(versionHistory.getPath(),
+                    versionHistory.getVersionableIdentifier(), documentType, footprint);
+
+            if (topEntries.size() < maxTopSize) {
+                topEntries.add(entry);
+            } else if (WEIGHT_COMPARATOR.compare(entry, topEntries.peek()) > 0) {
+                topEntries.poll();
+                topEntries.add(entry);
+            }
+        }
+
+        if (progressInterval > 0L && historyCount % progressInterval == 0L) {
+            getLogger().info("Analyzing version storage footprint: {} histories, {} versions.", historyCount,
+                    totalFootprint.getVersionCount());
+        }
+    }
+
+    /**
+     * Writes the report of the last run in JSON format.
+     * @param writer writer
+     * @throws IOException if IO exception occurs
+     * @throws RepositoryException if repository exception occurs in resolving the document paths
+     */
+    public void write(final Writer writer) throws IOException, RepositoryException {
+        writer.write("{\n  \"completed\": " + completed + ",\n  \"historyCount\": " + historyCount
+                + ",\n  \"total\": ");
+        RetentionReport.writeJsonFootprint(writer, totalFootprint);
+        writer.write(",\n  \"documentTypes\": {");
+
+        String separator = "\n";
+
+        for (Map.Entry<String, DocumentTypeStats> entry : documentTypeStats.entrySet()) {
+            writer.write(separator);
+            writer.write("    ");
+            RetentionReport.writeJsonString(writer, entry.getKey());
+            writer.write(": ");
+            entry.getValue().write(writer);
+            separator = ",\n";
+        }
+
+        writer.write("\n  },\n  \"top\": [");
+        separator = "\n";
+
+        final List<HistoryEntry> entries = new ArrayList<>(topEntries);
+        Collections.sort(entries, WEIGHT_COMPARATOR.reversed());
+
+        for (HistoryEntry entry : entries) {
+            writer.write(separator);
+            writer.write("    {\"path\": ");
+            RetentionReport.writeJsonString(writer, getDocumentPath(entry));
+            writer.write(", \"versionHistoryPath\": ");
+            RetentionReport.writeJsonString(writer, entry.versionHistoryPath);
+            writer.write(", \"documentType\": ");
+            RetentionReport.writeJsonString(writer, entry.documentType);
+            writer.write(", \"footprint\": ");
+            RetentionReport.writeJsonFootprint(writer, entry.footprint);
+            writer.write("}");
+            separator = ",\n";
+        }
+
+        writer.write("\n  ]\n}\n");
+        writer.flush();
+    }
+
+    /**
+     * Returns the path of the versionable node, or null if the version history is orphaned.
+     */
+    private String getDocumentPath(final HistoryEntry entry) throws RepositoryException {
+        try {
+            return session.getNodeByIdentifier(entry.versionableIdentifier).getPath();
+        } catch (ItemNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Version history in the top N heaviest version histories.
+     */
+    private static class HistoryEntry {
+
+        private final String versionHistoryPath;
+        private final String versionableIdentifier;
+        private final String documentType;
+        private final VersionFootprint footprint;
+
+        private HistoryEntry(final String versionHistoryPath, final String versionableIdentifier,
+                final String documentType, final VersionFootprint footprint) {
+            this.versionHistoryPath = versionHistoryPath;
+            this.versionableIdentifier = versionableIdentifier;
+            this.documentType = documentType;
+            this.footprint = footprint;
+        }
+
+        private long getWeight() {
+            return footprint.getPropertyBytes() + footprint.getBinaryBytes();
+        }
+    }
+
+    /**
+     * Aggregated footprint and histogram of the version counts of the version histories of a document type.
+     */
+    private static class DocumentTypeStats {
+
+        /**
+         * The number of the version histories by the bucket of the version count, where the bucket 0 is for no
+         * version and the bucket <code>i</code> is for <code>2^(i-1)</code> to <code>2^i - 1</code> versions.
+         */
+        private final long[] versionCountHistogram = new long[Long.SIZE];
+        private final VersionFootprint footprint = new VersionFootprint();
+        private long historyCount;
+
+        private void add(final VersionFootprint historyFootprint) {
+            ++historyCount;
+            footprint.add(historyFootprint);
+            ++versionCountHistogram[Long.SIZE - Long.numberOfLeadingZeros(historyFootprint.getVersionCount())];
+        }
+
+        private void write(final Writer writer) throws IOException {
+            writer.write("{\"historyCount\": " + historyCount + ", \"footprint\": ");
+            RetentionReport.writeJsonFootprint(writer, footprint);
+            writer.write(", \"versionCountHistogram\": [");
+
+            String separator = "";
+
+            for (int i = 0; i < versionCountHistogram.length; i++) {
+                if (versionCountHistogram[i] == 0L) {
+                    continue;
+                }
+
+                final long min = (i == 0) ? 0L : 1L << (i - 1);
+                final long max = (i == 0) ? 0L : (1L << i) - 1L;
+                writer.write(separator + "{\"min\": " + min + ", \"max\": " + max + ", \"count\": "
+                        + versionCountHistogram[i] + "}");
+                separator = ", ";
+            }
+
+            writer.write("]}");
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.hippoecm.repository.api.HippoNodeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloomreach.forge.versionhistory.core.AdaptiveRemovalThrottle;
+import com.bloomreach.forge.versionhistory.core.DocumentHistoryCleanerTask;
+import com.bloomreach.forge.versionhistory.core.DocumentHistoryTruncaterTask;
+import com.bloomreach.forge.versionhistory.core.RemovedVersionTracker;
+import com.bloomreach.forge.versionhistory.core.RetentionReport;
+import com.bloomreach.forge.versionhistory.core.VersionAuditSink;
+
+/**
+ * Parallel sweeper of the version storage, which splits <code>/jcr:system/jcr:versionStorage</code>
+ * into shards by its hashed intermediate folders and processes each shard in a worker thread with its own session.
+ * <P>
+ * For each version history in a shard, the versionable node is resolved and the version history is cleaned up
+ * by {@link DocumentHistoryCleanerTask} if it is a preview variant node, or truncated by
+ * {@link DocumentHistoryTruncaterTask} if it is a deleted variant node in the attic and the document type specific
+ * configuration says so. Version histories of which the versionable node doesn't exist any more are skipped.
+ */
+public class VersionStorageSweeper implements DocumentHistoryCleanerJob {
+
+    private static Logger defaultLogger = LoggerFactory.getLogger(VersionStorageSweeper.class);
+
+    public static final String VERSION_STORAGE_PATH = "/jcr:system/jcr:versionStorage";
+
+    private static final long DEFAULT_PROGRESS_INTERVAL = 1000L;
+
+    private final Session daemonSession;
+    private final Supplier<DocumentHistoryCleanerPolicies> policies;
+
+    private int workers = 1;
+    private long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private Logger logger;
+    private boolean dryRun;
+    private RetentionReport report;
+    private AdaptiveRemovalThrottle throttle;
+    private VersionAuditSink auditSink;
+    private RemovedVersionTracker removedVersionTracker;
+
+    private volatile boolean stopped;
+
+    private final AtomicLong totalHistoryCount = new AtomicLong();
+    private final AtomicLong totalRemovedVersionCount = new AtomicLong();
+    private final AtomicInteger completedShardCount = new AtomicInteger();
+
+    /**
+     * @param daemonSession the session from which a system session is impersonated for each shard
+     * @param policies supplier of the current policies
+     */
+    public VersionStorageSweeper(final Session daemonSession,
+            final Supplier<DocumentHistoryCleanerPolicies> policies) {
+        if (daemonSession == null) {
+            throw new IllegalArgumentException("session must be not null.");
+        }
+
+        this.daemonSession = daemonSession;
+        this.policies = policies;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(final int workers) {
+        this.workers = workers;
+    }
+
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Sets the number of version histories between the progress logs of a shard.
+     * @param progressInterval the number of version histories between the progress logs of a shard
+     */
+    public void setProgressInterval(final long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * Sets whether or not to compute the versions to remove without removing them.
+     * @param dryRun whether or not to compute the versions to remove without removing them
+     */
+    public void setDryRun(final boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public RetentionReport getReport() {
+        return report;
+    }
+
+    /**
+     * Sets the report to which the footprints of the removed, or to be removed in dry-run mode, versions are added.
+     * @param report report
+     */
+    public void setReport(final RetentionReport report) {
+        this.report = report;
+    }
+
+    public AdaptiveRemovalThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Sets the throttle to limit the rate of version removals by the repository write latency.
+     * @param throttle throttle
+     */
+    public void setThrottle(final AdaptiveRemovalThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    public VersionAuditSink getAuditSink() {
+        return auditSink;
+    }
+
+    /**
+     * Sets the audit sink to which the versions removed, or to be removed in dry-run mode, are recorded.
+     * @param auditSink audit sink
+     */
+    public void setAuditSink(final VersionAuditSink auditSink) {
+        this.auditSink = auditSink;
+    }
+
+    public RemovedVersionTracker getRemovedVersionTracker() {
+        return removedVersionTracker;
+    }
+
+    /**
+     * Sets the tracker of the removed versions. The tracker is not applied in dry-run mode.
+     * @param removedVersionTracker removed version tracker
+     */
+    public void setRemovedVersionTracker(final RemovedVersionTracker removedVersionTracker) {
+        this.removedVersionTracker = removedVersionTracker;
+    }
+
+    public Logger getLogger() {
+        return logger != null ? logger : defaultLogger;
+    }
+
+    public void setLogger(final Logger logger) {
+        this.logger = logger;
+    }
+
+    public long getTotalHistoryCount() {
+        return totalHistoryCount.get();
+    }
+
+    public long getTotalRemovedVersionCount() {
+        return totalRemovedVersionCount.get();
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public boolean run() throws RepositoryException {
+        final List<String> shardPaths = getShardPaths();
+        final int workerCount = Math.max(1, Math.min(workers, shardPaths.size()));
+        final long startMillis = System.currentTimeMillis();
+
+        getLogger().info("Starting version storage sweep of {} shards with {} workers.", shardPaths.size(),
+                workerCount);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executorService = Executors.newFixedThreadPool(workerCount, runnable -> {
+            final Thread thread = new Thread(runnable,
+                    "version-history-cleaner-sweep-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            final List<Future<?>> futures = new ArrayList<>(shardPaths.size());
+
+            for (String shardPath : shardPaths) {
+                futures.add(executorService.submit(() -> {
+                    sweepShard(shardPath, shardPaths.size());
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    getLogger().error("Failed to sweep a version storage shard.", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        final long elapsedMillis = System.currentTimeMillis() - startMillis;
+        final long removedVersionCount = totalRemovedVersionCount.get();
+        getLogger().info("{} version storage sweep: {} shards, {} histories, {} versions removed in {}ms "
+                + "({} versions/s).", stopped ? "Stopped" : "Completed", completedShardCount.get(),
+                totalHistoryCount.get(), removedVersionCount, elapsedMillis,
+                perSecond(removedVersionCount, elapsedMillis));
+
+        return !stopped;
+    }
+
+    private List<String> getShardPaths() throws RepositoryException {
+        final List<String> shardPaths = new ArrayList<>();
+        final Session session = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+
+        try {
+            for (NodeIterator nodeIt = session.getNode(VERSION_STORAGE_PATH).getNodes(); nodeIt.hasNext();) {
+                final Node shard = nodeIt.nextNode();
+
+                if (shard != null) {
+                    shardPaths.add(shard.getPath());
+                }
+            }
+        } finally {
+            session.logout();
+        }
+
+        return shardPaths;
+    }
+
+    private void sweepShard(final String shardPath, final int shardCount) throws RepositoryException {
+        if (stopped) {
+            return;
+        }
+
+        final long startMillis = System.currentTimeMillis();
+        final ShardProgress progress = new ShardProgress(shardPath, startMillis);
+        final Session session = DocumentHistoryCleanerUtils.impersonateSystemSession(daemonSession);
+
+        try {
+            final Node shard = session.getNode(shardPath);
+
+            if (shard.isNodeType("nt:versionHistory")) {
+                processVersionHistory(session, shard, progress);
+            } else {
+                visitShardNode(session, shard, progress);
+            }
+        } finally {
+            session.logout();
+        }
+
+        final long elapsedMillis = System.currentTimeMillis() - startMillis;
+        getLogger().info("Swept version storage shard {} ({}/{}): {} histories, {} versions removed in {}ms "
+                + "({} versions/s).", shardPath, completedShardCount.incrementAndGet(), shardCount,
+                progress.historyCount, progress.removedVersionCount, elapsedMillis,
+                perSecond(progress.removedVersionCount, elapsedMillis));
+    }
+
+    private void visitShardNode(final Session session, final Node parent, final ShardProgress progress)
+            throws RepositoryException {
+        for (NodeIterator nodeIt = parent.getNodes(); nodeIt.hasNext() && !stopped;) {
+            final Node child = nodeIt.nextNode();
+
+            if (child == null) {
+                continue;
+            }
+
+            if (child.isNodeType("nt:versionHistory")) {
+                processVersionHistory(session, child, progress);
+            } else {
+                visitShardNode(session, child, progress);
+            }
+        }
+    }
+
+    private void processVersionHistory(final Session session, final Node versionHistory, final ShardProgress progress)
+            throws RepositoryException {
+        final String versionableUuid = versionHistory.getProperty("jcr:versionableUuid").getString();
+        long removedVersionCount = 0L;
+
+        try {
+            final Node versionableNode = session.getNodeByIdentifier(versionableUuid);
+
+            if (versionableNode.getPath().startsWith("/content/")) {
+                final String documentType = versionableNode.getPrimaryNodeType().getName();
+                final DocumentHistoryCleanerConfiguration config = policies.get().getConfiguration(documentType,
+                        versionableNode.getPath());
+
+                if (versionableNode.isNodeType(HippoNodeType.NT_DELETED)) {
+                    if (config.isTruncateOnDelete()) {
+                        final DocumentHistoryTruncaterTask task = new DocumentHistoryTruncaterTask(session,
+                                versionableNode);
+                        task.setLogger(getLogger());
+                        task.setDryRun(dryRun);
+                        task.setReport(report);
+                        task.setThrottle(throttle);
+                        task.setAuditSink(auditSink);
+                        task.setRemovedVersionTracker(removedVersionTracker);
+                        task.execute();
+                        removedVersionCount = task.getRemovedVersionCount();
+                    }
+                } else if (DocumentHistoryCleanerUtils.isPreviewVariantNode(versionableNode)) {
+                    final DocumentHistoryCleanerTask task = new DocumentHistoryCleanerTask(session, versionableNode);
+                    task.setLogger(getLogger());
+                    task.setMaxDays(config.getMaxDays());
+                    task.setMaxRevisions(config.getMaxRevisions());
+                    task.setThinningSchedule(config.getThinningSchedule());
+                    task.setStreaming(config.isStreaming());
+                    task.setDryRun(dryRun);
+                    task.setReport(report);
+                    task.setThrottle(throttle);
+                    task.setAuditSink(auditSink);
+                    task.setRemovedVersionTracker(removedVersionTracker);
+                    task.execute();
+                    removedVersionCount = task.getRemovedVersionCount();
+                }
+
+                if (session.hasPendingChanges()) {
+                    session.save();
+                }
+            }
+        } catch (ItemNotFoundException e) {
+            getLogger().debug("Skipping version history of non-existing node ({}): {}", versionableUuid,
+                    versionHistory.getPath());
+        } catch (Exception e) {
+            getLogger().error("Failed to clean up version history at {}.", versionHistory.getPath(), e);
+            session.refresh(false);
+        }
+
+        progress.removedVersionCount += removedVersionCount;
+        totalRemovedVersionCount.addAndGet(removedVersionCount);
+        totalHistoryCount.incrementAndGet();
+
+        if (++progress.historyCount % Math.max(1L, progressInterval) == 0L) {
+            final long elapsedMillis = System.currentTimeMillis() - progress.startMillis;
+            getLogger().info("Sweeping version storage shard {}: {} histories, {} versions removed ({} versions/s).",
+                    progress.shardPath, progress.historyCount, progress.removedVersionCount,
+                    perSecond(progress.removedVersionCount, elapsedMillis));
+        }
+    }
+
+    private static long perSecond(final long count, final long elapsedMillis) {
+        return (elapsedMillis > 0L) ? count * 1000L / elapsedMillis : count;
+    }
+
+    /**
+     * Progress of a shard, which is updated only by the worker thread sweeping the shard.
+     */
+    private static class ShardProgress {
+
+        private final String shardPath;
+        private final long startMillis;
+        private long historyCount;
+        private long removedVersionCount;
+
+        private ShardProgress(final String shardPath, final long startMillis) {
+            this.shardPath = shardPath;
+            this.startMillis = startMillis;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+import org.apache.jackrabbit.core.config.RepositoryConfigurationParser;
+import org.xml.sax.InputSource;
+
+/**
+ * Test harness of multiple local Jackrabbit repository instances in a cluster, sharing one in-memory Derby database
+ * with distinct cluster node identifiers, like the cluster nodes sharing one database in production.
+ */
+class ClusteredRepositories {
+
+    private static final String REPOSITORY_CONFIG_RESOURCE = "/cluster-repository.xml";
+
+    private final String dbUrl = "jdbc:derby:memory:vhc-" + UUID.randomUUID() + ";create=true";
+    private final List<Path> homeDirs = new ArrayList<>();
+    private final List<RepositoryImpl> repositories = new ArrayList<>();
+
+    /**
+     * Starts a repository instance joining the cluster, one by one not to create the database tables concurrently.
+     * @return the index of the started repository instance
+     */
+    int start() throws IOException, RepositoryException {
+        final int index = repositories.size();
+        final Path homeDir = Files.createTempDirectory("version-history-cleaner-cluster-" + index);
+        homeDirs.add(homeDir);
+
+        final Properties variables = new Properties();
+        variables.setProperty(RepositoryConfigurationParser.REPOSITORY_HOME_VARIABLE, homeDir.toString());
+        variables.setProperty("db.url", dbUrl);
+        variables.setProperty("cluster.id", "node" + index);
+
+        try (InputStream input = ClusteredRepositories.class.getResourceAsStream(REPOSITORY_CONFIG_RESOURCE)) {
+            repositories.add(RepositoryImpl.create(RepositoryConfig.create(new InputSource(input), variables)));
+        }
+
+        return index;
+    }
+
+    Session login(final int index) throws RepositoryException {
+        return repositories.get(index).login(new SimpleCredentials("admin", "admin".toCharArray()));
+    }
+
+    /**
+     * Shuts down the repository instances in the reverse order, and deletes their home directories.
+     */
+    void shutdown() throws IOException {
+        for (int i = repositories.size() - 1; i >= 0; i--) {
+            repositories.get(i).shutdown();
+        }
+
+        repositories.clear();
+
+        for (Path homeDir : homeDirs) {
+            try (Stream<Path> paths = Files.walk(homeDir)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+
+        homeDirs.clear();
+    }
+
+    /**
+     * Waits until the condition is met, e.g, until the changes by the other instances are synchronized.
+     * @return whether or not the condition was met within the timeout
+     */
+    static boolean await(final BooleanSupplier condition, final long timeoutMillis) throws InterruptedException {
+        final long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadlineMillis) {
+                return false;
+            }
+
+            Thread.sleep(50L);
+        }
+
+        return true;
+    }
+}
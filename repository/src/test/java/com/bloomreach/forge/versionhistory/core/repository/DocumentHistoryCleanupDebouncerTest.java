@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link DocumentHistoryCleanupDebouncer}.
+ */
+public class DocumentHistoryCleanupDebouncerTest {
+
+    private static final long AWAIT_TIMEOUT_MILLIS = 10000L;
+
+    private final List<DocumentHistoryCleanupRequest> dispatched = Collections.synchronizedList(new ArrayList<>());
+
+    private DocumentHistoryCleanupDebouncer debouncer;
+
+    @After
+    public void tearDown() throws Exception {
+        if (debouncer != null) {
+            debouncer.shutdown();
+        }
+    }
+
+    @Test
+    public void testMergesRequestsPerSubject() throws Exception {
+        debouncer = new DocumentHistoryCleanupDebouncer(dispatched::add, 200L, 100);
+        debouncer.start();
+
+        final DocumentHistoryCleanupRequest deleteA = createRequest("a", DocumentHistoryCleanupRequest.ACTION_DELETE);
+        debouncer.submit(createRequest("a", DocumentHistoryCleanupRequest.ACTION_PUBLISH));
+        debouncer.submit(createRequest("a", DocumentHistoryCleanupRequest.ACTION_PUBLISH));
+        debouncer.submit(deleteA);
+        debouncer.submit(createRequest("b", DocumentHistoryCleanupRequest.ACTION_PUBLISH));
+
+        assertEquals(2, debouncer.getPendingCount());
+        assertEquals(2L, debouncer.getMergedCount());
+
+        awaitDispatchedCount(2);
+        // the latest request for a subject wins.
+        assertSame(deleteA, getDispatched("a"));
+        assertEquals(0, debouncer.getPendingCount());
+        assertEquals(2L, debouncer.getDispatchedCount());
+    }
+
+    @Test
+    public void testRequestExtendsDeadline() throws Exception {
+        debouncer = new DocumentHistoryCleanupDebouncer(dispatched::add, 1000L, 100);
+        debouncer.start();
+
+        debouncer.submit(createRequest("a", DocumentHistoryCleanupRequest.ACTION_PUBLISH));
+        Thread.sleep(600L);
+        debouncer.submit(createRequest("a", DocumentHistoryCleanupRequest.ACTION_PUBLISH));
+        // past the deadline of the first request, which was moved to the bucket of the extended deadline.
+        Thread.sleep(600L);
+
+        assertTrue(dispatched.isEmpty());
+        assertEquals(1, debouncer.getPendingCount());
+
+        awaitDispatchedCount(1);
+        assertEquals(1L, debouncer.getDispatchedCount());
+    }
+
+    @Test
+    public void testDispatchesImmediatelyWhenFullOrNotRunning() throws Exception {
+        debouncer = new DocumentHistoryCleanupDebouncer(dispatched::add, 60000L, 1);
+
+        debouncer.submit(createRequest("a", DocumentHistoryCleanupRequest.ACTION_PUBLISH));
+        assertEquals("Not running.", 1, dispatched.size());
+
+        debouncer.start();
+        debouncer.submit(createRequest("b", DocumentHistoryCleanupRequest.ACTION_PUBLISH));
+        assertEquals(1, dispatched.size());
+
+        debouncer.submit(createRequest("c", DocumentHistoryCleanupRequest.ACTION_PUBLISH));
+        assertEquals("Max pending count reached.", 2, dispatched.size());
+        assertEquals("c", dispatched.get(1).getSubjectId());
+        assertEquals(1, debouncer.getPendingCount());
+    }
+
+    @Test
+    public void testShutdownReturnsPendingRequests() throws Exception {
+        debouncer = new DocumentHistoryCleanupDebouncer(dispatched::add, 60000L, 100);
+        debouncer.start();
+
+        debouncer.submit(createRequest("a", DocumentHistoryCleanupRequest.ACTION_PUBLISH));
+        debouncer.submit(createRequest("b", DocumentHistoryCleanupRequest.ACTION_DELETE));
+
+        final List<DocumentHistoryCleanupRequest> pendings = debouncer.shutdown();
+
+        assertEquals(2, pendings.size());
+        assertTrue(dispatched.isEmpty());
+        assertEquals(0, debouncer.getPendingCount());
+
+        debouncer.submit(createRequest("c", DocumentHistoryCleanupRequest.ACTION_PUBLISH));
+        assertEquals("Dispatched immediately after the shutdown.", 1, dispatched.size());
+    }
+
+    @Test
+    public void testInvalidArguments() throws Exception {
+        try {
+            new DocumentHistoryCleanupDebouncer(null, 1000L, 100);
+            fail("Null dispatcher must be rejected.");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+
+        try {
+            new DocumentHistoryCleanupDebouncer(dispatched::add, 0L, 100);
+            fail("Non-positive quiet period must be rejected.");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+
+        try {
+            new DocumentHistoryCleanupDebouncer(dispatched::add, 1000L, 0);
+            fail("Non-positive max pending count must be rejected.");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * Waits until the number of the dispatched requests reaches the count.
+     */
+    private void awaitDispatchedCount(final int count) throws InterruptedException {
+        final long deadlineMillis = System.currentTimeMillis() + AWAIT_TIMEOUT_MILLIS;
+
+        while (dispatched.size() < count) {
+            assertTrue("Dispatched only " + dispatched.size() + " of " + count + " requests.",
+                    System.currentTimeMillis() < deadlineMillis);
+            Thread.sleep(10L);
+        }
+    }
+
+    private DocumentHistoryCleanupRequest getDispatched(final String subjectId) {
+        synchronized (dispatched) {
+            for (DocumentHistoryCleanupRequest request : dispatched) {
+                if (subjectId.equals(request.getSubjectId())) {
+                    return request;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static DocumentHistoryCleanupRequest createRequest(final String subjectId, final String action) {
+        return new DocumentHistoryCleanupRequest(subjectId, "/content/documents/" + subjectId, "ns:document", action);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.Session;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.bloomreach.forge.versionhistory.core.repository.DocumentHistoryCleanupExecutor.OverflowPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link DocumentHistoryCleanupExecutor}.
+ */
+public class DocumentHistoryCleanupExecutorTest {
+
+    private static final long AWAIT_TIMEOUT_MILLIS = 10000L;
+
+    private static final String SPILL_QUEUE_PATH = "/vhc/state/spill";
+
+    private final List<String> processedIds = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Latch counted down when the first request is taken by a worker, and latch holding the workers until released.
+     */
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    private DocumentHistoryCleanupExecutor executor;
+    private ClusteredRepositories repositories;
+
+    @After
+    public void tearDown() throws Exception {
+        released.countDown();
+
+        if (executor != null) {
+            executor.shutdown(AWAIT_TIMEOUT_MILLIS);
+        }
+
+        if (repositories != null) {
+            repositories.shutdown();
+        }
+    }
+
+    @Test
+    public void testProcessesSubmittedRequests() throws Exception {
+        executor = new DocumentHistoryCleanupExecutor(request -> processedIds.add(request.getSubjectId()), 2, 10,
+                OverflowPolicy.BLOCK);
+        executor.start();
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(executor.submit(createRequest("doc-" + i)));
+        }
+
+        awaitProcessedCount(100);
+        assertEquals(0, executor.getPendingCount());
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        executor = new DocumentHistoryCleanupExecutor(this::processHeld, 1, 1, OverflowPolicy.DROP);
+        executor.start();
+        holdWorker();
+
+        assertTrue(executor.submit(createRequest("queued")));
+        assertFalse(executor.submit(createRequest("dropped")));
+        assertEquals(1, executor.getPendingCount());
+
+        released.countDown();
+
+        awaitProcessedCount(2);
+        assertEquals("queued", processedIds.get(1));
+    }
+
+    @Test
+    public void testBlockWhenFull() throws Exception {
+        executor = new DocumentHistoryCleanupExecutor(this::processHeld, 1, 1, OverflowPolicy.BLOCK);
+        executor.start();
+        holdWorker();
+
+        assertTrue(executor.submit(createRequest("queued")));
+
+        final AtomicBoolean accepted = new AtomicBoolean();
+        final Thread submitter = new Thread(() -> accepted.set(executor.submit(createRequest("blocked"))));
+        submitter.start();
+        submitter.join(300L);
+
+        assertTrue("The submitter must block while the queue is full.", submitter.isAlive());
+
+        released.countDown();
+        submitter.join(AWAIT_TIMEOUT_MILLIS);
+
+        assertTrue(accepted.get());
+        awaitProcessedCount(3);
+    }
+
+    @Test
+    public void testRejectsAfterShutdown() throws Exception {
+        executor = new DocumentHistoryCleanupExecutor(request -> processedIds.add(request.getSubjectId()), 1, 10,
+                OverflowPolicy.BLOCK);
+        executor.start();
+        executor.shutdown(AWAIT_TIMEOUT_MILLIS);
+
+        assertFalse(executor.submit(createRequest("rejected")));
+        assertTrue(processedIds.isEmpty());
+    }
+
+    @Test
+    public void testSpillWhenFull() throws Exception {
+        final Session session = startRepository();
+        executor = new DocumentHistoryCleanupExecutor(this::processHeld, 1, 1, OverflowPolicy.SPILL);
+        executor.setSpillQueue(new DocumentHistoryPendingQueue(session, SPILL_QUEUE_PATH), 2);
+        executor.start();
+        holdWorker();
+
+        assertTrue(executor.submit(createRequest("queued")));
+        assertTrue(executor.submit(createRequest("spilled-1")));
+        assertTrue(executor.submit(createRequest("spilled-2")));
+        assertFalse("Both the queue and the spill queue are full.", executor.submit(createRequest("dropped")));
+        assertEquals(3, executor.getPendingCount());
+
+        released.countDown();
+
+        awaitProcessedCount(4);
+        assertFalse(processedIds.contains("dropped"));
+
+        executor.shutdown(AWAIT_TIMEOUT_MILLIS);
+        assertTrue(new DocumentHistoryPendingQueue(session, SPILL_QUEUE_PATH).peek(10).isEmpty());
+    }
+
+    @Test
+    public void testShutdownSpillsRemainingRequests() throws Exception {
+        final Session session = startRepository();
+        executor = new DocumentHistoryCleanupExecutor(this::processHeld, 1, 2, OverflowPolicy.SPILL);
+        executor.setSpillQueue(new DocumentHistoryPendingQueue(session, SPILL_QUEUE_PATH), 10);
+        executor.start();
+        holdWorker();
+
+        assertTrue(executor.submit(createRequest("remaining-1")));
+        assertTrue(executor.submit(createRequest("remaining-2")));
+
+        // the held worker is interrupted after the timeout.
+        executor.shutdown(100L);
+
+        final List<String> spilledIds = new ArrayList<>();
+
+        for (DocumentHistoryCleanupRequest request : new DocumentHistoryPendingQueue(session, SPILL_QUEUE_PATH)
+                .peek(10)) {
+            spilledIds.add(request.getSubjectId());
+        }
+
+        Collections.sort(spilledIds);
+        assertEquals(2, spilledIds.size());
+        assertEquals("remaining-1", spilledIds.get(0));
+        assertEquals("remaining-2", spilledIds.get(1));
+    }
+
+    @Test
+    public void testParseOverflowPolicy() throws Exception {
+        assertEquals(OverflowPolicy.DROP, OverflowPolicy.parse("drop", OverflowPolicy.BLOCK));
+        assertEquals(OverflowPolicy.SPILL, OverflowPolicy.parse(" Spill ", OverflowPolicy.BLOCK));
+        assertEquals(OverflowPolicy.DROP, OverflowPolicy.parse(null, OverflowPolicy.DROP));
+        assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.parse("unknown", OverflowPolicy.BLOCK));
+    }
+
+    private Session startRepository() throws Exception {
+        repositories = new ClusteredRepositories();
+        return repositories.login(repositories.start());
+    }
+
+    /**
+     * Waits until the number of the processed requests reaches the count.
+     */
+    private void awaitProcessedCount(final int count) throws InterruptedException {
+        final long deadlineMillis = System.currentTimeMillis() + AWAIT_TIMEOUT_MILLIS;
+
+        while (processedIds.size() < count) {
+            assertTrue("Processed only " + processedIds.size() + " of " + count + " requests.",
+                    System.currentTimeMillis() < deadlineMillis);
+            Thread.sleep(10L);
+        }
+    }
+
+    /**
+     * Submits a request to be held by the single worker, and waits until the worker takes it.
+     */
+    private void holdWorker() throws Exception {
+        assertTrue(executor.submit(createRequest("held")));
+        assertTrue(started.await(AWAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private void processHeld(final DocumentHistoryCleanupRequest request) {
+        processedIds.add(request.getSubjectId());
+        started.countDown();
+
+        try {
+            released.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static DocumentHistoryCleanupRequest createRequest(final String subjectId) {
+        return new DocumentHistoryCleanupRequest(subjectId, "/content/documents/" + subjectId, "ns:document",
+                DocumentHistoryCleanupRequest.ACTION_PUBLISH);
+    }
+}
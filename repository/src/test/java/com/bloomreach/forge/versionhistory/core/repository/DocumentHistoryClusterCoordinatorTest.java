@@ -0,0 +1,220 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.RepositoryException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link DocumentHistoryClusterCoordinator} and {@link DocumentHistoryClusterOwnedJob} with multiple local
+ * repository instances sharing one database.
+ */
+public class DocumentHistoryClusterCoordinatorTest {
+
+    private static final int CLUSTER_SIZE = 3;
+
+    private static final String STATE_PATH = "/vhc/state/cluster";
+
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 200L;
+
+    private static final long MEMBER_TIMEOUT_MILLIS = 2000L;
+
+    private static final long AWAIT_TIMEOUT_MILLIS = 20000L;
+
+    private ClusteredRepositories cluster;
+    private final List<DocumentHistoryClusterCoordinator> coordinators = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        cluster = new ClusteredRepositories();
+
+        for (int i = 0; i < CLUSTER_SIZE; i++) {
+            cluster.start();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (DocumentHistoryClusterCoordinator coordinator : coordinators) {
+            coordinator.stop();
+        }
+
+        coordinators.clear();
+        cluster.shutdown();
+    }
+
+    @Test
+    public void testLeaseHeldByOneClusterNode() throws Exception {
+        startCoordinators(DocumentHistoryClusterCoordinator.Mode.LEASE);
+        awaitConverged();
+
+        assertTrue(ClusteredRepositories.await(() -> countLeaseHolders() == 1, AWAIT_TIMEOUT_MILLIS));
+
+        final DocumentHistoryClusterCoordinator holder = getLeaseHolder();
+        holder.stop();
+        coordinators.remove(holder);
+
+        assertTrue("Another cluster node must take over the released lease.",
+                ClusteredRepositories.await(() -> countLeaseHolders() == 1, AWAIT_TIMEOUT_MILLIS));
+        assertFalse(holder.isLeaseHeld());
+    }
+
+    @Test
+    public void testPartitionOwnsEachSubjectOnce() throws Exception {
+        startCoordinators(DocumentHistoryClusterCoordinator.Mode.PARTITION);
+        awaitConverged();
+
+        final int[] ownedCounts = new int[CLUSTER_SIZE];
+
+        for (int i = 0; i < 1000; i++) {
+            final String subjectId = UUID.randomUUID().toString();
+            int ownerCount = 0;
+
+            for (int j = 0; j < CLUSTER_SIZE; j++) {
+                if (coordinators.get(j).isOwner(subjectId)) {
+                    ++ownerCount;
+                    ++ownedCounts[j];
+                }
+            }
+
+            assertEquals("Subject must be owned by exactly one cluster node: " + subjectId, 1, ownerCount);
+        }
+
+        for (int j = 0; j < CLUSTER_SIZE; j++) {
+            assertTrue("Every cluster node must own a share of the subjects.", ownedCounts[j] > 0);
+        }
+    }
+
+    @Test
+    public void testClusterOwnedJobRunsOnOneClusterNode() throws Exception {
+        startCoordinators(DocumentHistoryClusterCoordinator.Mode.LEASE);
+        awaitConverged();
+
+        final AtomicInteger runCount = new AtomicInteger();
+        final List<DocumentHistoryClusterOwnedJob> jobs = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+
+        for (DocumentHistoryClusterCoordinator coordinator : coordinators) {
+            final DocumentHistoryClusterOwnedJob job = new DocumentHistoryClusterOwnedJob(coordinator, "backfill",
+                    () -> new CountingJob(runCount));
+            final Thread thread = new Thread(() -> {
+                try {
+                    job.run();
+                } catch (RepositoryException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            jobs.add(job);
+            threads.add(thread);
+            thread.start();
+        }
+
+        assertTrue(ClusteredRepositories.await(() -> runCount.get() > 0, AWAIT_TIMEOUT_MILLIS));
+        // give the other cluster nodes a few heartbeats to run it wrongly.
+        Thread.sleep(5L * HEARTBEAT_INTERVAL_MILLIS);
+
+        for (DocumentHistoryClusterOwnedJob job : jobs) {
+            job.stop();
+        }
+
+        for (Thread thread : threads) {
+            thread.join(AWAIT_TIMEOUT_MILLIS);
+        }
+
+        assertEquals(1, runCount.get());
+    }
+
+    private void startCoordinators(final DocumentHistoryClusterCoordinator.Mode mode) throws RepositoryException {
+        for (int i = 0; i < CLUSTER_SIZE; i++) {
+            final DocumentHistoryClusterCoordinator coordinator = new DocumentHistoryClusterCoordinator(
+                    cluster.login(i), STATE_PATH, "node" + i, mode, HEARTBEAT_INTERVAL_MILLIS,
+                    MEMBER_TIMEOUT_MILLIS);
+            coordinators.add(coordinator);
+            coordinator.start();
+        }
+    }
+
+    /**
+     * Waits until every cluster node has seen the heartbeats of all the cluster nodes.
+     */
+    private void awaitConverged() throws InterruptedException {
+        assertTrue("Cluster nodes must see each other.", ClusteredRepositories.await(() -> {
+            for (DocumentHistoryClusterCoordinator coordinator : coordinators) {
+                if (!coordinator.isJoined() || coordinator.getLiveMembers().size() != coordinators.size()) {
+                    return false;
+                }
+            }
+
+            return true;
+        }, AWAIT_TIMEOUT_MILLIS));
+    }
+
+    private int countLeaseHolders() {
+        int count = 0;
+
+        for (DocumentHistoryClusterCoordinator coordinator : coordinators) {
+            if (coordinator.isLeaseHeld()) {
+                ++count;
+            }
+        }
+
+        return count;
+    }
+
+    private DocumentHistoryClusterCoordinator getLeaseHolder() {
+        for (DocumentHistoryClusterCoordinator coordinator : coordinators) {
+            if (coordinator.isLeaseHeld()) {
+                return coordinator;
+            }
+        }
+
+        throw new IllegalStateException("No lease holder.");
+    }
+
+    /**
+     * Job counting its runs, which completes immediately.
+     */
+    private static class CountingJob implements DocumentHistoryCleanerJob {
+
+        private final AtomicInteger runCount;
+
+        private CountingJob(final AtomicInteger runCount) {
+            this.runCount = runCount;
+        }
+
+        @Override
+        public boolean run() {
+            runCount.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import java.util.ConcurrentModificationException;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.RepositoryException;
+import javax.jcr.lock.LockException;
+
+import org.apache.jackrabbit.core.state.StaleItemStateException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link DocumentHistoryRetryPolicy}.
+ */
+public class DocumentHistoryRetryPolicyTest {
+
+    @Test
+    public void testIsRetryable() throws Exception {
+        assertTrue(DocumentHistoryRetryPolicy.isRetryable(new InvalidItemStateException("modified")));
+        assertTrue(DocumentHistoryRetryPolicy.isRetryable(new LockException("locked")));
+        assertTrue(DocumentHistoryRetryPolicy.isRetryable(new ConcurrentModificationException("modified")));
+        // by any of the causes.
+        assertTrue(DocumentHistoryRetryPolicy.isRetryable(new RepositoryException("failed",
+                new RepositoryException("stale", new StaleItemStateException("stale")))));
+        assertTrue(DocumentHistoryRetryPolicy.isRetryable(new IllegalStateException(
+                new InvalidItemStateException("modified"))));
+
+        assertFalse(DocumentHistoryRetryPolicy.isRetryable(null));
+        assertFalse(DocumentHistoryRetryPolicy.isRetryable(new RepositoryException("failed")));
+        assertFalse(DocumentHistoryRetryPolicy.isRetryable(new IllegalArgumentException("invalid",
+                new RepositoryException("failed"))));
+    }
+
+    @Test
+    public void testShouldRetry() throws Exception {
+        final DocumentHistoryRetryPolicy policy = new DocumentHistoryRetryPolicy(3, 100L, 1000L);
+        final Exception retryable = new InvalidItemStateException("modified");
+        final Exception nonRetryable = new RepositoryException("failed");
+
+        assertTrue(policy.shouldRetry(retryable, 1));
+        assertTrue(policy.shouldRetry(retryable, 2));
+        assertFalse(policy.shouldRetry(retryable, 3));
+        assertFalse(policy.shouldRetry(nonRetryable, 1));
+
+        assertFalse(policy.isExhausted(retryable, 2));
+        assertTrue(policy.isExhausted(retryable, 3));
+        assertFalse(policy.isExhausted(nonRetryable, 3));
+    }
+
+    @Test
+    public void testBackoffIsExponentialWithEqualJitter() throws Exception {
+        final DocumentHistoryRetryPolicy policy = new DocumentHistoryRetryPolicy(10, 100L, 1000L);
+        final long[] backoffs = { 100L, 200L, 400L, 800L, 1000L, 1000L };
+
+        for (int attempt = 1; attempt <= backoffs.length; attempt++) {
+            final long backoff = backoffs[attempt - 1];
+
+            for (int i = 0; i < 100; i++) {
+                final long backoffMillis = policy.getBackoffMillis(attempt);
+                assertTrue("Backoff of attempt " + attempt + " out of range: " + backoffMillis,
+                        backoffMillis >= backoff / 2L && backoffMillis <= backoff);
+            }
+        }
+
+        // no overflow by a large attempt number.
+        assertTrue(policy.getBackoffMillis(Integer.MAX_VALUE) <= 1000L);
+    }
+
+    @Test
+    public void testNoRetry() throws Exception {
+        final DocumentHistoryRetryPolicy policy = DocumentHistoryRetryPolicy.NO_RETRY;
+
+        assertEquals(1, policy.getMaxAttempts());
+        assertFalse(policy.shouldRetry(new InvalidItemStateException("modified"), 1));
+        assertTrue(policy.isExhausted(new InvalidItemStateException("modified"), 1));
+        assertEquals(0L, policy.getBackoffMillis(1));
+    }
+
+    @Test
+    public void testInvalidSettingsAreClamped() throws Exception {
+        final DocumentHistoryRetryPolicy policy = new DocumentHistoryRetryPolicy(0, -100L, 50L);
+
+        assertEquals(1, policy.getMaxAttempts());
+        assertEquals(0L, policy.getInitialBackoffMillis());
+        assertEquals(50L, policy.getMaxBackoffMillis());
+
+        // the max backoff is at least the initial backoff.
+        assertEquals(200L, new DocumentHistoryRetryPolicy(3, 200L, 100L).getMaxBackoffMillis());
+    }
+}
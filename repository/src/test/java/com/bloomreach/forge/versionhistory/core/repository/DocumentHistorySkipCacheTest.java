@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import org.junit.Test;
+
+import com.bloomreach.forge.versionhistory.core.ThinningSchedule;
+
+import static com.bloomreach.forge.versionhistory.core.RetentionPlan.DAY_IN_MILLIS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link DocumentHistorySkipCache}.
+ */
+public class DocumentHistorySkipCacheTest {
+
+    private static final long NOW_MILLIS = 100L * DAY_IN_MILLIS;
+
+    private static final long MAX_AGE_MILLIS = DAY_IN_MILLIS;
+
+    @Test
+    public void testSkipsUntilMaxRevisionsReached() throws Exception {
+        final DocumentHistorySkipCache cache = new DocumentHistorySkipCache(10, MAX_AGE_MILLIS);
+        final DocumentHistoryCleanerConfiguration config = createConfiguration(-1L, 5L);
+        cache.put("handle-1", config, 3L, NOW_MILLIS - DAY_IN_MILLIS / 2L, NOW_MILLIS);
+
+        // each skipped publication is assumed to add a version.
+        assertTrue(cache.skipPublication("handle-1", config, NOW_MILLIS));
+        assertTrue(cache.skipPublication("handle-1", config, NOW_MILLIS));
+        assertFalse(cache.skipPublication("handle-1", config, NOW_MILLIS));
+
+        assertEquals(2L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+    }
+
+    @Test
+    public void testSkipsUntilOldestVersionExpires() throws Exception {
+        final DocumentHistorySkipCache cache = new DocumentHistorySkipCache(10, 10L * DAY_IN_MILLIS);
+        final DocumentHistoryCleanerConfiguration config = createConfiguration(2L, -1L);
+        cache.put("handle-1", config, 3L, NOW_MILLIS - DAY_IN_MILLIS, NOW_MILLIS);
+
+        assertTrue(cache.skipPublication("handle-1", config, NOW_MILLIS + DAY_IN_MILLIS));
+        assertFalse(cache.skipPublication("handle-1", config, NOW_MILLIS + DAY_IN_MILLIS + 1L));
+    }
+
+    @Test
+    public void testNoneKeptStartsWithThePublishedVersion() throws Exception {
+        final DocumentHistorySkipCache cache = new DocumentHistorySkipCache(10, 10L * DAY_IN_MILLIS);
+        final DocumentHistoryCleanerConfiguration config = createConfiguration(2L, -1L);
+        cache.put("handle-1", config, 0L, Long.MAX_VALUE, NOW_MILLIS);
+
+        assertTrue(cache.skipPublication("handle-1", config, NOW_MILLIS));
+        // the version added by the skipped publication is the oldest one from then on.
+        assertTrue(cache.skipPublication("handle-1", config, NOW_MILLIS + 2L * DAY_IN_MILLIS));
+        assertFalse(cache.skipPublication("handle-1", config, NOW_MILLIS + 2L * DAY_IN_MILLIS + 1L));
+    }
+
+    @Test
+    public void testMisses() throws Exception {
+        final DocumentHistorySkipCache cache = new DocumentHistorySkipCache(10, MAX_AGE_MILLIS);
+        final DocumentHistoryCleanerConfiguration config = createConfiguration(-1L, 5L);
+
+        assertFalse("Not cached.", cache.skipPublication("handle-1", config, NOW_MILLIS));
+
+        cache.put("handle-1", config, 1L, NOW_MILLIS, NOW_MILLIS);
+        assertFalse("Computed by another configuration.",
+                cache.skipPublication("handle-1", createConfiguration(-1L, 5L), NOW_MILLIS));
+        assertFalse("Older than the max age.",
+                cache.skipPublication("handle-1", config, NOW_MILLIS + MAX_AGE_MILLIS + 1L));
+
+        cache.put("handle-1", config, -1L, NOW_MILLIS, NOW_MILLIS);
+        assertFalse("Unknown number of versions.", cache.skipPublication("handle-1", config, NOW_MILLIS));
+
+        final DocumentHistoryCleanerConfiguration thinningConfig = createConfiguration(-1L, 5L);
+        thinningConfig.setThinningSchedule(ThinningSchedule.parse("7d:all, *:1d"));
+        cache.put("handle-2", thinningConfig, 1L, NOW_MILLIS, NOW_MILLIS);
+        assertFalse("Thinning schedule applies.", cache.skipPublication("handle-2", thinningConfig, NOW_MILLIS));
+
+        cache.remove("handle-1");
+        assertFalse("Removed.", cache.skipPublication("handle-1", config, NOW_MILLIS));
+
+        assertEquals(0L, cache.getHitCount());
+        assertEquals(6L, cache.getMissCount());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        final DocumentHistorySkipCache cache = new DocumentHistorySkipCache(2, MAX_AGE_MILLIS);
+        final DocumentHistoryCleanerConfiguration config = createConfiguration(-1L, 100L);
+        cache.put("handle-1", config, 1L, NOW_MILLIS, NOW_MILLIS);
+        cache.put("handle-2", config, 1L, NOW_MILLIS, NOW_MILLIS);
+
+        assertTrue(cache.skipPublication("handle-1", config, NOW_MILLIS));
+
+        cache.put("handle-3", config, 1L, NOW_MILLIS, NOW_MILLIS);
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.skipPublication("handle-1", config, NOW_MILLIS));
+        assertFalse(cache.skipPublication("handle-2", config, NOW_MILLIS));
+        assertTrue(cache.skipPublication("handle-3", config, NOW_MILLIS));
+    }
+
+    private static DocumentHistoryCleanerConfiguration createConfiguration(final long maxDays,
+            final long maxRevisions) {
+        final DocumentHistoryCleanerConfiguration config = new DocumentHistoryCleanerConfiguration();
+        config.setMaxDays(maxDays);
+        config.setMaxRevisions(maxRevisions);
+        return config;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2024 BloomReach, Inc. (https://www.bloomreach.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.bloomreach.forge.versionhistory.core.repository;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link PathPrefixTrie}.
+ */
+public class PathPrefixTrieTest {
+
+    @Test
+    public void testMatchAtSegmentBoundary() throws Exception {
+        final PathPrefixTrie<String> trie = new PathPrefixTrie<>();
+        trie.put("/content/documents/brand-a", "a");
+
+        assertEquals("a", trie.getLongestPrefixMatch("/content/documents/brand-a"));
+        assertEquals("a", trie.getLongestPrefixMatch("/content/documents/brand-a/"));
+        assertEquals("a", trie.getLongestPrefixMatch("/content/documents/brand-a/news/2024"));
+        assertNull(trie.getLongestPrefixMatch("/content/documents/brand-ab"));
+        assertNull(trie.getLongestPrefixMatch("/content/documents/brand-ab/news"));
+        assertNull(trie.getLongestPrefixMatch("/content/documents/brand"));
+        assertNull(trie.getLongestPrefixMatch("/content/documents"));
+    }
+
+    @Test
+    public void testLongestPrefixMatch() throws Exception {
+        final PathPrefixTrie<String> trie = new PathPrefixTrie<>();
+        trie.put("/", "root");
+        trie.put("/content", "content");
+        trie.put("/content/documents/brand-a", "a");
+
+        assertEquals("a", trie.getLongestPrefixMatch("/content/documents/brand-a/news"));
+        // no prefix at /content/documents, so the shorter prefix matches.
+        assertEquals("content", trie.getLongestPrefixMatch("/content/documents/brand-b"));
+        assertEquals("content", trie.getLongestPrefixMatch("/content"));
+        assertEquals("root", trie.getLongestPrefixMatch("/contentx"));
+        assertEquals("root", trie.getLongestPrefixMatch("/"));
+    }
+
+    @Test
+    public void testPutNormalizesSlashesAndReplaces() throws Exception {
+        final PathPrefixTrie<String> trie = new PathPrefixTrie<>();
+        trie.put("/content/documents/", "first");
+        trie.put("/content//documents", "second");
+
+        assertEquals(1, trie.size());
+        assertEquals("second", trie.getLongestPrefixMatch("/content/documents/news"));
+
+        trie.put("/content", "content");
+
+        assertEquals(2, trie.size());
+    }
+
+    @Test
+    public void testNoMatch() throws Exception {
+        final PathPrefixTrie<String> trie = new PathPrefixTrie<>();
+
+        assertNull(trie.getLongestPrefixMatch("/content"));
+
+        trie.put("/content", "content");
+
+        assertNull(trie.getLongestPrefixMatch(null));
+        assertNull(trie.getLongestPrefixMatch("/other"));
+    }
+
+    @Test
+    public void testInvalidPrefixes() throws Exception {
+        final PathPrefixTrie<String> trie = new PathPrefixTrie<>();
+
+        for (String prefix : new String[] { null, "", "content/documents" }) {
+            try {
+                trie.put(prefix, "value");
+                fail("Relative path prefix must be rejected: " + prefix);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+
+        assertEquals(0, trie.size());
+    }
+}